@@ -39,18 +39,33 @@ public final class ContinuousScreeningCLI {
         ContinuousScreeningOrchestrator.Config config = new ContinuousScreeningOrchestrator.Config()
                 .withFullRaw(fullRaw)
                 .withDownsampledRaw(downsampledRaw)
+                .withNeighborGraph(cliConfig.resolveNeighborGraph(configPath))
                 .withQueryDescriptor(queryDescriptor)
                 .withSamplerConfig(samplerConfig)
                 .withFullOptimizationRequest(fullRequest)
                 .withFullOptimizerThreads(cliConfig.getOrchestration().getWorkerThreads())
                 .withQueueCapacity(cliConfig.getOrchestration().getQueueCapacity())
+                .withStageQueueCapacity(cliConfig.getOrchestration().getStageQueueCapacity())
+                .withSamplingThreads(cliConfig.getOrchestration().getSamplingThreads())
+                .withMicroThreads(cliConfig.getOrchestration().getMicroThreads())
+                .withStageBalanceIntervalSeconds(cliConfig.getOrchestration().getStageBalanceIntervalSeconds())
                 .withProgressIntervalSeconds(cliConfig.getOrchestration().getProgressIntervalSeconds())
                 .withReactionWeightExponent(cliConfig.getOrchestration().getReactionWeightExponent())
                 .withReactionMinWeight(cliConfig.getOrchestration().getReactionMinWeight())
                 .withReactionWeighting(cliConfig.toReactionWeighting())
+                .withReactionAdaptation(cliConfig.toReactionAdaptation(), cliConfig.getReactionAdaptationIntervalSeconds())
                 .withHitOutput(cliConfig.resolveOutputHits(configPath))
+                .withHitWriterOptions(cliConfig.toHitWriterOptions())
                 .withMinReportedSimilarity(cliConfig.getMinReportedSimilarity())
                 .withDuplicateCacheSize(cliConfig.getOrchestration().getDuplicateCacheSize())
+                .withDuplicateFalsePositiveRate(cliConfig.getOrchestration().getDuplicateFalsePositiveRate())
+                .withScoreCacheSize(cliConfig.getOrchestration().getScoreCacheSize())
+                .withSynthonCacheSize(cliConfig.getOrchestration().getSynthonCacheSize())
+                .withSizePrescreenTolerance(cliConfig.getOrchestration().getSizePrescreenTolerance())
+                .withFullScoringCascade(cliConfig.toFullScoringCascade())
+                .withScoreCacheFile(cliConfig.resolveScoreCacheFile(configPath))
+                .withCheckpoint(cliConfig.resolveCheckpointFile(configPath),
+                        cliConfig.getOrchestration().getCheckpointIntervalSeconds())
                 .withRandomSeed(cliConfig.getRun().getEffectiveRandomSeed());
         if (microEnabled) {
             config.withMicroEnabled(true).withMicroOptimizationRequest(microRequest);
@@ -2,9 +2,12 @@ package com.idorsia.research.chem.hyperspace.cli;
 
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.idorsia.research.chem.hyperspace.localopt.AsyncResultWriter;
 import com.idorsia.research.chem.hyperspace.localopt.LocalOptimizationLogLevel;
 import com.idorsia.research.chem.hyperspace.localopt.LocalOptimizationRequest;
+import com.idorsia.research.chem.hyperspace.localopt.StagedAssemblyScorer;
 import com.idorsia.research.chem.hyperspace.screening.CandidateSampler;
+import com.idorsia.research.chem.hyperspace.screening.DuplicateFilter;
 import com.idorsia.research.chem.hyperspace.screening.ReactionScheduler;
 
 import java.io.IOException;
@@ -75,6 +78,9 @@ public final class ContinuousScreeningConfig {
         requireNonBlank(inputs.rawDownsampled, "inputs.rawDownsampled");
         requireNonBlank(output.hitsTsv, "output.hitsTsv");
         requireFinite(output.minReportedSimilarity, "output.minReportedSimilarity");
+        if (output.hitWriter != null) {
+            output.hitWriter.validate("output.hitWriter");
+        }
 
         boolean hasInlineSmiles = hasText(query.smiles);
         boolean hasInlineIdcode = hasText(query.idcode);
@@ -119,6 +125,9 @@ public final class ContinuousScreeningConfig {
         requireFinite(sampling.minSimilarity, "sampling.minSimilarity");
 
         fullOptimization.request.validate("fullOptimization.request");
+        if (fullOptimization.scoringCascade != null) {
+            fullOptimization.scoringCascade.validate("fullOptimization.scoringCascade");
+        }
 
         if (microOptimization.enabled) {
             microOptimization.request.validate("microOptimization.request");
@@ -127,15 +136,40 @@ public final class ContinuousScreeningConfig {
         if (orchestration.queueCapacity <= 0) {
             throw new IllegalArgumentException("orchestration.queueCapacity must be positive");
         }
+        if (orchestration.stageQueueCapacity < 0) {
+            throw new IllegalArgumentException("orchestration.stageQueueCapacity must be >= 0 (0 means 2 * workerThreads)");
+        }
         if (orchestration.workerThreads <= 0) {
             throw new IllegalArgumentException("orchestration.workerThreads must be positive");
         }
+        if (orchestration.samplingThreads < 0) {
+            throw new IllegalArgumentException("orchestration.samplingThreads must be >= 0 (0 means workerThreads / 4)");
+        }
+        if (orchestration.microThreads < 0) {
+            throw new IllegalArgumentException("orchestration.microThreads must be >= 0 (0 means workerThreads / 4)");
+        }
+        if (orchestration.stageBalanceIntervalSeconds < 0) {
+            throw new IllegalArgumentException("orchestration.stageBalanceIntervalSeconds must be >= 0");
+        }
         if (orchestration.progressIntervalSeconds < 0) {
             throw new IllegalArgumentException("orchestration.progressIntervalSeconds must be >= 0");
         }
         if (orchestration.duplicateCacheSize <= 0) {
             throw new IllegalArgumentException("orchestration.duplicateCacheSize must be positive");
         }
+        if (!(orchestration.duplicateFalsePositiveRate > 0.0 && orchestration.duplicateFalsePositiveRate < 1.0)) {
+            throw new IllegalArgumentException("orchestration.duplicateFalsePositiveRate must be in (0,1)");
+        }
+        if (orchestration.scoreCacheSize <= 0) {
+            throw new IllegalArgumentException("orchestration.scoreCacheSize must be positive");
+        }
+        if (orchestration.synthonCacheSize <= 0) {
+            throw new IllegalArgumentException("orchestration.synthonCacheSize must be positive");
+        }
+        requireFinite(orchestration.sizePrescreenTolerance, "orchestration.sizePrescreenTolerance");
+        if (orchestration.checkpointIntervalSeconds <= 0) {
+            throw new IllegalArgumentException("orchestration.checkpointIntervalSeconds must be positive");
+        }
         if (orchestration.reactionWeightExponent <= 0.0) {
             throw new IllegalArgumentException("orchestration.reactionWeightExponent must be positive");
         }
@@ -145,6 +179,9 @@ public final class ContinuousScreeningConfig {
         if (orchestration.reactionWeighting != null) {
             orchestration.reactionWeighting.validate("orchestration.reactionWeighting");
         }
+        if (orchestration.reactionAdaptation != null) {
+            orchestration.reactionAdaptation.validate("orchestration.reactionAdaptation");
+        }
     }
 
     public Path resolveRawFull(Path configPath) {
@@ -155,14 +192,39 @@ public final class ContinuousScreeningConfig {
         return resolveRelativeToConfig(inputs.rawDownsampled, configPath);
     }
 
+    /**
+     * @return neighbor graph of the full space, or null if neighborhoods are ranked on first use
+     */
+    public Path resolveNeighborGraph(Path configPath) {
+        return hasText(inputs.neighborGraph) ? resolveRelativeToConfig(inputs.neighborGraph, configPath) : null;
+    }
+
     public Path resolveOutputHits(Path configPath) {
         return resolveRelativeToConfig(output.hitsTsv, configPath);
     }
 
+    /**
+     * @return the score cache file, or null if scores are not persisted
+     */
+    public Path resolveScoreCacheFile(Path configPath) {
+        return hasText(output.scoreCacheFile) ? resolveRelativeToConfig(output.scoreCacheFile, configPath) : null;
+    }
+
+    /**
+     * @return checkpoint file of the run, null if checkpoints are disabled
+     */
+    public Path resolveCheckpointFile(Path configPath) {
+        return hasText(output.checkpointFile) ? resolveRelativeToConfig(output.checkpointFile, configPath) : null;
+    }
+
     public double getMinReportedSimilarity() {
         return output.minReportedSimilarity;
     }
 
+    public AsyncResultWriter.Options toHitWriterOptions() {
+        return output.hitWriter == null ? new AsyncResultWriter.Options() : output.hitWriter.toWriterOptions();
+    }
+
     public QueryInput resolveQuery(Path configPath) throws IOException {
         if (hasText(queryFile)) {
             Path resolvedQueryPath = resolveRelativeToConfig(queryFile, configPath);
@@ -203,6 +265,24 @@ public final class ContinuousScreeningConfig {
         return orchestration.reactionWeighting.toSchedulerWeighting();
     }
 
+    public StagedAssemblyScorer.CascadeOptions toFullScoringCascade() {
+        if (fullOptimization.scoringCascade == null || !fullOptimization.scoringCascade.enabled) {
+            return null;
+        }
+        return fullOptimization.scoringCascade.toCascadeOptions();
+    }
+
+    public ReactionScheduler.Adaptation toReactionAdaptation() {
+        if (orchestration.reactionAdaptation == null || !orchestration.reactionAdaptation.enabled) {
+            return null;
+        }
+        return orchestration.reactionAdaptation.toSchedulerAdaptation();
+    }
+
+    public int getReactionAdaptationIntervalSeconds() {
+        return orchestration.reactionAdaptation == null ? 0 : orchestration.reactionAdaptation.intervalSeconds;
+    }
+
     private static Path resolveRelativeToConfig(String value, Path configPath) {
         Path p = Path.of(value);
         if (p.isAbsolute()) {
@@ -271,6 +351,7 @@ public final class ContinuousScreeningConfig {
     public static final class InputPaths {
         private String rawFull;
         private String rawDownsampled;
+        private String neighborGraph;
 
         public String getRawFull() {
             return rawFull;
@@ -287,6 +368,14 @@ public final class ContinuousScreeningConfig {
         public void setRawDownsampled(String rawDownsampled) {
             this.rawDownsampled = rawDownsampled;
         }
+
+        public String getNeighborGraph() {
+            return neighborGraph;
+        }
+
+        public void setNeighborGraph(String neighborGraph) {
+            this.neighborGraph = neighborGraph;
+        }
     }
 
     public static final class QueryInput {
@@ -387,6 +476,7 @@ public final class ContinuousScreeningConfig {
 
     public static final class FullOptimization {
         private OptimizationRequestSettings request = OptimizationRequestSettings.fullDefaults();
+        private ScoringCascadeSettings scoringCascade;
 
         public OptimizationRequestSettings getRequest() {
             return request;
@@ -395,6 +485,91 @@ public final class ContinuousScreeningConfig {
         public void setRequest(OptimizationRequestSettings request) {
             this.request = request;
         }
+
+        public ScoringCascadeSettings getScoringCascade() {
+            return scoringCascade;
+        }
+
+        public void setScoringCascade(ScoringCascadeSettings scoringCascade) {
+            this.scoringCascade = scoringCascade;
+        }
+    }
+
+    public static final class ScoringCascadeSettings {
+        private boolean enabled = true;
+        private double min2DSimilarity = 0.0;
+        private int maxRotatableBonds = -1;
+        private double cutoffMargin2D = 0.5;
+        private double cutoffMarginSingleConformer = 0.1;
+        private int fullConformers = 16;
+
+        private void validate(String prefix) {
+            if (!enabled) {
+                return;
+            }
+            try {
+                toCascadeOptions().validate();
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(prefix + ": " + e.getMessage(), e);
+            }
+        }
+
+        private StagedAssemblyScorer.CascadeOptions toCascadeOptions() {
+            return new StagedAssemblyScorer.CascadeOptions()
+                    .withMin2DSimilarity(min2DSimilarity)
+                    .withMaxRotatableBonds(maxRotatableBonds)
+                    .withCutoffMargin2D(cutoffMargin2D)
+                    .withCutoffMarginSingleConformer(cutoffMarginSingleConformer)
+                    .withFullConformers(fullConformers);
+        }
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public double getMin2DSimilarity() {
+            return min2DSimilarity;
+        }
+
+        public void setMin2DSimilarity(double min2DSimilarity) {
+            this.min2DSimilarity = min2DSimilarity;
+        }
+
+        public int getMaxRotatableBonds() {
+            return maxRotatableBonds;
+        }
+
+        public void setMaxRotatableBonds(int maxRotatableBonds) {
+            this.maxRotatableBonds = maxRotatableBonds;
+        }
+
+        public double getCutoffMargin2D() {
+            return cutoffMargin2D;
+        }
+
+        public void setCutoffMargin2D(double cutoffMargin2D) {
+            this.cutoffMargin2D = cutoffMargin2D;
+        }
+
+        public double getCutoffMarginSingleConformer() {
+            return cutoffMarginSingleConformer;
+        }
+
+        public void setCutoffMarginSingleConformer(double cutoffMarginSingleConformer) {
+            this.cutoffMarginSingleConformer = cutoffMarginSingleConformer;
+        }
+
+        public int getFullConformers() {
+            return fullConformers;
+        }
+
+        public void setFullConformers(int fullConformers) {
+            this.fullConformers = fullConformers;
+        }
     }
 
     public static final class MicroOptimization {
@@ -421,11 +596,21 @@ public final class ContinuousScreeningConfig {
     public static final class Orchestration {
         private int workerThreads = 4;
         private int queueCapacity = 1000;
+        private int stageQueueCapacity = 0;
+        private int samplingThreads = 0;
+        private int microThreads = 0;
+        private int stageBalanceIntervalSeconds = 1;
         private int progressIntervalSeconds = 20;
         private double reactionWeightExponent = 1.0;
         private double reactionMinWeight = 0.01;
         private ReactionWeightingSettings reactionWeighting;
+        private ReactionAdaptationSettings reactionAdaptation;
         private int duplicateCacheSize = 200_000;
+        private double duplicateFalsePositiveRate = DuplicateFilter.DEFAULT_FALSE_POSITIVE_RATE;
+        private int scoreCacheSize = 1_000_000;
+        private int synthonCacheSize = 200_000;
+        private double sizePrescreenTolerance = -1.0;
+        private int checkpointIntervalSeconds = 300;
 
         public int getWorkerThreads() {
             return workerThreads;
@@ -443,6 +628,38 @@ public final class ContinuousScreeningConfig {
             this.queueCapacity = queueCapacity;
         }
 
+        public int getStageQueueCapacity() {
+            return stageQueueCapacity;
+        }
+
+        public void setStageQueueCapacity(int stageQueueCapacity) {
+            this.stageQueueCapacity = stageQueueCapacity;
+        }
+
+        public int getSamplingThreads() {
+            return samplingThreads;
+        }
+
+        public void setSamplingThreads(int samplingThreads) {
+            this.samplingThreads = samplingThreads;
+        }
+
+        public int getMicroThreads() {
+            return microThreads;
+        }
+
+        public void setMicroThreads(int microThreads) {
+            this.microThreads = microThreads;
+        }
+
+        public int getStageBalanceIntervalSeconds() {
+            return stageBalanceIntervalSeconds;
+        }
+
+        public void setStageBalanceIntervalSeconds(int stageBalanceIntervalSeconds) {
+            this.stageBalanceIntervalSeconds = stageBalanceIntervalSeconds;
+        }
+
         public int getProgressIntervalSeconds() {
             return progressIntervalSeconds;
         }
@@ -475,6 +692,14 @@ public final class ContinuousScreeningConfig {
             this.reactionWeighting = reactionWeighting;
         }
 
+        public ReactionAdaptationSettings getReactionAdaptation() {
+            return reactionAdaptation;
+        }
+
+        public void setReactionAdaptation(ReactionAdaptationSettings reactionAdaptation) {
+            this.reactionAdaptation = reactionAdaptation;
+        }
+
         public int getDuplicateCacheSize() {
             return duplicateCacheSize;
         }
@@ -482,6 +707,46 @@ public final class ContinuousScreeningConfig {
         public void setDuplicateCacheSize(int duplicateCacheSize) {
             this.duplicateCacheSize = duplicateCacheSize;
         }
+
+        public double getDuplicateFalsePositiveRate() {
+            return duplicateFalsePositiveRate;
+        }
+
+        public void setDuplicateFalsePositiveRate(double duplicateFalsePositiveRate) {
+            this.duplicateFalsePositiveRate = duplicateFalsePositiveRate;
+        }
+
+        public int getScoreCacheSize() {
+            return scoreCacheSize;
+        }
+
+        public void setScoreCacheSize(int scoreCacheSize) {
+            this.scoreCacheSize = scoreCacheSize;
+        }
+
+        public int getSynthonCacheSize() {
+            return synthonCacheSize;
+        }
+
+        public void setSynthonCacheSize(int synthonCacheSize) {
+            this.synthonCacheSize = synthonCacheSize;
+        }
+
+        public double getSizePrescreenTolerance() {
+            return sizePrescreenTolerance;
+        }
+
+        public void setSizePrescreenTolerance(double sizePrescreenTolerance) {
+            this.sizePrescreenTolerance = sizePrescreenTolerance;
+        }
+
+        public int getCheckpointIntervalSeconds() {
+            return checkpointIntervalSeconds;
+        }
+
+        public void setCheckpointIntervalSeconds(int checkpointIntervalSeconds) {
+            this.checkpointIntervalSeconds = checkpointIntervalSeconds;
+        }
     }
 
     public static final class ReactionWeightingSettings {
@@ -545,6 +810,72 @@ public final class ContinuousScreeningConfig {
         }
     }
 
+    public static final class ReactionAdaptationSettings {
+        private boolean enabled = true;
+        private int intervalSeconds = 60;
+        private double exploration = 0.5;
+        private double priorAttempts = 50.0;
+        private double minMultiplier = 0.05;
+
+        private void validate(String prefix) {
+            if (!enabled) {
+                return;
+            }
+            if (intervalSeconds <= 0) {
+                throw new IllegalArgumentException(prefix + ".intervalSeconds must be positive");
+            }
+            try {
+                toSchedulerAdaptation();
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(prefix + ": " + e.getMessage(), e);
+            }
+        }
+
+        private ReactionScheduler.Adaptation toSchedulerAdaptation() {
+            return new ReactionScheduler.Adaptation(exploration, priorAttempts, minMultiplier);
+        }
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getIntervalSeconds() {
+            return intervalSeconds;
+        }
+
+        public void setIntervalSeconds(int intervalSeconds) {
+            this.intervalSeconds = intervalSeconds;
+        }
+
+        public double getExploration() {
+            return exploration;
+        }
+
+        public void setExploration(double exploration) {
+            this.exploration = exploration;
+        }
+
+        public double getPriorAttempts() {
+            return priorAttempts;
+        }
+
+        public void setPriorAttempts(double priorAttempts) {
+            this.priorAttempts = priorAttempts;
+        }
+
+        public double getMinMultiplier() {
+            return minMultiplier;
+        }
+
+        public void setMinMultiplier(double minMultiplier) {
+            this.minMultiplier = minMultiplier;
+        }
+    }
+
     public static final class ReactionWeightBucketSettings {
         private Double maxProductExclusive;
         private double weight;
@@ -684,6 +1015,9 @@ public final class ContinuousScreeningConfig {
     public static final class OutputPaths {
         private String hitsTsv;
         private double minReportedSimilarity = 0.0;
+        private String scoreCacheFile;
+        private HitWriterSettings hitWriter;
+        private String checkpointFile;
 
         public String getHitsTsv() {
             return hitsTsv;
@@ -700,6 +1034,110 @@ public final class ContinuousScreeningConfig {
         public void setMinReportedSimilarity(double minReportedSimilarity) {
             this.minReportedSimilarity = minReportedSimilarity;
         }
+
+        public String getScoreCacheFile() {
+            return scoreCacheFile;
+        }
+
+        public void setScoreCacheFile(String scoreCacheFile) {
+            this.scoreCacheFile = scoreCacheFile;
+        }
+
+        public HitWriterSettings getHitWriter() {
+            return hitWriter;
+        }
+
+        public void setHitWriter(HitWriterSettings hitWriter) {
+            this.hitWriter = hitWriter;
+        }
+
+        public String getCheckpointFile() {
+            return checkpointFile;
+        }
+
+        public void setCheckpointFile(String checkpointFile) {
+            this.checkpointFile = checkpointFile;
+        }
+    }
+
+    public static final class HitWriterSettings {
+        private int queueCapacity = 4096;
+        private int batchSize = 256;
+        private long flushIntervalMillis = 1000L;
+        private String compression;
+        private long rotateAfterResults = 0L;
+
+        private void validate(String prefix) {
+            try {
+                toWriterOptions().validate();
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(prefix + ": " + e.getMessage(), e);
+            }
+        }
+
+        private AsyncResultWriter.Options toWriterOptions() {
+            return new AsyncResultWriter.Options()
+                    .withQueueCapacity(queueCapacity)
+                    .withBatchSize(batchSize)
+                    .withMaxFlushDelayMillis(flushIntervalMillis)
+                    .withCompression(parseCompression())
+                    .withRotateAfterResults(rotateAfterResults);
+        }
+
+        private AsyncResultWriter.Compression parseCompression() {
+            // no value picks the compression from the file extension
+            if (compression == null || compression.isBlank() || "auto".equalsIgnoreCase(compression.trim())) {
+                return null;
+            }
+            try {
+                return AsyncResultWriter.Compression.valueOf(compression.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                String options = Arrays.stream(AsyncResultWriter.Compression.values())
+                        .map(Enum::name)
+                        .collect(Collectors.joining(", "));
+                throw new IllegalArgumentException("compression must be AUTO or one of: " + options);
+            }
+        }
+
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+
+        public void setQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public void setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        public long getFlushIntervalMillis() {
+            return flushIntervalMillis;
+        }
+
+        public void setFlushIntervalMillis(long flushIntervalMillis) {
+            this.flushIntervalMillis = flushIntervalMillis;
+        }
+
+        public String getCompression() {
+            return compression;
+        }
+
+        public void setCompression(String compression) {
+            this.compression = compression;
+        }
+
+        public long getRotateAfterResults() {
+            return rotateAfterResults;
+        }
+
+        public void setRotateAfterResults(long rotateAfterResults) {
+            this.rotateAfterResults = rotateAfterResults;
+        }
     }
 
     public static final class OptimizationRequestSettings {
@@ -0,0 +1,139 @@
+package com.idorsia.research.chem.hyperspace.cli;
+
+import com.actelion.research.chem.IDCodeParser;
+import com.actelion.research.chem.StereoMolecule;
+import com.actelion.research.chem.descriptor.DescriptorHandlerBinarySkelSpheres;
+import com.idorsia.research.chem.hyperspace.HyperspaceIOUtils;
+import com.idorsia.research.chem.hyperspace.SynthonSpace;
+import com.idorsia.research.chem.hyperspace.localopt.NeighborGraph;
+import com.idorsia.research.chem.hyperspace.localopt.NeighborGraphBuilder;
+import com.idorsia.research.chem.hyperspace.rawspace.RawSynthonSpace;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds the SkelSpheres neighbor graph of a raw synthon space, used by the local optimizer to look
+ * up synthon neighborhoods instead of ranking every synthon set on first use.
+ */
+public class NeighborGraphBuildCLI {
+
+    private static final ThreadLocal<DescriptorHandlerBinarySkelSpheres> DESCRIPTOR_HANDLERS =
+            ThreadLocal.withInitial(DescriptorHandlerBinarySkelSpheres::new);
+
+    public static void main(String[] args) {
+        Options options = buildOptions();
+        CommandLine cmd;
+        try {
+            cmd = new DefaultParser().parse(options, args);
+        } catch (ParseException e) {
+            new HelpFormatter().printHelp("NeighborGraphBuildCLI", options, true);
+            throw new IllegalArgumentException("Unable to parse arguments", e);
+        }
+
+        int k = Integer.parseInt(cmd.getOptionValue("k", "100"));
+        int threads = Integer.parseInt(cmd.getOptionValue("threads", "1"));
+        if (k <= 0) {
+            throw new IllegalArgumentException("--k must be positive");
+        }
+        if (threads <= 0) {
+            throw new IllegalArgumentException("--threads must be positive");
+        }
+        NeighborGraphBuilder builder = new NeighborGraphBuilder(k,
+                (a, b) -> DESCRIPTOR_HANDLERS.get().getSimilarity(a, b))
+                .withExactThreshold(Integer.parseInt(cmd.getOptionValue("exactThreshold", "2000")))
+                .withMaxIterations(Integer.parseInt(cmd.getOptionValue("iterations", "12")))
+                .withRandomSeed(Long.parseLong(cmd.getOptionValue("seed", "13")));
+
+        RawSynthonSpace space;
+        try {
+            space = HyperspaceIOUtils.loadRawSynthonSpace(cmd.getOptionValue("rawIn"));
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to load input space", e);
+        }
+
+        NeighborGraph graph = new NeighborGraph();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (String reactionId : space.getReactions().keySet()) {
+                for (Map.Entry<Integer, List<SynthonSpace.FragId>> set : space.getFragmentSets(reactionId).entrySet()) {
+                    futures.add(executor.submit(() -> {
+                        List<String> fragmentIds = new ArrayList<>(set.getValue().size());
+                        List<int[]> descriptors = new ArrayList<>(set.getValue().size());
+                        for (SynthonSpace.FragId frag : set.getValue()) {
+                            fragmentIds.add(frag.fragment_id);
+                            descriptors.add(computeDescriptor(frag.idcode));
+                        }
+                        graph.put(reactionId, set.getKey(), builder.build(fragmentIds, descriptors));
+                        System.out.println("Neighbor graph built for rxn=" + reactionId + " frag=" + set.getKey()
+                                + " synthons=" + fragmentIds.size());
+                    }));
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while building neighbor graph", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to build neighbor graph", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Path out = Path.of(cmd.getOptionValue("out"));
+        try {
+            graph.write(out);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to store neighbor graph", e);
+        }
+        System.out.println("Neighbor graph of " + graph.getSetCount() + " synthon sets written to: " + out);
+    }
+
+    private static int[] computeDescriptor(String idcode) {
+        try {
+            StereoMolecule molecule = new StereoMolecule();
+            new IDCodeParser().parse(molecule, idcode);
+            molecule.ensureHelperArrays(StereoMolecule.cHelperCIP);
+            DescriptorHandlerBinarySkelSpheres handler = DESCRIPTOR_HANDLERS.get();
+            int[] descriptor = handler.createDescriptor(molecule);
+            return handler.calculationFailed(descriptor) ? null : descriptor;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static Options buildOptions() {
+        Options options = new Options();
+        options.addOption(Option.builder().longOpt("rawIn").hasArg().required(true)
+                .desc("Path to the full RawSynthonSpace ( .rawspace or .rawspace.gz )").build());
+        options.addOption(Option.builder().longOpt("out").hasArg().required(true)
+                .desc("Output neighbor graph file").build());
+        options.addOption(Option.builder().longOpt("k").hasArg()
+                .desc("Neighbors stored per synthon, should be at least the neighbor pool size minus one (default 100)").build());
+        options.addOption(Option.builder().longOpt("exactThreshold").hasArg()
+                .desc("Synthon sets up to this size are ranked exactly, larger ones use NN-descent (default 2000)").build());
+        options.addOption(Option.builder().longOpt("iterations").hasArg()
+                .desc("Max NN-descent iterations (default 12)").build());
+        options.addOption(Option.builder().longOpt("seed").hasArg()
+                .desc("Random seed for NN-descent (default 13)").build());
+        options.addOption(Option.builder().longOpt("threads").hasArg()
+                .desc("Synthon sets built in parallel (default 1)").build());
+        return options;
+    }
+}
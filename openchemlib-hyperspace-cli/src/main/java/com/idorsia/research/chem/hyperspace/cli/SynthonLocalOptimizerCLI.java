@@ -9,12 +9,16 @@ import com.actelion.research.chem.phesa.DescriptorHandlerShape;
 import com.actelion.research.chem.phesa.PheSAMolecule;
 import com.idorsia.research.chem.hyperspace.HyperspaceIOUtils;
 import com.idorsia.research.chem.hyperspace.SynthonSpace;
+import com.idorsia.research.chem.hyperspace.localopt.AssemblyScorer;
 import com.idorsia.research.chem.hyperspace.localopt.LocalBeamOptimizer;
 import com.idorsia.research.chem.hyperspace.localopt.LocalOptimizationLogLevel;
 import com.idorsia.research.chem.hyperspace.localopt.LocalOptimizationRequest;
+import com.idorsia.research.chem.hyperspace.localopt.NeighborGraph;
 import com.idorsia.research.chem.hyperspace.localopt.PheSAAssemblyScorer;
 import com.idorsia.research.chem.hyperspace.localopt.SeedAssembly;
 import com.idorsia.research.chem.hyperspace.localopt.SeedTsvParser;
+import com.idorsia.research.chem.hyperspace.localopt.SkelSpheresNeighborSampler;
+import com.idorsia.research.chem.hyperspace.localopt.StagedAssemblyScorer;
 import com.idorsia.research.chem.hyperspace.localopt.SynthonSetAccessor;
 import com.idorsia.research.chem.hyperspace.downsampling.DownsampledSynthonSpace;
 import com.idorsia.research.chem.hyperspace.rawspace.RawSynthonSpace;
@@ -29,6 +33,8 @@ import org.apache.commons.cli.ParseException;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class SynthonLocalOptimizerCLI {
 
@@ -62,11 +68,51 @@ public class SynthonLocalOptimizerCLI {
                 .build();
 
         List<SeedAssembly> seeds = SeedTsvParser.parse(seedsPath);
-        PheSAAssemblyScorer scorer = new PheSAAssemblyScorer(queryDescriptor, request.getMinPhesaSimilarity());
-        LocalBeamOptimizer optimizer = new LocalBeamOptimizer(provider, scorer);
-        int threads = Integer.parseInt(cmd.getOptionValue("seedThreads", "1"));
-        LocalOptimizerScheduler scheduler = new LocalOptimizerScheduler(threads, optimizer, request, outputPath);
-        scheduler.run(seeds);
+        StagedAssemblyScorer cascade = null;
+        AssemblyScorer scorer;
+        if (cmd.hasOption("cascadeConformers")) {
+            cascade = StagedAssemblyScorer.pheSACascade(queryDescriptor,
+                    request.getMinPhesaSimilarity(),
+                    null,
+                    null,
+                    null,
+                    new StagedAssemblyScorer.CascadeOptions()
+                            .withFullConformers(Integer.parseInt(cmd.getOptionValue("cascadeConformers")))
+                            .withMaxRotatableBonds(Integer.parseInt(cmd.getOptionValue("cascadeMaxRotatable", "-1"))));
+            scorer = cascade;
+        } else {
+            scorer = new PheSAAssemblyScorer(queryDescriptor, request.getMinPhesaSimilarity());
+        }
+        NeighborGraph neighborGraph = cmd.hasOption("neighborGraph")
+                ? NeighborGraph.read(Path.of(cmd.getOptionValue("neighborGraph")))
+                : null;
+        // the calling thread scores as well, so n expansion threads need n-1 pool threads
+        int expansionThreads = Integer.parseInt(cmd.getOptionValue("expansionThreads", "1"));
+        ExecutorService expansionPool = expansionThreads > 1
+                ? Executors.newFixedThreadPool(expansionThreads - 1, r -> {
+                    Thread t = new Thread(r, "LocalOptExpansion");
+                    t.setDaemon(true);
+                    return t;
+                })
+                : null;
+        try {
+            LocalBeamOptimizer optimizer = new LocalBeamOptimizer(provider,
+                    scorer,
+                    new SkelSpheresNeighborSampler(null, neighborGraph),
+                    null,
+                    expansionPool,
+                    expansionThreads - 1);
+            int threads = Integer.parseInt(cmd.getOptionValue("seedThreads", "1"));
+            LocalOptimizerScheduler scheduler = new LocalOptimizerScheduler(threads, optimizer, request, outputPath);
+            scheduler.run(seeds);
+            if (cascade != null) {
+                System.out.println("[LocalOpt] cascade evaluated/rejected/pruned " + cascade.formatStageStats());
+            }
+        } finally {
+            if (expansionPool != null) {
+                expansionPool.shutdownNow();
+            }
+        }
     }
 
     private static SynthonSetAccessor createProvider(CommandLine cmd) throws IOException {
@@ -182,6 +228,14 @@ public class SynthonLocalOptimizerCLI {
                 .desc("Log level: NONE, SUMMARY, IMPROVEMENTS, VERBOSE").build());
         options.addOption(Option.builder().longOpt("seedThreads").hasArg()
                 .desc("Number of parallel seed optimizations").build());
+        options.addOption(Option.builder().longOpt("expansionThreads").hasArg()
+                .desc("Threads scoring the candidates of one beam expansion, results do not depend on it (default 1)").build());
+        options.addOption(Option.builder().longOpt("cascadeConformers").hasArg()
+                .desc("Score with a 2D, single-conformer and n-conformer PheSA cascade that skips candidates below the beam cutoff").build());
+        options.addOption(Option.builder().longOpt("cascadeMaxRotatable").hasArg()
+                .desc("Max rotatable bonds in the 2D stage of the cascade (default no limit)").build());
+        options.addOption(Option.builder().longOpt("neighborGraph").hasArg()
+                .desc("Neighbor graph built by NeighborGraphBuildCLI for the full space (default rank neighbors on first use)").build());
         return options;
     }
 }
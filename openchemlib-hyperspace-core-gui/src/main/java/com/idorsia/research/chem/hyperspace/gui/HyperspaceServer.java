@@ -15,11 +15,17 @@ import org.json.JSONObject;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.context.annotation.Bean;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 //import org.openmolecules.comm.ServerCommunicator;
 //import org.openmolecules.comm.ServerTask;
 //import org.openmolecules.comm.ServerTaskFactory;
@@ -27,8 +33,13 @@ import org.springframework.web.bind.annotation.RestController;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -246,6 +257,145 @@ public class HyperspaceServer {
         return full_query;
     }
 
+    /**
+     * Number of results per line of the streaming protocol
+     */
+    public static final int STREAM_CHUNK_SIZE = 256;
+
+    /**
+     * Max duration of a streaming search, also used as async request timeout of the servlet container
+     */
+    public static final long STREAM_TIMEOUT_MS = 3600000;
+
+    /**
+     * Without this, the container ends streaming responses after its default async timeout (30s for Tomcat)
+     */
+    @Bean
+    public WebMvcConfigurer asyncTimeoutConfigurer() {
+        return new WebMvcConfigurer() {
+            @Override
+            public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+                configurer.setDefaultTimeout(STREAM_TIMEOUT_MS);
+            }
+        };
+    }
+
+    /**
+     * Streaming search: the full JSON query (see createFullJSONQuery) is posted as request body, the
+     * response is chunked NDJSON. Every line is a JSON object with field "type":
+     * <ul>
+     *     <li>"hits": field "data" contains a chunk of results, encoded with encodeResultsToString(..) of the search provider</li>
+     *     <li>"end": the search is done, field "count" contains the total number of results</li>
+     *     <li>"error": the search failed, field "message" describes the problem</li>
+     * </ul>
+     * Results are sent as soon as the search process publishes them.
+     */
+    @PostMapping(value = "/searchStream", produces = "application/x-ndjson")
+    public ResponseEntity<StreamingResponseBody> searchStream(@RequestBody String full_query_json) {
+        Pair<String,JSONObject> full_query;
+        try {
+            full_query = extractFullJSONQuery(full_query_json);
+        } catch (Exception e) {
+            return new ResponseEntity<>(out -> writeStreamLine(out, createStreamErrorLine("Problem decoding request..")), HttpStatus.BAD_REQUEST);
+        }
+        AbstractSearchProvider provider = searchProviders.get(full_query.getLeft());
+        if(provider == null) {
+            return new ResponseEntity<>(out -> writeStreamLine(out, createStreamErrorLine("Service not found: "+full_query.getLeft())), HttpStatus.NOT_FOUND);
+        }
+
+        AbstractHyperspaceSearchProcess proc_search;
+        try {
+            AbstractSearchProvider.SearchConfiguration search_config = (AbstractSearchProvider.SearchConfiguration) provider.getSearchConfigurationClass().getConstructor().newInstance();
+            search_config.deserializeFromJSON(full_query.getRight().toString());
+            search_config.setNumberOfThreads( threadsPerQuery );
+            proc_search = provider.runSearch(search_config);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return new ResponseEntity<>(out -> writeStreamLine(out, createStreamErrorLine("Problem starting search: "+e.getMessage())), HttpStatus.BAD_REQUEST);
+        }
+
+        StreamingResponseBody body = out -> streamSearchResults(provider, proc_search, out);
+        return new ResponseEntity<>(body, HttpStatus.OK);
+    }
+
+    private static void streamSearchResults(AbstractSearchProvider provider, AbstractHyperspaceSearchProcess proc_search, OutputStream out) throws IOException {
+        long timeout = System.currentTimeMillis() + STREAM_TIMEOUT_MS;
+        int streamed = 0;
+        // woken up by published results and status changes, the state is checked after registering
+        BlockingQueue<Boolean> updates = new LinkedBlockingQueue<>();
+        Runnable result_listener = () -> updates.offer(Boolean.TRUE);
+        AbstractHyperspaceProcess.HyperspaceProcessListener status_listener = () -> updates.offer(Boolean.TRUE);
+        proc_search.addPartialResultsListener(result_listener);
+        proc_search.addSearchProviderListener(status_listener);
+        try {
+            while (true) {
+                AbstractHyperspaceProcess.ProcessStatus status = proc_search.getProcessStatus();
+                streamed += streamResultChunks(provider, proc_search.getPartialSearchResults(streamed), out);
+                if (status == AbstractHyperspaceProcess.ProcessStatus.DONE) {
+                    // send the results that were not published while computing
+                    List final_results = proc_search.getSearchResults();
+                    if (final_results != null && final_results.size() > streamed) {
+                        streamed += streamResultChunks(provider, new ArrayList<>(final_results.subList(streamed, final_results.size())), out);
+                    }
+                    JSONObject end = new JSONObject();
+                    end.put("type", "end");
+                    end.put("count", streamed);
+                    writeStreamLine(out, end.toString());
+                    return;
+                }
+                if (status == AbstractHyperspaceProcess.ProcessStatus.FAILED) {
+                    writeStreamLine(out, createStreamErrorLine("Search failed: "+proc_search.getProcessStatusMessage()));
+                    return;
+                }
+                long remaining = timeout - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    proc_search.cancelSearch();
+                    writeStreamLine(out, createStreamErrorLine("Reached timeout during computation.."));
+                    return;
+                }
+                updates.poll(remaining, TimeUnit.MILLISECONDS);
+                updates.clear();
+            }
+        } catch (InterruptedException e) {
+            proc_search.cancelSearch();
+            writeStreamLine(out, createStreamErrorLine("Interrupted exception during computation.."));
+        } catch (IOException e) {
+            // the client is gone or the async request timed out, nobody reads the results anymore
+            proc_search.cancelSearch();
+            throw e;
+        } finally {
+            proc_search.removePartialResultsListener(result_listener);
+            proc_search.removeSearchProviderListener(status_listener);
+        }
+    }
+
+    /**
+     * @return number of streamed results
+     */
+    private static int streamResultChunks(AbstractSearchProvider provider, List results, OutputStream out) throws IOException {
+        for (int start = 0; start < results.size(); start += STREAM_CHUNK_SIZE) {
+            List chunk = new ArrayList<>(results.subList(start, Math.min(results.size(), start + STREAM_CHUNK_SIZE)));
+            JSONObject line = new JSONObject();
+            line.put("type", "hits");
+            line.put("data", provider.encodeResultsToString(chunk));
+            writeStreamLine(out, line.toString());
+        }
+        return results.size();
+    }
+
+    private static String createStreamErrorLine(String message) {
+        JSONObject line = new JSONObject();
+        line.put("type", "error");
+        line.put("message", message);
+        return line.toString();
+    }
+
+    private static void writeStreamLine(OutputStream out, String line) throws IOException {
+        out.write(line.getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+        out.flush();
+    }
+
     @GetMapping("/search")
     public ResponseEntity<String> call(@RequestParam(value = "data") String val){
         System.out.println("Request-data= "+val);
@@ -7,6 +7,7 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Idorsia Pharmaceuticals Ltd. 2021
@@ -38,7 +39,7 @@ public abstract class AbstractHyperspaceProcess {
     //public abstract List<StereoMolecule> getQueryStructures();
 
 
-    private List<HyperspaceProcessListener> listeners = new ArrayList<>();
+    private List<HyperspaceProcessListener> listeners = new CopyOnWriteArrayList<>();
 
     public static interface HyperspaceProcessListener {
         public void processStatusChanged();
@@ -2,7 +2,9 @@ package com.idorsia.research.chem.hyperspace.gui.process;
 
 import com.idorsia.research.chem.hyperspace.gui.search.AbstractSearchProvider;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Idorsia Pharmaceuticals Ltd. 2021
@@ -54,4 +56,72 @@ public abstract class AbstractHyperspaceSearchProcess<T> extends AbstractHypersp
 
     public abstract List<T> getSearchResults();
 
+    private final List<T> mPartialResults = new ArrayList<>();
+
+    private final List<Runnable> mPartialResultsListeners = new CopyOnWriteArrayList<>();
+
+    private volatile Thread mSearchThread = null;
+    private volatile boolean mCancelled = false;
+
+    /**
+     * Implementations can publish results while the search is running. The published results,
+     * in order, must be a prefix of the final search results.
+     */
+    protected void publishPartialResults(List<T> results) {
+        synchronized (mPartialResults) {
+            mPartialResults.addAll(results);
+        }
+        for(Runnable li : mPartialResultsListeners) {
+            li.run();
+        }
+    }
+
+    /**
+     * The listener is called on the search thread after every call of publishPartialResults(..)
+     */
+    public void addPartialResultsListener(Runnable li) {
+        mPartialResultsListeners.add(li);
+    }
+
+    public void removePartialResultsListener(Runnable li) {
+        mPartialResultsListeners.remove(li);
+    }
+
+    /**
+     * Starts the thread that runs the search, cancelSearch() interrupts it.
+     */
+    protected void startSearchThread(Thread search_thread) {
+        mSearchThread = search_thread;
+        search_thread.start();
+    }
+
+    /**
+     * Asks the search to stop, e.g. because nobody reads the results anymore. Interrupts the
+     * search thread, implementations should also check isSearchCancelled() between steps.
+     */
+    public void cancelSearch() {
+        mCancelled = true;
+        Thread search_thread = mSearchThread;
+        if(search_thread != null) {
+            search_thread.interrupt();
+        }
+    }
+
+    public boolean isSearchCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @param from index of the first result to return
+     * @return the results published so far, starting at index from
+     */
+    public List<T> getPartialSearchResults(int from) {
+        synchronized (mPartialResults) {
+            if (from >= mPartialResults.size()) {
+                return new ArrayList<>();
+            }
+            return new ArrayList<>(mPartialResults.subList(from, mPartialResults.size()));
+        }
+    }
+
 }
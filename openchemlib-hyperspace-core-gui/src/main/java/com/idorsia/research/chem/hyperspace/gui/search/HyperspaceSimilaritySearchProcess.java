@@ -56,7 +56,7 @@ public class HyperspaceSimilaritySearchProcess extends AbstractHyperspaceSearchP
         setProcessStatus(ProcessStatus.COMPUTING);
 
         SimilaritySearchThread search_thread = new SimilaritySearchThread();
-        search_thread.start();
+        startSearchThread(search_thread);
     }
 
     @Override
@@ -99,8 +99,23 @@ public class HyperspaceSimilaritySearchProcess extends AbstractHyperspaceSearchP
                 }
             };
 
+            // hits are scored as soon as they are assembled, the status shows the hits found so far
+            int[] hits_found = new int[1];
+            double[] best_similarity = new double[]{0.0};
+            SynthonSimilaritySpaceExplorer3.SimilarityHitReceiver receiver = new SynthonSimilaritySpaceExplorer3.SimilarityHitReceiver() {
+                @Override
+                public boolean addHits(List<Pair<SynthonSimilaritySpaceExplorer3.FinalSimilarityResult, Double>> hits) {
+                    hits_found[0] += hits.size();
+                    for(Pair<SynthonSimilaritySpaceExplorer3.FinalSimilarityResult,Double> hi : hits) {
+                        best_similarity[0] = Math.max(best_similarity[0],hi.getRight());
+                    }
+                    setProcessStatusMessage(String.format("Hits: %d, best similarity: %.3f",hits_found[0],best_similarity[0]));
+                    return !isSearchCancelled();
+                }
+            };
+
             StereoMolecule query = getSearchConfiguration().getQueryMolecules().get(0);
-            List<Pair<SynthonSimilaritySpaceExplorer3.FinalSimilarityResult,Double>> next_results = explorer.runSearch(query,search_config,f_progress);
+            List<Pair<SynthonSimilaritySpaceExplorer3.FinalSimilarityResult,Double>> next_results = explorer.runSearchStreaming(query,search_config,0,receiver,f_progress);
 
             List<SynthonSimilaritySpaceExplorer3.FinalSimilarityResult> results_a = new ArrayList<>();
             for(Pair<SynthonSimilaritySpaceExplorer3.FinalSimilarityResult,Double> fri : next_results) {
@@ -109,6 +124,12 @@ public class HyperspaceSimilaritySearchProcess extends AbstractHyperspaceSearchP
 
             results = results_a;
 
+            if(isSearchCancelled()) {
+                setProcessStatusMessage("Cancelled");
+                setProcessStatus(ProcessStatus.FAILED);
+                setProgressAndFireUpdate(1.0);
+                return;
+            }
             setProcessStatusMessage("");
             setProcessStatus(ProcessStatus.DONE);
             setProgressAndFireUpdate(1.0);
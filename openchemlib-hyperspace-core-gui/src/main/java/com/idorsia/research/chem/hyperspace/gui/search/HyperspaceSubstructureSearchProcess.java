@@ -70,7 +70,7 @@ public class HyperspaceSubstructureSearchProcess extends AbstractHyperspaceSearc
         setProcessStatus(ProcessStatus.COMPUTING);
 
         SubstructureSearchThread search_thread = new SubstructureSearchThread(this.getSearchConfiguration(), this.config.getQueryMolecules().get(0) );
-        search_thread.start();
+        startSearchThread(search_thread);
     }
 
 
@@ -123,6 +123,12 @@ public class HyperspaceSubstructureSearchProcess extends AbstractHyperspaceSearc
             System.out.println("To process: "+allQueryMolecules.size()+" query structures");
 
             for(int zs=0;zs<allQueryMolecules.size();zs++) {
+                if(isSearchCancelled()) {
+                    setProcessStatusMessage("Cancelled");
+                    setProcessStatus(ProcessStatus.FAILED);
+                    setProgressAndFireUpdate(1.0);
+                    return;
+                }
                 StereoMolecule qi = allQueryMolecules.get(zs);
                 System.out.println("Start processing query structure "+zs+" -> "+qi.getIDCode());
 
@@ -269,12 +275,15 @@ public class HyperspaceSubstructureSearchProcess extends AbstractHyperspaceSearc
                 }
 
                 //results = all_hits;
+                int published = results.size();
                 results.addAll(all_hits);
 
                 if (results.size() > search_config.getMaxNumberOfCombinatorialHits()) {
                     results = new ArrayList<>(results.subList(0, search_config.getMaxNumberOfCombinatorialHits()));
+                    publishPartialResults(results.subList(published, results.size()));
                     break;
                 }
+                publishPartialResults(all_hits);
             }
             setProcessStatusMessage("");
             setProcessStatus(ProcessStatus.DONE);
@@ -11,13 +11,17 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.util.EntityUtils;
 import org.json.JSONObject;
 
 import javax.swing.*;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
@@ -231,35 +235,25 @@ public class RemoteSearchProviderAdapter<T> extends AbstractSearchProvider<T> {
                     HttpClient httpClient = HttpClientBuilder.create().setDefaultRequestConfig(config_request).build();
                     try {
 
-                        //StringEntity params = new StringEntity("details={\"name\":\"xyz\",\"age\":\"20\"} ");
                         // create full config..
                         JSONObject full_query = HyperspaceServer.createFullJSONQuery(remoteConfig.searchServiceName, new JSONObject(config.serializeToJSON()) );
+                        String json_data = full_query.toString();
 
-                        String json_data = full_query.toString();//config.serializeToJSON();
-
-                        //String base64_json_data = Base64.getEncoder().encodeToString(json_data.getBytes());
-                        String base64_json_data = Base64.getUrlEncoder().encodeToString(json_data.getBytes());
-                        //request.addHeader("content-type", "application/xml");
-                        //request.set
-                        //HttpGet request = new HttpGet("http://"+remoteConfig.server+":"+remoteConfig.port+"?data="+base64_json_data);
-                        HttpGet request = new HttpGet("http://"+remoteConfig.server+":"+remoteConfig.port+"/search?data="+base64_json_data);
+                        HttpPost request = new HttpPost("http://"+remoteConfig.server+":"+remoteConfig.port+"/searchStream");
+                        request.setEntity(new StringEntity(json_data, ContentType.APPLICATION_JSON));
 
                         setProcessStatusMessage("Waiting for Result..");
                         HttpResponse response  = httpClient.execute(request);
+                        if (response.getStatusLine().getStatusCode() == 404 && response.getEntity() != null
+                                && !"application/x-ndjson".equals(ContentType.getOrDefault(response.getEntity()).getMimeType())) {
+                            // server without streaming endpoint
+                            EntityUtils.consume(response.getEntity());
+                            runLegacySearch(httpClient, json_data);
+                            return;
+                        }
                         HttpEntity resp_entity =  response.getEntity();
                         if (resp_entity != null) {
-                            // return it as a String
-                            String result = EntityUtils.toString(resp_entity,"UTF-8");
-                            // for some reason this adds a newline to the end, we have to remove this.
-                            //result = result.substring(0,result.length()-1);
-                            //System.out.println(result);
-
-                            //byte[] result_data = Base64.getDecoder().decode(result);
-                            List<T> decoded_search_results = searchProvider.decodeResultsFromString(result);
-                            search_results = decoded_search_results;
-
-                            setProcessStatusMessage("Done");
-                            setProcessStatus(ProcessStatus.DONE);
+                            readResultStream(resp_entity);
                         }
                         else {
                             System.out.println("[RemoteSearchProviderAdapter::run_search] :: null");
@@ -278,7 +272,70 @@ public class RemoteSearchProviderAdapter<T> extends AbstractSearchProvider<T> {
             };
 
             Thread ri = new Thread(run_search);
-            ri.start();
+            startSearchThread(ri);
+        }
+
+        /**
+         * Reads the NDJSON result stream of HyperspaceServer.searchStream(..), chunks are decoded and
+         * published as they arrive.
+         */
+        private void readResultStream(HttpEntity resp_entity) throws IOException {
+            List<T> results = new ArrayList<>();
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(resp_entity.getContent(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (isSearchCancelled()) {
+                        setProcessStatusMessage("Cancelled");
+                        setProcessStatus(ProcessStatus.FAILED);
+                        return;
+                    }
+                    if (line.isEmpty()) { continue; }
+                    JSONObject jo = new JSONObject(line);
+                    String type = jo.getString("type");
+                    if (type.equals("hits")) {
+                        List<T> chunk = searchProvider.decodeResultsFromString(jo.getString("data"));
+                        if (chunk != null) {
+                            results.addAll(chunk);
+                            publishPartialResults(chunk);
+                            setProcessStatusMessage("Received " + results.size() + " results..");
+                        }
+                    } else if (type.equals("end")) {
+                        search_results = results;
+                        setProcessStatusMessage("Done");
+                        setProcessStatus(ProcessStatus.DONE);
+                        return;
+                    } else if (type.equals("error")) {
+                        System.out.println("[RemoteSearchProviderAdapter::run_search] :: " + jo.optString("message"));
+                        setProcessStatusMessage(jo.optString("message", "Error"));
+                        setProcessStatus(ProcessStatus.FAILED);
+                        return;
+                    }
+                }
+            }
+            // stream ended without end line
+            setProcessStatusMessage("Connection closed before search was done");
+            setProcessStatus(ProcessStatus.FAILED);
+        }
+
+        /**
+         * Legacy protocol: base64 encoded query as GET parameter, all results in one response
+         */
+        private void runLegacySearch(HttpClient httpClient, String json_data) throws IOException {
+            String base64_json_data = Base64.getUrlEncoder().encodeToString(json_data.getBytes());
+            HttpGet request = new HttpGet("http://"+remoteConfig.server+":"+remoteConfig.port+"/search?data="+base64_json_data);
+            HttpResponse response  = httpClient.execute(request);
+            HttpEntity resp_entity =  response.getEntity();
+            if (resp_entity != null) {
+                String result = EntityUtils.toString(resp_entity,"UTF-8");
+                search_results = searchProvider.decodeResultsFromString(result);
+                setProcessStatusMessage("Done");
+                setProcessStatus(ProcessStatus.DONE);
+            }
+            else {
+                System.out.println("[RemoteSearchProviderAdapter::run_search] :: null");
+                setProcessStatusMessage("HttpResponse is null");
+                setProcessStatus(ProcessStatus.FAILED);
+            }
         }
 
         List<T> search_results = null;
@@ -12,14 +12,43 @@ import org.apache.commons.lang3.tuple.Pair;
 import org.apache.commons.lang3.tuple.Triple;
 
 import javax.swing.*;
+import javax.swing.Timer;
 import javax.swing.table.AbstractTableModel;
 import javax.swing.table.TableModel;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
+/**
+ * Expands the combinatorial hits of a CombinatorialSearchResultModel into assembled molecules
+ * while the search is still running.
+ *
+ * Staged pipeline:
+ * <ol>
+ *     <li>intake: new hits of the result model are split into small assembly tasks and put into a
+ *         bounded priority queue (first chunks of every hit first, then in arrival order)</li>
+ *     <li>assembly: at most one task per processor is assembled in parallel on virtual threads</li>
+ *     <li>display: assembled rows are collected and added to the table model in batches, at most
+ *         once per ROW_FLUSH_INTERVAL_MS on the EDT</li>
+ * </ol>
+ * Every (re)start of the expansion begins a new generation, tasks and rows of older generations
+ * are dropped, such that assembly stops as soon as the model is shut down or reprocessed.
+ */
 public class RealTimeExpandingSearchResultModel {
 
+    /**
+     * Max number of split hits waiting for assembly
+     */
+    private static final int INPUT_QUEUE_CAPACITY = 256;
+
+    /**
+     * Assembled rows are added to the table at most once per interval
+     */
+    private static final int ROW_FLUSH_INTERVAL_MS = 100;
+
     private CombinatorialSearchResultModel resultModel;
 
     private int maxExpandedHits = 32000;
@@ -28,14 +57,35 @@ public class RealTimeExpandingSearchResultModel {
 
     private ConcurrentHashMap<String, SynthonAssembler.ExpandedCombinatorialHit> assembledMoleculesExpHits;
 
-    // this one is also used for synchronization of computation
-    //private ConcurrentHashMap<SynthonSpace.CombinatorialHit, List<String>> assembledMolecules2;
     private ConcurrentHashMap<HashableCombinatorialHit,List<String>> assembledMolecules2;
 
     // this defines the row order of the table model
     // !! ONLY ACCESS / MANIPULATE FROM WITHIN swing event handling threaad !!
     private List<String> moleculeOrder = new ArrayList<>();
 
+    private final AtomicLong generation = new AtomicLong(0);
+    private final AtomicLong taskSequence = new AtomicLong(0);
+
+    private final PriorityBlockingQueue<AssemblyTask> assemblyQueue = new PriorityBlockingQueue<>();
+    private final Semaphore queueSlots = new Semaphore(INPUT_QUEUE_CAPACITY);
+    private final Semaphore workerSlots = new Semaphore(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Number of rows accepted for display in the current generation, limited by maxExpandedHits
+     */
+    private final AtomicInteger acceptedRows = new AtomicInteger(0);
+
+    private final Object intakeLock = new Object();
+    private final AtomicBoolean intakeScheduled = new AtomicBoolean(false);
+    // number of hits of the result model that were already taken in, guarded by intakeLock
+    private int intakeCount = 0;
+
+    private final ConcurrentLinkedQueue<RowBatch> pendingRows = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final Timer flushTimer;
+
+    private volatile ExecutorService expansionExecutor;
+
     public RealTimeExpandingSearchResultModel(CombinatorialSearchResultModel resultModel, int maxExpandedHits) {
         this.resultModel = resultModel;
         this.maxExpandedHits = maxExpandedHits;
@@ -44,7 +94,10 @@ public class RealTimeExpandingSearchResultModel {
         this.assembledMolecules2 = new ConcurrentHashMap<>();
         this.assembledMoleculesExpHits = new ConcurrentHashMap<>();
 
-        this.initExpansionThreadPool();
+        this.flushTimer = new Timer(ROW_FLUSH_INTERVAL_MS, e -> flushRows());
+        this.flushTimer.setRepeats(false);
+
+        this.initExpansionExecutor();
         this.initCoordinateInventor();
 
         this.resultModel.addListener(new CombinatorialSearchResultModel.CombinatorialSearchResultModelListener() {
@@ -56,12 +109,6 @@ public class RealTimeExpandingSearchResultModel {
         this.processResultsChanged();
     }
 
-    private RealTimeExpandingSearchResultModel getThis() {
-        return this;
-    }
-
-    private final List<Future> expansionTasks = Collections.synchronizedList(new ArrayList<>());
-
     public static class HashableCombinatorialHit {
         public final SynthonSpace.CombinatorialHit hit;
         public final String hashString;
@@ -93,126 +140,206 @@ public class RealTimeExpandingSearchResultModel {
         }
     }
 
+    private static class AssemblyTask implements Comparable<AssemblyTask> {
+        final long generation;
+        final HashableCombinatorialHit unsplitHit;
+        final SynthonSpace.CombinatorialHit hit;
+        final int chunk;
+        final long seq;
+
+        AssemblyTask(long generation, HashableCombinatorialHit unsplitHit, SynthonSpace.CombinatorialHit hit, int chunk, long seq) {
+            this.generation = generation;
+            this.unsplitHit = unsplitHit;
+            this.hit = hit;
+            this.chunk = chunk;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(AssemblyTask o) {
+            int c = Integer.compare(this.chunk, o.chunk);
+            return (c != 0) ? c : Long.compare(this.seq, o.seq);
+        }
+    }
+
+    private static class RowBatch {
+        final long generation;
+        final List<String> rows;
+
+        RowBatch(long generation, List<String> rows) {
+            this.generation = generation;
+            this.rows = rows;
+        }
+    }
+
     private void processResultsChanged() {
-        // we may end up here from edt.. therefore do this
-        // async..
-        Thread tri = new Thread() {
-            @Override
-            public void run() {
-                synchronized(assembledMolecules2) {
-                    long tsa = System.currentTimeMillis();
-                    //System.out.println("monitor asm2 entered");
-                    List<SynthonSpace.CombinatorialHit> all_hits = new ArrayList<>(resultModel.getHits());
-                    all_hits.removeAll( assembledMolecules2.keySet().stream().map(xi->xi.hit).collect(Collectors.toList()) );
-                    for(SynthonSpace.CombinatorialHit chi_unsplit : all_hits) {
-                        //!!!!! FOR STORING INTO THE DATASTRUCTURES WE HAVE TO USE chi_unsplit!!!!!
-                        // immediately put placeholder for molecules, such that the line above works..
-                        HashableCombinatorialHit fchi_unsplit = new HashableCombinatorialHit(chi_unsplit);
-                        assembledMolecules2.put( fchi_unsplit , new ArrayList<>());
+        // we may end up here from edt, therefore the intake runs async, and
+        // events that arrive while an intake is scheduled are coalesced
+        ExecutorService executor = this.expansionExecutor;
+        if (executor == null || executor.isShutdown()) {
+            return;
+        }
+        if (intakeScheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::intakeNewHits);
+            } catch (RejectedExecutionException e) {
+                intakeScheduled.set(false);
+            }
+        }
+    }
 
+    /**
+     * Splits the hits that were added to the result model since the last intake into assembly
+     * tasks. Blocks while the input queue is full.
+     */
+    private void intakeNewHits() {
+        synchronized (intakeLock) {
+            intakeScheduled.set(false);
+            long gen = generation.get();
+            List<SynthonSpace.CombinatorialHit> all_hits = resultModel.getHits();
+            try {
+                while (intakeCount < all_hits.size()) {
+                    SynthonSpace.CombinatorialHit chi_unsplit = all_hits.get(intakeCount);
+                    if (gen != generation.get() || acceptedRows.get() >= maxExpandedHits) {
+                        return;
+                    }
+                    HashableCombinatorialHit fchi_unsplit = new HashableCombinatorialHit(chi_unsplit);
+                    if (assembledMolecules2.putIfAbsent(fchi_unsplit, Collections.synchronizedList(new ArrayList<>())) == null) {
                         List<SynthonSpace.CombinatorialHit> chi_split = splitCombinatorialHit_01(chi_unsplit);
-                        for (SynthonSpace.CombinatorialHit chi : chi_split) {
-
-                            //SynthonSpace.CombinatorialHit fchi = chi;
-
-                            Runnable ri = new Runnable() {
-                                @Override
-                                public void run() {
-                                    if (moleculeOrder.size() > maxExpandedHits) {
-                                        return;
-                                    }
-                                    List<SynthonAssembler.ExpandedCombinatorialHit> exp_hits = SynthonAssembler.expandCombinatorialHit(chi, 1024);
-                                    List<String> new_molecules = new ArrayList<>();
-                                    synchronized (assembledMolecules2) {
-                                        if (moleculeOrder.size() > maxExpandedHits) {
-                                            return;
-                                        }
-                                        List<String> processed = new ArrayList<>();
-                                        for (SynthonAssembler.ExpandedCombinatorialHit xi : exp_hits) {
-                                            if (Thread.currentThread().isInterrupted()) {
-                                                break;
-                                            }
-                                            String processed_idcode = processResultStructure(xi.assembled_idcode);
-                                            assembledMolecules.put(processed_idcode, fchi_unsplit.hit);
-                                            assembledMoleculesExpHits.put(processed_idcode, xi);
-                                            processed.add(processed_idcode);
-                                        }
-                                        //new_molecules = new ArrayList<>(exp_hits.stream().map(ci -> ci.assembled_idcode).collect(Collectors.toList()));
-                                        new_molecules = processed;
-                                        //assembledMolecules2.put(fchi,
-                                        //        new_molecules);
-                                        assembledMolecules2.get(fchi_unsplit).addAll(new_molecules);
-                                    }
-                                    List<String> final_new_molecules = new_molecules;
-                                    SwingUtilities.invokeLater(new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            //System.out.println("SwingEDT: enter");
-                                            long tsa = System.currentTimeMillis();
-                                            if (moleculeOrder.size() > maxExpandedHits) {
-                                                return;
-                                            }
-                                            // update internal table model..
-                                            int size_old = moleculeOrder.size();
-                                            moleculeOrder.addAll(new ArrayList<>(final_new_molecules));
-                                            int size_new = moleculeOrder.size();
-                                            tableModel.fireTableRowsInserted(size_old, size_new);
-                                            //System.out.println("SwingEDT: leave, time= "+(System.currentTimeMillis()-tsa));
-                                        }
-                                    });
-                                    fireResultsChanged();
-                                }
-                            };
-
-                            if (moleculeOrder.size() < maxExpandedHits) {
-                                if (getThis().expansionThreadPool == null || getThis().expansionThreadPool.isShutdown()) {
-                                    getThis().restartThreadpool();
-                                }
-                                Future fExp = expansionThreadPool.submit(ri);
-                                synchronized (expansionTasks) {
-                                    expansionTasks.add(fExp);
-                                }
+                        long seq = taskSequence.incrementAndGet();
+                        for (int zi = 0; zi < chi_split.size(); zi++) {
+                            queueSlots.acquire();
+                            if (gen != generation.get()) {
+                                queueSlots.release();
+                                return;
                             }
-                            //ri.setPriority(Thread.MIN_PRIORITY);
-                            //ri.start();
+                            assemblyQueue.add(new AssemblyTask(gen, fchi_unsplit, chi_split.get(zi), zi, seq));
+                            expansionExecutor.execute(this::runNextAssemblyTask);
                         }
                     }
-                    //System.out.println("monitor asm2 left, time= "+(tsa-System.currentTimeMillis()));
+                    intakeCount++;
                 }
-
+            } catch (InterruptedException | RejectedExecutionException e) {
+                // shut down
             }
-        };
-        tri.start();
+        }
     }
 
-    // Create a ThreadPoolExecutor with 4 threads
-    private ThreadPoolExecutor expansionThreadPool;
+    /**
+     * Runs the highest priority task of the queue, at most one task per processor runs at a time.
+     */
+    private void runNextAssemblyTask() {
+        try {
+            workerSlots.acquire();
+        } catch (InterruptedException e) {
+            return;
+        }
+        try {
+            AssemblyTask task = assemblyQueue.poll();
+            if (task == null) {
+                // removed by cancelAssembly()
+                return;
+            }
+            queueSlots.release();
+            if (task.generation == generation.get()) {
+                assemble(task);
+            }
+        } finally {
+            workerSlots.release();
+        }
+    }
 
-    private void initExpansionThreadPool() {
-        if(!expansionTasks.isEmpty()) {
-            List<Future> allTasks = new ArrayList<>();
-            synchronized(expansionTasks) {
-                allTasks = new ArrayList<>(expansionTasks);
+    private void assemble(AssemblyTask task) {
+        if (acceptedRows.get() >= maxExpandedHits) {
+            return;
+        }
+        List<SynthonAssembler.ExpandedCombinatorialHit> exp_hits = SynthonAssembler.expandCombinatorialHit(task.hit, 1024);
+        CoordinateInventor inventor = createCoordinateInventor();
+        List<String> processed = new ArrayList<>();
+        for (SynthonAssembler.ExpandedCombinatorialHit xi : exp_hits) {
+            if (task.generation != generation.get() || Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            if (acceptedRows.incrementAndGet() > maxExpandedHits) {
+                break;
             }
-            for(Future fi : allTasks) {
-                fi.cancel(true);
-                expansionTasks.remove(fi);
+            String processed_idcode = processResultStructure(xi.assembled_idcode, inventor);
+            assembledMolecules.put(processed_idcode, task.unsplitHit.hit);
+            assembledMoleculesExpHits.put(processed_idcode, xi);
+            processed.add(processed_idcode);
+        }
+        List<String> rows = assembledMolecules2.get(task.unsplitHit);
+        if (rows != null) {
+            rows.addAll(processed);
+        }
+        if (!processed.isEmpty()) {
+            pendingRows.add(new RowBatch(task.generation, processed));
+            if (flushScheduled.compareAndSet(false, true)) {
+                flushTimer.start();
+            }
+        }
+    }
+
+    /**
+     * Adds all pending rows of the current generation to the table, runs on the EDT.
+     */
+    private void flushRows() {
+        flushScheduled.set(false);
+        long gen = generation.get();
+        List<String> new_molecules = new ArrayList<>();
+        RowBatch batch;
+        while ((batch = pendingRows.poll()) != null) {
+            if (batch.generation == gen) {
+                new_molecules.addAll(batch.rows);
             }
         }
+        if (new_molecules.isEmpty()) {
+            return;
+        }
+        int size_old = moleculeOrder.size();
+        moleculeOrder.addAll(new_molecules);
+        tableModel.fireTableRowsInserted(size_old, moleculeOrder.size() - 1);
+        fireResultsChanged();
+    }
 
-        expansionThreadPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    /**
+     * Starts a new generation, all queued tasks are dropped and running tasks stop.
+     */
+    private void cancelAssembly() {
+        generation.incrementAndGet();
+        List<AssemblyTask> dropped = new ArrayList<>();
+        assemblyQueue.drainTo(dropped);
+        queueSlots.release(dropped.size());
+    }
 
-        // Set the lowest priority for each thread
-        expansionThreadPool.setThreadFactory(new ThreadFactory() {
+    /**
+     * Drops all rows and expands all hits again.
+     */
+    private void reprocess() {
+        cancelAssembly();
+        SwingUtilities.invokeLater(new Runnable() {
             @Override
-            public Thread newThread(Runnable r) {
-                Thread t = new Thread(r);
-                t.setPriority(Thread.MIN_PRIORITY);
-                return t;
+            public void run() {
+                synchronized (intakeLock) {
+                    intakeCount = 0;
+                    acceptedRows.set(0);
+                    moleculeOrder.clear();
+                    assembledMolecules.clear();
+                    assembledMolecules2.clear();
+                    assembledMoleculesExpHits.clear();
+                }
+                tableModel.fireTableDataChanged();
+                fireResultsChanged();
+                processResultsChanged();
             }
         });
     }
 
+    private void initExpansionExecutor() {
+        ThreadFactory factory = Thread.ofVirtual().name("HitExpansion-", 0).factory();
+        this.expansionExecutor = Executors.newThreadPerTaskExecutor(factory);
+    }
+
     private boolean highlightSubstructure = true;
     private boolean alignSubstructure     = false;
 
@@ -228,15 +355,7 @@ public class RealTimeExpandingSearchResultModel {
             reprocessNeeded = true;
         }
         if(reprocessNeeded) {
-            SwingUtilities.invokeLater(new Runnable() {
-                @Override
-                public void run() {
-                    moleculeOrder.clear();
-                    assembledMolecules.clear();
-                    assembledMolecules2.clear();
-                }
-            });
-            processResultsChanged();
+            reprocess();
         }
     }
 
@@ -248,15 +367,26 @@ public class RealTimeExpandingSearchResultModel {
         return alignSubstructure;
     }
 
-    private CoordinateInventor coordinateInventor;
+    // CoordinateInventor is not thread-safe, every assembly task creates its own instance
+    private volatile List<InventorTemplate> inventorTemplates = Collections.emptyList();
     private void initCoordinateInventor() {
         DescriptorHandlerLongFFP512 ffp = new DescriptorHandlerLongFFP512();
-        coordinateInventor = new CoordinateInventor();
         if( this.resultModel.getQuery()!=null && alignSubstructure ) {
             StereoMolecule qi = this.resultModel.getQuery();
             InventorTemplate it = new InventorTemplate(qi, ffp.createDescriptor(qi), true);
-            coordinateInventor.setCustomTemplateList(Collections.singletonList(it));
+            inventorTemplates = Collections.singletonList(it);
+        }
+        else {
+            inventorTemplates = Collections.emptyList();
+        }
+    }
+
+    private CoordinateInventor createCoordinateInventor() {
+        CoordinateInventor ci = new CoordinateInventor();
+        if(!inventorTemplates.isEmpty()) {
+            ci.setCustomTemplateList(inventorTemplates);
         }
+        return ci;
     }
 
     public CombinatorialSearchResultModel getCombinatorialSearchResultModel() {
@@ -286,7 +416,10 @@ public class RealTimeExpandingSearchResultModel {
 
 
     public String processResultStructure(String mol) {
+        return processResultStructure(mol, createCoordinateInventor());
+    }
 
+    private String processResultStructure(String mol, CoordinateInventor coordinateInventor) {
         StereoMolecule mi = HyperspaceUtils.parseIDCode(mol);
         coordinateInventor.invent(mi);
         if(this.highlightSubstructure) {
@@ -366,20 +499,22 @@ public class RealTimeExpandingSearchResultModel {
         }
     }
 
+    /**
+     * Stops the expansion, queued and running assembly tasks are dropped.
+     */
     public void shutdownThreadpool() {
-        if(!expansionTasks.isEmpty()) {
-            List<Future> allTasks = new ArrayList<>(expansionTasks);
-            for(Future fi : allTasks) {
-                fi.cancel(true);
-                expansionTasks.remove(fi);
-            }
-        }
-        this.expansionThreadPool.shutdown();
+        cancelAssembly();
+        this.expansionExecutor.shutdownNow();
     }
 
+    /**
+     * Restarts the expansion, all hits are expanded again.
+     */
     public void restartThreadpool() {
-        this.expansionThreadPool.shutdown();
-        this.initExpansionThreadPool();
+        cancelAssembly();
+        this.expansionExecutor.shutdownNow();
+        this.initExpansionExecutor();
+        reprocess();
     }
 
     /**
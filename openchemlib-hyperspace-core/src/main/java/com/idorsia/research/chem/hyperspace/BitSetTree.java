@@ -28,6 +28,7 @@ package com.idorsia.research.chem.hyperspace;
 
 import java.io.*;
 import java.util.*;
+import java.util.function.UnaryOperator;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
@@ -38,7 +39,7 @@ public class BitSetTree implements Serializable {
 
     public enum STORAGE_MODE { MEMORY , FILE , ZIP };
 
-    Node root;
+    volatile Node root;
 
     BitSetTree(Node root) {
         this.root = root;
@@ -64,6 +65,92 @@ public class BitSetTree implements Serializable {
         return this.root.testSubset(b,first_superset);
     }
 
+    /**
+     * Inserts a bitset into the tree. Only supported for STORAGE_MODE.MEMORY trees.
+     *
+     * If the leaf that receives the bitset grows beyond binsize, then only this leaf is split.
+     * The leaf is replaced copy-on-write, i.e. concurrent readers see either the old or the new
+     * leaf, but never a modified leaf data list. Concurrent inserts are serialized on the tree.
+     *
+     * @param b
+     * @param num_bits
+     * @param binsize
+     * @return false if the bitset was already contained in the tree
+     * @throws UnsupportedOperationException if the receiving leaf is stored in a file or zip file
+     *         (STORAGE_MODE.FILE / STORAGE_MODE.ZIP), these trees have to be rebuilt instead
+     */
+    public synchronized boolean insert(BitSet b, int num_bits, int binsize) {
+        Node parent = null;
+        Node n = this.root;
+        while(!n.isLeaf()) {
+            parent = n;
+            n = b.get(n.bit) ? n.right : n.left;
+        }
+        if(n.leaf_data==null) {
+            throw new UnsupportedOperationException("insert is only supported for trees with leafs in memory");
+        }
+        if(n.leaf_data.contains(b)) {
+            return false;
+        }
+
+        List<BitSet> data = new ArrayList<>(n.leaf_data);
+        data.add(b);
+        Node replacement = null;
+        if(data.size() <= binsize) {
+            replacement = new Node(-1, n.bits_0, n.bits_1, null, null, data);
+        }
+        else {
+            replacement = split_recursively(data, n.bits_0, n.bits_1, num_bits, binsize, "r", null, null, null);
+        }
+
+        if(parent==null) {
+            this.root = replacement;
+        }
+        else if(parent.left==n) {
+            parent.left = replacement;
+        }
+        else {
+            parent.right = replacement;
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the leaf bitsets by their canonical instances and removes duplicate entries
+     * within the leafs. Leaf data lists are replaced, not modified, i.e. concurrent readers see
+     * either the old or the new list. Leafs that are stored in files are not touched.
+     *
+     * @param canonical returns the canonical instance for a bitset
+     * @return number of leaf entries that were replaced or removed
+     */
+    public synchronized int canonicalizeLeaves(UnaryOperator<BitSet> canonical) {
+        return canonicalizeLeaves(this.root,canonical);
+    }
+
+    private static int canonicalizeLeaves(Node n, UnaryOperator<BitSet> canonical) {
+        if(n==null) {return 0;}
+        if(!n.isLeaf()) {
+            return canonicalizeLeaves(n.left,canonical) + canonicalizeLeaves(n.right,canonical);
+        }
+        if(n.leaf_data==null) {return 0;}
+        Set<BitSet>  distinct = new HashSet<>();
+        List<BitSet> data     = new ArrayList<>(n.leaf_data.size());
+        int changed = 0;
+        for(BitSet bi : n.leaf_data) {
+            BitSet ci = canonical.apply(bi);
+            if(!distinct.add(ci)) {
+                changed++;
+                continue;
+            }
+            if(ci!=bi) {changed++;}
+            data.add(ci);
+        }
+        if(changed>0) {
+            n.leaf_data = data;
+        }
+        return changed;
+    }
+
     public static final class Node implements Serializable {
 //        private static final long serialVersionUID = 6612754111018245823L;  // temporarily used for Synple
         private static final long serialVersionUID = -6432137482703457104L;   // added 17-May-2024, TLS, evidently used historically
@@ -74,9 +161,11 @@ public class BitSetTree implements Serializable {
         BitSet bits_1;
         BitSet bits_0;
 
-        Node left = null;
-        Node right = null;
-        private List<BitSet> leaf_data = null;
+        // volatile, as insert() and canonicalizeLeaves() replace children and leaf data while
+        // lock-free searches walk the tree
+        volatile Node left = null;
+        volatile Node right = null;
+        private volatile List<BitSet> leaf_data = null;
 
         private String leaf_data_file = null;
 
@@ -16,6 +16,7 @@ import com.idorsia.research.chem.hyperspace.descriptor.DescriptorHandlerPPCore;
 import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class CachedDescriptorProvider {
@@ -51,7 +52,7 @@ public class CachedDescriptorProvider {
 
 
     DescriptorHandler<long[],StereoMolecule> mFP = null;
-    transient Map<Thread,DescriptorHandler<long[],StereoMolecule>> mFPs_forThreads = new HashMap<>();
+    transient Map<Thread,DescriptorHandler<long[],StereoMolecule>> mFPs_forThreads = new WeakHashMap<>();
 
     public synchronized DescriptorHandler<long[],StereoMolecule> getDescriptorHandler_PerThread() {
         if(mFP==null) {
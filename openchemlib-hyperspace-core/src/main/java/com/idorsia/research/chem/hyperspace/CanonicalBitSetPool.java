@@ -0,0 +1,100 @@
+package com.idorsia.research.chem.hyperspace;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pool of canonical BitSet instances. All references to equal bitsets can be replaced by the
+ * (reference-equal) canonical instance, such that every distinct fingerprint value is held in
+ * memory only once.
+ *
+ * NOTE: canonical instances must never be modified.
+ *
+ * Thread-safe.
+ */
+public class CanonicalBitSetPool {
+
+    private final ConcurrentHashMap<BitSet,BitSet> pool = new ConcurrentHashMap<>();
+
+    /**
+     * @param bs
+     * @return the canonical instance that is equal to bs, bs itself if it is the first instance of this value
+     */
+    public BitSet canonical(BitSet bs) {
+        if(bs==null) {return null;}
+        BitSet ci = pool.putIfAbsent(bs,bs);
+        return (ci==null) ? bs : ci;
+    }
+
+    /**
+     * Same as canonical(bs), and records the replacement in the report.
+     */
+    public BitSet canonical(BitSet bs, Report report) {
+        BitSet ci = canonical(bs);
+        if(bs!=null) {
+            report.record(bs,ci);
+        }
+        return ci;
+    }
+
+    public int size() {
+        return pool.size();
+    }
+
+    /**
+     * Statistics of a pooling run. Freed instances are the bitset objects that were replaced by
+     * their canonical instance and are no longer referenced by the pooled data structures.
+     *
+     * NOTE: while pooling runs, the report keeps the replaced instances in an identity set, it is
+     *       released by finish(..).
+     */
+    public static class Report {
+        private long references = 0;
+        private long redirected_references = 0;
+        private long freed_bytes = 0;
+        private long freed_instance_count = 0;
+        private Set<BitSet> freed_instances = Collections.newSetFromMap(new IdentityHashMap<>());
+        private int distinct_values = 0;
+
+        synchronized void record(BitSet bs, BitSet canonical) {
+            references++;
+            if(bs!=canonical) {
+                redirected_references++;
+                if(freed_instances.add(bs)) {
+                    freed_instance_count++;
+                    freed_bytes += estimateBytes(bs);
+                }
+            }
+        }
+
+        /**
+         * Ends the pooling run and releases the replaced instances.
+         */
+        synchronized void finish(int distinct_values) {
+            this.distinct_values = distinct_values;
+            this.freed_instances = Collections.newSetFromMap(new IdentityHashMap<>());
+        }
+
+        public long getReferences() {return references;}
+        public long getRedirectedReferences() {return redirected_references;}
+        public long getFreedInstances() {return freed_instance_count;}
+        public long getFreedBytes() {return freed_bytes;}
+        public int getDistinctValues() {return distinct_values;}
+
+        /**
+         * Approximate size of a BitSet: object, words array header and words.
+         */
+        public static long estimateBytes(BitSet bs) {
+            return 24L + 16L + bs.size()/8;
+        }
+
+        public String toString() {
+            return String.format("fingerprint pooling: references=%d redirected=%d distinct=%d freed_instances=%d freed_memory=%.1f MB",
+                    references, redirected_references, distinct_values, freed_instance_count, freed_bytes / (1024.0*1024.0));
+        }
+    }
+
+}
@@ -700,6 +700,23 @@ public class FastSubstructureSearcher implements Serializable {
         this.mFPs_forThreads = new HashMap<>();
     }
 
+    /**
+     * Replaces the fingerprints of the structure map and of the in-memory tree leafs by their canonical
+     * instances, see SynthonSpace.canonicalizeFingerprints()
+     *
+     * NOTE: must not run concurrently with searches.
+     *
+     * @param canonical returns the canonical instance for a bitset
+     */
+    void canonicalizeFingerprints(java.util.function.UnaryOperator<BitSet> canonical) {
+        Map<BitSet, List<String>> pooled = new HashMap<>();
+        this.mStructureMap.forEach( (k,v) -> pooled.put(canonical.apply(k),v) );
+        this.mStructureMap = pooled;
+        if(this.mTree!=null) {
+            this.mTree.canonicalizeLeaves(canonical);
+        }
+    }
+
     /**
      * Creates the reference descriptor object from the stored short name.
      *
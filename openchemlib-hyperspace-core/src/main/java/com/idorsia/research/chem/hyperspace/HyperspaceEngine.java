@@ -20,6 +20,7 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
 
 public class HyperspaceEngine {
@@ -262,6 +263,100 @@ public class HyperspaceEngine {
         return finalized_hits;
     }
 
+    /**
+     * Receives improved hits of a streaming similarity search.
+     */
+    public interface SimilarStructureReceiver {
+        /**
+         * Called with hits that entered the current top k, never concurrently.
+         *
+         * @return false to stop the search
+         */
+        boolean addHits(List<SynthonSpaceSimilarityExplorer.FinalizedSimilarityHit> hits);
+    }
+
+    /**
+     * Streaming version of findSimilarStructures(..): hits are passed to the receiver as soon as they are
+     * assembled, as long as they enter the top max_hits (lowest hamming distance). Only the top max_hits
+     * hits are kept. The assembly stops early if the receiver returns false.
+     *
+     * This should be threadsafe.
+     *
+     * @param max_hits size of the top k, must be positive
+     * @return the top max_hits hits found until the end or the stop, sorted by increasing hamming distance
+     */
+    public List<SynthonSpaceSimilarityExplorer.FinalizedSimilarityHit> findSimilarStructuresStreaming(String space_name , StereoMolecule mi,
+                                                                                                      double min_tanimoto_sim_initial,
+                                                                                                      int primary_hits_screened,
+                                                                                                      int primary_hits_considered,
+                                                                                                      int num_hit_expansions,
+                                                                                                      List<String> allowed_rxns,
+                                                                                                      int max_hits,
+                                                                                                      SimilarStructureReceiver receiver,
+                                                                                                      int threads) {
+        if(max_hits <= 0) {
+            throw new IllegalArgumentException("max_hits must be positive: " + max_hits);
+        }
+        SimilaritySearchSpace sim_space = mSpaces_Similarity.get(space_name);
+        SynthonSimilaritySpace space = sim_space.space;
+
+        int hit_expansion_values[] = new int[]{num_hit_expansions, (int) Math.ceil( Math.sqrt( num_hit_expansions ))};
+        SynthonSpaceSimilarityExplorer explorer = new SynthonSpaceSimilarityExplorer(space,mi,
+                128,primary_hits_screened,
+                primary_hits_considered,hit_expansion_values,
+                allowed_rxns);
+        Function<Integer,Integer> f_initial_dist = (Integer bits) -> Integer.valueOf( (int) Math.ceil(  ((double)bits.intValue()) * (1.0-min_tanimoto_sim_initial) ) + 2 );
+
+        List<SynthonSpaceSimilarityExplorer.SimilarityHit> hits = new ArrayList<>();
+        explorer.sampleSimilar_new_default(new Random(),mi,3,3,f_initial_dist,
+                hits,threads);
+
+        // assemble, every hit that enters the top k goes to the receiver right away
+        CachedDescriptorProvider cdh = new CachedDescriptorProvider(space.getDescriptorHandler().getInfo().shortName);
+
+        CachedStereoMoleculeProvider csmp = new CachedStereoMoleculeProvider();
+        TopKCollector<SynthonSpaceSimilarityExplorer.FinalizedSimilarityHit> top_k = new TopKCollector<>(max_hits);
+        Set<Set<SynthonSpace.FragId>> already_assembled_sets = new HashSet<>();
+        Object lock_receiver = new Object();
+        AtomicBoolean stopped = new AtomicBoolean(false);
+
+        ExecutorService main_pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> tasks_assemble = new ArrayList<>();
+        for(SynthonSpaceSimilarityExplorer.SimilarityHit hi : hits) {
+            tasks_assemble.add(main_pool.submit( () -> {
+                if(stopped.get()) {return;}
+                List<SynthonSpaceSimilarityExplorer.FinalizedSimilarityHit> improved = new ArrayList<>();
+                for(SynthonSpaceSimilarityExplorer.FinalizedSimilarityHit fhi : hi.assembleAllStructures(cdh,csmp,already_assembled_sets,mi)) {
+                    if(top_k.offer(fhi,-fhi.hamming_distance)) { improved.add(fhi); }
+                }
+                if(improved.isEmpty()) {return;}
+                synchronized(lock_receiver) {
+                    if(!stopped.get() && !receiver.addHits(improved)) {
+                        stopped.set(true);
+                    }
+                }
+            }));
+        }
+
+        for(Future<?> ft : tasks_assemble) {
+            if(stopped.get()) {
+                ft.cancel(true);
+                continue;
+            }
+            try {
+                ft.get();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+                System.out.println(e.getMessage());
+            }
+        }
+        main_pool.shutdownNow();
+
+        return top_k.getSortedResults();
+    }
+
     public List<SubstructureSearchSpace> getAvailableSubstructureSearchSpaceObjects() {
         return new ArrayList<>(this.mSpaces_SSS.values());
     }
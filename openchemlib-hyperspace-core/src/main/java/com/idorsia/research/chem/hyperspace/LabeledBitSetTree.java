@@ -0,0 +1,331 @@
+package com.idorsia.research.chem.hyperspace;
+
+import java.util.*;
+
+/**
+ * Fused bitset tree over many labeled bitset collections.
+ *
+ * Where a BitSetTree answers "does a superset of q exist", this tree answers
+ * "in which of the N collections does a superset of q exist" in a single
+ * traversal, and returns the answer as a bitmap over the labels.
+ *
+ * Every distinct fingerprint is stored only once, together with the set of
+ * labels in which it occurs. Every node stores the union of the labels in its
+ * subtree and the bits that are set in all fingerprints of its subtree. This
+ * allows to:
+ *
+ * 1. skip subtrees that cannot contribute new labels,
+ * 2. accept all labels of a subtree at once, if q is contained in the common bits,
+ * 3. stop as soon as all requested labels are found.
+ *
+ * Leaf fingerprints are stored as one packed long[] block, such that the
+ * subset test in the leafs is a plain scan over consecutive words.
+ *
+ * @param <T> label type, e.g. rxn id or FragType
+ */
+public class LabeledBitSetTree<T> {
+
+    private final List<T> labels;
+    private final Map<T,Integer> label_index;
+    private final int num_words;
+
+    private final Node root;
+
+    /**
+     * Number of distinct fingerprints in this tree
+     */
+    private final int num_entries;
+
+    static final class Node {
+        // if -1, then this is a leaf
+        final int bit;
+
+        // bits that are set in all fingerprints of this subtree
+        final long[] common_bits;
+
+        // union of the labels of all fingerprints in this subtree
+        final BitSet labels;
+
+        final Node left;
+        final Node right;
+
+        // packed leaf fingerprints (num_words per entry) and the labels of every entry
+        final long[] leaf_fps;
+        final BitSet[] leaf_labels;
+
+        Node(int bit, long[] common_bits, BitSet labels, Node left, Node right) {
+            this.bit = bit;
+            this.common_bits = common_bits;
+            this.labels = labels;
+            this.left = left;
+            this.right = right;
+            this.leaf_fps = null;
+            this.leaf_labels = null;
+        }
+
+        Node(long[] common_bits, BitSet labels, long[] leaf_fps, BitSet[] leaf_labels) {
+            this.bit = -1;
+            this.common_bits = common_bits;
+            this.labels = labels;
+            this.left = null;
+            this.right = null;
+            this.leaf_fps = leaf_fps;
+            this.leaf_labels = leaf_labels;
+        }
+
+        boolean isLeaf() {
+            return this.bit < 0;
+        }
+    }
+
+    private LabeledBitSetTree(List<T> labels, int num_words, Node root, int num_entries) {
+        this.labels = Collections.unmodifiableList(new ArrayList<>(labels));
+        this.label_index = new HashMap<>();
+        for(int zi=0;zi<labels.size();zi++) {
+            this.label_index.put(labels.get(zi),zi);
+        }
+        this.num_words = num_words;
+        this.root = root;
+        this.num_entries = num_entries;
+    }
+
+    /**
+     * Creates the fused tree. The order of the labels is given by the iteration order of
+     * the bitsets_by_label map, i.e. use a sorted or linked map if you need deterministic
+     * label indices.
+     *
+     * @param bitsets_by_label
+     * @param num_bits
+     * @param binsize max number of distinct fingerprints per leaf
+     * @return
+     */
+    public static <T> LabeledBitSetTree<T> createTree(Map<T,? extends Collection<BitSet>> bitsets_by_label, int num_bits, int binsize) {
+        List<T> labels = new ArrayList<>(bitsets_by_label.keySet());
+        int num_words = (num_bits+63) / 64;
+
+        // deduplicate the fingerprints and collect the labels of every fingerprint
+        Map<BitSet,BitSet> labels_by_fp = new HashMap<>();
+        for(int zi=0;zi<labels.size();zi++) {
+            for(BitSet bsi : bitsets_by_label.get(labels.get(zi))) {
+                labels_by_fp.computeIfAbsent(bsi, x -> new BitSet()).set(zi);
+            }
+        }
+
+        List<long[]>  fps        = new ArrayList<>(labels_by_fp.size());
+        List<BitSet>  fp_labels  = new ArrayList<>(labels_by_fp.size());
+        for(Map.Entry<BitSet,BitSet> ei : labels_by_fp.entrySet()) {
+            long[] wi = toWords(ei.getKey(),num_words);
+            if(wi==null) {
+                throw new IllegalArgumentException("Fingerprint has bits set beyond num_bits="+num_bits);
+            }
+            fps.add(wi);
+            fp_labels.add(ei.getValue());
+        }
+
+        Node root = split_recursively(fps, fp_labels, num_words, num_bits, Math.max(1,binsize), new BitSet(num_bits));
+        return new LabeledBitSetTree<>(labels, num_words, root, fps.size());
+    }
+
+    private static Node split_recursively(List<long[]> fps, List<BitSet> fp_labels, int num_words, int num_bits, int binsize, BitSet used_bits) {
+        long[] common = new long[num_words];
+        BitSet labels = new BitSet();
+        if(!fps.isEmpty()) {
+            Arrays.fill(common, -1L);
+        }
+        for(int zi=0;zi<fps.size();zi++) {
+            long[] fi = fps.get(zi);
+            for(int zw=0;zw<num_words;zw++) { common[zw] &= fi[zw]; }
+            labels.or(fp_labels.get(zi));
+        }
+
+        if(fps.size() <= binsize) {
+            return createLeaf(fps, fp_labels, num_words, common, labels);
+        }
+
+        // count all bits in one pass and take the most balanced split bit
+        int[] counts = new int[num_bits];
+        for(long[] fi : fps) {
+            for(int zw=0;zw<num_words;zw++) {
+                long wi = fi[zw];
+                while(wi!=0) {
+                    int bi = zw*64 + Long.numberOfTrailingZeros(wi);
+                    if(bi<num_bits) { counts[bi]++; }
+                    wi &= wi-1;
+                }
+            }
+        }
+        int best_split_bit = -1;
+        int best_split     = 0;
+        for(int zi=0;zi<num_bits;zi++) {
+            if(used_bits.get(zi)) {continue;}
+            int split_score = Math.min( counts[zi] , fps.size()-counts[zi] );
+            if(split_score > best_split) {
+                best_split = split_score;
+                best_split_bit = zi;
+            }
+        }
+
+        if(best_split_bit<0) {
+            // no bit separates the remaining fingerprints, cannot happen for distinct fingerprints
+            return createLeaf(fps, fp_labels, num_words, common, labels);
+        }
+
+        List<long[]> fps_a = new ArrayList<>();  List<BitSet> labels_a = new ArrayList<>();
+        List<long[]> fps_b = new ArrayList<>();  List<BitSet> labels_b = new ArrayList<>();
+        for(int zi=0;zi<fps.size();zi++) {
+            if( isSet(fps.get(zi),best_split_bit) ) {
+                fps_b.add(fps.get(zi)); labels_b.add(fp_labels.get(zi));
+            }
+            else {
+                fps_a.add(fps.get(zi)); labels_a.add(fp_labels.get(zi));
+            }
+        }
+
+        BitSet used_bits_children = (BitSet) used_bits.clone();
+        used_bits_children.set(best_split_bit);
+
+        Node left  = split_recursively(fps_a, labels_a, num_words, num_bits, binsize, used_bits_children);
+        Node right = split_recursively(fps_b, labels_b, num_words, num_bits, binsize, used_bits_children);
+        return new Node(best_split_bit, common, labels, left, right);
+    }
+
+    private static Node createLeaf(List<long[]> fps, List<BitSet> fp_labels, int num_words, long[] common, BitSet labels) {
+        long[] packed = new long[fps.size()*num_words];
+        for(int zi=0;zi<fps.size();zi++) {
+            System.arraycopy(fps.get(zi),0,packed,zi*num_words,num_words);
+        }
+        return new Node(common, labels, packed, fp_labels.toArray(new BitSet[0]));
+    }
+
+    public List<T> getLabels() {
+        return this.labels;
+    }
+
+    /**
+     * @param label
+     * @return the index of the label in the result bitmaps, or -1 if the label is not in this tree
+     */
+    public int getLabelIndex(T label) {
+        Integer idx = this.label_index.get(label);
+        return (idx==null) ? -1 : idx;
+    }
+
+    public int getNumEntries() {
+        return this.num_entries;
+    }
+
+    /**
+     * Creates the label bitmap for the given labels. Labels not contained in this tree are ignored.
+     *
+     * @param selected_labels
+     * @return
+     */
+    public BitSet createLabelBitSet(Collection<T> selected_labels) {
+        BitSet bs = new BitSet(this.labels.size());
+        for(T li : selected_labels) {
+            int idx = getLabelIndex(li);
+            if(idx>=0) { bs.set(idx); }
+        }
+        return bs;
+    }
+
+    /**
+     * @param q
+     * @return bitmap over all labels that contain a superset of q
+     */
+    public BitSet findLabelsWithSuperset(BitSet q) {
+        BitSet all = new BitSet(this.labels.size());
+        all.set(0,this.labels.size());
+        return findLabelsWithSuperset(q,all);
+    }
+
+    /**
+     * @param q
+     * @param candidate_labels only these labels are considered
+     * @return bitmap over the candidate labels that contain a superset of q
+     */
+    public BitSet findLabelsWithSuperset(BitSet q, BitSet candidate_labels) {
+        BitSet result    = new BitSet(this.labels.size());
+        BitSet remaining = (BitSet) candidate_labels.clone();
+        long[] qw = toWords(q,this.num_words);
+        if(qw==null) {
+            // q contains bits outside of the fingerprint range, no superset can exist
+            return result;
+        }
+        if(!remaining.isEmpty()) {
+            collectLabels(this.root, qw, remaining, result);
+        }
+        return result;
+    }
+
+    /**
+     * @param q
+     * @param label
+     * @return true if the collection with the given label contains a superset of q
+     */
+    public boolean testSubset(BitSet q, T label) {
+        int idx = getLabelIndex(label);
+        if(idx<0) {return false;}
+        BitSet candidates = new BitSet(this.labels.size());
+        candidates.set(idx);
+        return !findLabelsWithSuperset(q,candidates).isEmpty();
+    }
+
+    private void collectLabels(Node n, long[] q, BitSet remaining, BitSet result) {
+        if(!n.labels.intersects(remaining)) {
+            return;
+        }
+        if(isSubset(q,n.common_bits,0)) {
+            // every fingerprint in this subtree is a superset
+            BitSet found = (BitSet) n.labels.clone();
+            found.and(remaining);
+            result.or(found);
+            remaining.andNot(found);
+            return;
+        }
+
+        if(n.isLeaf()) {
+            for(int zi=0;zi<n.leaf_labels.length;zi++) {
+                if(!n.leaf_labels[zi].intersects(remaining)) { continue; }
+                if(isSubset(q,n.leaf_fps,zi*this.num_words)) {
+                    BitSet found = (BitSet) n.leaf_labels[zi].clone();
+                    found.and(remaining);
+                    result.or(found);
+                    remaining.andNot(found);
+                    if(remaining.isEmpty()) {return;}
+                }
+            }
+            return;
+        }
+
+        collectLabels(n.right, q, remaining, result);
+        if( !remaining.isEmpty() && !isSet(q,n.bit) ) {
+            collectLabels(n.left, q, remaining, result);
+        }
+    }
+
+    private boolean isSubset(long[] q, long[] data, int offset) {
+        for(int zw=0;zw<this.num_words;zw++) {
+            if( (q[zw] & ~data[offset+zw]) != 0 ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSet(long[] words, int bit) {
+        return (words[bit>>>6] & (1L << (bit & 63))) != 0;
+    }
+
+    /**
+     * @return the words of the bitset, or null if the bitset has bits set beyond num_words*64
+     */
+    private static long[] toWords(BitSet bs, int num_words) {
+        long[] wi = bs.toLongArray();
+        if(wi.length > num_words) {
+            return null;
+        }
+        return Arrays.copyOf(wi,num_words);
+    }
+
+}
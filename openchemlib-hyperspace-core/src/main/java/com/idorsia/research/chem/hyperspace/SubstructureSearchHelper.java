@@ -10,6 +10,12 @@ import org.apache.commons.lang3.tuple.Triple;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 public class SubstructureSearchHelper {
@@ -183,6 +189,7 @@ public class SubstructureSearchHelper {
             }
 
             for (SynthonSpace.FragType fti_a : sorted_bb_hits.keySet()) {
+                if(Thread.currentThread().isInterrupted()) {return;}
 
                 List<SynthonSpace.FragId> all_matching_fragids = new ArrayList<>();
                 for(SynthonSpace.ExpandedHit hi : sorted_bb_hits.get(fti_a)) {
@@ -249,7 +256,7 @@ public class SubstructureSearchHelper {
 
 
     /**
-     * Same as the other function, but expands bridged bonds and runs the queries one after the other.
+     * Same as the other function, but expands bridged bonds and searches the expanded queries concurrently.
      *
      * @param space
      * @param cdp
@@ -260,12 +267,77 @@ public class SubstructureSearchHelper {
      * @param receiver
      */
     public static void run_substructure_search_streaming_01_withBridgedBondsExpansion(SynthonSpace space, CachedDescriptorProvider cdp, StereoMolecule mi, int threads, boolean fillIncompleteMappings, boolean omitRxnsWithHitsFromLowerSplitNumber, SynthonSpace.CombinatorialHitReceiver receiver) throws Exception {
+        run_substructure_search_streaming_01_withBridgedBondsExpansion(space,cdp,mi,threads,fillIncompleteMappings,omitRxnsWithHitsFromLowerSplitNumber,Integer.MAX_VALUE,receiver);
+    }
+
+    /**
+     * Expands bridged bonds and searches the expanded queries concurrently, the threads are split among
+     * the queries. Split results that the queries have in common are processed only once, and the
+     * fingerprints of common fragments are shared via the cdp cache.
+     *
+     * @param max_hits max number of combinatorial hits for all expanded queries together, when it is
+     *                 reached the remaining searches are cancelled
+     */
+    public static void run_substructure_search_streaming_01_withBridgedBondsExpansion(SynthonSpace space, CachedDescriptorProvider cdp, StereoMolecule mi, int threads, boolean fillIncompleteMappings, boolean omitRxnsWithHitsFromLowerSplitNumber, int max_hits, SynthonSpace.CombinatorialHitReceiver receiver) throws Exception {
+        run_substructure_search_streaming_01_withBridgedBondsExpansion(space,cdp,mi,threads,fillIncompleteMappings,omitRxnsWithHitsFromLowerSplitNumber,max_hits,null,receiver);
+    }
+
+    /**
+     * Same as above, every expanded query is planned with the planner, see run_substructure_search_streaming_01(..)
+     *
+     * @param planner decides which split levels are searched, or null to search all levels
+     */
+    public static void run_substructure_search_streaming_01_withBridgedBondsExpansion(SynthonSpace space, CachedDescriptorProvider cdp, StereoMolecule mi, int threads, boolean fillIncompleteMappings, boolean omitRxnsWithHitsFromLowerSplitNumber, int max_hits, SubstructureSearchPlanner planner, SynthonSpace.CombinatorialHitReceiver receiver) throws Exception {
         List<StereoMolecule> expandedQueries = expandBridgedSearches(mi);
+        Map<String,Set<String>> processed_splits = new ConcurrentHashMap<>();
+
+        int num_parallel_queries = Math.max(1, Math.min(expandedQueries.size(), threads));
+        int threads_per_query    = Math.max(1, threads / num_parallel_queries);
+
+        List<Future<?>> searches = new ArrayList<>();
+        int[] remaining_hits = new int[]{ max_hits };
+        SynthonSpace.CombinatorialHitReceiver budget_receiver = (hi, stats) -> {
+            synchronized(remaining_hits) {
+                if(remaining_hits[0] <= 0) { return; }
+                List<SynthonSpace.CombinatorialHit> accepted = (hi.size() <= remaining_hits[0]) ? hi : new ArrayList<>(hi.subList(0,remaining_hits[0]));
+                remaining_hits[0] -= accepted.size();
+                receiver.addCombinatorialHits(accepted,stats);
+                if(remaining_hits[0] <= 0) {
+                    System.out.println("[INFO] bridge expansion: reached max hits, cancel remaining searches");
+                    synchronized(searches) { searches.forEach( fi -> fi.cancel(true) ); }
+                }
+            }
+        };
 
-        for(StereoMolecule qi : expandedQueries) {
-            if(Thread.currentThread().isInterrupted()) {return;}
-            System.out.println("[INFO] next bridge expansion query: "+qi.getIDCode());
-            run_substructure_search_streaming_01(space,cdp,qi,threads,fillIncompleteMappings,omitRxnsWithHitsFromLowerSplitNumber,receiver);
+        if(expandedQueries.size()==1) {
+            run_substructure_search_streaming_01(space,cdp,expandedQueries.get(0),threads,fillIncompleteMappings,omitRxnsWithHitsFromLowerSplitNumber,null,planner,budget_receiver);
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(num_parallel_queries);
+        try {
+            synchronized(searches) {
+                for (StereoMolecule qi : expandedQueries) {
+                    searches.add(pool.submit(() -> {
+                        System.out.println("[INFO] next bridge expansion query: " + qi.getIDCode());
+                        run_substructure_search_streaming_01(space, cdp, qi, threads_per_query, fillIncompleteMappings, omitRxnsWithHitsFromLowerSplitNumber, processed_splits, planner, budget_receiver);
+                    }));
+                }
+            }
+            for(Future<?> fi : searches) {
+                try {
+                    fi.get();
+                } catch (CancellationException e) {
+                    // max hits reached
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            synchronized(searches) { searches.forEach( fi -> fi.cancel(true) ); }
+        } finally {
+            pool.shutdown();
         }
     }
 
@@ -283,73 +355,142 @@ public class SubstructureSearchHelper {
      * @return
      */
     public static void run_substructure_search_streaming_01(SynthonSpace space, CachedDescriptorProvider cdp, StereoMolecule mi, int threads, boolean fillIncompleteMappings, boolean omitRxnsWithHitsFromLowerSplitNumber, SynthonSpace.CombinatorialHitReceiver receiver) {
+        run_substructure_search_streaming_01(space,cdp,mi,threads,fillIncompleteMappings,omitRxnsWithHitsFromLowerSplitNumber,null,null,receiver);
+    }
+
+    /**
+     * Same as above, but the planner estimates the cost of the split levels first. Levels that the plan
+     * skips are not searched, rejected queries are not searched at all. If the levels are independent
+     * (i.e. omitRxnsWithHitsFromLowerSplitNumber is false) they are searched concurrently, with the threads
+     * split according to the estimated costs. The plan with estimated and actual work is printed at the end.
+     *
+     * @param planner decides which split levels are searched, or null to search all levels
+     */
+    public static void run_substructure_search_streaming_01(SynthonSpace space, CachedDescriptorProvider cdp, StereoMolecule mi, int threads, boolean fillIncompleteMappings, boolean omitRxnsWithHitsFromLowerSplitNumber, SubstructureSearchPlanner planner, SynthonSpace.CombinatorialHitReceiver receiver) {
+        run_substructure_search_streaming_01(space,cdp,mi,threads,fillIncompleteMappings,omitRxnsWithHitsFromLowerSplitNumber,null,planner,receiver);
+    }
+
+    /**
+     * @param processed_splits shared by searches that should share their split work, or null
+     * @param planner decides which split levels are searched, or null to search all levels
+     */
+    private static void run_substructure_search_streaming_01(SynthonSpace space, CachedDescriptorProvider cdp, StereoMolecule mi, int threads, boolean fillIncompleteMappings, boolean omitRxnsWithHitsFromLowerSplitNumber, Map<String,Set<String>> processed_splits, SubstructureSearchPlanner planner, SynthonSpace.CombinatorialHitReceiver receiver) {
+
+        SubstructureSearchPlanner.QueryPlan plan = null;
+        if(planner!=null) {
+            plan = planner.plan(space,cdp,mi,omitRxnsWithHitsFromLowerSplitNumber);
+            if(plan.isRejected()) {
+                System.out.print(plan.getReport());
+                System.out.println("sss: query rejected: "+plan.getRejectReason());
+                return;
+            }
+        }
 
         // 1. bb hits:
         System.out.println("sss: bb screen");
+        long ts_bb = System.currentTimeMillis();
         List<SynthonSpace.ExpandedHit> hits_bbs = SynthonSpace.screen_building_blocks(space,cdp,mi,threads);
-        List<SynthonSpace.CombinatorialHit> hits_bbs_as_combinatorial_hits = new ArrayList<>();
 
-        Set<String> discovered_rxns = new HashSet<>();
+        Set<String> discovered_rxns = ConcurrentHashMap.newKeySet();
+        SubstructureSearchPlanner.LevelPlan plan_bb = (plan!=null) ? plan.getLevel(0) : null;
         expandBuildingBlockExpandedHits(space, cdp, hits_bbs, mi, new SynthonSpace.CombinatorialHitReceiver() {
             @Override
             public synchronized void addCombinatorialHits(List<SynthonSpace.CombinatorialHit> hi, List<SynthonSpace.SplitPatternWithConnectorProximityPruningStatistics> stats) {
+                if(plan_bb!=null) { plan_bb.recordHits(hi,stats); }
                 receiver.addCombinatorialHits(hi,stats);
                 discovered_rxns.addAll(hi.stream().map(xi -> xi.rxn).collect(Collectors.toList()));
             }
         });
+        if(plan_bb!=null) { plan_bb.recordMillis(System.currentTimeMillis()-ts_bb); }
 
-        // 2.
-        System.out.println("sss: 1split -> start");
-        space.findExpandedHits_withConnProximityMatching_streaming(space, cdp, mi, 1, 2,
-                (omitRxnsWithHitsFromLowerSplitNumber ? discovered_rxns : new HashSet<>()), 1000, threads, new SynthonSpace.CombinatorialHitReceiver() {
-                    @Override
-                    public void addCombinatorialHits(List<SynthonSpace.CombinatorialHit> hi, List<SynthonSpace.SplitPatternWithConnectorProximityPruningStatistics> stats) {
-                        if(fillIncompleteMappings) {
-                            expandIncompleteHits(space, cdp, hi);
-                        }
-                        discovered_rxns.addAll(hi.stream().map(xi -> xi.rxn).collect(Collectors.toList()));
-                        receiver.addCombinatorialHits(hi,stats);
-                    }
-                });
-        System.out.println("sss: 1split -> done");
+        // 2. split levels
+        if(plan!=null && plan.isParallelLevels()) {
+            runSplitLevelsConcurrently(space,cdp,mi,threads,fillIncompleteMappings,processed_splits,plan,receiver);
+        }
+        else {
+            for(int ns=1;ns<=SubstructureSearchPlanner.MAX_SPLITS;ns++) {
+                if(Thread.currentThread().isInterrupted()) {return;}
+                SubstructureSearchPlanner.LevelPlan level = (plan!=null) ? plan.getLevel(ns) : null;
+                if(level!=null && !level.isEnabled()) {
+                    System.out.println("sss: "+ns+"split -> skipped, "+level.getSkipReason());
+                    continue;
+                }
+                runSplitLevel(space,cdp,mi,ns,threads,fillIncompleteMappings,
+                        (omitRxnsWithHitsFromLowerSplitNumber ? discovered_rxns : new HashSet<>()),discovered_rxns,processed_splits,level,receiver);
+            }
+        }
+
+        if(plan!=null) {
+            System.out.print(plan.getReport());
+        }
+    }
 
-        System.out.println("sss: 2split -> start");
-        if(Thread.currentThread().isInterrupted()) {
+    private static void runSplitLevelsConcurrently(SynthonSpace space, CachedDescriptorProvider cdp, StereoMolecule mi, int threads, boolean fillIncompleteMappings, Map<String,Set<String>> processed_splits, SubstructureSearchPlanner.QueryPlan plan, SynthonSpace.CombinatorialHitReceiver receiver) {
+        List<SubstructureSearchPlanner.LevelPlan> levels = new ArrayList<>();
+        for(int ns=1;ns<=SubstructureSearchPlanner.MAX_SPLITS;ns++) {
+            SubstructureSearchPlanner.LevelPlan level = plan.getLevel(ns);
+            if(level.isEnabled()) {
+                levels.add(level);
+            }
+            else {
+                System.out.println("sss: "+ns+"split -> skipped, "+level.getSkipReason());
+            }
+        }
+        if(levels.isEmpty()) {
             return;
         }
+        double total_cost = levels.stream().mapToDouble(li -> li.estimatedCost).sum();
+
+        ExecutorService pool = Executors.newFixedThreadPool(levels.size());
+        List<Future<?>> tasks = new ArrayList<>();
+        for(SubstructureSearchPlanner.LevelPlan level : levels) {
+            int level_threads = (total_cost > 0) ? (int) Math.round( threads * level.estimatedCost / total_cost ) : threads / levels.size();
+            int fthreads = Math.max(1, level_threads);
+            tasks.add(pool.submit( () -> runSplitLevel(space,cdp,mi,level.numSplits,fthreads,fillIncompleteMappings,
+                    new HashSet<>(),ConcurrentHashMap.newKeySet(),processed_splits,level,receiver) ));
+        }
+        try {
+            for(Future<?> fi : tasks) {
+                try {
+                    fi.get();
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            tasks.forEach( fi -> fi.cancel(true) );
+        } finally {
+            pool.shutdown();
+        }
+    }
 
-        space.findExpandedHits_withConnProximityMatching_streaming(space, cdp, mi, 2, 3,
-                (omitRxnsWithHitsFromLowerSplitNumber ? discovered_rxns : new HashSet<>()), 1000, threads, new SynthonSpace.CombinatorialHitReceiver() {
+    /**
+     * Searches one split level. Incomplete mappings are filled for levels 1 and 2.
+     *
+     * @param rxns_to_omit
+     * @param discovered_rxns rxns of the hits are added to this set
+     * @param level records the actual work, or null
+     */
+    private static void runSplitLevel(SynthonSpace space, CachedDescriptorProvider cdp, StereoMolecule mi, int num_splits, int threads, boolean fillIncompleteMappings,
+                                      Set<String> rxns_to_omit, Set<String> discovered_rxns, Map<String,Set<String>> processed_splits,
+                                      SubstructureSearchPlanner.LevelPlan level, SynthonSpace.CombinatorialHitReceiver receiver) {
+        System.out.println("sss: "+num_splits+"split -> start");
+        long ts = System.currentTimeMillis();
+        space.findExpandedHits_withConnProximityMatching_streaming(space, cdp, mi, num_splits, num_splits+1,
+                rxns_to_omit, 1000, threads, processed_splits, new SynthonSpace.CombinatorialHitReceiver() {
                     @Override
                     public void addCombinatorialHits(List<SynthonSpace.CombinatorialHit> hi, List<SynthonSpace.SplitPatternWithConnectorProximityPruningStatistics> stats) {
-                        if(fillIncompleteMappings) {
+                        if(fillIncompleteMappings && num_splits < 3) {
                             expandIncompleteHits(space, cdp, hi);
                         }
                         discovered_rxns.addAll(hi.stream().map(xi -> xi.rxn).collect(Collectors.toList()));
+                        if(level!=null) { level.recordHits(hi,stats); }
                         receiver.addCombinatorialHits(hi,stats);
                     }
                 });
-        System.out.println("sss: 2split -> done");
-//        space.findExpandedHits_withConnProximityMatching_streaming(space, cdp, mi, 2, 3,
-//                (omitRxnsWithHitsFromLowerSplitNumber ? discovered_rxns : new HashSet<>()), 1000, threads, new SynthonSpace.CombinatorialHitReceiver() {
-//                    @Override
-//                    public void addCombinatorialHits(List<SynthonSpace.CombinatorialHit> hi, List<SynthonSpace.SplitPatternWithConnectorProximityPruningStatistics> stats) {
-//                        discovered_rxns.addAll(hi.stream().map(xi -> xi.rxn).collect(Collectors.toList()));
-//                        receiver.addCombinatorialHits(hi,stats);
-//                    }
-//                });
-//        System.out.println("sss: 2split -> done");
-        System.out.println("sss: 3split -> start");
-        if(Thread.currentThread().isInterrupted()) {return;}
-        space.findExpandedHits_withConnProximityMatching_streaming(space, cdp, mi, 3, 4,
-                (omitRxnsWithHitsFromLowerSplitNumber ? discovered_rxns : new HashSet<>()), 1000, threads, new SynthonSpace.CombinatorialHitReceiver() {
-                    @Override
-                    public void addCombinatorialHits(List<SynthonSpace.CombinatorialHit> hi, List<SynthonSpace.SplitPatternWithConnectorProximityPruningStatistics> stats) {
-                        discovered_rxns.addAll(hi.stream().map(xi -> xi.rxn).collect(Collectors.toList()));
-                        receiver.addCombinatorialHits(hi,stats);
-                    }
-                });
-        System.out.println("sss: 3split -> stop");
+        if(level!=null) { level.recordMillis(System.currentTimeMillis()-ts); }
+        System.out.println("sss: "+num_splits+"split -> done");
     }
 
     /**
@@ -0,0 +1,348 @@
+package com.idorsia.research.chem.hyperspace;
+
+import com.actelion.research.chem.Molecule;
+import com.actelion.research.chem.StereoMolecule;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Estimates the cost of the split levels of a substructure search, and decides which levels are run.
+ *
+ * The estimate for a split level with n cuts is
+ *   C(bonds,n) * sum over rxns with at most n+1 synthon sets of ( 1 + synthons * selectivity )
+ * where the selectivity is the probability that a synthon fingerprint contains the fingerprint of a
+ * split fragment with bits(query)/(n+1) bits. It is computed from the bit frequencies of the synthon
+ * fingerprints of every rxn (see SpaceStatistics), assuming independent bits.
+ *
+ * The numbers are coarse, they are meant to compare levels and queries, not to predict run times.
+ *
+ * Levels whose estimate exceeds the max level cost are pruned, queries whose remaining estimate exceeds
+ * the max query cost are rejected. Without limits all levels are run, as before.
+ *
+ * The estimates of a query are cached with the space statistics, by canonical idcode. The same query is
+ * planned several times per search, e.g. by the server before it starts the search and then again by
+ * the search itself, and repeated queries are common.
+ */
+public class SubstructureSearchPlanner {
+
+    /**
+     * Split levels 1..3, level 0 is the building block screen
+     */
+    public static final int MAX_SPLITS = 3;
+
+    private final double maxLevelCost;
+    private final double maxQueryCost;
+
+    public SubstructureSearchPlanner() {
+        this(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * @param maxLevelCost split levels with a higher estimate are skipped, values <= 0 mean no limit
+     * @param maxQueryCost queries with a higher estimate (sum of the non-skipped levels) are rejected, values <= 0 mean no limit
+     */
+    public SubstructureSearchPlanner(double maxLevelCost, double maxQueryCost) {
+        this.maxLevelCost = (maxLevelCost > 0) ? maxLevelCost : Double.POSITIVE_INFINITY;
+        this.maxQueryCost = (maxQueryCost > 0) ? maxQueryCost : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @param omitRxnsWithHitsFromLowerSplitNumber if false, the split levels are independent and can run in parallel
+     */
+    public QueryPlan plan(SynthonSpace space, CachedDescriptorProvider cdp, StereoMolecule query, boolean omitRxnsWithHitsFromLowerSplitNumber) {
+        SpaceStatistics stats = space.getSearchStatistics();
+        query.ensureHelperArrays(Molecule.cHelperCIP);
+        QueryEstimate estimate = stats.getEstimate(query.getIDCode(), () -> estimate(stats, cdp.getFP_cached(query), query.getBonds()));
+
+        // fresh level plans, they record the actual work of this search
+        List<LevelPlan> levels = new ArrayList<>();
+        for(int ns=0;ns<=MAX_SPLITS;ns++) {
+            levels.add(new LevelPlan(ns, (ns==0) ? 1 : ns + 1, estimate.patterns[ns], estimate.costs[ns]));
+        }
+
+        double total = 0;
+        for(LevelPlan li : levels) {
+            if(li.numSplits > 0 && li.estimatedCost > maxLevelCost) {
+                li.enabled = false;
+                li.skipReason = String.format("estimated cost %.3g > max level cost %.3g", li.estimatedCost, maxLevelCost);
+            }
+            if(li.enabled) {
+                total += li.estimatedCost;
+            }
+        }
+
+        String reject_reason = null;
+        if(total > maxQueryCost) {
+            reject_reason = String.format("estimated cost %.3g > max query cost %.3g", total, maxQueryCost);
+        }
+        return new QueryPlan(levels, estimate.bonds, estimate.queryBits / (double) stats.bits, !omitRxnsWithHitsFromLowerSplitNumber, reject_reason);
+    }
+
+    static QueryEstimate estimate(SpaceStatistics stats, BitSet fp, int bonds) {
+        int[] query_bits = fp.stream().toArray();
+        double[] patterns = new double[MAX_SPLITS + 1];
+        double[] costs = new double[MAX_SPLITS + 1];
+        patterns[0] = 1;
+        costs[0] = estimateCandidates(stats, query_bits, query_bits.length, Integer.MAX_VALUE);
+        for(int ns=1;ns<=MAX_SPLITS;ns++) {
+            int max_fragments = ns + 1;
+            patterns[ns] = binomial(bonds, ns);
+            costs[ns] = patterns[ns] * estimateCandidates(stats, query_bits, query_bits.length / (double) max_fragments, max_fragments);
+        }
+        return new QueryEstimate(bonds, query_bits.length, patterns, costs);
+    }
+
+    /**
+     * Expected work for matching one split (or the unsplit query for level 0) against all rxns with at
+     * most max_fragments synthon sets: one unit per rxn, plus the expected number of synthons whose
+     * fingerprint contains the fragment fingerprint.
+     */
+    static double estimateCandidates(SpaceStatistics stats, int[] query_bits, double fragment_bits, int max_fragments) {
+        double cost = 0;
+        for(RxnStatistics ri : stats.rxns.values()) {
+            if(ri.numSynthonSets > max_fragments) {
+                continue;
+            }
+            double log_freq_sum = 0;
+            for(int bi : query_bits) {
+                log_freq_sum += Math.log( Math.max( ri.bitFrequency[bi] , 1.0 / (ri.numSynthons + 1) ) );
+            }
+            double mean_log_freq = (query_bits.length > 0) ? log_freq_sum / query_bits.length : 0.0;
+            double selectivity = Math.exp( mean_log_freq * fragment_bits );
+            cost += 1.0 + ri.numSynthons * selectivity;
+        }
+        return cost;
+    }
+
+    static double binomial(int n, int k) {
+        if(k < 0 || k > n) {
+            return 0;
+        }
+        double c = 1;
+        for(int zi=1;zi<=k;zi++) {
+            c = c * (n - k + zi) / zi;
+        }
+        return c;
+    }
+
+    /**
+     * Per-rxn synthon fingerprint statistics, computed once per space, see SynthonSpace.getSearchStatistics()
+     */
+    public static final class SpaceStatistics {
+
+        /**
+         * The estimate cache is cleared when it exceeds this number of queries
+         */
+        static final int MAX_CACHED_ESTIMATES = 10000;
+
+        final int bits;
+        final Map<String, RxnStatistics> rxns;
+
+        /**
+         * Level estimates by canonical query idcode
+         */
+        private final Map<String, QueryEstimate> estimates = new ConcurrentHashMap<>();
+
+        SpaceStatistics(int bits, Map<String, RxnStatistics> rxns) {
+            this.bits = bits;
+            this.rxns = rxns;
+        }
+
+        QueryEstimate getEstimate(String idcode, Supplier<QueryEstimate> compute) {
+            QueryEstimate estimate = estimates.get(idcode);
+            if(estimate == null) {
+                if(estimates.size() >= MAX_CACHED_ESTIMATES) {
+                    estimates.clear();
+                }
+                estimate = compute.get();
+                estimates.put(idcode, estimate);
+            }
+            return estimate;
+        }
+
+        int getCachedEstimates() {
+            return estimates.size();
+        }
+
+        static SpaceStatistics compute(SynthonSpace space, Map<String, Map<Integer, List<SynthonSpace.FragId>>> fragment_map) {
+            int bits = space.getBits();
+            Map<String, RxnStatistics> rxns = new HashMap<>();
+            for(Map.Entry<String, Map<Integer, List<SynthonSpace.FragId>>> ri : fragment_map.entrySet()) {
+                long[] counts = new long[bits];
+                long num_synthons = 0;
+                for(List<SynthonSpace.FragId> frags : ri.getValue().values()) {
+                    for(SynthonSpace.FragId fi : frags) {
+                        num_synthons++;
+                        for(int bi = fi.fp.nextSetBit(0); bi >= 0 && bi < bits; bi = fi.fp.nextSetBit(bi + 1)) {
+                            counts[bi]++;
+                        }
+                    }
+                }
+                float[] freq = new float[bits];
+                for(int bi=0;bi<bits;bi++) {
+                    freq[bi] = (num_synthons > 0) ? (float) (counts[bi] / (double) num_synthons) : 0f;
+                }
+                rxns.put(ri.getKey(), new RxnStatistics(ri.getValue().size(), num_synthons, freq));
+            }
+            return new SpaceStatistics(bits, Collections.unmodifiableMap(rxns));
+        }
+    }
+
+    /**
+     * Estimated split patterns and costs of levels 0..MAX_SPLITS of one query
+     */
+    static final class QueryEstimate {
+        final int bonds;
+        final int queryBits;
+        final double[] patterns;
+        final double[] costs;
+
+        QueryEstimate(int bonds, int queryBits, double[] patterns, double[] costs) {
+            this.bonds = bonds;
+            this.queryBits = queryBits;
+            this.patterns = patterns;
+            this.costs = costs;
+        }
+    }
+
+    static final class RxnStatistics {
+        final int numSynthonSets;
+        final long numSynthons;
+        final float[] bitFrequency;
+
+        RxnStatistics(int numSynthonSets, long numSynthons, float[] bitFrequency) {
+            this.numSynthonSets = numSynthonSets;
+            this.numSynthons = numSynthons;
+            this.bitFrequency = bitFrequency;
+        }
+    }
+
+    public static final class LevelPlan {
+        public final int numSplits;
+        public final int maxFragments;
+        public final double numSplitPatterns;
+        public final double estimatedCost;
+        private boolean enabled = true;
+        private String skipReason = null;
+
+        private final AtomicLong actualHits = new AtomicLong(0);
+        private final AtomicLong actualSubstructureSearches = new AtomicLong(0);
+        private volatile long actualMillis = -1;
+
+        LevelPlan(int numSplits, int maxFragments, double numSplitPatterns, double estimatedCost) {
+            this.numSplits = numSplits;
+            this.maxFragments = maxFragments;
+            this.numSplitPatterns = numSplitPatterns;
+            this.estimatedCost = estimatedCost;
+        }
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public String getSkipReason() {
+            return skipReason;
+        }
+
+        /**
+         * Records hits and search statistics that were reported for this level.
+         */
+        public void recordHits(List<SynthonSpace.CombinatorialHit> hits, List<SynthonSpace.SplitPatternWithConnectorProximityPruningStatistics> stats) {
+            actualHits.addAndGet(hits.size());
+            if(stats != null) {
+                actualSubstructureSearches.addAndGet(stats.stream().mapToLong(si -> si.total_sss_performed).sum());
+            }
+        }
+
+        public void recordMillis(long millis) {
+            this.actualMillis = millis;
+        }
+
+        public long getActualHits() {
+            return actualHits.get();
+        }
+
+        public long getActualSubstructureSearches() {
+            return actualSubstructureSearches.get();
+        }
+
+        public long getActualMillis() {
+            return actualMillis;
+        }
+
+        public String toString() {
+            String si = String.format("level %d: patterns=%.0f est=%.3g", numSplits, numSplitPatterns, estimatedCost);
+            if(!enabled) {
+                return si + " skipped (" + skipReason + ")";
+            }
+            if(actualMillis < 0) {
+                return si;
+            }
+            return si + String.format(" actual: hits=%d sss=%d time=%dms", getActualHits(), getActualSubstructureSearches(), actualMillis);
+        }
+    }
+
+    public static final class QueryPlan {
+        private final List<LevelPlan> levels;
+        private final int bonds;
+        private final double fingerprintDensity;
+        private final boolean parallelLevels;
+        private final String rejectReason;
+
+        QueryPlan(List<LevelPlan> levels, int bonds, double fingerprintDensity, boolean parallelLevels, String rejectReason) {
+            this.levels = Collections.unmodifiableList(levels);
+            this.bonds = bonds;
+            this.fingerprintDensity = fingerprintDensity;
+            this.parallelLevels = parallelLevels;
+            this.rejectReason = rejectReason;
+        }
+
+        /**
+         * @return plans for level 0 (building block screen) to MAX_SPLITS
+         */
+        public List<LevelPlan> getLevels() {
+            return levels;
+        }
+
+        public LevelPlan getLevel(int numSplits) {
+            return levels.get(numSplits);
+        }
+
+        /**
+         * True if the split levels do not depend on each other and can run concurrently
+         */
+        public boolean isParallelLevels() {
+            return parallelLevels;
+        }
+
+        public boolean isRejected() {
+            return rejectReason != null;
+        }
+
+        public String getRejectReason() {
+            return rejectReason;
+        }
+
+        public double getTotalEstimatedCost() {
+            return levels.stream().filter(LevelPlan::isEnabled).mapToDouble(li -> li.estimatedCost).sum();
+        }
+
+        public String getReport() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("query plan: bonds=%d fp_density=%.3f est_total=%.3g%s%s\n", bonds, fingerprintDensity,
+                    getTotalEstimatedCost(), parallelLevels ? " parallel" : "", isRejected() ? " REJECTED (" + rejectReason + ")" : ""));
+            for(LevelPlan li : levels) {
+                sb.append("  ").append(li.toString()).append("\n");
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -437,6 +437,27 @@ public class SynthonShredder {
             return results;
         }
 
+        /**
+         * Key that is equal for splits into the same fragments with the same connector pairing,
+         * independent of the atom order of the split molecule. Computed from the smallest of the
+         * unique connector labelings.
+         *
+         * @return
+         */
+        public String computeCanonicalKey() {
+            if(this.connector_positions.isEmpty() || this.connector_positions.get(0).length==0) {
+                return Arrays.stream(this.fragments).map( fi -> fi.getIDCode() ).sorted().collect(Collectors.joining(" "));
+            }
+            String key = null;
+            for(StereoMolecule[] labeled : getAllSplitsWithUniqueConnectors()) {
+                String ki = Arrays.stream(labeled).map( fi -> fi.getIDCode() ).sorted().collect(Collectors.joining(" "));
+                if(key==null || ki.compareTo(key) < 0) {
+                    key = ki;
+                }
+            }
+            return key;
+        }
+
         public String toString() {
             String smiles =  "Smiles= "+ Arrays.stream(this.fragments).map( fi -> HyperspaceUtils.idcodeToSmiles(fi.getIDCode()) ).collect(Collectors.joining(".")) ;
             String idc    =  "idcode= "+Arrays.stream(this.fragments).map( fi -> fi.getIDCode() ).collect(Collectors.joining(" ::: "));
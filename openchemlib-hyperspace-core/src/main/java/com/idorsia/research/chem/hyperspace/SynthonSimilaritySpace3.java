@@ -346,6 +346,68 @@ public class SynthonSimilaritySpace3 extends SynthonSpace {
     //public Map<FragType,Map<BitSet,FastSimilaritySearcher>> mFastSimilaritySearchers = new HashMap<>();
     public Map<FragType,Map<TopoInfo,FastSimilaritySearcher>> mFastSimilaritySearchers = new HashMap<>();
 
+    /**
+     * Bitmap version of mFragmentToposInv, created lazily on first use and reset by
+     * initFastSimilaritySearchers(..). Transient, recreated after deserialization.
+     */
+    private transient volatile TopoFragTypeIndex topoFragTypeIndex = null;
+
+    /**
+     * For every TopoInfo the bitmap of the FragTypes that contain synthons with this topology.
+     * Immutable once created.
+     */
+    static final class TopoFragTypeIndex {
+        private final FragType[] fragTypes;
+        private final Map<TopoInfo,BitSet> bitmaps;
+
+        TopoFragTypeIndex(Map<TopoInfo,Set<FragType>> topos_inv) {
+            List<FragType> fts = topos_inv.values().stream().flatMap(si -> si.stream()).distinct()
+                    .sorted(Comparator.comparing(FragType::toString)).collect(Collectors.toList());
+            Map<FragType,Integer> ft_idx = new HashMap<>();
+            for(int zi=0;zi<fts.size();zi++) { ft_idx.put(fts.get(zi),zi); }
+            this.fragTypes = fts.toArray(new FragType[0]);
+            this.bitmaps = new HashMap<>();
+            for(Map.Entry<TopoInfo,Set<FragType>> ei : topos_inv.entrySet()) {
+                BitSet bi = new BitSet(this.fragTypes.length);
+                for(FragType fti : ei.getValue()) { bi.set(ft_idx.get(fti)); }
+                this.bitmaps.put(ei.getKey(),bi);
+            }
+        }
+
+        Set<FragType> getCompatibleFragTypes(Collection<TopoInfo> topos) {
+            BitSet all = new BitSet(this.fragTypes.length);
+            for(TopoInfo ti : topos) {
+                BitSet bi = this.bitmaps.get(ti);
+                if(bi!=null) { all.or(bi); }
+            }
+            Set<FragType> fts = new HashSet<>();
+            for(int zi = all.nextSetBit(0); zi >= 0; zi = all.nextSetBit(zi+1)) {
+                fts.add(this.fragTypes[zi]);
+            }
+            return fts;
+        }
+    }
+
+    /**
+     * Thread-safe, no locking after the first call.
+     *
+     * @param topos
+     * @return all FragTypes that contain synthons with any of the given topologies
+     */
+    public Set<FragType> getCompatibleFragTypes(Collection<TopoInfo> topos) {
+        TopoFragTypeIndex index = this.topoFragTypeIndex;
+        if(index==null) {
+            synchronized(this) {
+                index = this.topoFragTypeIndex;
+                if(index==null) {
+                    index = new TopoFragTypeIndex(this.mFragmentToposInv);
+                    this.topoFragTypeIndex = index;
+                }
+            }
+        }
+        return index.getCompatibleFragTypes(topos);
+    }
+
     //public LSHProvider mLSH_AllFragments_withNonUniqueConnectors = null;
     //public Map<BitSet,Set<FragType>> ffps_from_non_unique_connis_to_fragtypes = null;
 
@@ -382,115 +444,291 @@ public class SynthonSimilaritySpace3 extends SynthonSpace {
 
     }
 
-    public void initFastSimilaritySearchers(int threads, Consumer<Double> progress) {
-        //mANN = LSHOracle.initDefault(num_lsh_functions, this.BITS, projection_bits, new ArrayList<>(this.fragments.keySet()) );
-        int num_total_synthons     = (int) this.fragments_by_connectors.values().stream().flatMap( fi -> fi.values().stream() ).mapToInt(si -> si.size()).sum();
-        int num_processed_synthons = 0;
+    /**
+     * For partitions (FragType x TopoInfo) that are stored in a shared FastSimilaritySearcher,
+     * the fingerprints that belong to the partition. Hits of shared searchers are post-filtered
+     * with these sets. Partitions that are not contained have their own searcher.
+     *
+     * Null for spaces that were created before shared searchers existed.
+     */
+    public Map<FragType,Map<TopoInfo,Set<BitSet>>> mSharedSearcherPartitions = new HashMap<>();
+
+    /**
+     * Partitions smaller than this are merged into shared searchers
+     */
+    public static int SHARED_SEARCHER_PARTITION_SIZE = 64;
+
+    /**
+     * Max number of synthons in a shared searcher
+     */
+    public static int SHARED_SEARCHER_MAX_SIZE = 512;
 
-        int num_total_synthon_sets = (int) this.fragment_map.values().stream().mapToInt(vi -> vi.keySet().size()).sum();
-        int processed_synthon_sets = 0;
+    /**
+     * Searchers of at least this size are initialized with multiple threads
+     */
+    public static int PARALLEL_INIT_MIN_SIZE = 20000;
 
-        int num_synthon_sets = this.fragment_map.values().stream().mapToInt( vi -> vi.keySet().size() ).sum();
-        int num_synthon_sets_processed = 0;
+    /**
+     * Same as initFastSimilaritySearchers(threads, budget, progress) with a budget of
+     * a quarter of the max heap size.
+     */
+    public void initFastSimilaritySearchers(int threads, Consumer<Double> progress) {
+        initFastSimilaritySearchers(threads, Runtime.getRuntime().maxMemory() / 4, progress);
+    }
 
+    /**
+     * Inits the topology data and the FastSimilaritySearchers for all synthon sets.
+     *
+     * 1. computes the topologies of all synthons (in parallel per synthon set)
+     * 2. plans the searchers: small partitions (FragType x TopoInfo) of a synthon set are merged into
+     *    shared searchers, hits of these are post-filtered by topology, see findSimilarFragments(..)
+     * 3. builds all searchers in parallel, largest first. Large searchers are initialized with
+     *    multiple threads. The estimated memory of all searchers that are built at the same time is
+     *    limited by memory_budget_bytes.
+     *
+     * @param threads
+     * @param memory_budget_bytes
+     * @param progress
+     */
+    public void initFastSimilaritySearchers(int threads, long memory_budget_bytes, Consumer<Double> progress) {
         ExecutorService executor_A = Executors.newFixedThreadPool(threads);
 
-        List<Callable<Integer>> tasks_init = new ArrayList<>();
+        Map<FragId,TopoInfo> topos = new ConcurrentHashMap<>();
+        Map<FragType,Map<TopoInfo,List<FragId>>> partitions = new ConcurrentHashMap<>();
 
-        mFastSimilaritySearchers = new HashMap<>();
+        // 1. compute topologies
+        List<Callable<Integer>> tasks_topo = new ArrayList<>();
         for (String rxn : this.fragment_map.keySet()) {
             for (FragType ft : this.fragment_type_map.get(rxn).values()) {
+                tasks_topo.add( () -> {
+                    List<FragId> fragments_i = fragment_map.get(ft.rxn_id).get(ft.frag);
+                    Map<TopoInfo, List<FragId>> synthons_sorted_by_topo = new HashMap<>();
+                    for (FragId fid : fragments_i) {
+                        TopoInfo ti = computeTopoInfoForFragment(fid);
+                        topos.put(fid, ti);
+                        synthons_sorted_by_topo.computeIfAbsent(ti, k -> new ArrayList<>()).add(fid);
+                    }
+                    partitions.put(ft, synthons_sorted_by_topo);
+                    return 1;
+                });
+            }
+        }
+        runAll(executor_A,tasks_topo);
+
+        Map<FragType,Set<TopoInfo>> fragment_topos = new HashMap<>();
+        Map<TopoInfo,Set<FragType>> fragment_topos_inv = new HashMap<>();
+        for (Map.Entry<FragType,Map<TopoInfo,List<FragId>>> ei : partitions.entrySet()) {
+            fragment_topos.put(ei.getKey(), new HashSet<>(ei.getValue().keySet()));
+            for (TopoInfo ti : ei.getValue().keySet()) {
+                fragment_topos_inv.computeIfAbsent(ti, k -> new HashSet<>()).add(ei.getKey());
+            }
+        }
+        progress.accept(0.1);
+
+        // 2. plan the searchers
+        List<SearcherBuildJob> jobs = planSearchers(partitions);
+        long total_synthons = jobs.stream().mapToLong(ji -> ji.size).sum();
+        if(logLevel_findCandidates>0) {
+            long shared = jobs.stream().filter(ji -> ji.partitions.size()>1).count();
+            System.out.println("[INFO] FastSimilaritySearchers: partitions=" + partitions.values().stream().mapToInt(pi -> pi.size()).sum()
+                    + " searchers=" + jobs.size() + " (shared: " + shared + ") synthons=" + total_synthons);
+        }
 
-                Callable<Integer> task_init = new Callable<Integer>() {
-                    @Override
-                    public Integer call() throws Exception {
-
-                        synchronized(LOCK_mFastSimilaritySearchers) {
-                            if (!mFastSimilaritySearchers.containsKey(ft)) {
-                                mFastSimilaritySearchers.put(ft, new HashMap<>());
-                            }
+        // 3. build, largest first, limited by the memory budget
+        long budget_kb = Math.max(1, memory_budget_bytes / 1024);
+        int budget_permits = (int) Math.min(Integer.MAX_VALUE, budget_kb);
+        Semaphore memory_budget = new Semaphore(budget_permits);
+        Map<FragType,Map<TopoInfo,FastSimilaritySearcher>> searchers = new ConcurrentHashMap<>();
+        Map<FragType,Map<TopoInfo,Set<BitSet>>> shared_partitions = new ConcurrentHashMap<>();
+        long[] synthons_done = new long[1];
+
+        List<Callable<Integer>> tasks_build = new ArrayList<>();
+        for (SearcherBuildJob job : jobs) {
+            tasks_build.add( () -> {
+                int permits = (int) Math.min(budget_permits, Math.max(1, job.estimateBuildMemoryBytes(BITS) / 1024));
+                memory_budget.acquire(permits);
+                try {
+                    FastSimilaritySearcher fss = new FastSimilaritySearcher(getDescriptorHandler().getInfo().shortName);
+                    int init_threads = Math.max(1, Math.min(threads, job.size / PARALLEL_INIT_MIN_SIZE));
+                    // "list" init, omit fss stuff and init with zero projection
+                    fss.initInMemory(job.createInputIterator(), 1, BITS, 0, init_threads);
+
+                    Map<TopoInfo,FastSimilaritySearcher> searchers_ft = searchers.computeIfAbsent(job.fragType, k -> new ConcurrentHashMap<>());
+                    for (Map.Entry<TopoInfo,List<FragId>> pi : job.partitions.entrySet()) {
+                        searchers_ft.put(pi.getKey(), fss);
+                        if (job.partitions.size() > 1) {
+                            Set<BitSet> fps = new HashSet<>();
+                            for (FragId fid : pi.getValue()) { fps.add(fid.fp); }
+                            shared_partitions.computeIfAbsent(job.fragType, k -> new ConcurrentHashMap<>()).put(pi.getKey(), fps);
                         }
+                    }
+                } finally {
+                    memory_budget.release(permits);
+                }
+                synchronized (synthons_done) {
+                    synthons_done[0] += job.size;
+                    progress.accept(0.1 + 0.9 * synthons_done[0] / Math.max(1, total_synthons));
+                }
+                return 1;
+            });
+        }
+        runAll(executor_A,tasks_build);
+        executor_A.shutdown();
 
-                        System.out.println("Compute Topologies of Synthon Set " + ft.toString());
-                        List<FragId> fragments_i = fragment_map.get(ft.rxn_id).get(ft.frag);
+        Map<FragType,Map<TopoInfo,FastSimilaritySearcher>> searchers_final = new HashMap<>();
+        for (Map.Entry<FragType,Map<TopoInfo,FastSimilaritySearcher>> ei : searchers.entrySet()) {
+            searchers_final.put(ei.getKey(), new HashMap<>(ei.getValue()));
+        }
+        Map<FragType,Map<TopoInfo,Set<BitSet>>> shared_final = new HashMap<>();
+        for (Map.Entry<FragType,Map<TopoInfo,Set<BitSet>>> ei : shared_partitions.entrySet()) {
+            shared_final.put(ei.getKey(), new HashMap<>(ei.getValue()));
+        }
 
-                        Map<TopoInfo, List<FragId>> synthons_sorted_by_topo = new HashMap<>();
-                        for (int zi = 0; zi < fragments_i.size(); zi++) {
-                            //StereoMolecule fmi = HyperspaceUtils.parseIDCode(fragments_i.get(zi).idcode);
-                            TopoInfo ti = computeTopoInfoForFragment(fragments_i.get(zi));
+        this.mTopos = new HashMap<>(topos);
+        this.mFragmentTopos = fragment_topos;
+        this.mFragmentToposInv = fragment_topos_inv;
+        this.mFastSimilaritySearchers = searchers_final;
+        this.mSharedSearcherPartitions = shared_final;
+        this.topoFragTypeIndex = null;
 
-                            synchronized(LOCK_mTopos) {
-                                mTopos.put(fragments_i.get(zi), ti);
-                            }
+        System.out.println("\nDone with init of topology data!\n");
+        progress.accept(1.0);
+    }
 
-                            if (!synthons_sorted_by_topo.containsKey(ti)) {
-                                synthons_sorted_by_topo.put(ti, new ArrayList<>());
-                            }
-                            synthons_sorted_by_topo.get(ti).add(fragments_i.get(zi));
-
-                            // init inverse map:
-                            synchronized(LOCK_mFragmentToposInv) {
-                                if (!mFragmentToposInv.containsKey(ti)) {
-                                    mFragmentToposInv.put(ti, new HashSet<>());
-                                }
-                                mFragmentToposInv.get(ti).add(ft);
-                            }
-                        }
+    private static void runAll(ExecutorService executor, List<Callable<Integer>> tasks) {
+        try {
+            List<Future<Integer>> results = executor.invokeAll(tasks);
+            for (Future<Integer> fr : results) {
+                fr.get();
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
 
-                        synchronized(LOCK_mFragmentTopos) {
-                            mFragmentTopos.put(ft, new HashSet<>(synthons_sorted_by_topo.keySet()));
-                        }
+    /**
+     * One FastSimilaritySearcher to build, containing one or (if shared) multiple partitions of a synthon set.
+     */
+    static final class SearcherBuildJob {
+        final FragType fragType;
+        final Map<TopoInfo,List<FragId>> partitions = new HashMap<>();
+        int size = 0;
 
-                        // create fast similarity searchers (init without fss stuff..)
-                        for (TopoInfo ti : synthons_sorted_by_topo.keySet()) {
-                            System.out.println("Init FSS for " + ft.toString() + " -> init FSS , Size= " + synthons_sorted_by_topo.get(ti).size() + " Topo " + ti);
-
-                            FastSimilaritySearcher fss = new FastSimilaritySearcher(getDescriptorHandler().getInfo().shortName);
-                            // create the input, with idcode and base64 encoded descriptor:
-                            List<String[]> fss_input = new ArrayList<>();
-                            for (FragId fid : synthons_sorted_by_topo.get(ti)) {
-                                String descriptor_b64 = Base64.getEncoder().encodeToString(fid.fp.toByteArray());
-                                String idcode_i = fid.idcode;
-                                fss_input.add(new String[]{idcode_i, descriptor_b64});
-                            }
+        SearcherBuildJob(FragType fragType) {
+            this.fragType = fragType;
+        }
 
-                            // omit fss stuff and init with zero projection..
-                            if (true) {
-                                // "list" init
-                                fss.initInMemory(fss_input.iterator(), 1, BITS, 0, threads);
-                            }
+        void add(TopoInfo ti, List<FragId> synthons) {
+            this.partitions.put(ti, synthons);
+            this.size += synthons.size();
+        }
 
-                            synchronized(LOCK_mFastSimilaritySearchers) {
-                                mFastSimilaritySearchers.get(ft).put(ti, fss);
-                            }
-                        }
+        /**
+         * Rough estimate of the peak memory while building: bitsets, the LSH data list and the
+         * fingerprint to idcode map.
+         */
+        long estimateBuildMemoryBytes(int bits) {
+            return this.size * ( 2L * (40L + bits / 8) + 128L );
+        }
 
-                        return 1;
-                    }
-                };
+        /**
+         * Creates the input rows (idcode, base64 descriptor) on the fly.
+         */
+        Iterator<String[]> createInputIterator() {
+            return this.partitions.values().stream().flatMap(li -> li.stream())
+                    .map(fid -> new String[]{fid.idcode, Base64.getEncoder().encodeToString(fid.fp.toByteArray())})
+                    .iterator();
+        }
+    }
 
-                tasks_init.add( task_init );
+    /**
+     * Partitions with at least SHARED_SEARCHER_PARTITION_SIZE synthons get their own searcher, the
+     * smaller partitions of a synthon set are packed into shared searchers of up to
+     * SHARED_SEARCHER_MAX_SIZE synthons.
+     *
+     * @return the build jobs, sorted by decreasing size
+     */
+    static List<SearcherBuildJob> planSearchers(Map<FragType,Map<TopoInfo,List<FragId>>> partitions) {
+        List<SearcherBuildJob> jobs = new ArrayList<>();
+        for (Map.Entry<FragType,Map<TopoInfo,List<FragId>>> ei : partitions.entrySet()) {
+            List<Map.Entry<TopoInfo,List<FragId>>> small = new ArrayList<>();
+            for (Map.Entry<TopoInfo,List<FragId>> pi : ei.getValue().entrySet()) {
+                if (pi.getValue().size() >= SHARED_SEARCHER_PARTITION_SIZE) {
+                    SearcherBuildJob job = new SearcherBuildJob(ei.getKey());
+                    job.add(pi.getKey(), pi.getValue());
+                    jobs.add(job);
+                } else {
+                    small.add(pi);
+                }
+            }
+            small.sort((x, y) -> -Integer.compare(x.getValue().size(), y.getValue().size()));
+            SearcherBuildJob current = null;
+            for (Map.Entry<TopoInfo,List<FragId>> pi : small) {
+                if (current == null || current.size + pi.getValue().size() > SHARED_SEARCHER_MAX_SIZE) {
+                    current = new SearcherBuildJob(ei.getKey());
+                    jobs.add(current);
+                }
+                current.add(pi.getKey(), pi.getValue());
             }
         }
+        jobs.sort((x, y) -> -Integer.compare(x.size, y.size));
+        return jobs;
+    }
 
-        try {
-            List<Future<Integer>> results = executor_A.invokeAll(tasks_init);
-            for (Future<Integer> fr : results) {
-                fr.get();
+    /**
+     * @return the searcher that contains the given partition, or null if there is none
+     */
+    private FastSimilaritySearcher getSearcher(FragType ft, TopoInfo ti) {
+        Map<TopoInfo,FastSimilaritySearcher> searchers_ft = this.mFastSimilaritySearchers.get(ft);
+        return (searchers_ft == null) ? null : searchers_ft.get(ti);
+    }
 
-                num_synthon_sets_processed++;
-                progress.accept((1.0*num_synthon_sets_processed) / num_synthon_sets );
-            }
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } catch (ExecutionException e) {
-            e.printStackTrace();
-        }
+    /**
+     * @return the fingerprints of the partition if it is stored in a shared searcher, else null
+     */
+    private Set<BitSet> getSharedPartition(FragType ft, TopoInfo ti) {
+        if (this.mSharedSearcherPartitions == null) { return null; }
+        Map<TopoInfo,Set<BitSet>> shared_ft = this.mSharedSearcherPartitions.get(ft);
+        return (shared_ft == null) ? null : shared_ft.get(ti);
+    }
 
-        executor_A.shutdown();
+    /**
+     * Exact search for the synthon fingerprints of the partition ft x ti within hamming distance max_dist.
+     *
+     * @return at most max_results hits, or null if the partition does not exist
+     */
+    public List<LSHProvider.Hit2> findSimilarFragments(FragType ft, TopoInfo ti, BitSet q, int max_dist, int max_results) {
+        FastSimilaritySearcher fss = getSearcher(ft, ti);
+        if (fss == null) { return null; }
+        Set<BitSet> partition = getSharedPartition(ft, ti);
+        if (partition == null) {
+            return fss.mANN.exactFindNearestNeighbors2(q, max_dist, max_results);
+        }
+        List<LSHProvider.Hit2> hits = fss.mANN.exactFindNearestNeighbors2(q, max_dist, Math.max(max_results, fss.mANN.getData().size()));
+        hits.removeIf(hi -> !partition.contains(hi.bs));
+        if (hits.size() <= max_results) { return hits; }
+        // the whole shared searcher was scanned, keep the nearest hits of the partition
+        Collections.sort(hits);
+        return new ArrayList<>(hits.subList(0, Math.max(0, max_results)));
+    }
 
-        System.out.println("\nDone with init of topology data!\n");
-        num_synthon_sets_processed = num_synthon_sets;
-        progress.accept(1.0);
+    /**
+     * Exact k nearest neighbor search (tanimoto) for the synthon fingerprints of the partition ft x ti.
+     *
+     * @return the hits sorted by decreasing similarity, or null if the partition does not exist
+     */
+    public List<LSHProvider.Hit2> findKNearestFragments(FragType ft, TopoInfo ti, BitSet q, int k) {
+        FastSimilaritySearcher fss = getSearcher(ft, ti);
+        if (fss == null) { return null; }
+        Set<BitSet> partition = getSharedPartition(ft, ti);
+        if (partition == null) {
+            return fss.mANN.exactFindKNearestNeighbors2_Tanimoto(q, k);
+        }
+        // shared searchers are small, rank all entries and keep the k best of the partition
+        List<LSHProvider.Hit2> hits = fss.mANN.exactFindKNearestNeighbors2_Tanimoto(q, fss.mANN.getData().size());
+        hits.removeIf(hi -> !partition.contains(hi.bs));
+        return (hits.size() > k) ? new ArrayList<>(hits.subList(0, k)) : hits;
     }
 }
@@ -16,6 +16,7 @@ import java.io.*;
 import java.util.*;
 import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -317,6 +318,94 @@ public class SynthonSimilaritySpaceExplorer3 {
         return all_hits;
     }
 
+    /**
+     * Receives improved hits of a streaming similarity search.
+     */
+    public interface SimilarityHitReceiver {
+        /**
+         * Called with hits that entered the current top k, never concurrently.
+         *
+         * @param hits hits with their similarity
+         * @return false to stop the search
+         */
+        boolean addHits(List<Pair<FinalSimilarityResult,Double>> hits);
+    }
+
+    /**
+     * Streaming version of runSearch(..). Every assembly is scored as soon as it is assembled, hits that
+     * enter the top max_hits are passed to the receiver immediately. The search stops early if the
+     * receiver returns false.
+     *
+     * @param max_hits size of the top k, values <= 0 mean no limit
+     * @return the top max_hits hits, sorted by decreasing similarity
+     */
+    public List<Pair<FinalSimilarityResult,Double>> runSearchStreaming(StereoMolecule query, SimilaritySearchConfig3 config, int max_hits,
+                                                                       SimilarityHitReceiver receiver, Consumer<Double> progress) {
+
+        if(LOG_LEVEL_SEARCH > 0) {System.out.println("[INFO] Query (streaming): "+query.getIDCode());}
+
+        byte[] query_dh_skelspheres = (new DescriptorHandlerSkeletonSpheres()).createDescriptor(query);
+
+        TopKCollector<Pair<FinalSimilarityResult,Double>> top_k = new TopKCollector<>(max_hits);
+        Object LOCK_receiver = new Object();
+        AtomicBoolean stopped = new AtomicBoolean(false);
+
+        progress.accept(0d);
+
+        ExecutorService executor_A = Executors.newFixedThreadPool(config.num_threads);
+        try {
+            for (int splits = 1; splits <= config.max_splits && !stopped.get(); splits++) {
+                List<Pair<MoleculeAssembly, Double>> hits_a = findHits(query, splits, this.space3, cdp, config);
+                hits_a = new ArrayList<>(hits_a.subList(0, Math.min(hits_a.size(), config.max_hits_per_split_level)));
+
+                if (LOG_LEVEL_SEARCH > 1) {
+                    System.out.println("[INFO] Splits: " + splits + " -> hits: " + hits_a.size() + " -> assemble and score");
+                }
+
+                List<Future<Integer>> tasks = new ArrayList<>();
+                for (Pair<MoleculeAssembly, Double> hi : hits_a) {
+                    tasks.add(executor_A.submit(() -> {
+                        if (stopped.get()) { return 0; }
+                        FinalSimilarityResult fsr = new FinalSimilarityResult(hi.getLeft(), hi.getRight(), hi.getLeft().getAssembled());
+                        fsr.computeFFP();
+                        fsr.computeSkelSpheres();
+                        double sim = (new DescriptorHandlerSkeletonSpheres()).getSimilarity(query_dh_skelspheres, fsr.dh_skelspheres);
+                        Pair<FinalSimilarityResult, Double> scored = Pair.of(fsr, sim);
+                        if (!top_k.offer(scored, sim)) { return 0; }
+                        synchronized (LOCK_receiver) {
+                            if (!stopped.get() && !receiver.addHits(Collections.singletonList(scored))) {
+                                stopped.set(true);
+                            }
+                        }
+                        return 1;
+                    }));
+                }
+                for (Future<Integer> fr : tasks) {
+                    if (stopped.get()) {
+                        fr.cancel(true);
+                        continue;
+                    }
+                    try {
+                        fr.get();
+                    } catch (ExecutionException e) {
+                        e.printStackTrace();
+                    }
+                }
+                progress.accept( ((double) splits) / config.max_splits );
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            executor_A.shutdownNow();
+        }
+
+        if(LOG_LEVEL_SEARCH > 1) {
+            System.out.println("[INFO] All done"+(stopped.get()?" (stopped by receiver)":"")+", return "+top_k.size()+" hits");
+        }
+        progress.accept(1.0);
+        return top_k.getSortedResults();
+    }
+
     /**
      *
      *
@@ -337,19 +426,13 @@ public class SynthonSimilaritySpaceExplorer3 {
 
         int nb = mi.getBonds();
 
-        // Protecting access to the concurrent hashmaps:
-        // Synchronization via these locks must be used when checking / adding new objects!
-        Object LOCK_frag_counts           = new Object();
-        Object LOCK_compatible_topo_infos = new Object();
-        Object LOCK_compatible_fragtypes  = new Object();
-
         Map<Pair<SynthonShredder.SplitResult,Integer>,String> frag_idcodes = new ConcurrentHashMap<>();
         Map<String,Integer> frag_counts = new ConcurrentHashMap<>();
         Map<String,Set<SynthonSimilaritySpace3.TopoInfo>> compatible_topo_infos = new ConcurrentHashMap<>();
         Map<String,Set<SynthonSpace.FragType>> compatible_fragtypes             = new ConcurrentHashMap<>();
 
         // maps frag idcodes to their computed topoinfo.
-        Map<String, SynthonSimilaritySpace3.TopoInfo> topo_cache = new HashMap<>();
+        Map<String, SynthonSimilaritySpace3.TopoInfo> topo_cache = new ConcurrentHashMap<>();
 
         // 1. compute all splits
         if(LOG_LEVEL_SEARCH > 1) {System.out.println("[INFO] Start computing splits");}
@@ -406,56 +489,54 @@ public class SynthonSimilaritySpaceExplorer3 {
         }
 
         // 2. compute all topo data:
-        List<Callable<Integer>> tasks_computeTopo = new ArrayList<>();
+        // 2a. compute the fragment idcodes, and keep one fragment per distinct idcode
+        Map<String,StereoMolecule> distinct_frags = new ConcurrentHashMap<>();
+        List<Callable<Integer>> tasks_computeIDCodes = new ArrayList<>();
         for(int zi=0; zi<labeled_splits.size(); zi++)
         {
             final SynthonShredder.SplitResult svi = labeled_splits.get(zi);
-            Callable<Integer> task_computeTopo = new Callable<Integer>(){
-                @Override
-                public Integer call() throws Exception {
-                    for(int fzi = 0; fzi<svi.fragments.length;fzi++) {
-                        StereoMolecule ffi = svi.fragments[fzi];
-                        String idc_i = ffi.getIDCode();
-                        frag_idcodes.put(Pair.of(svi,fzi),idc_i);
-
-                        synchronized(LOCK_frag_counts) {
-                            if (!frag_counts.containsKey(idc_i)) {
-                                frag_counts.put(idc_i, 1);
-                            } else {
-                                frag_counts.put(idc_i, frag_counts.get(idc_i) + 1);
-                            }
-                        }
-                        synchronized(LOCK_compatible_topo_infos) {
-                            if (!compatible_topo_infos.containsKey(idc_i)) {
-                                SynthonSimilaritySpace3.TopoInfo tinfi = SynthonSimilaritySpace3.computeTopoInfoForMolecule(ffi);
-                                topo_cache.put(idc_i, tinfi);
-                                compatible_topo_infos.put(idc_i, new HashSet<>(default_constraints.createCompatibleTopoConstraints(tinfi)));
-                            }
-                        }
-
-                        synchronized(LOCK_compatible_fragtypes) {
-                            if (!compatible_fragtypes.containsKey(idc_i)) {
-                                compatible_fragtypes.put(idc_i, new HashSet<>());
-                                for (SynthonSimilaritySpace3.TopoInfo tinf : compatible_topo_infos.get(idc_i)) {
-                                    if (space3.mFragmentToposInv.containsKey(tinf)) {
-                                        compatible_fragtypes.get(idc_i).addAll(space3.mFragmentToposInv.get(tinf));
-                                    }
-                                }
-                            }
-                        }
-                        //if(!compatible_fragtypes.containsKey(idc_i)) {compatible_fragtypes.put(idc_i,new HashSet<>());}
-                        //for(  )
-                    }
-                    return 1;
+            tasks_computeIDCodes.add( () -> {
+                for(int fzi = 0; fzi<svi.fragments.length;fzi++) {
+                    StereoMolecule ffi = svi.fragments[fzi];
+                    String idc_i = ffi.getIDCode();
+                    frag_idcodes.put(Pair.of(svi,fzi),idc_i);
+                    frag_counts.merge(idc_i, 1, Integer::sum);
+                    distinct_frags.putIfAbsent(idc_i, ffi);
                 }
-            };
-            tasks_computeTopo.add(task_computeTopo);
+                return 1;
+            });
+        }
+
+        try {
+            List<Future<Integer>> results = executor_A.invokeAll(tasks_computeIDCodes);
+            for (Future<Integer> fr : results) {
+                fr.get();
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+
+        // 2b. compute topo info, compatible topo infos and compatible frag types once per distinct idcode.
+        //     Every task writes only the entries of its own idcode, i.e. no locking is required.
+        List<Callable<Integer>> tasks_computeTopo = new ArrayList<>();
+        for(Map.Entry<String,StereoMolecule> ei : distinct_frags.entrySet()) {
+            final String idc_i = ei.getKey();
+            final StereoMolecule ffi = ei.getValue();
+            tasks_computeTopo.add( () -> {
+                SynthonSimilaritySpace3.TopoInfo tinfi = SynthonSimilaritySpace3.computeTopoInfoForMolecule(ffi);
+                Set<SynthonSimilaritySpace3.TopoInfo> compatible_i = new HashSet<>(default_constraints.createCompatibleTopoConstraints(tinfi));
+                topo_cache.put(idc_i, tinfi);
+                compatible_topo_infos.put(idc_i, compatible_i);
+                compatible_fragtypes.put(idc_i, space3.getCompatibleFragTypes(compatible_i));
+                return 1;
+            });
         }
 
         try {
             List<Future<Integer>> results = executor_A.invokeAll(tasks_computeTopo);
             for (Future<Integer> fr : results) {
-                //hits_a_assembled.add( fr.get() );
                 fr.get();
             }
         } catch (InterruptedException e) {
@@ -482,10 +563,11 @@ public class SynthonSimilaritySpaceExplorer3 {
             Callable<Integer> task_findValidMap = new Callable<Integer>() {
                 @Override
                 public Integer call() throws Exception {
-                    List<String> idcs = Arrays.stream(sri.fragments).map(fi -> fi.getIDCode()).collect(Collectors.toList());
+                    List<String> idcs = new ArrayList<>();
+                    for(int fzi=0;fzi<sri.fragments.length;fzi++) { idcs.add(frag_idcodes.get(Pair.of(sri,fzi))); }
 
                     // 1. check if any reactand has no matching frag types
-                    List<Set<SynthonSpace.FragType>> compatible_frag_types = idcs.stream().map(idi -> compatible_fragtypes.get(idi)).collect(Collectors.toList());
+                    List<Set<SynthonSpace.FragType>> compatible_frag_types = idcs.stream().map(idi -> (idi == null) ? null : compatible_fragtypes.get(idi)).collect(Collectors.toList());
                     if (compatible_frag_types.stream().anyMatch(cfi -> (cfi == null) ? true : cfi.isEmpty())) {
                         // then we are done :)
                         return 0;
@@ -606,13 +688,12 @@ public class SynthonSimilaritySpaceExplorer3 {
                 public Integer call() throws Exception {
                     for( SynthonSimilaritySpace3.TopoInfo tinfi : topos ) {
                         int cnt_initial_hits_tinfi = 0;
-                        FastSimilaritySearcher fssi = space3.mFastSimilaritySearchers.get(initial_ft).get(tinfi);
-                        if(fssi != null) {
-                            BitSet bsi = cdp.getFP_cached(sri.fragments[0]);
-                            // NOTE: here we assume that the initial fragment is ALWAYS bigger than the "dont test similarity" threshold..
-                            int cardinality_i = bsi.cardinality();
-                            int hd_tani = (int) Math.floor( cardinality_i * ( (1.0/initial_tanimoto) - 1.0 ) );
-                            List<LSHProvider.Hit2> hits = fssi.mANN.exactFindNearestNeighbors2(bsi,hd_tani,1000);
+                        BitSet bsi = cdp.getFP_cached(sri.fragments[0]);
+                        // NOTE: here we assume that the initial fragment is ALWAYS bigger than the "dont test similarity" threshold..
+                        int cardinality_i = bsi.cardinality();
+                        int hd_tani = (int) Math.floor( cardinality_i * ( (1.0/initial_tanimoto) - 1.0 ) );
+                        List<LSHProvider.Hit2> hits = space3.findSimilarFragments(initial_ft,tinfi,bsi,hd_tani,1000);
+                        if(hits != null) {
                             for(LSHProvider.Hit2 hi : hits) {
                                 double tani_i = LSHProvider.tanimoto_similarity(bsi,hi.bs);
                                 if(tani_i>=initial_tanimoto) {
@@ -695,9 +776,8 @@ public class SynthonSimilaritySpaceExplorer3 {
 
                         Set<SynthonSimilaritySpace3.TopoInfo> topos = compatible_topo_infos.get( frag_idcodes.get( Pair.of( sri , frag) ) );
                         for( SynthonSimilaritySpace3.TopoInfo tinfi : topos ) {
-                            FastSimilaritySearcher fssi = space3.mFastSimilaritySearchers.get(fti).get(tinfi);
-                            if(fssi!=null) {
-                                List<LSHProvider.Hit2> hits_frag_i = fssi.mANN.exactFindKNearestNeighbors2_Tanimoto(bsi,final_num_expansions_per_frag);
+                            List<LSHProvider.Hit2> hits_frag_i = space3.findKNearestFragments(fti,tinfi,bsi,final_num_expansions_per_frag);
+                            if(hits_frag_i!=null) {
                                 for(int zh = 0; zh<hits_frag_i.size() ;zh++) {
                                     LSHProvider.Hit2 hi = hits_frag_i.get(zh);
                                     for (SynthonSpace.FragId fidi : all_frags_i.get(hi.bs)) {
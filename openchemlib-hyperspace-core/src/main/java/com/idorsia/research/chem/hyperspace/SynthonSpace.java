@@ -138,7 +138,7 @@ public class SynthonSpace implements Serializable {
 //        public final boolean has_green;
 
 //        public final Set<Integer> connectors;
-        BitSet connectors;
+        final BitSet connectors;
 
         public final int hash;
 
@@ -423,16 +423,16 @@ public class SynthonSpace implements Serializable {
      */
     //Map<BitSet,Set<FragId>> fragments = new HashMap<>();
     //protected Map< Set<Integer> , Map<BitSet,Set<FragId>> > fragments_by_connectors = new HashMap<>();
-    protected Map< BitSet , Map<BitSet,Set<FragId>> > fragments_by_connectors = new HashMap<>();
+    protected Map< BitSet , Map<BitSet,Set<FragId>> > fragments_by_connectors = new ConcurrentHashMap<>();
 
 
     /**
      * NOTE: the connector counts list is SORTED DESCENDING!
      */
-    protected Map<List<Integer>,List<String>> rxns_by_connector_counts = new HashMap<>();
+    protected Map<List<Integer>,List<String>> rxns_by_connector_counts = new ConcurrentHashMap<>();
 
 
-    protected Map<String,RxnId> rxns = new HashMap<>();
+    protected Map<String,RxnId> rxns = new ConcurrentHashMap<>();
 
     public RxnId getRxn(String id) {
         return this.rxns.get(id);
@@ -470,20 +470,20 @@ public class SynthonSpace implements Serializable {
      * Datastructure for connector-proximal analysis
      * Map:  "frag type" -> ( BitSet Tree containing the FP-BitSets  )
      */
-    public Map<FragType,BitSetTree> connector_fps_sorted_by_fragtype = new HashMap<>();
+    public Map<FragType,BitSetTree> connector_fps_sorted_by_fragtype = new ConcurrentHashMap<>();
 
 
     /**
      * Datastructure for connector-proximal analysis
      * Map:  "frag type" -> ( BitSet Tree containing the FP-BitSets  )
      */
-    public Map<FragType,Map<BitSet,List<FragId>>> frags_sorted_by_connector_fp = new HashMap<>();
+    public Map<FragType,Map<BitSet,List<FragId>>> frags_sorted_by_connector_fp = new ConcurrentHashMap<>();
 
     /**
      * Datastructure for connector-proximal analysis
      * Map:  frag type -> ( fp_conn_bitset -> FastSubstrutureSearcher )
      */
-    public Map<FragType,Map<BitSet,FastSubstructureSearcher>> substructure_searchers_sorted_by_connector_fp = new HashMap<>();
+    public Map<FragType,Map<BitSet,FastSubstructureSearcher>> substructure_searchers_sorted_by_connector_fp = new ConcurrentHashMap<>();
 
     /**
      * FragIds, by their String, this is used in the FastSubstructureSearcher as ID.
@@ -500,7 +500,7 @@ public class SynthonSpace implements Serializable {
     //Map<String,BitSetTree> ffps_sorted_by_rxn_BT = new HashMap<>();
     //Map<String,List<BitSet>> ffps_sorted_by_rxn_L = new HashMap<>();
     //Map<String,Map<Integer,List<BitSet>>> ffps_sorted_by_rxn_and_frag_L = new HashMap<>();
-    Map<String,Map<Integer,BitSetTree>> ffps_sorted_by_rxn_and_frag_BT = new HashMap<>();
+    Map<String,Map<Integer,BitSetTree>> ffps_sorted_by_rxn_and_frag_BT = new ConcurrentHashMap<>();
 
     /**
      * These two datastructures contain all fragments / all fragment types sorted by rxn.
@@ -512,19 +512,44 @@ public class SynthonSpace implements Serializable {
 
     //BitSetTree bst = null;
     //Map<Set<Integer>,BitSetTree> bsts_by_connectors = new HashMap<>();
-    Map<BitSet,BitSetTree> bsts_by_connectors = new HashMap<>();
+    Map<BitSet,BitSetTree> bsts_by_connectors = new ConcurrentHashMap<>();
 
 //    /**
 //     * a fragment that contains u, np, pu will be in all bsts for: (u) , (np) , (pu) , (u,np) , (u,pu) , (np,pu) , (u,np,pu).
 //     */
 //    Map<BitSet,BitSetTree> bsts_by_contained_connector_subsets = new HashMap<>();
-    Map<String,BitSetTree> bsts_labeled_by_rxn = new HashMap<>();
+    Map<String,BitSetTree> bsts_labeled_by_rxn = new ConcurrentHashMap<>();
+
+    /**
+     * Fused index over all synthon fingerprints, labeled by FragType. Answers "in which frag types / rxns
+     * does a superset of q exist" in a single traversal, instead of one testSubset call per
+     * ffps_sorted_by_rxn_and_frag_BT / bsts_labeled_by_rxn tree.
+     *
+     * Not serialized, created lazily on first use, see getFusedBitSetTreeByFragType()
+     */
+    private transient volatile LabeledBitSetTree<FragType> fused_bst_by_fragtype = null;
+
+    /**
+     * Canonical instances of all fingerprints (synthon fps, connector-proximal fps, connector sets),
+     * such that every distinct value is held only once, see canonicalizeFingerprints()
+     *
+     * Not serialized. The sharing itself survives serialization, as java serialization writes shared
+     * instances only once.
+     */
+    private transient volatile CanonicalBitSetPool fp_pool = null;
+
+    private transient CanonicalBitSetPool.Report fingerprint_pooling_report = null;
+
+    /**
+     * Synthon fingerprint statistics for query cost estimation, not serialized, see getSearchStatistics()
+     */
+    private transient volatile SubstructureSearchPlanner.SpaceStatistics search_statistics = null;
 
 
     /**
      * The key strings are generated via: encodeConnectorConfig( computeConnectorConfig( rxn ))
      */
-    Map<String,List<String>> rxns_by_connector_config = new HashMap<>();
+    Map<String,List<String>> rxns_by_connector_config = new ConcurrentHashMap<>();
 
 
     /**
@@ -599,7 +624,7 @@ public class SynthonSpace implements Serializable {
 //    }
 
     //Map<String,Map<Set<Integer>,List<FragType>>> fragment_types_by_rxn_and_connector_config = new HashMap<>();
-    Map<String,Map<BitSet,List<FragType>>> fragment_types_by_rxn_and_connector_config = new HashMap<>();
+    Map<String,Map<BitSet,List<FragType>>> fragment_types_by_rxn_and_connector_config = new ConcurrentHashMap<>();
 
     public List<FragId> getSynthonSet(String rxn, int frag) {
         return this.fragment_map.get(rxn).get(frag);
@@ -610,6 +635,10 @@ public class SynthonSpace implements Serializable {
     }
 
     /**
+     * NOTE: the three lock objects are no longer used by addReaction(..), all maps written by
+     *       addReaction(..) are concurrent maps and every reaction only publishes its own entries.
+     *       The fields are kept for serialization compatibility of existing space files.
+     *
      * !! Guards write access and manipulations of:
      *
      * this.fragments_by_connectors
@@ -664,8 +693,11 @@ public class SynthonSpace implements Serializable {
      * Supports synthon reactions with up to MAX_CONNECTOR different connectors.
      * The connector pairs must be (1.) U, (2.) Np , (3.) Pu, .. up to atomic no 99.
      *
-     * This is now thread-safe! The only parallel write operations on the SynthonSpace object are:
-     * 1. putting the fragments_by_connectors
+     * This is thread-safe and lock-free: all per-reaction data is computed locally, and then published
+     * into concurrent maps, where every reaction only adds its own entries.
+     *
+     * NOTE! After adding reactions with this function, reinitHelperMaps() and reinitBitTree() must be
+     * called. To add reactions to an already initialized space use addReactionIncremental(..).
      *
      * NOTE! The list objects in the molecules parameter must either contain StereoMolecule objects
      * or String objects containing the idcode!!
@@ -675,6 +707,39 @@ public class SynthonSpace implements Serializable {
      * @param idcode_to_identifier
      */
     public void addReaction(String rxn_id, Map<Integer, List<Object>> molecules , Map<String,String> idcode_to_identifier , CachedDescriptorProvider cdp)
+    {
+        addReaction(rxn_id,molecules,idcode_to_identifier,cdp,false);
+    }
+
+    /**
+     * Adds a reaction to an already initialized space (i.e. after initAfterJavaDeserialization() and
+     * reinitBitTree()) and updates only the index entries of this reaction:
+     *
+     * 1. the synthon fps are inserted into the affected bsts_by_connectors trees (with local leaf splits)
+     * 2. the helper map entries of this rxn are created (fragment_map, fragment_type_map, ..)
+     * 3. the bsts_labeled_by_rxn tree is created for this rxn
+     *
+     * I.e. no reinitHelperMaps() / reinitBitTree() is required afterwards. This can be called concurrently
+     * from many threads for different rxn ids, and also while searches are running. The reaction becomes
+     * visible to searches only after all of its index entries were published.
+     *
+     * @param rxn_id
+     * @param molecules
+     * @param idcode_to_identifier
+     * @param cdp
+     */
+    public void addReactionIncremental(String rxn_id, Map<Integer, List<Object>> molecules , Map<String,String> idcode_to_identifier , CachedDescriptorProvider cdp)
+    {
+        if(this.fragment_map==null || this.fragment_type_map==null) {
+            throw new IllegalStateException("addReactionIncremental requires an initialized space, call initAfterJavaDeserialization() first");
+        }
+        if(this.rxns.containsKey(rxn_id)) {
+            throw new IllegalArgumentException("Reaction "+rxn_id+" already exists");
+        }
+        addReaction(rxn_id,molecules,idcode_to_identifier,cdp,true);
+    }
+
+    private void addReaction(String rxn_id, Map<Integer, List<Object>> molecules , Map<String,String> idcode_to_identifier , CachedDescriptorProvider cdp, boolean incremental)
     {
         //DescriptorHandlerLongPFP512 dh = new DescriptorHandlerLongPFP512();
         //FingerPrintGenerator fpgen = new FingerPrintGenerator();
@@ -697,6 +762,14 @@ public class SynthonSpace implements Serializable {
         List<Integer> count_connectors   = new ArrayList<>(); // store the number of connectors for each synthon.
         List<BitSet>  connector_configs  = new ArrayList<>(); // store the connector config bitstrings for each synthon.
 
+        // all synthons of this rxn, they are published into fragments_by_connectors at the very end
+        Map<Integer,List<FragId>> rxn_fragments = new HashMap<>();
+
+        // per frag type data for connector-proximity analysis, published before the rxn itself
+        Map<FragType,Map<BitSet,List<FragId>>>                   rxn_frags_sorted_by_connector_fp = new HashMap<>();
+        Map<FragType,BitSetTree>                                 rxn_connector_fps_sorted_by_fragtype = new HashMap<>();
+        Map<FragType,Map<BitSet,FastSubstructureSearcher>>       rxn_substructure_searchers = new HashMap<>();
+
         for( Integer ki : molecules.keySet() ) {
             Map<BitSet,String> descriptors = new HashMap<>();
             List<BitSet> descriptors_i = new ArrayList<>();
@@ -763,28 +836,18 @@ public class SynthonSpace implements Serializable {
                     bs_non_unique = cdp.getFP_cached(mi_non_unique_connis);
                 }
 
+                // share equal fingerprints across synthons, synthon sets and reactions
+                bs            = getCanonicalBitSetPool().canonical(bs);
+                bs_non_unique = getCanonicalBitSetPool().canonical(bs_non_unique);
+
                 descriptors.put( bs , ""+new String( mi.getIDCode() ) );
                 descriptors_i.add(bs);
                 all_bitsets.add(bs);
 
-                FragId frag = new FragId( rxn_id,ki, mi , idcode_to_identifier.get( original_id_code ) , bs , bs_non_unique );
+                BitSet connectors = getCanonicalBitSetPool().canonical(determineConnectorsInMolecule(mi));
+                FragId frag = new FragId( rxn_id,ki, mi.getIDCode() , idcode_to_identifier.get( original_id_code ) , connectors , bs , bs_non_unique );
                 this.frags_by_id.put(frag.toString(),frag);
-
-                //Set<Integer> connectors = frag.getConnectors();
-                BitSet connectors = frag.getConnectors();
-
-                synchronized(lock_WriteA) {
-                    if (!fragments_by_connectors.containsKey(connectors)) {
-                        fragments_by_connectors.put(connectors, new HashMap<>());
-                    }
-                    Map<BitSet, Set<FragId>> fragments = getAllFragments_byConnectors(connectors);
-                    if (!fragments.containsKey(bs)) {
-                        fragments.put(bs, new HashSet<>());
-                    }
-                    //fragments.get(bs).add(new FragId( rxn_id,ki, mi.getIDCode() , idcode_to_identifier.get(mi.getIDCode() ) ));
-                    //fragments.get(bs).add(new FragId( rxn_id,ki, mi , idcode_to_identifier.get( mi.getIDCode() ) ));
-                    fragments.get(bs).add(new FragId(rxn_id, ki, mi, idcode_to_identifier.get(original_id_code), bs,bs_non_unique));
-                }
+                rxn_fragments.computeIfAbsent(ki, x -> new ArrayList<>()).add(frag);
 
                 // hmm..
                 //mi = null;
@@ -804,6 +867,7 @@ public class SynthonSpace implements Serializable {
                 else{
                     bci = cdp.getFP_cached(mi_connector_proximal);
                 }
+                bci = getCanonicalBitSetPool().canonical(bci);
 
                 if(!connector_proximal_sorted_fragments.containsKey(bci)){connector_proximal_sorted_fragments.put(bci,new ArrayList<>());}
                 //FragId frag_b = new FragId( rxn_id,ki, mi , idcode_to_identifier.get( original_id_code ) , bs );
@@ -837,11 +901,9 @@ public class SynthonSpace implements Serializable {
                 sorted_substructure_searchers.put(bffi,fss);
             }
 
-            synchronized (lock_WriteC) {
-                frags_sorted_by_connector_fp.put(new FragType(rxn_id, ki), connector_proximal_sorted_fragments);
-                connector_fps_sorted_by_fragtype.put(new FragType(rxn_id, ki),conn_bst_x);
-                substructure_searchers_sorted_by_connector_fp.put(new FragType(rxn_id, ki),sorted_substructure_searchers);
-            }
+            rxn_frags_sorted_by_connector_fp.put(new FragType(rxn_id, ki), connector_proximal_sorted_fragments);
+            rxn_connector_fps_sorted_by_fragtype.put(new FragType(rxn_id, ki),conn_bst_x);
+            rxn_substructure_searchers.put(new FragType(rxn_id, ki),sorted_substructure_searchers);
             System.out.println("Added frag type "+ (rxn_id+":"+ki) +" -> number of connector-proximity types: "+sorted_substructure_searchers.keySet().size());
 
             int num_connectors = connector_proximal_sorted_fragments.values().iterator().next().iterator().next().connectors.cardinality();
@@ -864,14 +926,104 @@ public class SynthonSpace implements Serializable {
 
         int num_connectors = count_connectors.stream().mapToInt( ci -> ci.intValue() ).sum() / 2; // can be computed by dividing the total number of connectors by two.
 
-        synchronized(lock_WriteB) {
-            ffps_sorted_by_rxn_and_frag_BT.put(rxn_id, all_bitsets_sorted);
-            if(!rxns_by_connector_counts.containsKey(count_connectors)) { rxns_by_connector_counts.put(count_connectors,new ArrayList<>()); }
-            rxns_by_connector_counts.get(count_connectors).add(rxn_id);
-            rxns.put(rxn_id,new RxnId(rxn_id,num_connectors,count_connectors,connector_configs));
+        // Publish everything. The order matters for concurrent searches: first the frag type data, then
+        // the rxn data, then the entry points (rxns_by_connector_counts / config, and the synthons that
+        // are found via bsts_by_connectors).
+        frags_sorted_by_connector_fp.putAll(rxn_frags_sorted_by_connector_fp);
+        connector_fps_sorted_by_fragtype.putAll(rxn_connector_fps_sorted_by_fragtype);
+        substructure_searchers_sorted_by_connector_fp.putAll(rxn_substructure_searchers);
+
+        ffps_sorted_by_rxn_and_frag_BT.put(rxn_id, all_bitsets_sorted);
+        rxns.put(rxn_id,new RxnId(rxn_id,num_connectors,count_connectors,connector_configs));
+
+        if(incremental) {
+            updateHelperMapsForReaction(rxn_id,rxn_fragments);
+        }
+
+        rxns_by_connector_counts.compute(count_connectors, (k,v) -> addToCopyOfList(v,rxn_id) );
+
+        for(List<FragId> frags_i : rxn_fragments.values()) {
+            for(FragId fi : frags_i) {
+                // copy-on-write for the FragId sets, concurrent readers never see a set that is modified
+                getConcurrentFragmentsByConnectors(fi.getConnectors()).compute( fi.fp , (k,v) -> {
+                    Set<FragId> nv = (v==null) ? new HashSet<>() : new HashSet<>(v);
+                    nv.add(fi);
+                    return nv;
+                });
+                if(incremental) {
+                    BitSetTree bst = bsts_by_connectors.computeIfAbsent( fi.getConnectors() , x -> BitSetTree.createTree(new HashSet<>(), BITS, BITTREE_BIN_SIZE) );
+                    bst.insert(fi.fp, BITS, BITTREE_BIN_SIZE);
+                }
+            }
+        }
+        if(incremental) {
+            this.fused_bst_by_fragtype = null;
+            this.search_statistics = null;
         }
     }
 
+    /**
+     * Returns the fragments_by_connectors entry for the given connectors as a concurrent map. Entries
+     * that were deserialized from older space files are HashMaps, these are converted once.
+     */
+    private Map<BitSet,Set<FragId>> getConcurrentFragmentsByConnectors(BitSet connectors) {
+        return fragments_by_connectors.compute( connectors , (k,v) -> {
+            if(v==null) { return new ConcurrentHashMap<>(); }
+            if(v instanceof ConcurrentHashMap) { return v; }
+            return new ConcurrentHashMap<>(v);
+        });
+    }
+
+    private static <K,V> Map<K,V> toConcurrentMap(Map<K,V> map) {
+        if(map==null) { return new ConcurrentHashMap<>(); }
+        if(map instanceof ConcurrentHashMap) { return map; }
+        return new ConcurrentHashMap<>(map);
+    }
+
+    private static <T> List<T> addToCopyOfList(List<T> list, T value) {
+        List<T> nl = (list==null) ? new ArrayList<>() : new ArrayList<>(list);
+        nl.add(value);
+        return nl;
+    }
+
+    /**
+     * Creates the helper map entries (i.e. what reinitHelperMaps() creates) for a single rxn.
+     * NOTE: fragments_by_connectors entries of the rxn are not required for this.
+     *
+     * @param rxn_id
+     * @param rxn_fragments synthons of the rxn, by frag idx
+     */
+    private void updateHelperMapsForReaction(String rxn_id, Map<Integer,List<FragId>> rxn_fragments) {
+        Map<Integer,FragType>                 frag_types  = new HashMap<>();
+        Map<Integer,List<FragId>>             frag_map    = new HashMap<>();
+        Map<Integer,Map<BitSet,List<FragId>>> frag_map_2  = new HashMap<>();
+        Map<BitSet,List<FragType>>            fts_by_conn = new HashMap<>();
+        Set<BitSet>                           all_ffps    = new HashSet<>();
+
+        for(Integer ki : rxn_fragments.keySet()) {
+            FragType fti = new FragType(rxn_id,ki);
+            List<FragId> frags_i = rxn_fragments.get(ki);
+            frag_types.put(ki,fti);
+            frag_map.put(ki,new ArrayList<>(frags_i));
+            Map<BitSet,List<FragId>> by_fp = new HashMap<>();
+            for(FragId fid : frags_i) {
+                by_fp.computeIfAbsent(fid.fp, x -> new ArrayList<>()).add(fid);
+                all_ffps.add(fid.fp);
+            }
+            frag_map_2.put(ki,by_fp);
+            fts_by_conn.computeIfAbsent(frags_i.get(0).getConnectors(), x -> new ArrayList<>()).add(fti);
+        }
+
+        this.fragment_map.put(rxn_id,frag_map);
+        if(this.fragment_map_2!=null) { this.fragment_map_2.put(rxn_id,frag_map_2); }
+        this.fragment_type_map.put(rxn_id,frag_types);
+        this.fragment_types_by_rxn_and_connector_config.put(rxn_id,fts_by_conn);
+        this.bsts_labeled_by_rxn.put(rxn_id, BitSetTree.createTree(all_ffps, BITS, BITTREE_BIN_SIZE));
+
+        String connector_config = encodeConnectorConfig(computeRxnConnectorConfig(rxn_id));
+        this.rxns_by_connector_config.compute(connector_config, (k,v) -> addToCopyOfList(v,rxn_id) );
+    }
+
     /**
      * Creates the connector proximal fragments.
      *
@@ -950,6 +1102,8 @@ public class SynthonSpace implements Serializable {
                         BitSetTree bst = BitSetTree.createTree(all_ffps_labeled_for_rxn, BITS, BITTREE_BIN_SIZE);
                         bsts_labeled_by_rxn.put(rxi,bst);
                     }
+                    this.fused_bst_by_fragtype = null;
+                    this.search_statistics = null;
 //                    // and create bsts for all subsets..
 //                    // 1. determine all bits that we have as connectors
 //                    BitSet all_bits = fragments_by_connectors.keySet().stream().reduce( (x,y) -> {BitSet z = ((BitSet)x.clone()); z.or(y); return z;} ).get();
@@ -972,7 +1126,7 @@ public class SynthonSpace implements Serializable {
      */
     public void reinitHelperMaps() {
         // also init rxns_by_connector_config
-        rxns_by_connector_config = new HashMap<>();
+        rxns_by_connector_config = new ConcurrentHashMap<>();
         for(String rxn : this.fragment_type_map.keySet()) {
             //List<Set<Integer>> rxn_connector_config = new ArrayList<>();
 //            List<BitSet> rxn_connector_config = new ArrayList<>();
@@ -991,7 +1145,7 @@ public class SynthonSpace implements Serializable {
         }
 
         // also init fragment_types_by_rxn_and_connector_config
-        fragment_types_by_rxn_and_connector_config = new HashMap<>();
+        fragment_types_by_rxn_and_connector_config = new ConcurrentHashMap<>();
         for(String rxn : this.fragment_type_map.keySet()) {
             //Map<Set<Integer>,List<FragType>> rxn_i_map = new HashMap<>();
             Map<BitSet,List<FragType>> rxn_i_map = new HashMap<>();
@@ -1005,8 +1159,10 @@ public class SynthonSpace implements Serializable {
         }
 
         // also init fragment_map and fragment_map_2
-        fragment_map   = new HashMap<>();
-        fragment_map_2 = new HashMap<>();
+        fragment_map   = new ConcurrentHashMap<>();
+        fragment_map_2 = new ConcurrentHashMap<>();
+        fused_bst_by_fragtype = null;
+        search_statistics = null;
 
         //for(Set<Integer> si : fragments_by_connectors.keySet()) {
         for(BitSet si : fragments_by_connectors.keySet()) {
@@ -1028,6 +1184,78 @@ public class SynthonSpace implements Serializable {
         }
     }
 
+    /**
+     * Returns the synthon fingerprint statistics that SubstructureSearchPlanner uses to estimate query costs.
+     * Computed on first use (e.g. right after loading the space) and dropped whenever the helper maps are
+     * reinitialized.
+     *
+     * @return
+     */
+    public SubstructureSearchPlanner.SpaceStatistics getSearchStatistics() {
+        SubstructureSearchPlanner.SpaceStatistics stats = this.search_statistics;
+        if(stats==null) {
+            synchronized(this) {
+                stats = this.search_statistics;
+                if(stats==null) {
+                    stats = SubstructureSearchPlanner.SpaceStatistics.compute(this,fragment_map);
+                    this.search_statistics = stats;
+                }
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the fused bitset tree over the synthon fingerprints of all frag types. It contains
+     * the same fingerprints as ffps_sorted_by_rxn_and_frag_BT (and, grouped by rxn, as bsts_labeled_by_rxn).
+     *
+     * The tree is created on first use and dropped whenever the helper maps / bit trees are reinitialized.
+     *
+     * @return
+     */
+    public LabeledBitSetTree<FragType> getFusedBitSetTreeByFragType() {
+        LabeledBitSetTree<FragType> fused = this.fused_bst_by_fragtype;
+        if(fused==null) {
+            synchronized(this) {
+                fused = this.fused_bst_by_fragtype;
+                if(fused==null) {
+                    Map<FragType,List<BitSet>> fps_by_fragtype = new TreeMap<>();
+                    for(String rxi : fragment_map.keySet()) {
+                        for(Integer fti : fragment_map.get(rxi).keySet()) {
+                            fps_by_fragtype.put( new FragType(rxi,fti) , fragment_map.get(rxi).get(fti).stream().map( fi -> fi.fp ).collect(Collectors.toList()) );
+                        }
+                    }
+                    fused = LabeledBitSetTree.createTree(fps_by_fragtype, BITS, BITTREE_BIN_SIZE);
+                    this.fused_bst_by_fragtype = fused;
+                }
+            }
+        }
+        return fused;
+    }
+
+    /**
+     * Computes in a single traversal of the fused bitset tree all rxns that contain a synthon that is a
+     * superset of q. Equivalent to calling bsts_labeled_by_rxn.get(rxn).testSubset(q,..) for every rxn.
+     *
+     * @param q
+     * @param candidate_rxns only these rxns are tested
+     * @return
+     */
+    public Set<String> findRxnsWithSupersetSynthon(BitSet q, Collection<String> candidate_rxns) {
+        LabeledBitSetTree<FragType> fused = getFusedBitSetTreeByFragType();
+        List<FragType> candidate_fts = new ArrayList<>();
+        for(String rxi : candidate_rxns) {
+            Map<Integer,FragType> fts = this.fragment_type_map.get(rxi);
+            if(fts!=null) { candidate_fts.addAll(fts.values()); }
+        }
+        BitSet hits = fused.findLabelsWithSuperset(q, fused.createLabelBitSet(candidate_fts));
+        Set<String> rxns_with_hit = new HashSet<>();
+        for(int hi = hits.nextSetBit(0); hi>=0; hi = hits.nextSetBit(hi+1)) {
+            rxns_with_hit.add( fused.getLabels().get(hi).rxn_id );
+        }
+        return rxns_with_hit;
+    }
+
     public List<BitSet> computeRxnConnectorConfig(String rxn) {
         List<BitSet> rxn_connector_config = new ArrayList<>();
         for( FragType fti : this.fragment_type_map.get(rxn).values() ) {
@@ -1071,6 +1299,16 @@ public class SynthonSpace implements Serializable {
             sorted_initial_hits.get(rxn).put(fti,initial_hits.get(fti));
         }
 
+        // the remaining fps of the initial hits are tested against all frag types of the hit rxns in one
+        // traversal of the fused bitset tree. Many initial hits share the same remaining fps, so we cache this.
+        LabeledBitSetTree<FragType> fused_bst = getFusedBitSetTreeByFragType();
+        List<FragType> candidate_fts = new ArrayList<>();
+        for(String rxn : sorted_initial_hits.keySet()) {
+            candidate_fts.addAll( this.fragment_type_map.get(rxn).values() );
+        }
+        BitSet candidate_ft_labels = fused_bst.createLabelBitSet(candidate_fts);
+        Map<BitSet,BitSet> fragtypes_with_superset = new HashMap<>();
+
         for(String rxn : sorted_initial_hits.keySet()) {
 
             //for(FragType ft : initial_hits.keySet()) {
@@ -1110,13 +1348,14 @@ public class SynthonSpace implements Serializable {
                     // then verify subsets that are ok (and verify that all are ok).
                     boolean still_ok = true;
                     for (Map.Entry<FragType, BitSet> fi : remaining) {
-                        BitSetTree.Node result_node[] = new BitSetTree.Node[1];
                         //Set<Integer> connectors_fi = fi.getKey().;
                         BitSet       fp_fi         = fi.getValue();
                         // find fragment type:
                         FragType fti = fi.getKey(); //fragment_types_by_rxn_and_connector_config.get(rxn).get(connectors_fi);
-                        //boolean found = this.ffps_sorted_by_rxn_and_frag_BT.get(rxn).get(fi).testSubset(q,result_node);
-                        boolean found = this.ffps_sorted_by_rxn_and_frag_BT.get(rxn).get( fti.frag ).testSubset(fp_fi, result_node);
+                        //boolean found = this.ffps_sorted_by_rxn_and_frag_BT.get(rxn).get( fti.frag ).testSubset(fp_fi, result_node);
+                        BitSet fts_with_superset = fragtypes_with_superset.computeIfAbsent( fp_fi , qi -> fused_bst.findLabelsWithSuperset(qi,candidate_ft_labels) );
+                        int fti_idx = fused_bst.getLabelIndex(fti);
+                        boolean found = fti_idx>=0 && fts_with_superset.get(fti_idx);
                         still_ok &= found;
                         if(!still_ok){break;}
                     }
@@ -1728,6 +1967,21 @@ public class SynthonSpace implements Serializable {
                                                                                     Set<String> rxns_to_omit ,
                                                                                     int max_hits, int threads,
                                                                                     CombinatorialHitReceiver receiver) {
+        findExpandedHits_withConnProximityMatching_streaming(space,cdh,mol,num_splits,max_fragments,rxns_to_omit,max_hits,threads,null,receiver);
+    }
+
+    /**
+     * Same as above, but skips split patterns whose split result was already processed, see
+     * findExpandedHits_forSplitPattern_withConnProximityMatching(..).
+     *
+     * @param processed_splits thread-safe map, shared by searches that should share their split work, or null
+     */
+    public static void findExpandedHits_withConnProximityMatching_streaming(SynthonSpace space, CachedDescriptorProvider cdh ,
+                                                                                    StereoMolecule mol, int num_splits, int max_fragments,
+                                                                                    Set<String> rxns_to_omit ,
+                                                                                    int max_hits, int threads,
+                                                                                    Map<String,Set<String>> processed_splits,
+                                                                                    CombinatorialHitReceiver receiver) {
 
 
         int nb = mol.getBonds();
@@ -1757,7 +2011,7 @@ public class SynthonSpace implements Serializable {
                 public void run() {
                     List<CombinatorialHit> expanded_hits_i                    = Collections.synchronizedList(new ArrayList<>() ); // synchonrized not needed..
                     List<SplitPatternWithConnectorProximityPruningStatistics> output_statistics_i = Collections.synchronizedList(new ArrayList<>() );  // synchonrized not needed..
-                    findExpandedHits_forSplitPattern_withConnProximityMatching(space,cdh,mol,si,num_connectors,max_fragments,max_hits,rxns_to_omit,expanded_hits_i,output_statistics_i);
+                    findExpandedHits_forSplitPattern_withConnProximityMatching(space,cdh,mol,si,num_connectors,max_fragments,max_hits,rxns_to_omit,processed_splits,expanded_hits_i,output_statistics_i);
                     if(!expanded_hits_i.isEmpty()) {
                         receiver.addCombinatorialHits(expanded_hits_i, output_statistics_i);
                     }
@@ -1779,11 +2033,12 @@ public class SynthonSpace implements Serializable {
         }
         int cnt_fc = 0;
         for(Future f_i : tasks_sss) {
+            if(Thread.currentThread().isInterrupted()) {
+                // cancel the queued split patterns and interrupt the running ones, they check their interrupt flag
+                tasks_sss.stream().forEach( xi -> xi.cancel(true) );
+                break;
+            }
             try {
-                if(Thread.currentThread().isInterrupted()) {
-                    //f_i.cancel(true);
-                    tasks_sss.stream().forEach( xi -> xi.cancel(true) );
-                }
                 f_i.get();
                 if(logLevel_findCandidates>0) {
                     //System.out.print(".");
@@ -1799,6 +2054,8 @@ public class SynthonSpace implements Serializable {
                 main_pool.shutdown();
                 break;
                 //e.printStackTrace();
+            } catch (CancellationException e) {
+                // cancelled together with the search
             } catch (ExecutionException e) {
                 //e.printStackTrace();
             }
@@ -1845,6 +2102,19 @@ public class SynthonSpace implements Serializable {
      * @param expanded_hits
      */
     public static void findExpandedHits_forSplitPattern_withConnProximityMatching(SynthonSpace space, CachedDescriptorProvider cdh , StereoMolecule mol , int[] split_pattern , int num_connectors, int max_fragments, int max_hits, Set<String> rxns_to_omit, List<CombinatorialHit> expanded_hits , List<SplitPatternWithConnectorProximityPruningStatistics> out_statistics ) {
+        findExpandedHits_forSplitPattern_withConnProximityMatching(space,cdh,mol,split_pattern,num_connectors,max_fragments,max_hits,rxns_to_omit,null,expanded_hits,out_statistics);
+    }
+
+    /**
+     * Same as above, but the split is skipped if a split result with the same canonical key was already
+     * processed with a subset of the currently omitted rxns, e.g. for another bridge expansion variant of
+     * the same query. Such a split cannot produce new hits. A split is registered only once it was
+     * processed completely, an interrupted split does not suppress the other variants.
+     *
+     * @param processed_splits thread-safe map from canonical split key to the rxns that were omitted
+     *                         when the split was processed, or null
+     */
+    public static void findExpandedHits_forSplitPattern_withConnProximityMatching(SynthonSpace space, CachedDescriptorProvider cdh , StereoMolecule mol , int[] split_pattern , int num_connectors, int max_fragments, int max_hits, Set<String> rxns_to_omit, Map<String,Set<String>> processed_splits, List<CombinatorialHit> expanded_hits , List<SplitPatternWithConnectorProximityPruningStatistics> out_statistics ) {
 
         // check if we are done..
         if(expanded_hits.size() >= max_hits ){
@@ -1861,6 +2131,15 @@ public class SynthonSpace implements Serializable {
             return;
         }
 
+        String split_key = null;
+        if(processed_splits!=null) {
+            split_key = num_connectors+":"+split_result.computeCanonicalKey();
+            Set<String> omitted_before = processed_splits.get(split_key);
+            if(omitted_before!=null && rxns_to_omit.containsAll(omitted_before)) {
+                return;
+            }
+        }
+
         if(false) {
             System.out.println("Test Split: "+split_result.toString());
         }
@@ -1902,6 +2181,9 @@ public class SynthonSpace implements Serializable {
             // determine for each reaction the number of connectors.
             List<String> possible_rxns = new ArrayList<>(possible_rxn_mappings.keySet());
             Map<List<Integer>,List<StereoMolecule[]>> cachedLabeledFragsForConnectorSet = new HashMap<>();
+            // for the largest fragment pruning: for every labeled split, the possible rxns that contain a superset
+            // of the largest fragment. Computed in one traversal of the fused bitset tree for all possible rxns.
+            Map<StereoMolecule[],Set<String>> cachedRxnsWithLargestFragment = new IdentityHashMap<>();
             //int[] numbers_of_connectors = possible_rxns.stream().mapToInt(
             //                ri -> space.getRxn(ri).num_connectors ).distinct().toArray();
             for(int zi=0;zi<possible_rxns.size();zi++) {
@@ -1948,11 +2230,10 @@ public class SynthonSpace implements Serializable {
                     List<StereoMolecule[]> to_prune = new ArrayList<>();
                     for(StereoMolecule[] split_i : unique_connector_splits) {
                         //unique_connector_splits;
-                        BitSet frag_0_fp = space.getFP(split_i[0]);
-                        boolean test = false; // do we find initial hit?
-                        BitSetTree bst_frag0 = space.bsts_labeled_by_rxn.get(possible_rxns.get(zi));
-                        BitSetTree.Node[] result = new BitSetTree.Node[1];
-                        test = bst_frag0.testSubset(frag_0_fp, result);
+                        //BitSetTree bst_frag0 = space.bsts_labeled_by_rxn.get(possible_rxns.get(zi));
+                        Set<String> rxns_with_frag0 = cachedRxnsWithLargestFragment.computeIfAbsent( split_i ,
+                                si -> space.findRxnsWithSupersetSynthon( space.getFP(si[0]) , possible_rxns ) );
+                        boolean test = rxns_with_frag0.contains(ri); // do we find initial hit?
                         if(!test) {
                             // remove this one
                             to_prune.add(split_i);
@@ -2079,6 +2360,14 @@ public class SynthonSpace implements Serializable {
             out_statistics.add(new SplitPatternWithConnectorProximityPruningStatistics(true,possible_rxn_mappings,total_labeled_connector_splits_processed,total_enumerated_sss_performed));
         }
 
+        // the interrupted helper functions return incomplete results, such a split must not be registered
+        if(split_key!=null && !Thread.currentThread().isInterrupted()) {
+            // rxns_to_omit may have grown meanwhile, the copy is then a superset of the omitted rxns,
+            // which can only make later variants skip less. Keep the smaller set, it lets more variants skip.
+            processed_splits.merge(split_key, new HashSet<>(rxns_to_omit),
+                    (before,now) -> before.containsAll(now) ? now : before);
+        }
+
         if(false) {
             /**
              * The following is working, but it is not efficient, and it will generate a lot
@@ -2942,9 +3231,122 @@ public class SynthonSpace implements Serializable {
                 }
             }
         }
+        this.fingerprint_pooling_report = canonicalizeFingerprints();
+        System.out.println("[INFO] "+this.fingerprint_pooling_report);
         reinitHelperMaps();
     }
 
+    private CanonicalBitSetPool getCanonicalBitSetPool() {
+        CanonicalBitSetPool pool = this.fp_pool;
+        if(pool==null) {
+            synchronized(this) {
+                pool = this.fp_pool;
+                if(pool==null) {
+                    pool = new CanonicalBitSetPool();
+                    this.fp_pool = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * @return the report of the fingerprint pooling in initAfterJavaDeserialization(), or null
+     */
+    public CanonicalBitSetPool.Report getFingerprintPoolingReport() {
+        return this.fingerprint_pooling_report;
+    }
+
+    /**
+     * Replaces all fingerprint references by canonical instances, such that every distinct fingerprint
+     * value is held in memory only once, and removes duplicate entries from the leafs of all bitset trees.
+     *
+     * Covers every structure of the space that holds fingerprints: the FragIds (in fragments_by_connectors,
+     * frags_sorted_by_connector_fp, frags_by_id and fragment_map), the keys of fragments_by_connectors,
+     * frags_sorted_by_connector_fp and substructure_searchers_sorted_by_connector_fp, the structure maps and
+     * trees of the substructure searchers, and the leafs of all bitset trees. fragment_map_2 takes the
+     * canonical instances when reinitHelperMaps() is called. The freed memory in the report is therefore
+     * only an overestimate if code outside of the space still holds the replaced instances.
+     *
+     * FragIds are immutable, a FragId with non-canonical fingerprints is replaced by an equal FragId that
+     * uses the canonical instances.
+     *
+     * NOTE: must not run concurrently with addReaction(..) or searches.
+     *
+     * @return report with the number of redirected references and the memory that was freed
+     */
+    public CanonicalBitSetPool.Report canonicalizeFingerprints() {
+        CanonicalBitSetPool pool = getCanonicalBitSetPool();
+        CanonicalBitSetPool.Report report = new CanonicalBitSetPool.Report();
+        java.util.function.UnaryOperator<BitSet> canon = bs -> pool.canonical(bs,report);
+        Map<FragId,FragId> canonical_frags = new IdentityHashMap<>();
+        java.util.function.UnaryOperator<FragId> canon_frag = fid -> canonical_frags.computeIfAbsent(fid, x -> canonicalFragId(x,canon) );
+
+        // synthons, and the fragments_by_connectors keys (which are the synthon fps)
+        for(BitSet conni : this.fragments_by_connectors.keySet()) {
+            Map<BitSet,Set<FragId>> pooled = new ConcurrentHashMap<>();
+            for(Map.Entry<BitSet,Set<FragId>> ei : this.fragments_by_connectors.get(conni).entrySet()) {
+                Set<FragId> frags = new HashSet<>();
+                for(FragId fid : ei.getValue()) { frags.add(canon_frag.apply(fid)); }
+                pooled.put(canon.apply(ei.getKey()),frags);
+            }
+            this.fragments_by_connectors.put(conni,pooled);
+        }
+        this.frags_by_id.replaceAll( (k,v) -> canon_frag.apply(v) );
+        if(this.fragment_map!=null) {
+            for(Map<Integer,List<FragId>> frag_lists : this.fragment_map.values()) {
+                frag_lists.replaceAll( (k,v) -> canonicalFragIds(v,canon_frag) );
+            }
+        }
+
+        // connector-proximal fps
+        for(FragType fti : this.frags_sorted_by_connector_fp.keySet()) {
+            Map<BitSet,List<FragId>> pooled = new HashMap<>();
+            this.frags_sorted_by_connector_fp.get(fti).forEach( (k,v) -> pooled.put(canon.apply(k),canonicalFragIds(v,canon_frag)) );
+            this.frags_sorted_by_connector_fp.put(fti,pooled);
+        }
+        for(FragType fti : this.substructure_searchers_sorted_by_connector_fp.keySet()) {
+            Map<BitSet,FastSubstructureSearcher> pooled = new HashMap<>();
+            this.substructure_searchers_sorted_by_connector_fp.get(fti).forEach( (k,v) -> {
+                v.canonicalizeFingerprints(canon);
+                pooled.put(canon.apply(k),v);
+            });
+            this.substructure_searchers_sorted_by_connector_fp.put(fti,pooled);
+        }
+
+        // bitset trees
+        for(BitSetTree bst : this.bsts_by_connectors.values()) { bst.canonicalizeLeaves(canon); }
+        for(BitSetTree bst : this.bsts_labeled_by_rxn.values()) { bst.canonicalizeLeaves(canon); }
+        for(BitSetTree bst : this.connector_fps_sorted_by_fragtype.values()) { bst.canonicalizeLeaves(canon); }
+        for(Map<Integer,BitSetTree> bsts : this.ffps_sorted_by_rxn_and_frag_BT.values()) {
+            for(BitSetTree bst : bsts.values()) { bst.canonicalizeLeaves(canon); }
+        }
+
+        report.finish(pool.size());
+        return report;
+    }
+
+    /**
+     * Never modifies fid, it may be a key of other maps.
+     *
+     * @return fid itself if its fingerprints and connectors are canonical already, else an equal FragId with the canonical ones
+     */
+    private static FragId canonicalFragId(FragId fid, java.util.function.UnaryOperator<BitSet> canon) {
+        BitSet fp            = canon.apply(fid.fp);
+        BitSet fp_non_unique = canon.apply(fid.fp_non_unique_connectors);
+        BitSet connectors    = canon.apply(fid.connectors);
+        if(fp==fid.fp && fp_non_unique==fid.fp_non_unique_connectors && connectors==fid.connectors) {
+            return fid;
+        }
+        return new FragId(fid.rxn_id,fid.frag,fid.idcode,fid.fragment_id,connectors,fp,fp_non_unique);
+    }
+
+    private static List<FragId> canonicalFragIds(List<FragId> frags, java.util.function.UnaryOperator<FragId> canon_frag) {
+        List<FragId> canonical = new ArrayList<>(frags.size());
+        for(FragId fid : frags) { canonical.add(canon_frag.apply(fid)); }
+        return canonical;
+    }
+
 
     public static DescriptorHandler<long[],StereoMolecule> resolveDescriptorHandlerFromName(String shortName) {
         if(shortName.equals("FFP1024_plus_ffp")) {
@@ -2973,8 +3375,20 @@ public class SynthonSpace implements Serializable {
 
         mFP = resolveDescriptorHandlerFromName(mDescriptorHandlerShortName);
 
-        this.fragment_map      = new HashMap<String,Map<Integer,List<FragId>>>();
-        this.fragment_type_map = new HashMap<String,Map<Integer,FragType>>();
+        // space files written by older versions contain HashMaps, the top level maps are small (one entry
+        // per rxn / frag type / connector set), so we just convert them to allow concurrent addReaction(..)
+        this.fragments_by_connectors                       = toConcurrentMap(this.fragments_by_connectors);
+        this.rxns_by_connector_counts                      = toConcurrentMap(this.rxns_by_connector_counts);
+        this.rxns                                          = toConcurrentMap(this.rxns);
+        this.connector_fps_sorted_by_fragtype              = toConcurrentMap(this.connector_fps_sorted_by_fragtype);
+        this.frags_sorted_by_connector_fp                  = toConcurrentMap(this.frags_sorted_by_connector_fp);
+        this.substructure_searchers_sorted_by_connector_fp = toConcurrentMap(this.substructure_searchers_sorted_by_connector_fp);
+        this.ffps_sorted_by_rxn_and_frag_BT                = toConcurrentMap(this.ffps_sorted_by_rxn_and_frag_BT);
+        this.bsts_by_connectors                            = toConcurrentMap(this.bsts_by_connectors);
+        this.bsts_labeled_by_rxn                           = toConcurrentMap(this.bsts_labeled_by_rxn);
+
+        this.fragment_map      = new ConcurrentHashMap<String,Map<Integer,List<FragId>>>();
+        this.fragment_type_map = new ConcurrentHashMap<String,Map<Integer,FragType>>();
 
         //for( Set<SynthonSpace.FragId> fsi : this.fragments.values() ) {
 
@@ -0,0 +1,87 @@
+package com.idorsia.research.chem.hyperspace;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Thread-safe collector that keeps the k elements with the highest score.
+ *
+ * Elements are offered one by one while a search is running, offer(..) tells whether
+ * the element (currently) belongs to the top k, i.e. whether it improves the result.
+ */
+public class TopKCollector<T> {
+
+    private static final class Entry<T> {
+        final T value;
+        final double score;
+        final long seq;
+        Entry(T value, double score, long seq) {
+            this.value = value;
+            this.score = score;
+            this.seq   = seq;
+        }
+    }
+
+    private final int k;
+    private long seq = 0;
+
+    /**
+     * Min-heap, lowest score first, among equal scores the latest offered element first
+     */
+    private final PriorityQueue<Entry<T>> heap = new PriorityQueue<>(
+            Comparator.<Entry<T>>comparingDouble(ei -> ei.score).thenComparing( (x,y) -> -Long.compare(x.seq,y.seq) ) );
+
+    /**
+     * @param k max number of kept elements, values <= 0 mean no limit
+     */
+    public TopKCollector(int k) {
+        this.k = k;
+    }
+
+    /**
+     * @param value
+     * @param score higher is better
+     * @return true if the element was added to the top k
+     */
+    public synchronized boolean offer(T value, double score) {
+        if(isFull()) {
+            if(score <= heap.peek().score) {
+                return false;
+            }
+            heap.poll();
+        }
+        heap.add(new Entry<>(value,score,seq++));
+        return true;
+    }
+
+    /**
+     * @return the lowest score that is currently kept if the collector is full, else negative infinity
+     */
+    public synchronized double getThreshold() {
+        return isFull() ? heap.peek().score : Double.NEGATIVE_INFINITY;
+    }
+
+    public synchronized int size() {
+        return heap.size();
+    }
+
+    /**
+     * @return the kept elements, sorted by decreasing score
+     */
+    public synchronized List<T> getSortedResults() {
+        List<Entry<T>> entries = new ArrayList<>(heap);
+        entries.sort( (x,y) -> {
+            int c = -Double.compare(x.score,y.score);
+            return (c!=0) ? c : Long.compare(x.seq,y.seq);
+        });
+        List<T> sorted = new ArrayList<>(entries.size());
+        for(Entry<T> ei : entries) { sorted.add(ei.value); }
+        return sorted;
+    }
+
+    private boolean isFull() {
+        return k > 0 && heap.size() >= k;
+    }
+}
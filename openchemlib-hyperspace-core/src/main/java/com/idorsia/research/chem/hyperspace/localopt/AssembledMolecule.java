@@ -0,0 +1,68 @@
+package com.idorsia.research.chem.hyperspace.localopt;
+
+import com.actelion.research.chem.Molecule;
+import com.actelion.research.chem.StereoMolecule;
+import com.idorsia.research.chem.hyperspace.SynthonAssembler;
+import com.idorsia.research.chem.hyperspace.SynthonSpace;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An assembled candidate, shared by the stages of a StagedAssemblyScorer so the synthons are
+ * assembled once per candidate. Rotatable bonds and idcode are computed on first use. Not
+ * thread-safe, an instance belongs to a single scoring call.
+ */
+public final class AssembledMolecule {
+
+    private final StereoMolecule molecule;
+    private int rotatableBonds = -1;
+    private String idcode;
+
+    AssembledMolecule(StereoMolecule molecule) {
+        this.molecule = molecule;
+    }
+
+    /**
+     * @param synthonCache parsed synthons shared between scorers, or null to parse every synthon
+     * @return the assembly with helper arrays up to cHelperCIP, null if the synthons cannot be assembled
+     */
+    public static AssembledMolecule assemble(List<SynthonSpace.FragId> fragments, SynthonMoleculeCache synthonCache) {
+        try {
+            List<StereoMolecule> parts = new ArrayList<>(fragments.size());
+            for (SynthonSpace.FragId frag : fragments) {
+                parts.add(PheSAAssemblyScorer.parseSynthon(synthonCache, frag.idcode));
+            }
+            StereoMolecule assembled = SynthonAssembler.assembleSynthons_faster(parts);
+            assembled.ensureHelperArrays(Molecule.cHelperCIP);
+            return new AssembledMolecule(assembled);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the assembly, scorers that modify it must work on a copy
+     */
+    public StereoMolecule getMolecule() {
+        return molecule;
+    }
+
+    public int getAtoms() {
+        return molecule.getAtoms();
+    }
+
+    public int getRotatableBonds() {
+        if (rotatableBonds < 0) {
+            rotatableBonds = PheSAAssemblyScorer.countRotatableBonds(molecule);
+        }
+        return rotatableBonds;
+    }
+
+    public String getIDCode() {
+        if (idcode == null) {
+            idcode = molecule.getIDCode();
+        }
+        return idcode;
+    }
+}
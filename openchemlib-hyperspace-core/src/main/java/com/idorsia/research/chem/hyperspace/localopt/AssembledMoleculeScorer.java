@@ -0,0 +1,31 @@
+package com.idorsia.research.chem.hyperspace.localopt;
+
+import com.idorsia.research.chem.hyperspace.SynthonSpace;
+
+import java.util.List;
+
+/**
+ * AssemblyScorer that can also score an assembly built by another scorer, e.g. by an earlier
+ * stage of a StagedAssemblyScorer.
+ */
+public interface AssembledMoleculeScorer extends AssemblyScorer {
+
+    /**
+     * @return the assembly of the fragments, null if they cannot be assembled
+     */
+    AssembledMolecule assemble(List<SynthonSpace.FragId> fragments);
+
+    LocalOptimizationResult.BeamEntry scoreAssembled(List<SynthonSpace.FragId> fragments,
+                                                     AssembledMolecule assembly,
+                                                     int originatingRound,
+                                                     LocalOptimizationLogger logger);
+
+    @Override
+    default LocalOptimizationResult.BeamEntry score(String reactionId,
+                                                    List<SynthonSpace.FragId> fragments,
+                                                    int originatingRound,
+                                                    LocalOptimizationLogger logger) {
+        AssembledMolecule assembly = assemble(fragments);
+        return assembly == null ? null : scoreAssembled(fragments, assembly, originatingRound, logger);
+    }
+}
@@ -0,0 +1,221 @@
+package com.idorsia.research.chem.hyperspace.localopt;
+
+import com.idorsia.research.chem.hyperspace.SynthonSpace;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Bounded score cache shared by all optimizations that use the same scorer, i.e. the same query
+ * descriptor and score threshold. When it is full, the least recently used score is evicted.
+ * <p>
+ * Entries are keyed by reaction id plus fragment id tuple. Failed and below-threshold assemblies are
+ * cached as well, assemblies pruned by a beam cutoff are not. While an assembly is being scored,
+ * other threads that request it wait for the result instead of scoring it again.
+ * <p>
+ * The cache can be saved to and loaded from a TSV file. The file records a context string
+ * (e.g. the query descriptor) and is ignored if it was written for a different context.
+ */
+public final class AssemblyScoreCache {
+
+    private static final String CONTEXT_PREFIX = "#context\t";
+
+    private static final CachedScore FAILED = new CachedScore(Double.NaN, 0, 0, null);
+
+    private final String context;
+    private final BoundedLruCache<String, CachedScore> scores;
+    private final ConcurrentMap<String, CompletableFuture<CachedScore>> inflight = new ConcurrentHashMap<>();
+    private final LongAdder hitCounter;
+    private final LongAdder missCounter;
+
+    public AssemblyScoreCache(int maxEntries, String context) {
+        this(maxEntries, context, new LongAdder(), new LongAdder());
+    }
+
+    /**
+     * @param maxEntries max number of cached scores
+     * @param context identifies the scorer, persisted caches are only loaded for the same context
+     * @param hitCounter counts lookups that were answered from the cache or by waiting for another thread
+     * @param missCounter counts lookups that scored the assembly
+     */
+    public AssemblyScoreCache(int maxEntries, String context, LongAdder hitCounter, LongAdder missCounter) {
+        this.scores = new BoundedLruCache<>(maxEntries);
+        this.context = context == null ? "" : context;
+        this.hitCounter = hitCounter;
+        this.missCounter = missCounter;
+    }
+
+    /**
+     * Returns the cached score of the assembly, or scores it with the scorer. Concurrent requests for the
+     * same assembly are scored only once.
+     *
+     * @param scorer returns the beam entry, or null if scoring failed or the score is below the threshold,
+     *               or {@link AssemblyScorer#PRUNED}, which is not cached
+     * @return a beam entry for the given fragments and originating round, or null
+     */
+    public LocalOptimizationResult.BeamEntry getOrScore(String reactionId,
+                                                        List<SynthonSpace.FragId> fragments,
+                                                        int originatingRound,
+                                                        Supplier<LocalOptimizationResult.BeamEntry> scorer) {
+        String key = buildKey(reactionId, fragments);
+        CachedScore cached = scores.get(key);
+        if (cached == null) {
+            CompletableFuture<CachedScore> future = new CompletableFuture<>();
+            CompletableFuture<CachedScore> running = inflight.putIfAbsent(key, future);
+            if (running == null) {
+                try {
+                    // another thread may have stored the score between the lookup and putIfAbsent
+                    cached = scores.get(key);
+                    if (cached != null) {
+                        hitCounter.increment();
+                        future.complete(cached);
+                        return cached.toBeamEntry(fragments, originatingRound);
+                    }
+                    missCounter.increment();
+                    LocalOptimizationResult.BeamEntry entry = scorer.get();
+                    if (entry == AssemblyScorer.PRUNED) {
+                        // depends on the caller's beam cutoff, waiting threads score for themselves
+                        future.complete(null);
+                        return null;
+                    }
+                    cached = CachedScore.of(entry);
+                    scores.put(key, cached);
+                    future.complete(cached);
+                } catch (RuntimeException | Error e) {
+                    future.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    inflight.remove(key, future);
+                }
+                return cached.toBeamEntry(fragments, originatingRound);
+            }
+            cached = running.join();
+            if (cached == null) {
+                return getOrScore(reactionId, fragments, originatingRound, scorer);
+            }
+            hitCounter.increment();
+        } else {
+            hitCounter.increment();
+        }
+        return cached.toBeamEntry(fragments, originatingRound);
+    }
+
+    public int size() {
+        return scores.size();
+    }
+
+    public long getHits() {
+        return hitCounter.sum();
+    }
+
+    public long getMisses() {
+        return missCounter.sum();
+    }
+
+    /**
+     * Loads entries from a file written by save(..). Nothing is loaded if the file does not exist or was
+     * written for a different context.
+     *
+     * @return number of loaded entries
+     */
+    public int load(Path path) throws IOException {
+        if (path == null || !Files.exists(path)) {
+            return 0;
+        }
+        int loaded = 0;
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            if (header == null || !header.equals(CONTEXT_PREFIX + context)) {
+                return 0;
+            }
+            String line;
+            while ((line = reader.readLine()) != null && scores.size() < scores.getMaxEntries()) {
+                String[] parts = line.split("\t", -1);
+                if (parts.length != 5) {
+                    continue;
+                }
+                try {
+                    CachedScore score = parts[4].isEmpty() ? FAILED : new CachedScore(Double.parseDouble(parts[1]),
+                            Integer.parseInt(parts[2]),
+                            Integer.parseInt(parts[3]),
+                            parts[4]);
+                    if (scores.putIfAbsent(parts[0], score) == null) {
+                        loaded++;
+                    }
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Writes all entries to the file, least recently used first, the file is replaced atomically.
+     */
+    public void save(Path path) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            writer.write(CONTEXT_PREFIX + context);
+            writer.newLine();
+            for (Map.Entry<String, CachedScore> entry : scores.snapshot()) {
+                CachedScore score = entry.getValue();
+                writer.write(entry.getKey());
+                writer.write('\t');
+                writer.write(score.idcode == null ? "NaN\t0\t0\t" : String.format(Locale.ROOT, "%.6f\t%d\t%d\t%s",
+                        score.score, score.atomCount, score.rotatableBonds, score.idcode));
+                writer.newLine();
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static String buildKey(String reactionId, List<SynthonSpace.FragId> fragments) {
+        return reactionId + ":" + fragments.stream().map(f -> f.fragment_id).collect(Collectors.joining("|"));
+    }
+
+    private static final class CachedScore {
+        private final double score;
+        private final int atomCount;
+        private final int rotatableBonds;
+        private final String idcode;
+
+        private CachedScore(double score, int atomCount, int rotatableBonds, String idcode) {
+            this.score = score;
+            this.atomCount = atomCount;
+            this.rotatableBonds = rotatableBonds;
+            this.idcode = idcode;
+        }
+
+        private static CachedScore of(LocalOptimizationResult.BeamEntry entry) {
+            if (entry == null) {
+                return FAILED;
+            }
+            return new CachedScore(entry.getScore(), entry.getAtomCount(), entry.getRotatableBonds(), entry.getIdcode());
+        }
+
+        private LocalOptimizationResult.BeamEntry toBeamEntry(List<SynthonSpace.FragId> fragments, int originatingRound) {
+            if (this == FAILED) {
+                return null;
+            }
+            return new LocalOptimizationResult.BeamEntry(fragments, score, atomCount, rotatableBonds, idcode, originatingRound);
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.idorsia.research.chem.hyperspace.localopt;
 
 import com.idorsia.research.chem.hyperspace.SynthonSpace;
 
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -9,8 +10,31 @@ import java.util.List;
  */
 public interface AssemblyScorer {
 
+    /**
+     * Returned by cutoff-aware scorers for assemblies that were rejected only because they cannot
+     * reach the beam cutoff. Unlike null, this result must not be cached: with a lower cutoff the
+     * assembly may still enter a beam.
+     */
+    LocalOptimizationResult.BeamEntry PRUNED = new LocalOptimizationResult.BeamEntry(Collections.emptyList(),
+            Double.NaN, 0, 0, null, -1);
+
     LocalOptimizationResult.BeamEntry score(String reactionId,
                                             List<SynthonSpace.FragId> fragments,
                                             int originatingRound,
                                             LocalOptimizationLogger logger);
+
+    /**
+     * Scores an assembly that only matters if it reaches beamCutoff, the score of the weakest entry
+     * of the current beam. Scorers may then stop early and return {@link #PRUNED}. The default
+     * implementation ignores the cutoff.
+     *
+     * @param beamCutoff score needed to enter the beam, negative infinity if every candidate counts
+     */
+    default LocalOptimizationResult.BeamEntry score(String reactionId,
+                                                    List<SynthonSpace.FragId> fragments,
+                                                    int originatingRound,
+                                                    LocalOptimizationLogger logger,
+                                                    double beamCutoff) {
+        return score(reactionId, fragments, originatingRound, logger);
+    }
 }
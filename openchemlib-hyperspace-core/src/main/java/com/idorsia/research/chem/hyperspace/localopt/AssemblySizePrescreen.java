@@ -0,0 +1,88 @@
+package com.idorsia.research.chem.hyperspace.localopt;
+
+import com.actelion.research.chem.Molecule;
+import com.actelion.research.chem.StereoMolecule;
+import com.actelion.research.chem.phesa.PheSAMolecule;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cheap 2D filter that runs before conformer generation and the PheSA alignment.
+ * <p>
+ * The shape overlap of two molecules cannot exceed the volume of the smaller one, so the shape
+ * similarity is roughly bounded by the ratio of the heavy atom counts. Assemblies whose ratio to
+ * the query is below minSimilarity - tolerance are rejected without 3D scoring. Heavy atom counts
+ * are used, i.e. the assembly must have its helper arrays computed. The bound is
+ * approximate, the tolerance absorbs differences in atom volumes and the pharmacophore term.
+ */
+public final class AssemblySizePrescreen {
+
+    /**
+     * Slack for the rounding of minSimilarity - tolerance, e.g. 0.8 - 0.1 is slightly above 0.7
+     */
+    private static final double RATIO_EPSILON = 1e-9;
+
+    private static final AssemblySizePrescreen DISABLED = new AssemblySizePrescreen(0, Double.NEGATIVE_INFINITY, null);
+
+    private final int queryAtoms;
+    private final double minSizeRatio;
+    private final LongAdder rejectCounter;
+
+    private AssemblySizePrescreen(int queryAtoms, double minSizeRatio, LongAdder rejectCounter) {
+        this.queryAtoms = queryAtoms;
+        this.minSizeRatio = minSizeRatio;
+        this.rejectCounter = rejectCounter;
+    }
+
+    /**
+     * @param tolerance allowed gap between size ratio and min similarity, negative values disable the prescreen
+     * @param rejectCounter counts rejected assemblies, may be null
+     */
+    public static AssemblySizePrescreen create(PheSAMolecule query,
+                                               double minSimilarity,
+                                               double tolerance,
+                                               LongAdder rejectCounter) {
+        if (tolerance < 0 || query == null || query.getMolecule() == null) {
+            return DISABLED;
+        }
+        // a copy, the query molecule is shared with the concurrently running scorers
+        StereoMolecule queryMolecule = new StereoMolecule(query.getMolecule());
+        // heavy atoms only, the query may carry explicit hydrogens from conformer generation
+        queryMolecule.ensureHelperArrays(Molecule.cHelperNeighbours);
+        return create(queryMolecule.getAtoms(), minSimilarity, tolerance, rejectCounter);
+    }
+
+    static AssemblySizePrescreen create(int queryAtoms, double minSimilarity, double tolerance, LongAdder rejectCounter) {
+        if (tolerance < 0) {
+            return DISABLED;
+        }
+        return new AssemblySizePrescreen(queryAtoms, minSimilarity - tolerance - RATIO_EPSILON, rejectCounter);
+    }
+
+    public static AssemblySizePrescreen disabled() {
+        return DISABLED;
+    }
+
+    /**
+     * @return false if the assembly is too small or too large to reach the min similarity
+     */
+    public boolean passes(int assembledAtoms) {
+        if (this == DISABLED) {
+            return true;
+        }
+        if (sizeRatio(queryAtoms, assembledAtoms) >= minSizeRatio) {
+            return true;
+        }
+        if (rejectCounter != null) {
+            rejectCounter.increment();
+        }
+        return false;
+    }
+
+    static double sizeRatio(int a, int b) {
+        if (a <= 0 || b <= 0) {
+            return 0.0;
+        }
+        return Math.min(a, b) / (double) Math.max(a, b);
+    }
+}
@@ -0,0 +1,440 @@
+package com.idorsia.research.chem.hyperspace.localopt;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes optimization results from many producer threads through a single writer thread.
+ * <p>
+ * Producers only put results into a bounded queue and block when it is full. The writer thread
+ * drains the queue in batches and flushes when batchSize results are pending or when the oldest
+ * pending result is older than maxFlushDelayMillis (group commit). Output can be gzip compressed
+ * and rotated after a fixed number of results. Every rotated file starts with its own header; the
+ * first file is the configured path, later ones get ".partN" inserted before the extension.
+ */
+public final class AsyncResultWriter implements AutoCloseable {
+
+    public enum Compression {
+        NONE,
+        GZIP;
+
+        /**
+         * @return GZIP for paths ending in .gz, NONE otherwise
+         */
+        public static Compression fromPath(Path path) {
+            String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+            return name.endsWith(".gz") ? GZIP : NONE;
+        }
+    }
+
+    public static final class Options {
+        private int queueCapacity = 4096;
+        private int batchSize = 256;
+        private long maxFlushDelayMillis = 1000L;
+        private Compression compression;
+        private long rotateAfterResults = 0L;
+        private boolean append = false;
+
+        public Options withQueueCapacity(int capacity) {
+            this.queueCapacity = capacity;
+            return this;
+        }
+
+        public Options withBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        public Options withMaxFlushDelayMillis(long millis) {
+            this.maxFlushDelayMillis = millis;
+            return this;
+        }
+
+        /**
+         * @param compression null picks the compression from the file extension
+         */
+        public Options withCompression(Compression compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        /**
+         * @param results number of results per file, 0 disables rotation
+         */
+        public Options withRotateAfterResults(long results) {
+            this.rotateAfterResults = results;
+            return this;
+        }
+
+        /**
+         * Appends to existing output instead of replacing it. With rotation, writing continues in
+         * the first part file that does not exist yet.
+         */
+        public Options withAppend(boolean append) {
+            this.append = append;
+            return this;
+        }
+
+        public void validate() {
+            if (queueCapacity <= 0) {
+                throw new IllegalArgumentException("Writer queue capacity must be positive");
+            }
+            if (batchSize <= 0) {
+                throw new IllegalArgumentException("Writer batch size must be positive");
+            }
+            if (maxFlushDelayMillis <= 0) {
+                throw new IllegalArgumentException("Writer flush delay must be positive");
+            }
+            if (rotateAfterResults < 0) {
+                throw new IllegalArgumentException("Writer rotation must be >= 0");
+            }
+        }
+    }
+
+    private static final LocalOptimizationResult END_OF_STREAM =
+            new LocalOptimizationResult("", List.of(), List.of());
+
+    private final Path outputPath;
+    private final Function<String, String> reactionSourceProvider;
+    private final Compression compression;
+    private final int batchSize;
+    private final long maxFlushDelayNanos;
+    private final long rotateAfterResults;
+    private final boolean append;
+    private final BlockingQueue<LocalOptimizationResult> queue;
+    private final Thread writerThread;
+    private final LongAdder waitNanos;
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final Object flushLock = new Object();
+    /**
+     * Held by submitters while they queue a result, close takes it exclusively. No result can
+     * therefore be queued behind the end of stream marker.
+     */
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private long flushedResults = 0L;
+    private final AtomicLong flushes = new AtomicLong();
+    private volatile boolean closed = false;
+    private volatile Throwable failure;
+
+    /**
+     * Channel of the current file, forced to disk by {@link #force} and whenever a file is closed
+     */
+    private volatile FileChannel currentChannel;
+
+    // writer thread only
+    private LocalOptimizationResultWriter current;
+    private int fileIndex = 0;
+    private long resultsInFile = 0L;
+
+    public AsyncResultWriter(Path outputPath,
+                             Function<String, String> reactionSourceProvider,
+                             Options options) throws IOException {
+        this(outputPath, reactionSourceProvider, options, null);
+    }
+
+    /**
+     * @param waitNanosCounter accumulates the time producers are blocked on a full queue, may be null
+     */
+    public AsyncResultWriter(Path outputPath,
+                             Function<String, String> reactionSourceProvider,
+                             Options options,
+                             LongAdder waitNanosCounter) throws IOException {
+        options.validate();
+        this.waitNanos = waitNanosCounter != null ? waitNanosCounter : new LongAdder();
+        this.outputPath = outputPath;
+        this.reactionSourceProvider = reactionSourceProvider;
+        this.compression = options.compression != null ? options.compression : Compression.fromPath(outputPath);
+        this.batchSize = options.batchSize;
+        this.maxFlushDelayNanos = TimeUnit.MILLISECONDS.toNanos(options.maxFlushDelayMillis);
+        this.rotateAfterResults = options.rotateAfterResults;
+        this.append = options.append;
+        this.queue = new ArrayBlockingQueue<>(options.queueCapacity);
+        if (append && rotateAfterResults > 0) {
+            while (Files.exists(filePath(fileIndex))) {
+                fileIndex++;
+            }
+        }
+        // open the first file right away so configuration errors show up in the caller
+        this.current = openFile(fileIndex);
+        this.writerThread = new Thread(this::writeLoop, "AsyncResultWriter");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Queues a result, blocks while the queue is full.
+     *
+     * @throws IllegalStateException if the writer is closed or writing has failed
+     */
+    public void submit(LocalOptimizationResult result) throws InterruptedException {
+        closeLock.readLock().lockInterruptibly();
+        try {
+            checkOpen();
+            if (queue.offer(result)) {
+                submitted.incrementAndGet();
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                while (!queue.offer(result, 100, TimeUnit.MILLISECONDS)) {
+                    checkOpen();
+                }
+                submitted.incrementAndGet();
+            } finally {
+                waitNanos.add(System.nanoTime() - start);
+            }
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Waits until the first count submitted results are flushed, e.g. before a checkpoint records
+     * them as done.
+     *
+     * @return false if the results were not flushed within the timeout or the writer has stopped
+     */
+    public boolean awaitFlushed(long count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (flushLock) {
+            while (flushedResults < count) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0 || failure != null || !writerThread.isAlive()) {
+                    return false;
+                }
+                flushLock.wait(remaining);
+            }
+            return failure == null;
+        }
+    }
+
+    /**
+     * Forces the flushed results to disk, e.g. before a checkpoint records them as done. Use
+     * {@link #awaitFlushed} first, results that are not flushed yet may not be on disk.
+     */
+    public void force() throws IOException {
+        while (true) {
+            FileChannel channel = currentChannel;
+            try {
+                channel.force(false);
+                return;
+            } catch (ClosedChannelException e) {
+                // the file was forced when it was closed, a rotated file is forced below
+                if (channel == currentChannel) {
+                    return;
+                }
+            }
+        }
+    }
+
+    public long getSubmittedResults() {
+        return submitted.get();
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return total time producers spent blocked on a full queue
+     */
+    public long getWaitNanos() {
+        return waitNanos.sum();
+    }
+
+    public long getWrittenResults() {
+        return written.get();
+    }
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    private void checkOpen() {
+        if (failure != null) {
+            throw new IllegalStateException("Result writer failed: " + failure.getMessage(), failure);
+        }
+        if (closed) {
+            throw new IllegalStateException("Result writer is closed");
+        }
+    }
+
+    private void writeLoop() {
+        List<LocalOptimizationResult> batch = new ArrayList<>(batchSize);
+        int pending = 0;
+        long oldestPendingNanos = 0L;
+        try {
+            boolean end = false;
+            while (!end) {
+                LocalOptimizationResult first = pending == 0
+                        ? queue.take()
+                        : queue.poll(Math.max(0L, oldestPendingNanos + maxFlushDelayNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, batchSize - 1);
+                }
+                for (LocalOptimizationResult result : batch) {
+                    if (result == END_OF_STREAM) {
+                        end = true;
+                        break;
+                    }
+                    if (pending == 0) {
+                        oldestPendingNanos = System.nanoTime();
+                    }
+                    writeResult(result);
+                    pending++;
+                }
+                batch.clear();
+                if (pending > 0 && (end || pending >= batchSize
+                        || System.nanoTime() - oldestPendingNanos >= maxFlushDelayNanos)) {
+                    current.flush();
+                    flushes.incrementAndGet();
+                    pending = 0;
+                    markFlushed();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            failure = t;
+            // unblock producers waiting on a full queue
+            queue.clear();
+        } finally {
+            try {
+                closeCurrent();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+            markFlushed();
+        }
+    }
+
+    private void markFlushed() {
+        synchronized (flushLock) {
+            flushedResults = written.get();
+            flushLock.notifyAll();
+        }
+    }
+
+    private void writeResult(LocalOptimizationResult result) throws IOException {
+        if (rotateAfterResults > 0 && resultsInFile >= rotateAfterResults) {
+            closeCurrent();
+            fileIndex++;
+            current = openFile(fileIndex);
+            resultsInFile = 0L;
+        }
+        current.write(result);
+        resultsInFile++;
+        written.incrementAndGet();
+    }
+
+    private void closeCurrent() throws IOException {
+        try {
+            current.flush();
+            currentChannel.force(false);
+        } finally {
+            current.close();
+        }
+    }
+
+    private Path filePath(int index) {
+        return index == 0 ? outputPath : partPath(outputPath, index);
+    }
+
+    private LocalOptimizationResultWriter openFile(int index) throws IOException {
+        Path path = filePath(index);
+        Path parent = path.getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        boolean hasHeader = append && Files.exists(path) && Files.size(path) > 0;
+        FileChannel channel = append
+                ? FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)
+                : FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        currentChannel = channel;
+        OutputStream out = Channels.newOutputStream(channel);
+        if (compression == Compression.GZIP) {
+            // appended gzip members are read back as one stream. Sync flush makes every flushed
+            // result readable before the file is closed, e.g. after a crash.
+            out = new GZIPOutputStream(out, 1 << 16, true);
+        }
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+        LocalOptimizationResultWriter resultWriter = new LocalOptimizationResultWriter(writer, reactionSourceProvider, false);
+        if (hasHeader) {
+            resultWriter.skipHeader();
+        }
+        return resultWriter;
+    }
+
+    static Path partPath(Path path, int index) {
+        String name = path.getFileName().toString();
+        String suffix = String.format(Locale.ROOT, ".part%04d", index);
+        int dot = name.indexOf('.', 1);
+        String partName = dot < 0 ? name + suffix : name.substring(0, dot) + suffix + name.substring(dot);
+        return path.resolveSibling(partName);
+    }
+
+    /**
+     * Writes all queued results, closes the file and waits for the writer thread. Waits for
+     * submitters that are still queueing a result, later submits are rejected.
+     *
+     * @throws IOException if writing failed at any point
+     */
+    @Override
+    public void close() throws IOException {
+        boolean closing = false;
+        closeLock.writeLock().lock();
+        try {
+            if (!closed) {
+                closed = true;
+                closing = true;
+            }
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        if (closing) {
+            if (writerThread.isAlive()) {
+                try {
+                    while (writerThread.isAlive() && !queue.offer(END_OF_STREAM, 100, TimeUnit.MILLISECONDS)) {
+                        // the writer thread keeps draining, or has died and cleared the queue
+                    }
+                    writerThread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    writerThread.interrupt();
+                }
+            }
+        }
+        Throwable t = failure;
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        }
+        if (t != null) {
+            throw new IOException("Unable to write optimization results", t);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.idorsia.research.chem.hyperspace.localopt;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Least recently used cache with a fixed capacity: an access ordered LinkedHashMap behind a lock.
+ * Values are computed by the callers outside of the lock, the lock only guards the map operations.
+ */
+final class BoundedLruCache<K, V> {
+
+    private final int maxEntries;
+    private final LinkedHashMap<K, V> entries;
+
+    BoundedLruCache(int maxEntries) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.entries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > BoundedLruCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return the value, or null. A hit marks the entry as recently used.
+     */
+    synchronized V get(K key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Adds or replaces the value, evicts the least recently used entry if the cache is full.
+     */
+    synchronized void put(K key, V value) {
+        entries.put(key, value);
+    }
+
+    /**
+     * @return the existing value, which is kept and marked as recently used, or null if the value was added
+     */
+    synchronized V putIfAbsent(K key, V value) {
+        V existing = entries.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        entries.put(key, value);
+        return null;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * @return a copy of all entries, least recently used first
+     */
+    synchronized List<Map.Entry<K, V>> snapshot() {
+        List<Map.Entry<K, V>> copy = new ArrayList<>(entries.size());
+        for (Map.Entry<K, V> entry : entries.entrySet()) {
+            copy.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue()));
+        }
+        return copy;
+    }
+}
@@ -10,6 +10,11 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 public class LocalBeamOptimizer {
@@ -17,6 +22,9 @@ public class LocalBeamOptimizer {
     private final SynthonSetAccessor provider;
     private final AssemblyScorer scorer;
     private final NeighborSampler neighborSampler;
+    private final AssemblyScoreCache sharedScoreCache;
+    private final Executor expansionExecutor;
+    private final int expansionParallelism;
 
     public LocalBeamOptimizer(SynthonSetAccessor provider, AssemblyScorer scorer) {
         this(provider, scorer, new SkelSpheresNeighborSampler());
@@ -25,9 +33,40 @@ public class LocalBeamOptimizer {
     public LocalBeamOptimizer(SynthonSetAccessor provider,
                               AssemblyScorer scorer,
                               NeighborSampler neighborSampler) {
+        this(provider, scorer, neighborSampler, null);
+    }
+
+    /**
+     * @param sharedScoreCache scores shared across optimize(..) calls, must belong to the given scorer, or null
+     */
+    public LocalBeamOptimizer(SynthonSetAccessor provider,
+                              AssemblyScorer scorer,
+                              NeighborSampler neighborSampler,
+                              AssemblyScoreCache sharedScoreCache) {
+        this(provider, scorer, neighborSampler, sharedScoreCache, null, 0);
+    }
+
+    /**
+     * Scores the candidates of every position expansion concurrently. Neighbors are still sampled
+     * on the calling thread in beam order and the new beam is selected in that order, so the result
+     * is the same as with sequential scoring. The calling thread scores candidates as well, a busy
+     * executor only reduces the parallelism. The scorer must be thread-safe.
+     *
+     * @param expansionExecutor executor shared by all optimize(..) calls, null scores on the calling thread
+     * @param expansionParallelism number of executor tasks per expansion, in addition to the calling thread
+     */
+    public LocalBeamOptimizer(SynthonSetAccessor provider,
+                              AssemblyScorer scorer,
+                              NeighborSampler neighborSampler,
+                              AssemblyScoreCache sharedScoreCache,
+                              Executor expansionExecutor,
+                              int expansionParallelism) {
         this.provider = provider;
         this.scorer = scorer;
         this.neighborSampler = neighborSampler;
+        this.sharedScoreCache = sharedScoreCache;
+        this.expansionExecutor = expansionParallelism > 0 ? expansionExecutor : null;
+        this.expansionParallelism = Math.max(0, expansionParallelism);
     }
 
     public LocalOptimizationResult optimize(SeedAssembly seed, LocalOptimizationRequest request) {
@@ -41,7 +80,8 @@ public class LocalBeamOptimizer {
         LocalOptimizationLogger logger = new LocalOptimizationLogger(request.getLogLevel(), seed.getFragmentIds());
 
         Map<String, LocalOptimizationResult.BeamEntry> scoreCache = new HashMap<>();
-        LocalOptimizationResult.BeamEntry seedEntry = scoreCandidate(seed.getReactionId(), seedFragments, scoreCache, 0, logger);
+        LocalOptimizationResult.BeamEntry seedEntry = scoreCandidate(seed.getReactionId(), seedFragments, scoreCache, 0, logger,
+                Double.NEGATIVE_INFINITY);
         if (seedEntry == null) {
             logger.logSeedScoreFailed(seed.getReactionId(), seed.getInitialScore());
             LocalOptimizationResult.OptimizationStats stats = new LocalOptimizationResult.OptimizationStats(
@@ -124,9 +164,13 @@ public class LocalBeamOptimizer {
                                                                    Map<String, LocalOptimizationResult.BeamEntry> scoreCache,
                                                                    Random rng,
                                                                    LocalOptimizationLogger logger) {
-        Map<String, LocalOptimizationResult.BeamEntry> candidates = new LinkedHashMap<>();
+        // sample all neighbors first, in beam order, then score the new assemblies together
+        List<String> slotKeys = new ArrayList<>();
+        List<LocalOptimizationResult.BeamEntry> slotEntries = new ArrayList<>();
+        Map<String, List<SynthonSpace.FragId>> unscored = new LinkedHashMap<>();
         for (LocalOptimizationResult.BeamEntry entry : beam) {
-            candidates.put(buildKey(reactionId, entry.getFragments()), entry);
+            slotKeys.add(buildKey(reactionId, entry.getFragments()));
+            slotEntries.add(entry);
             List<SynthonSpace.FragId> sampled = neighborSampler.sampleNeighbors(reactionId,
                     positionKey,
                     entry.getFragments().get(positionIndex),
@@ -140,14 +184,37 @@ public class LocalBeamOptimizer {
                 List<SynthonSpace.FragId> updated = new ArrayList<>(entry.getFragments());
                 updated.set(positionIndex, neighbor);
                 String key = buildKey(reactionId, updated);
-                if (candidates.containsKey(key)) {
-                    continue;
+                slotKeys.add(key);
+                slotEntries.add(null);
+                if (!scoreCache.containsKey(key)) {
+                    unscored.putIfAbsent(key, updated);
                 }
-                LocalOptimizationResult.BeamEntry scored = scoreCandidate(reactionId, updated, scoreCache, positionIndex + 1, logger);
+            }
+        }
+        Map<String, LocalOptimizationResult.BeamEntry> newScores = scoreAll(reactionId,
+                unscored, positionIndex + 1, logger, beamCutoff(beam, request));
+
+        Map<String, LocalOptimizationResult.BeamEntry> candidates = new LinkedHashMap<>();
+        for (int slot = 0; slot < slotKeys.size(); slot++) {
+            String key = slotKeys.get(slot);
+            LocalOptimizationResult.BeamEntry beamEntry = slotEntries.get(slot);
+            if (beamEntry != null) {
+                candidates.put(key, beamEntry);
+                continue;
+            }
+            if (candidates.containsKey(key)) {
+                continue;
+            }
+            LocalOptimizationResult.BeamEntry scored = scoreCache.get(key);
+            if (scored == null) {
+                scored = newScores.get(key);
                 if (scored != null) {
-                    candidates.put(key, scored);
+                    scoreCache.put(key, scored);
                 }
             }
+            if (scored != null) {
+                candidates.put(key, scored);
+            }
         }
         if (candidates.isEmpty()) {
             return Collections.emptyList();
@@ -157,6 +224,23 @@ public class LocalBeamOptimizer {
         return selectBeam(sorted, request.getBeamSize(), request.getPerPositionCap());
     }
 
+    /**
+     * The current beam entries compete with the new candidates, so once the beam is full a candidate
+     * scoring below its weakest entry can only enter the next beam in place of stronger candidates
+     * that exceed the per-position cap. Cutoff-aware scorers may skip such candidates. The cutoff is
+     * fixed for the whole expansion, pruning then does not depend on the scoring order.
+     */
+    private static double beamCutoff(List<LocalOptimizationResult.BeamEntry> beam, LocalOptimizationRequest request) {
+        if (request.isReportAllCandidates() || beam.size() < request.getBeamSize()) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        double cutoff = Double.POSITIVE_INFINITY;
+        for (LocalOptimizationResult.BeamEntry entry : beam) {
+            cutoff = Math.min(cutoff, entry.getScore());
+        }
+        return cutoff;
+    }
+
     private List<LocalOptimizationResult.BeamEntry> selectBeam(List<LocalOptimizationResult.BeamEntry> candidates,
                                                                int beamSize,
                                                                int perPositionCap) {
@@ -231,21 +315,117 @@ public class LocalBeamOptimizer {
                                                              List<SynthonSpace.FragId> fragments,
                                                              Map<String, LocalOptimizationResult.BeamEntry> cache,
                                                              int originatingRound,
-                                                             LocalOptimizationLogger logger) {
+                                                             LocalOptimizationLogger logger,
+                                                             double beamCutoff) {
         String key = buildKey(reactionId, fragments);
         LocalOptimizationResult.BeamEntry cached = cache.get(key);
         if (cached != null) {
             return cached;
         }
-        LocalOptimizationResult.BeamEntry entry = scorer.score(reactionId, fragments, originatingRound, logger);
+        LocalOptimizationResult.BeamEntry entry = scoreUncached(reactionId, fragments, originatingRound, logger, beamCutoff);
         if (entry != null) {
             cache.put(key, entry);
         }
         return entry;
     }
 
+    /**
+     * Scores the assemblies on the calling thread and, if configured, on the expansion executor.
+     *
+     * @return scores by key, failed and pruned assemblies are missing
+     */
+    private Map<String, LocalOptimizationResult.BeamEntry> scoreAll(String reactionId,
+                                                                    Map<String, List<SynthonSpace.FragId>> assemblies,
+                                                                    int originatingRound,
+                                                                    LocalOptimizationLogger logger,
+                                                                    double beamCutoff) {
+        List<String> keys = new ArrayList<>(assemblies.keySet());
+        LocalOptimizationResult.BeamEntry[] scores = new LocalOptimizationResult.BeamEntry[keys.size()];
+        if (expansionExecutor == null || keys.size() < 2) {
+            for (int i = 0; i < keys.size(); i++) {
+                scores[i] = scoreUncached(reactionId, assemblies.get(keys.get(i)), originatingRound, logger, beamCutoff);
+            }
+        } else {
+            AtomicInteger next = new AtomicInteger();
+            CountDownLatch done = new CountDownLatch(keys.size());
+            AtomicReference<RuntimeException> failure = new AtomicReference<>();
+            Runnable worker = () -> {
+                int i;
+                while ((i = next.getAndIncrement()) < keys.size()) {
+                    try {
+                        scores[i] = scoreUncached(reactionId, assemblies.get(keys.get(i)), originatingRound, logger, beamCutoff);
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            };
+            int helpers = Math.min(expansionParallelism, keys.size() - 1);
+            for (int h = 0; h < helpers; h++) {
+                try {
+                    expansionExecutor.execute(worker);
+                } catch (RejectedExecutionException e) {
+                    break;
+                }
+            }
+            worker.run();
+            awaitUninterruptibly(done);
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+        }
+        Map<String, LocalOptimizationResult.BeamEntry> result = new HashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            if (scores[i] != null) {
+                result.put(keys.get(i), scores[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Waits for helper tasks that are still scoring, they write into arrays owned by the caller.
+     */
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private LocalOptimizationResult.BeamEntry scoreUncached(String reactionId,
+                                                            List<SynthonSpace.FragId> fragments,
+                                                            int originatingRound,
+                                                            LocalOptimizationLogger logger,
+                                                            double beamCutoff) {
+        LocalOptimizationResult.BeamEntry entry;
+        if (sharedScoreCache != null) {
+            boolean[] scoredHere = new boolean[1];
+            entry = sharedScoreCache.getOrScore(reactionId, fragments, originatingRound, () -> {
+                scoredHere[0] = true;
+                return scorer.score(reactionId, fragments, originatingRound, logger, beamCutoff);
+            });
+            if (entry != null && !scoredHere[0]) {
+                logger.logCandidate(fragments.stream().map(f -> f.fragment_id).collect(Collectors.toList()),
+                        entry.getScore(), entry.getIdcode(), originatingRound);
+            }
+        } else {
+            entry = scorer.score(reactionId, fragments, originatingRound, logger, beamCutoff);
+        }
+        return entry == AssemblyScorer.PRUNED ? null : entry;
+    }
+
     private String buildKey(String reactionId, List<SynthonSpace.FragId> fragments) {
-        return reactionId + ":" + fragments.stream().map(f -> f.fragment_id).collect(Collectors.joining("|"));
+        return AssemblyScoreCache.buildKey(reactionId, fragments);
     }
 
     private long seedKey(SeedAssembly seed) {
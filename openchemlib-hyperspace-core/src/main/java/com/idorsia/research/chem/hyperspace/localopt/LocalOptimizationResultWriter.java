@@ -16,6 +16,7 @@ public class LocalOptimizationResultWriter implements AutoCloseable {
     private final BufferedWriter writer;
     private final Function<String, String> reactionSourceProvider;
     private final boolean includeSourceSpaceColumn;
+    private final boolean flushEachResult;
     private boolean headerWritten = false;
 
     public LocalOptimizationResultWriter(Path outputPath) throws IOException {
@@ -30,6 +31,19 @@ public class LocalOptimizationResultWriter implements AutoCloseable {
         this.writer = Files.newBufferedWriter(outputPath, StandardCharsets.UTF_8);
         this.reactionSourceProvider = reactionSourceProvider;
         this.includeSourceSpaceColumn = reactionSourceProvider != null;
+        this.flushEachResult = true;
+    }
+
+    /**
+     * Writes to an already opened writer. Without flushEachResult the caller decides when to flush.
+     */
+    public LocalOptimizationResultWriter(BufferedWriter writer,
+                                         Function<String, String> reactionSourceProvider,
+                                         boolean flushEachResult) {
+        this.writer = writer;
+        this.reactionSourceProvider = reactionSourceProvider;
+        this.includeSourceSpaceColumn = reactionSourceProvider != null;
+        this.flushEachResult = flushEachResult;
     }
 
     public void write(LocalOptimizationResult result) throws IOException {
@@ -64,6 +78,19 @@ public class LocalOptimizationResultWriter implements AutoCloseable {
             writer.write(String.join(";", result.getSeedFragments()));
             writer.newLine();
         }
+        if (flushEachResult) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Suppresses the header, e.g. when appending to a file that already has one.
+     */
+    public void skipHeader() {
+        headerWritten = true;
+    }
+
+    public void flush() throws IOException {
         writer.flush();
     }
 
@@ -0,0 +1,165 @@
+package com.idorsia.research.chem.hyperspace.localopt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Precomputed k-nearest-neighbor lists per synthon set, stored in a sidecar file next to the space.
+ * <p>
+ * Every synthon set of a reaction has its fragment ids and, per fragment, the indices of its k most
+ * similar fragments in descending similarity (the fragment itself excluded). Lists of fragments
+ * without descriptor are empty. Built offline by NeighborGraphBuilder, used by
+ * SkelSpheresNeighborSampler to look up neighborhoods instead of ranking the whole set.
+ */
+public final class NeighborGraph {
+
+    private static final int MAGIC = 0x48534E47; // "HSNG"
+    private static final int VERSION = 1;
+
+    private final Map<String, SetGraph> sets = new ConcurrentHashMap<>();
+
+    public static final class SetGraph {
+        private final String[] fragmentIds;
+        private final int k;
+        private final int[] neighbors;
+        private final Map<String, Integer> indexById;
+
+        /**
+         * @param neighbors fragmentIds.length * k indices, lists shorter than k are padded with -1
+         */
+        public SetGraph(List<String> fragmentIds, int k, int[] neighbors) {
+            if (neighbors.length != fragmentIds.size() * k) {
+                throw new IllegalArgumentException("Expected " + fragmentIds.size() * k + " neighbor entries, got " + neighbors.length);
+            }
+            this.fragmentIds = fragmentIds.toArray(new String[0]);
+            this.k = k;
+            this.neighbors = neighbors;
+            this.indexById = new HashMap<>(this.fragmentIds.length * 2);
+            for (int i = 0; i < this.fragmentIds.length; i++) {
+                indexById.put(this.fragmentIds[i], i);
+            }
+        }
+
+        public int size() {
+            return fragmentIds.length;
+        }
+
+        public int getK() {
+            return k;
+        }
+
+        public String getFragmentId(int index) {
+            return fragmentIds[index];
+        }
+
+        /**
+         * @return index of the fragment, or -1 if it is not part of the set
+         */
+        public int indexOf(String fragmentId) {
+            Integer index = indexById.get(fragmentId);
+            return index == null ? -1 : index;
+        }
+
+        /**
+         * @return the rank-th neighbor of the fragment, or -1 if it has fewer neighbors
+         */
+        public int neighbor(int index, int rank) {
+            return neighbors[index * k + rank];
+        }
+    }
+
+    public void put(String reactionId, int fragIdx, SetGraph graph) {
+        sets.put(key(reactionId, fragIdx), graph);
+    }
+
+    /**
+     * @return the graph of the synthon set, or null if it was not built
+     */
+    public SetGraph get(String reactionId, int fragIdx) {
+        return sets.get(key(reactionId, fragIdx));
+    }
+
+    public int getSetCount() {
+        return sets.size();
+    }
+
+    private static String key(String reactionId, int fragIdx) {
+        return reactionId + ":" + fragIdx;
+    }
+
+    /**
+     * Writes all sets to a temporary file and moves it over the target.
+     */
+    public void write(Path path) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(Files.newOutputStream(tmp), 1 << 16)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sets.size());
+            for (Map.Entry<String, SetGraph> entry : sets.entrySet()) {
+                int split = entry.getKey().lastIndexOf(':');
+                out.writeUTF(entry.getKey().substring(0, split));
+                out.writeInt(Integer.parseInt(entry.getKey().substring(split + 1)));
+                SetGraph graph = entry.getValue();
+                out.writeInt(graph.fragmentIds.length);
+                out.writeInt(graph.k);
+                for (String fragmentId : graph.fragmentIds) {
+                    out.writeUTF(fragmentId);
+                }
+                for (int neighbor : graph.neighbors) {
+                    out.writeInt(neighbor);
+                }
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static NeighborGraph read(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(Files.newInputStream(path), 1 << 16)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a neighbor graph: " + path);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported neighbor graph version " + version + ": " + path);
+            }
+            NeighborGraph graph = new NeighborGraph();
+            int setCount = in.readInt();
+            for (int s = 0; s < setCount; s++) {
+                String reactionId = in.readUTF();
+                int fragIdx = in.readInt();
+                int size = in.readInt();
+                int k = in.readInt();
+                String[] fragmentIds = new String[size];
+                for (int i = 0; i < size; i++) {
+                    fragmentIds[i] = in.readUTF();
+                }
+                int[] neighbors = new int[size * k];
+                for (int i = 0; i < neighbors.length; i++) {
+                    neighbors[i] = in.readInt();
+                }
+                graph.put(reactionId, fragIdx, new SetGraph(Arrays.asList(fragmentIds), k, neighbors));
+            }
+            return graph;
+        }
+    }
+}
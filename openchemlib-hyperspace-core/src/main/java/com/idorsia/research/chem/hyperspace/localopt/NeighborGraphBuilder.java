@@ -0,0 +1,310 @@
+package com.idorsia.research.chem.hyperspace.localopt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Builds the k-nearest-neighbor lists of one synthon set for a NeighborGraph.
+ * <p>
+ * Sets up to exactThreshold synthons are ranked exactly. Larger sets use NN-descent: every synthon
+ * starts with k random neighbors, then the neighbors of neighbors (in both directions) are compared
+ * and the lists improved until an iteration changes fewer than delta * n * k entries. The result is
+ * approximate; the random seed makes it reproducible.
+ */
+public final class NeighborGraphBuilder {
+
+    @FunctionalInterface
+    public interface Similarity {
+        double similarity(int[] a, int[] b);
+    }
+
+    private final int k;
+    private final Similarity similarity;
+    private int exactThreshold = 2000;
+    private int maxIterations = 12;
+    private double sampleRate = 0.5;
+    private double delta = 0.001;
+    private long randomSeed = 13L;
+
+    /**
+     * @param k neighbors per synthon
+     * @param similarity descriptor similarity, must be thread-safe if sets are built concurrently
+     */
+    public NeighborGraphBuilder(int k, Similarity similarity) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+        this.k = k;
+        this.similarity = similarity;
+    }
+
+    /**
+     * @param size sets up to this size are ranked exactly
+     */
+    public NeighborGraphBuilder withExactThreshold(int size) {
+        this.exactThreshold = size;
+        return this;
+    }
+
+    public NeighborGraphBuilder withMaxIterations(int iterations) {
+        this.maxIterations = iterations;
+        return this;
+    }
+
+    /**
+     * @param rate fraction of k new and reverse neighbors that take part in the local joins
+     */
+    public NeighborGraphBuilder withSampleRate(double rate) {
+        this.sampleRate = rate;
+        return this;
+    }
+
+    /**
+     * @param delta NN-descent stops once an iteration changes fewer than delta * n * k entries
+     */
+    public NeighborGraphBuilder withDelta(double delta) {
+        this.delta = delta;
+        return this;
+    }
+
+    public NeighborGraphBuilder withRandomSeed(long seed) {
+        this.randomSeed = seed;
+        return this;
+    }
+
+    /**
+     * @param descriptors descriptor per fragment, null for fragments whose descriptor failed
+     */
+    public NeighborGraph.SetGraph build(List<String> fragmentIds, List<int[]> descriptors) {
+        if (fragmentIds.size() != descriptors.size()) {
+            throw new IllegalArgumentException("Fragment ids and descriptors differ in size");
+        }
+        int n = fragmentIds.size();
+        int[][] desc = descriptors.toArray(new int[0][]);
+        int[] valid = validIndices(desc);
+        NeighborList[] lists = new NeighborList[n];
+        for (int i = 0; i < n; i++) {
+            lists[i] = new NeighborList(Math.min(k, Math.max(0, valid.length - 1)));
+        }
+        if (valid.length <= exactThreshold || valid.length <= k + 1) {
+            buildExact(desc, valid, lists);
+        } else {
+            buildNNDescent(desc, valid, lists, new Random(randomSeed ^ n));
+        }
+        int[] neighbors = new int[n * k];
+        for (int i = 0; i < n; i++) {
+            lists[i].writeSorted(neighbors, i * k, k);
+        }
+        return new NeighborGraph.SetGraph(fragmentIds, k, neighbors);
+    }
+
+    private static int[] validIndices(int[][] desc) {
+        int count = 0;
+        for (int[] d : desc) {
+            if (d != null) {
+                count++;
+            }
+        }
+        int[] valid = new int[count];
+        int next = 0;
+        for (int i = 0; i < desc.length; i++) {
+            if (desc[i] != null) {
+                valid[next++] = i;
+            }
+        }
+        return valid;
+    }
+
+    private void buildExact(int[][] desc, int[] valid, NeighborList[] lists) {
+        for (int a = 0; a < valid.length; a++) {
+            for (int b = a + 1; b < valid.length; b++) {
+                double s = similarity.similarity(desc[valid[a]], desc[valid[b]]);
+                lists[valid[a]].offer(valid[b], s);
+                lists[valid[b]].offer(valid[a], s);
+            }
+        }
+    }
+
+    private void buildNNDescent(int[][] desc, int[] valid, NeighborList[] lists, Random rng) {
+        int n = lists.length;
+        for (int node : valid) {
+            NeighborList list = lists[node];
+            while (list.size < list.capacity) {
+                int other = valid[rng.nextInt(valid.length)];
+                if (other != node && !list.contains(other)) {
+                    list.offer(other, similarity.similarity(desc[node], desc[other]));
+                }
+            }
+        }
+        int sampleSize = Math.max(1, (int) Math.round(sampleRate * k));
+        for (int iteration = 0; iteration < maxIterations; iteration++) {
+            List<List<Integer>> newNeighbors = new ArrayList<>(n);
+            List<List<Integer>> oldNeighbors = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                newNeighbors.add(new ArrayList<>());
+                oldNeighbors.add(new ArrayList<>());
+            }
+            // sample the new forward neighbors, they are old from now on
+            for (int node : valid) {
+                NeighborList list = lists[node];
+                List<Integer> fresh = new ArrayList<>();
+                for (int j = 0; j < list.size; j++) {
+                    if (list.isNew[j]) {
+                        fresh.add(j);
+                    } else {
+                        oldNeighbors.get(node).add(list.ids[j]);
+                    }
+                }
+                shuffle(fresh, rng);
+                for (int f = 0; f < fresh.size(); f++) {
+                    int slot = fresh.get(f);
+                    if (f < sampleSize) {
+                        newNeighbors.get(node).add(list.ids[slot]);
+                        list.isNew[slot] = false;
+                    }
+                }
+            }
+            // add sampled reverse neighbors
+            List<List<Integer>> reverseNew = new ArrayList<>(n);
+            List<List<Integer>> reverseOld = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                reverseNew.add(new ArrayList<>());
+                reverseOld.add(new ArrayList<>());
+            }
+            for (int node : valid) {
+                for (int other : newNeighbors.get(node)) {
+                    reverseNew.get(other).add(node);
+                }
+                for (int other : oldNeighbors.get(node)) {
+                    reverseOld.get(other).add(node);
+                }
+            }
+            long updates = 0;
+            for (int node : valid) {
+                List<Integer> fresh = newNeighbors.get(node);
+                List<Integer> old = oldNeighbors.get(node);
+                addSample(fresh, reverseNew.get(node), sampleSize, rng);
+                addSample(old, reverseOld.get(node), sampleSize, rng);
+                // local join: compare new with new and new with old neighbors of this node
+                for (int a = 0; a < fresh.size(); a++) {
+                    int u = fresh.get(a);
+                    for (int b = a + 1; b < fresh.size(); b++) {
+                        updates += join(desc, lists, u, fresh.get(b));
+                    }
+                    for (int v : old) {
+                        updates += join(desc, lists, u, v);
+                    }
+                }
+            }
+            if (updates < delta * valid.length * k) {
+                break;
+            }
+        }
+    }
+
+    private int join(int[][] desc, NeighborList[] lists, int u, int v) {
+        if (u == v || (lists[u].contains(v) && lists[v].contains(u))) {
+            return 0;
+        }
+        double s = similarity.similarity(desc[u], desc[v]);
+        return (lists[u].offer(v, s) ? 1 : 0) + (lists[v].offer(u, s) ? 1 : 0);
+    }
+
+    private static void addSample(List<Integer> target, List<Integer> candidates, int sampleSize, Random rng) {
+        shuffle(candidates, rng);
+        for (int i = 0; i < Math.min(sampleSize, candidates.size()); i++) {
+            int candidate = candidates.get(i);
+            if (!target.contains(candidate)) {
+                target.add(candidate);
+            }
+        }
+    }
+
+    private static void shuffle(List<Integer> list, Random rng) {
+        for (int i = list.size() - 1; i > 0; i--) {
+            int j = rng.nextInt(i + 1);
+            Integer tmp = list.get(i);
+            list.set(i, list.get(j));
+            list.set(j, tmp);
+        }
+    }
+
+    /**
+     * Bounded list of the most similar fragments seen so far, ties go to the lower index.
+     */
+    private static final class NeighborList {
+        private final int capacity;
+        private final int[] ids;
+        private final double[] sims;
+        private final boolean[] isNew;
+        private int size;
+        private int worst = -1;
+
+        private NeighborList(int capacity) {
+            this.capacity = capacity;
+            this.ids = new int[capacity];
+            this.sims = new double[capacity];
+            this.isNew = new boolean[capacity];
+        }
+
+        private boolean contains(int id) {
+            for (int i = 0; i < size; i++) {
+                if (ids[i] == id) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return true if the fragment was added
+         */
+        private boolean offer(int id, double similarity) {
+            if (capacity == 0) {
+                return false;
+            }
+            if (size == capacity && !better(id, similarity, ids[worst], sims[worst])) {
+                return false;
+            }
+            if (contains(id)) {
+                return false;
+            }
+            int slot = size < capacity ? size++ : worst;
+            ids[slot] = id;
+            sims[slot] = similarity;
+            isNew[slot] = true;
+            worst = 0;
+            for (int i = 1; i < size; i++) {
+                if (better(ids[worst], sims[worst], ids[i], sims[i])) {
+                    worst = i;
+                }
+            }
+            return true;
+        }
+
+        private static boolean better(int idA, double simA, int idB, double simB) {
+            return compare(idA, simA, idB, simB) < 0;
+        }
+
+        /**
+         * Higher similarity first, ties by the lower id. A total order, equal entries compare as 0.
+         */
+        private static int compare(int idA, double simA, int idB, double simB) {
+            int bySimilarity = Double.compare(simB, simA);
+            return bySimilarity != 0 ? bySimilarity : Integer.compare(idA, idB);
+        }
+
+        private void writeSorted(int[] target, int offset, int k) {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> compare(ids[a], sims[a], ids[b], sims[b]));
+            for (int r = 0; r < k; r++) {
+                target[offset + r] = r < size ? ids[order[r]] : -1;
+            }
+        }
+    }
+}
@@ -7,11 +7,8 @@ import com.actelion.research.chem.conf.ConformerSetGenerator;
 import com.actelion.research.chem.conf.TorsionDB;
 import com.actelion.research.chem.phesa.DescriptorHandlerShape;
 import com.actelion.research.chem.phesa.PheSAMolecule;
-import com.idorsia.research.chem.hyperspace.SynthonAssembler;
 import com.idorsia.research.chem.hyperspace.SynthonSpace;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
@@ -19,13 +16,15 @@ import java.util.stream.Collectors;
 /**
  * Default AssemblyScorer implementation that aligns assemblies with a query PheSA descriptor.
  */
-public class PheSAAssemblyScorer implements AssemblyScorer {
+public class PheSAAssemblyScorer implements AssembledMoleculeScorer {
 
     private final PheSAMolecule queryDescriptor;
     private final double minSimilarity;
     private final LongAdder comparisonCounter;
+    private final SynthonMoleculeCache synthonCache;
+    private final AssemblySizePrescreen prescreen;
     private final ThreadLocal<DescriptorHandlerShape> descriptorHandlers = ThreadLocal.withInitial(DescriptorHandlerShape::new);
-    private final ThreadLocal<ConformerSetGenerator> conformerGenerators = ThreadLocal.withInitial(() -> new ConformerSetGenerator(1));
+    private final ThreadLocal<ConformerSetGenerator> conformerGenerators;
 
     public PheSAAssemblyScorer(PheSAMolecule queryDescriptor, double minSimilarity) {
         this(queryDescriptor, minSimilarity, null);
@@ -34,29 +33,57 @@ public class PheSAAssemblyScorer implements AssemblyScorer {
     public PheSAAssemblyScorer(PheSAMolecule queryDescriptor,
                                double minSimilarity,
                                LongAdder comparisonCounter) {
+        this(queryDescriptor, minSimilarity, comparisonCounter, null, AssemblySizePrescreen.disabled());
+    }
+
+    /**
+     * @param synthonCache parsed synthons shared between scorers, or null to parse every synthon
+     * @param prescreen 2D filter that runs before conformer generation
+     */
+    public PheSAAssemblyScorer(PheSAMolecule queryDescriptor,
+                               double minSimilarity,
+                               LongAdder comparisonCounter,
+                               SynthonMoleculeCache synthonCache,
+                               AssemblySizePrescreen prescreen) {
+        this(queryDescriptor, minSimilarity, comparisonCounter, synthonCache, prescreen, 1);
+    }
+
+    /**
+     * @param maxConformers conformers generated per assembly, the best aligned one gives the score
+     */
+    public PheSAAssemblyScorer(PheSAMolecule queryDescriptor,
+                               double minSimilarity,
+                               LongAdder comparisonCounter,
+                               SynthonMoleculeCache synthonCache,
+                               AssemblySizePrescreen prescreen,
+                               int maxConformers) {
         this.queryDescriptor = queryDescriptor;
         this.minSimilarity = minSimilarity;
         this.comparisonCounter = comparisonCounter;
+        this.synthonCache = synthonCache;
+        this.prescreen = prescreen == null ? AssemblySizePrescreen.disabled() : prescreen;
+        int conformers = Math.max(1, maxConformers);
+        this.conformerGenerators = ThreadLocal.withInitial(() -> new ConformerSetGenerator(conformers));
     }
 
     @Override
-    public LocalOptimizationResult.BeamEntry score(String reactionId,
-                                                   List<SynthonSpace.FragId> fragments,
-                                                   int originatingRound,
-                                                   LocalOptimizationLogger logger) {
+    public AssembledMolecule assemble(List<SynthonSpace.FragId> fragments) {
+        return AssembledMolecule.assemble(fragments, synthonCache);
+    }
+
+    @Override
+    public LocalOptimizationResult.BeamEntry scoreAssembled(List<SynthonSpace.FragId> fragments,
+                                                            AssembledMolecule assembly,
+                                                            int originatingRound,
+                                                            LocalOptimizationLogger logger) {
         try {
-            List<StereoMolecule> parts = new ArrayList<>(fragments.size());
-            for (SynthonSpace.FragId frag : fragments) {
-                StereoMolecule mol = new StereoMolecule();
-                SynchronizedIDCodeParser.parse(mol, frag.idcode);
-                mol.ensureHelperArrays(Molecule.cHelperCIP);
-                parts.add(mol);
+            int atomCount = assembly.getAtoms();
+            if (!prescreen.passes(atomCount)) {
+                return null;
             }
-            StereoMolecule assembled = SynthonAssembler.assembleSynthons_faster(parts);
-            assembled.ensureHelperArrays(Molecule.cHelperCIP);
-            int atomCount = assembled.getAtoms();
-            int rotatable = countRotatableBonds(assembled);
-            ConformerSet conformers = conformerGenerators.get().generateConformerSet(assembled);
+            int rotatable = assembly.getRotatableBonds();
+            // conformer generation works on a copy, later stages may score the same assembly
+            ConformerSet conformers = conformerGenerators.get().generateConformerSet(new StereoMolecule(assembly.getMolecule()));
             if (conformers.isEmpty()) {
                 return null;
             }
@@ -73,19 +100,29 @@ public class PheSAAssemblyScorer implements AssemblyScorer {
                 return null;
             }
             List<String> fragmentIds = fragments.stream().map(f -> f.fragment_id).collect(Collectors.toList());
-            logger.logCandidate(fragmentIds, similarity, assembled.getIDCode(), originatingRound);
+            logger.logCandidate(fragmentIds, similarity, assembly.getIDCode(), originatingRound);
             return new LocalOptimizationResult.BeamEntry(fragments,
                     similarity,
                     atomCount,
                     rotatable,
-                    assembled.getIDCode(),
+                    assembly.getIDCode(),
                     originatingRound);
         } catch (Exception e) {
             return null;
         }
     }
 
-    private int countRotatableBonds(StereoMolecule molecule) {
+    static StereoMolecule parseSynthon(SynthonMoleculeCache synthonCache, String idcode) {
+        if (synthonCache != null) {
+            return synthonCache.get(idcode);
+        }
+        StereoMolecule mol = new StereoMolecule();
+        SynchronizedIDCodeParser.parse(mol, idcode);
+        mol.ensureHelperArrays(Molecule.cHelperCIP);
+        return mol;
+    }
+
+    static int countRotatableBonds(StereoMolecule molecule) {
         molecule.ensureHelperArrays(Molecule.cHelperNeighbours);
         boolean[] rotatable = new boolean[molecule.getBonds()];
         TorsionDB.findRotatableBonds(molecule, true, rotatable);
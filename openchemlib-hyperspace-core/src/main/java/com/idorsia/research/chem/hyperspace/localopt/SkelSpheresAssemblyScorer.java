@@ -0,0 +1,88 @@
+package com.idorsia.research.chem.hyperspace.localopt;
+
+import com.actelion.research.chem.Molecule;
+import com.actelion.research.chem.StereoMolecule;
+import com.actelion.research.chem.descriptor.DescriptorHandlerBinarySkelSpheres;
+import com.idorsia.research.chem.hyperspace.SynthonSpace;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Cheap 2D AssemblyScorer: atom count and rotatable bond filters, then the SkelSpheres similarity
+ * of the assembly to the query molecule. Meant as first stage of a StagedAssemblyScorer; the score
+ * is on a different scale than the PheSA similarity, see StagedAssemblyScorer.CascadeOptions.
+ */
+public class SkelSpheresAssemblyScorer implements AssembledMoleculeScorer {
+
+    private final int[] queryDescriptor;
+    private final double minSimilarity;
+    private final int maxRotatableBonds;
+    private final SynthonMoleculeCache synthonCache;
+    private final AssemblySizePrescreen prescreen;
+    private final ThreadLocal<DescriptorHandlerBinarySkelSpheres> descriptorHandlers =
+            ThreadLocal.withInitial(DescriptorHandlerBinarySkelSpheres::new);
+
+    /**
+     * @param queryMolecule query structure, explicit hydrogens are ignored
+     * @param maxRotatableBonds assemblies with more rotatable bonds are rejected, negative for no limit
+     * @param synthonCache parsed synthons shared between scorers, or null to parse every synthon
+     * @param prescreen atom count filter, see AssemblySizePrescreen
+     */
+    public SkelSpheresAssemblyScorer(StereoMolecule queryMolecule,
+                                     double minSimilarity,
+                                     int maxRotatableBonds,
+                                     SynthonMoleculeCache synthonCache,
+                                     AssemblySizePrescreen prescreen) {
+        StereoMolecule query = new StereoMolecule(queryMolecule);
+        query.removeExplicitHydrogens();
+        query.ensureHelperArrays(Molecule.cHelperCIP);
+        this.queryDescriptor = new DescriptorHandlerBinarySkelSpheres().createDescriptor(query);
+        this.minSimilarity = minSimilarity;
+        this.maxRotatableBonds = maxRotatableBonds;
+        this.synthonCache = synthonCache;
+        this.prescreen = prescreen == null ? AssemblySizePrescreen.disabled() : prescreen;
+    }
+
+    @Override
+    public AssembledMolecule assemble(List<SynthonSpace.FragId> fragments) {
+        return AssembledMolecule.assemble(fragments, synthonCache);
+    }
+
+    @Override
+    public LocalOptimizationResult.BeamEntry scoreAssembled(List<SynthonSpace.FragId> fragments,
+                                                            AssembledMolecule assembly,
+                                                            int originatingRound,
+                                                            LocalOptimizationLogger logger) {
+        try {
+            int atomCount = assembly.getAtoms();
+            if (!prescreen.passes(atomCount)) {
+                return null;
+            }
+            int rotatable = assembly.getRotatableBonds();
+            if (maxRotatableBonds >= 0 && rotatable > maxRotatableBonds) {
+                return null;
+            }
+            DescriptorHandlerBinarySkelSpheres handler = descriptorHandlers.get();
+            int[] descriptor = handler.createDescriptor(assembly.getMolecule());
+            if (handler.calculationFailed(descriptor)) {
+                return null;
+            }
+            double similarity = handler.getSimilarity(queryDescriptor, descriptor);
+            if (similarity < minSimilarity) {
+                return null;
+            }
+            String idcode = assembly.getIDCode();
+            List<String> fragmentIds = fragments.stream().map(f -> f.fragment_id).collect(Collectors.toList());
+            logger.logCandidate(fragmentIds, similarity, idcode, originatingRound);
+            return new LocalOptimizationResult.BeamEntry(fragments,
+                    similarity,
+                    atomCount,
+                    rotatable,
+                    idcode,
+                    originatingRound);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -10,27 +10,45 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * NeighborSampler implementation that ranks synthons by SkelSpheres similarity per fragment.
+ * <p>
+ * With a precomputed NeighborGraph, the top-L neighbors of synthons in sets covered by the graph are
+ * looked up instead of ranked: the center itself followed by its L-1 graph neighbors. Sets that are
+ * missing from the graph or differ from the current synthon set, and pool sizes larger than the
+ * graph's k + 1, are ranked on first use as before, with the same result as the exact graph.
  */
 public class SkelSpheresNeighborSampler implements NeighborSampler {
 
+    private static final ResolvedSet NOT_COVERED = new ResolvedSet(null, null);
+
     private final SynthonDescriptorCache<int[]> descriptorCache;
     private final ThreadLocal<DescriptorHandlerBinarySkelSpheres> descriptorHandlers;
     private final Map<NeighborKey, List<SynthonSpace.FragId>> cache = new ConcurrentHashMap<>();
+    private final NeighborGraph neighborGraph;
+    private final Map<String, ResolvedSet> resolvedSets = new ConcurrentHashMap<>();
 
     public SkelSpheresNeighborSampler() {
         this(null);
     }
 
     public SkelSpheresNeighborSampler(SynthonDescriptorCache<int[]> descriptorCache) {
+        this(descriptorCache, null);
+    }
+
+    /**
+     * @param neighborGraph precomputed neighbor lists, or null to rank every neighborhood on first use
+     */
+    public SkelSpheresNeighborSampler(SynthonDescriptorCache<int[]> descriptorCache, NeighborGraph neighborGraph) {
         this.descriptorHandlers = ThreadLocal.withInitial(DescriptorHandlerBinarySkelSpheres::new);
         this.descriptorCache = descriptorCache != null
                 ? descriptorCache
                 : new SynthonDescriptorCache<>(this::computeDescriptor);
+        this.neighborGraph = neighborGraph;
     }
 
     public SynthonDescriptorCache<int[]> getDescriptorCache() {
@@ -52,9 +70,12 @@ public class SkelSpheresNeighborSampler implements NeighborSampler {
             return Collections.emptyList();
         }
         int neighborPoolSize = request.getNeighborPoolSize();
-        NeighborKey key = new NeighborKey(reactionId, fragIdx, center.fragment_id, neighborPoolSize);
-        List<SynthonSpace.FragId> topNeighbors = cache.computeIfAbsent(key,
-                ignored -> computeNeighbors(center, pool, neighborPoolSize));
+        List<SynthonSpace.FragId> topNeighbors = lookupNeighbors(reactionId, fragIdx, center, pool, neighborPoolSize);
+        if (topNeighbors == null) {
+            NeighborKey key = new NeighborKey(reactionId, fragIdx, center.fragment_id, neighborPoolSize);
+            topNeighbors = cache.computeIfAbsent(key,
+                    ignored -> computeNeighbors(center, pool, neighborPoolSize));
+        }
         if (topNeighbors.isEmpty()) {
             return topNeighbors;
         }
@@ -64,6 +85,62 @@ public class SkelSpheresNeighborSampler implements NeighborSampler {
         return Collections.unmodifiableList(new ArrayList<>(copy.subList(0, sampleSize)));
     }
 
+    /**
+     * @return the center and its graph neighbors, or null if the graph does not cover the request
+     */
+    private List<SynthonSpace.FragId> lookupNeighbors(String reactionId,
+                                                      int fragIdx,
+                                                      SynthonSpace.FragId center,
+                                                      List<SynthonSpace.FragId> pool,
+                                                      int topL) {
+        if (neighborGraph == null) {
+            return null;
+        }
+        ResolvedSet set = resolvedSets.computeIfAbsent(reactionId + ":" + fragIdx,
+                ignored -> resolve(neighborGraph.get(reactionId, fragIdx), pool));
+        if (set == NOT_COVERED || topL <= 0 || topL - 1 > set.graph.getK()) {
+            return null;
+        }
+        int index = set.graph.indexOf(center.fragment_id);
+        if (index < 0) {
+            return null;
+        }
+        List<SynthonSpace.FragId> neighbors = new ArrayList<>(topL);
+        neighbors.add(set.fragments[index]);
+        for (int rank = 0; rank < topL - 1; rank++) {
+            int neighbor = set.graph.neighbor(index, rank);
+            if (neighbor < 0) {
+                break;
+            }
+            neighbors.add(set.fragments[neighbor]);
+        }
+        return neighbors;
+    }
+
+    /**
+     * Maps the graph indices to the FragIds of the pool. The graph is only used if it was built for
+     * exactly the fragments of the pool.
+     */
+    private static ResolvedSet resolve(NeighborGraph.SetGraph graph, List<SynthonSpace.FragId> pool) {
+        if (graph == null || graph.size() != pool.size()) {
+            return NOT_COVERED;
+        }
+        SynthonSpace.FragId[] fragments = new SynthonSpace.FragId[graph.size()];
+        for (SynthonSpace.FragId frag : pool) {
+            int index = graph.indexOf(frag.fragment_id);
+            if (index < 0 || fragments[index] != null) {
+                return NOT_COVERED;
+            }
+            fragments[index] = frag;
+        }
+        return new ResolvedSet(graph, fragments);
+    }
+
+    /**
+     * Ranks the pool by similarity to the center, like the NeighborGraphBuilder: the center comes
+     * first, followed by the topL - 1 most similar other fragments with a descriptor. Similarities
+     * are computed once and only the top-L are sorted; ties keep the pool order.
+     */
     private List<SynthonSpace.FragId> computeNeighbors(SynthonSpace.FragId center,
                                                        List<SynthonSpace.FragId> candidates,
                                                        int topL) {
@@ -72,18 +149,54 @@ public class SkelSpheresNeighborSampler implements NeighborSampler {
         }
         int[] centerDesc = descriptorCache.getOrCompute(center);
         if (centerDesc == null) {
-            return Collections.emptyList();
+            // the graph has no neighbors for fragments without descriptor either
+            return Collections.singletonList(center);
         }
         DescriptorHandlerBinarySkelSpheres handler = descriptorHandlers.get();
-        List<SynthonSpace.FragId> sorted = new ArrayList<>(candidates);
-        sorted.sort(Comparator.comparingDouble((SynthonSpace.FragId f) ->
-                handler.getSimilarity(centerDesc, descriptorCache.getOrCompute(f))).reversed());
-        if (topL > 0 && sorted.size() > topL) {
-            sorted = new ArrayList<>(sorted.subList(0, topL));
+        int n = candidates.size();
+        double[] similarities = new double[n];
+        List<Integer> ranked = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            SynthonSpace.FragId candidate = candidates.get(i);
+            if (candidate.fragment_id.equals(center.fragment_id)) {
+                continue;
+            }
+            int[] desc = descriptorCache.getOrCompute(candidate);
+            if (desc != null) {
+                similarities[i] = handler.getSimilarity(centerDesc, desc);
+                ranked.add(i);
+            }
+        }
+        int limit = topL > 0 ? Math.min(topL - 1, ranked.size()) : ranked.size();
+        Comparator<Integer> byRank = (a, b) -> compareRank(similarities, a, b);
+        // min-heap of the best candidates seen so far, the weakest (lowest similarity, latest index) on top
+        PriorityQueue<Integer> best = new PriorityQueue<>(limit + 1, byRank.reversed());
+        for (int i : ranked) {
+            if (best.size() < limit) {
+                best.add(i);
+            } else if (limit > 0 && byRank.compare(i, best.peek()) < 0) {
+                best.poll();
+                best.add(i);
+            }
+        }
+        List<Integer> order = new ArrayList<>(best);
+        order.sort(byRank);
+        List<SynthonSpace.FragId> sorted = new ArrayList<>(order.size() + 1);
+        sorted.add(center);
+        for (int index : order) {
+            sorted.add(candidates.get(index));
         }
         return Collections.unmodifiableList(sorted);
     }
 
+    /**
+     * Higher similarity first, ties by the lower index. A total order, equal indices compare as 0.
+     */
+    private static int compareRank(double[] similarities, int a, int b) {
+        int bySimilarity = Double.compare(similarities[b], similarities[a]);
+        return bySimilarity != 0 ? bySimilarity : Integer.compare(a, b);
+    }
+
     private int[] computeDescriptor(SynthonSpace.FragId fragId) {
         try {
             StereoMolecule molecule = new StereoMolecule();
@@ -95,6 +208,16 @@ public class SkelSpheresNeighborSampler implements NeighborSampler {
         }
     }
 
+    private static final class ResolvedSet {
+        private final NeighborGraph.SetGraph graph;
+        private final SynthonSpace.FragId[] fragments;
+
+        private ResolvedSet(NeighborGraph.SetGraph graph, SynthonSpace.FragId[] fragments) {
+            this.graph = graph;
+            this.fragments = fragments;
+        }
+    }
+
     private static final class NeighborKey {
         private final String reactionId;
         private final int fragIdx;
@@ -0,0 +1,287 @@
+package com.idorsia.research.chem.hyperspace.localopt;
+
+import com.actelion.research.chem.phesa.PheSAMolecule;
+import com.idorsia.research.chem.hyperspace.SynthonSpace;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * AssemblyScorer that runs a cascade of scorers with increasing cost and fidelity, e.g. a 2D
+ * similarity, a single-conformer PheSA alignment and a multi-conformer PheSA alignment.
+ * <p>
+ * An assembly goes to the next stage if the stage scorer accepts it and its stage score is at least
+ * beamCutoff - cutoffMargin. The margin covers the gap between the cheap score and the final one,
+ * so the thresholds follow the current beam: once the beam is full, only assemblies that may still
+ * enter it reach the expensive stages. A negative margin makes the stage ignore the cutoff. The last
+ * stage gives the result and is the only one that logs candidates.
+ * <p>
+ * The beam cutoff is always on the scale of the last stage, the stage score on the scale of the
+ * stage scorer. For stages with a different similarity, e.g. SkelSpheres before PheSA, the margin is
+ * therefore an offset between two scales and has to be calibrated for that stage, it is not a
+ * tolerance on the final similarity.
+ * <p>
+ * Stages whose scorers are AssembledMoleculeScorers share one assembly per candidate, it is built
+ * by the first of them.
+ * <p>
+ * Rejections by the stage scorers do not depend on the beam and are returned as null, rejections
+ * by the cutoff are returned as {@link AssemblyScorer#PRUNED}.
+ */
+public final class StagedAssemblyScorer implements AssemblyScorer {
+
+    private static final LocalOptimizationLogger SILENT =
+            new LocalOptimizationLogger(LocalOptimizationLogLevel.NONE, Collections.emptyList());
+
+    public static final class Stage {
+        private final String name;
+        private final AssemblyScorer scorer;
+        private final double cutoffMargin;
+        private final LongAdder evaluated = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder pruned = new LongAdder();
+
+        /**
+         * @param cutoffMargin allowed gap between stage score and beam cutoff, in the units of the
+         *                     stage score, negative to ignore the cutoff
+         */
+        public Stage(String name, AssemblyScorer scorer, double cutoffMargin) {
+            this.name = name;
+            this.scorer = scorer;
+            this.cutoffMargin = cutoffMargin;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getEvaluated() {
+            return evaluated.sum();
+        }
+
+        /**
+         * @return assemblies rejected by the stage scorer
+         */
+        public long getRejected() {
+            return rejected.sum();
+        }
+
+        /**
+         * @return assemblies rejected by the beam cutoff
+         */
+        public long getPruned() {
+            return pruned.sum();
+        }
+    }
+
+    /**
+     * Settings of the PheSA cascade created by {@link #pheSACascade}.
+     */
+    public static final class CascadeOptions {
+        private double min2DSimilarity = 0.0;
+        private int maxRotatableBonds = -1;
+        private double cutoffMargin2D = 0.5;
+        private double cutoffMarginSingleConformer = 0.1;
+        private int fullConformers = 16;
+
+        /**
+         * @param similarity min SkelSpheres similarity to the query
+         */
+        public CascadeOptions withMin2DSimilarity(double similarity) {
+            this.min2DSimilarity = similarity;
+            return this;
+        }
+
+        /**
+         * @param bonds max rotatable bonds of an assembly, negative for no limit
+         */
+        public CascadeOptions withMaxRotatableBonds(int bonds) {
+            this.maxRotatableBonds = bonds;
+            return this;
+        }
+
+        /**
+         * The beam cutoff is a PheSA similarity, the default 0.5 only prunes assemblies whose
+         * SkelSpheres similarity is far below it. Tighter margins need a calibration of the
+         * SkelSpheres against the PheSA similarities of the query, e.g. on the logged candidates.
+         *
+         * @param margin allowed gap between SkelSpheres similarity and the PheSA beam cutoff,
+         *               negative to ignore the cutoff
+         */
+        public CascadeOptions withCutoffMargin2D(double margin) {
+            this.cutoffMargin2D = margin;
+            return this;
+        }
+
+        /**
+         * @param margin allowed gap between single-conformer PheSA similarity and beam cutoff, also
+         *               applied to the min similarity. Negative values ignore the cutoff.
+         */
+        public CascadeOptions withCutoffMarginSingleConformer(double margin) {
+            this.cutoffMarginSingleConformer = margin;
+            return this;
+        }
+
+        /**
+         * @param conformers conformers of the final PheSA stage, 1 makes the single-conformer stage final
+         */
+        public CascadeOptions withFullConformers(int conformers) {
+            this.fullConformers = conformers;
+            return this;
+        }
+
+        public void validate() {
+            if (!Double.isFinite(min2DSimilarity) || !Double.isFinite(cutoffMargin2D)
+                    || !Double.isFinite(cutoffMarginSingleConformer)) {
+                throw new IllegalArgumentException("Cascade similarities and margins must be finite");
+            }
+            if (fullConformers <= 0) {
+                throw new IllegalArgumentException("Cascade conformer count must be positive");
+            }
+        }
+
+        /**
+         * @return settings that change cached scores, for the score cache context
+         */
+        public String describe() {
+            return String.format(Locale.ROOT, "cascade:%.3f:%d:%.3f:%d",
+                    min2DSimilarity, maxRotatableBonds, cutoffMarginSingleConformer, fullConformers);
+        }
+    }
+
+    private final List<Stage> stages;
+
+    public StagedAssemblyScorer(List<Stage> stages) {
+        if (stages.isEmpty()) {
+            throw new IllegalArgumentException("At least one scoring stage is required");
+        }
+        this.stages = Collections.unmodifiableList(new ArrayList<>(stages));
+    }
+
+    /**
+     * Creates the cascade 2D similarity with atom count and rotatable bond filters, single-conformer
+     * PheSA, multi-conformer PheSA.
+     *
+     * @param prescreen atom count filter of the 2D stage
+     */
+    public static StagedAssemblyScorer pheSACascade(PheSAMolecule queryDescriptor,
+                                                    double minSimilarity,
+                                                    LongAdder comparisonCounter,
+                                                    SynthonMoleculeCache synthonCache,
+                                                    AssemblySizePrescreen prescreen,
+                                                    CascadeOptions options) {
+        options.validate();
+        List<Stage> stages = new ArrayList<>();
+        stages.add(new Stage("2d",
+                new SkelSpheresAssemblyScorer(queryDescriptor.getMolecule(),
+                        options.min2DSimilarity,
+                        options.maxRotatableBonds,
+                        synthonCache,
+                        prescreen),
+                options.cutoffMargin2D));
+        if (options.fullConformers == 1) {
+            stages.add(new Stage("phesa1",
+                    new PheSAAssemblyScorer(queryDescriptor, minSimilarity, comparisonCounter, synthonCache, null, 1),
+                    -1.0));
+        } else {
+            double singleConformerMin = minSimilarity - Math.max(0.0, options.cutoffMarginSingleConformer);
+            stages.add(new Stage("phesa1",
+                    new PheSAAssemblyScorer(queryDescriptor, singleConformerMin, comparisonCounter, synthonCache, null, 1),
+                    options.cutoffMarginSingleConformer));
+            stages.add(new Stage("phesa" + options.fullConformers,
+                    new PheSAAssemblyScorer(queryDescriptor, minSimilarity, comparisonCounter, synthonCache, null,
+                            options.fullConformers),
+                    -1.0));
+        }
+        return new StagedAssemblyScorer(stages);
+    }
+
+    public List<Stage> getStages() {
+        return stages;
+    }
+
+    /**
+     * @return evaluated/rejected/pruned counts per stage
+     */
+    public String formatStageStats() {
+        return stages.stream()
+                .map(s -> s.name + "=" + s.getEvaluated() + "/" + s.getRejected() + "/" + s.getPruned())
+                .collect(Collectors.joining(" "));
+    }
+
+    @Override
+    public LocalOptimizationResult.BeamEntry score(String reactionId,
+                                                   List<SynthonSpace.FragId> fragments,
+                                                   int originatingRound,
+                                                   LocalOptimizationLogger logger) {
+        return score(reactionId, fragments, originatingRound, logger, Double.NEGATIVE_INFINITY);
+    }
+
+    @Override
+    public LocalOptimizationResult.BeamEntry score(String reactionId,
+                                                   List<SynthonSpace.FragId> fragments,
+                                                   int originatingRound,
+                                                   LocalOptimizationLogger logger,
+                                                   double beamCutoff) {
+        Candidate candidate = new Candidate(reactionId, fragments, originatingRound, beamCutoff);
+        int last = stages.size() - 1;
+        for (int i = 0; i < last; i++) {
+            Stage stage = stages.get(i);
+            LocalOptimizationResult.BeamEntry entry = runStage(stage, candidate, SILENT);
+            if (entry == null || entry == PRUNED) {
+                return entry;
+            }
+            if (stage.cutoffMargin >= 0 && entry.getScore() < beamCutoff - stage.cutoffMargin) {
+                stage.pruned.increment();
+                return PRUNED;
+            }
+        }
+        return runStage(stages.get(last), candidate, logger);
+    }
+
+    private static LocalOptimizationResult.BeamEntry runStage(Stage stage,
+                                                              Candidate candidate,
+                                                              LocalOptimizationLogger logger) {
+        stage.evaluated.increment();
+        LocalOptimizationResult.BeamEntry entry;
+        if (stage.scorer instanceof AssembledMoleculeScorer) {
+            AssembledMoleculeScorer scorer = (AssembledMoleculeScorer) stage.scorer;
+            if (candidate.assembly == null) {
+                candidate.assembly = scorer.assemble(candidate.fragments);
+            }
+            entry = candidate.assembly == null
+                    ? null
+                    : scorer.scoreAssembled(candidate.fragments, candidate.assembly, candidate.originatingRound, logger);
+        } else {
+            entry = stage.scorer.score(candidate.reactionId, candidate.fragments, candidate.originatingRound, logger,
+                    candidate.beamCutoff);
+        }
+        if (entry == PRUNED) {
+            stage.pruned.increment();
+        } else if (entry == null) {
+            stage.rejected.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * One assembly on its way through the stages
+     */
+    private static final class Candidate {
+        private final String reactionId;
+        private final List<SynthonSpace.FragId> fragments;
+        private final int originatingRound;
+        private final double beamCutoff;
+        private AssembledMolecule assembly;
+
+        private Candidate(String reactionId, List<SynthonSpace.FragId> fragments, int originatingRound, double beamCutoff) {
+            this.reactionId = reactionId;
+            this.fragments = fragments;
+            this.originatingRound = originatingRound;
+            this.beamCutoff = beamCutoff;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.idorsia.research.chem.hyperspace.localopt;
+
+import com.actelion.research.chem.Molecule;
+import com.actelion.research.chem.StereoMolecule;
+
+/**
+ * Bounded cache of parsed synthon molecules, shared by scorers and samplers.
+ * <p>
+ * Synthons are parsed once (through the serialized parser) instead of for every assembly they are
+ * part of. The least recently used synthons are evicted once the cache is full. Callers always receive their own copy, so the copies can be assembled concurrently.
+ */
+public final class SynthonMoleculeCache {
+
+    private final BoundedLruCache<String, StereoMolecule> molecules;
+
+    public SynthonMoleculeCache(int maxEntries) {
+        this.molecules = new BoundedLruCache<>(maxEntries);
+    }
+
+    /**
+     * @return a new copy of the parsed synthon, with helper arrays up to cHelperCIP
+     */
+    public StereoMolecule get(String idcode) {
+        StereoMolecule template = molecules.get(idcode);
+        if (template == null) {
+            template = new StereoMolecule();
+            SynchronizedIDCodeParser.parse(template, idcode);
+            template.ensureHelperArrays(Molecule.cHelperCIP);
+            StereoMolecule existing = molecules.putIfAbsent(idcode, template);
+            if (existing != null) {
+                template = existing;
+            }
+        }
+        StereoMolecule copy = new StereoMolecule(template);
+        copy.ensureHelperArrays(Molecule.cHelperCIP);
+        return copy;
+    }
+
+    public int size() {
+        return molecules.size();
+    }
+}
@@ -3,9 +3,14 @@ package com.idorsia.research.chem.hyperspace.rawspace;
 import com.idorsia.research.chem.hyperspace.SynthonSpace;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Utility methods to rehydrate {@link SynthonSpace} instances from {@link RawSynthonSpace} dumps.
@@ -37,16 +42,7 @@ public final class RawSynthonSpaceAssembler {
         for (Map.Entry<String, RawSynthonSpace.ReactionData> entry : rawSpace.getReactions().entrySet()) {
             Map<Integer, List<Object>> molecules = new HashMap<>();
             Map<String, String> idcodeToId = new HashMap<>();
-            entry.getValue().getRawFragmentSets().forEach((fragIdx, fragments) -> {
-                List<Object> set = new ArrayList<>(fragments.size());
-                for (RawSynthon frag : fragments) {
-                    set.add(frag.getIdcode());
-                    if (frag.getFragmentId() != null) {
-                        idcodeToId.put(frag.getIdcode(), frag.getFragmentId());
-                    }
-                }
-                molecules.put(fragIdx, set);
-            });
+            collectMolecules(entry.getValue(), molecules, idcodeToId);
 
             if (applied.validateReactions) {
                 SynthonReactionValidator.validate(molecules);
@@ -61,6 +57,68 @@ public final class RawSynthonSpaceAssembler {
         return space;
     }
 
+    /**
+     * Adds all reactions of the raw space to an already initialized {@link SynthonSpace}, e.g. for
+     * regular vendor updates of a large space. Only the index entries of the new reactions are
+     * created, i.e. the existing space is not rebuilt. Reactions are added concurrently.
+     *
+     * @param space   initialized space, the descriptor of the raw space must match the space descriptor
+     * @param rawUpdate reactions to add, reaction ids must not exist in the space yet
+     * @param validateReactions
+     * @param threads
+     * @return ids of the reactions that were added
+     */
+    public static List<String> addReactions(SynthonSpace space, RawSynthonSpace rawUpdate,
+                                            boolean validateReactions, int threads) throws Exception {
+        List<String> added = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (Map.Entry<String, RawSynthonSpace.ReactionData> entry : rawUpdate.getReactions().entrySet()) {
+                futures.add(executor.submit(() -> {
+                    Map<Integer, List<Object>> molecules = new HashMap<>();
+                    Map<String, String> idcodeToId = new HashMap<>();
+                    collectMolecules(entry.getValue(), molecules, idcodeToId);
+                    if (validateReactions) {
+                        SynthonReactionValidator.validate(molecules);
+                    }
+                    space.addReactionIncremental(entry.getKey(), molecules, idcodeToId, null);
+                    added.add(entry.getKey());
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof Exception) {
+                        throw (Exception) cause;
+                    }
+                    throw ex;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return added;
+    }
+
+    private static void collectMolecules(RawSynthonSpace.ReactionData reaction,
+                                         Map<Integer, List<Object>> molecules,
+                                         Map<String, String> idcodeToId) {
+        reaction.getRawFragmentSets().forEach((fragIdx, fragments) -> {
+            List<Object> set = new ArrayList<>(fragments.size());
+            for (RawSynthon frag : fragments) {
+                set.add(frag.getIdcode());
+                if (frag.getFragmentId() != null) {
+                    idcodeToId.put(frag.getIdcode(), frag.getFragmentId());
+                }
+            }
+            molecules.put(fragIdx, set);
+        });
+    }
+
     private static int parseBits(String rawBits) {
         if (rawBits == null || rawBits.isBlank()) {
             return DEFAULT_BITS;
@@ -11,6 +11,8 @@ import com.actelion.research.chem.phesa.PheSAMolecule;
 import com.idorsia.research.chem.hyperspace.SynthonAssembler;
 import com.idorsia.research.chem.hyperspace.SynthonSpace;
 import com.idorsia.research.chem.hyperspace.downsampling.DownsampledSynthonSpace;
+import com.idorsia.research.chem.hyperspace.localopt.AssemblySizePrescreen;
+import com.idorsia.research.chem.hyperspace.localopt.SynthonMoleculeCache;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -50,12 +52,28 @@ public final class CandidateSampler {
                             Config config,
                             LongAdder comparisonCounter,
                             ReactionSamplingTracker samplingTracker) {
+        this(downsampledSpace, query, config, comparisonCounter, samplingTracker, null, AssemblySizePrescreen.disabled());
+    }
+
+    /**
+     * @param synthonCache parsed synthons shared with the optimizers, or null to parse every synthon
+     * @param prescreen 2D filter that runs before conformer generation
+     */
+    public CandidateSampler(DownsampledSynthonSpace downsampledSpace,
+                            PheSAMolecule query,
+                            Config config,
+                            LongAdder comparisonCounter,
+                            ReactionSamplingTracker samplingTracker,
+                            SynthonMoleculeCache synthonCache,
+                            AssemblySizePrescreen prescreen) {
         this.query = query;
         this.config = config;
         this.comparisonCounter = comparisonCounter;
         this.samplingTracker = samplingTracker;
+        AssemblySizePrescreen effectivePrescreen = prescreen == null ? AssemblySizePrescreen.disabled() : prescreen;
         downsampledSpace.getDownsampledSets().forEach((rxnId, sets) ->
-                samplers.put(rxnId, new ReactionSampler(rxnId, sets, config, comparisonCounter, samplingTracker)));
+                samplers.put(rxnId, new ReactionSampler(rxnId, sets, config, comparisonCounter, samplingTracker,
+                        synthonCache, effectivePrescreen)));
     }
 
     public ScreeningCandidate sample(String reactionId, Random rng) {
@@ -84,6 +102,10 @@ public final class CandidateSampler {
             this.maxRotatableBonds = Math.max(1, maxRotatableBonds);
             this.minSimilarity = minSimilarity;
         }
+
+        public double getMinSimilarity() {
+            return minSimilarity;
+        }
     }
 
     private static final class ReactionSampler {
@@ -98,17 +120,23 @@ public final class CandidateSampler {
         private final Config config;
         private final LongAdder comparisonCounter;
         private final ReactionSamplingTracker samplingTracker;
+        private final SynthonMoleculeCache synthonCache;
+        private final AssemblySizePrescreen prescreen;
 
         private ReactionSampler(String reactionId,
                                 Map<Integer, List<SynthonSpace.FragId>> synthonSets,
                                 Config config,
                                 LongAdder comparisonCounter,
-                                ReactionSamplingTracker samplingTracker) {
+                                ReactionSamplingTracker samplingTracker,
+                                SynthonMoleculeCache synthonCache,
+                                AssemblySizePrescreen prescreen) {
             this.reactionId = reactionId;
             this.synthonSets = synthonSets;
             this.config = config;
             this.comparisonCounter = comparisonCounter;
             this.samplingTracker = samplingTracker;
+            this.synthonCache = synthonCache;
+            this.prescreen = prescreen;
             List<Integer> order = new ArrayList<>(synthonSets.keySet());
             order.sort(Comparator.naturalOrder());
             this.fragOrder = Collections.unmodifiableList(order);
@@ -154,6 +182,9 @@ public final class CandidateSampler {
                 if (rotatable > config.maxRotatableBonds) {
                     continue;
                 }
+                if (!prescreen.passes(atoms)) {
+                    continue;
+                }
 
                 ConformerSetGenerator generator = conformerGenerator.get();
                 ConformerSet conformers = generator.generateConformerSet(assembled);
@@ -193,6 +224,9 @@ public final class CandidateSampler {
         }
 
         private StereoMolecule parse(SynthonSpace.FragId frag) {
+            if (synthonCache != null) {
+                return synthonCache.get(frag.idcode);
+            }
             StereoMolecule molecule = new StereoMolecule();
             parser.get().parse(molecule, frag.idcode);
             molecule.ensureHelperArrays(Molecule.cHelperCIP);
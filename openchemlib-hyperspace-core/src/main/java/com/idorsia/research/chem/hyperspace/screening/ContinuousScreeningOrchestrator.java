@@ -1,18 +1,26 @@
 package com.idorsia.research.chem.hyperspace.screening;
 
+import com.actelion.research.chem.phesa.DescriptorHandlerShape;
 import com.actelion.research.chem.phesa.PheSAMolecule;
 import com.idorsia.research.chem.hyperspace.downsampling.DownsampledSynthonSpace;
+import com.idorsia.research.chem.hyperspace.localopt.AssemblyScoreCache;
+import com.idorsia.research.chem.hyperspace.localopt.AssemblyScorer;
+import com.idorsia.research.chem.hyperspace.localopt.AssemblySizePrescreen;
+import com.idorsia.research.chem.hyperspace.localopt.AsyncResultWriter;
 import com.idorsia.research.chem.hyperspace.localopt.LocalBeamOptimizer;
 import com.idorsia.research.chem.hyperspace.localopt.LocalOptimizationRequest;
 import com.idorsia.research.chem.hyperspace.localopt.LocalOptimizationResult;
-import com.idorsia.research.chem.hyperspace.localopt.LocalOptimizationResultWriter;
+import com.idorsia.research.chem.hyperspace.localopt.NeighborGraph;
 import com.idorsia.research.chem.hyperspace.localopt.PheSAAssemblyScorer;
 import com.idorsia.research.chem.hyperspace.localopt.SeedAssembly;
 import com.idorsia.research.chem.hyperspace.localopt.SkelSpheresNeighborSampler;
+import com.idorsia.research.chem.hyperspace.localopt.StagedAssemblyScorer;
+import com.idorsia.research.chem.hyperspace.localopt.SynthonMoleculeCache;
 import com.idorsia.research.chem.hyperspace.localopt.SynthonSetAccessor;
 import com.idorsia.research.chem.hyperspace.rawspace.RawSynthonSpace;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.util.ArrayList;
@@ -21,16 +29,18 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Chains sampling, optional micro optimization, and full local optimization.
+ * <p>
+ * Every stage has its own bounded queue and worker pool, see ScreeningStage and ScreeningPipeline.
+ * A job moves from stage to stage until it is filtered out or its full optimization result is
+ * written. A full queue blocks the stage before it, so sampling and micro optimization only run as
+ * far ahead of the full optimizers as the queues allow. The queues behind sampling are short, so
+ * the pools react quickly when the full optimizers fall behind.
  */
 public final class ContinuousScreeningOrchestrator implements AutoCloseable {
 
@@ -40,12 +50,10 @@ public final class ContinuousScreeningOrchestrator implements AutoCloseable {
     private final ScreeningMetrics metrics = new ScreeningMetrics();
     private final LocalBeamOptimizer fullOptimizer;
     private final LocalOptimizationRequest fullRequest;
-    private final ThreadPoolExecutor executor;
-    private final LocalOptimizationResultWriter writer;
+    private final ScreeningPipeline<PipelineJob> pipeline;
+    private final AsyncResultWriter writer;
     private final ScheduledExecutorService progressExecutor;
     private final int progressIntervalSeconds;
-    private final AtomicLong jobCounter = new AtomicLong();
-    private final AtomicLong completedJobs = new AtomicLong();
     private final long baseSeed;
     private final AtomicBoolean writerClosed = new AtomicBoolean(false);
     private final AtomicBoolean progressStarted = new AtomicBoolean(false);
@@ -55,9 +63,21 @@ public final class ContinuousScreeningOrchestrator implements AutoCloseable {
     private final boolean microEnabled;
     private final LocalBeamOptimizer microOptimizer;
     private final LocalOptimizationRequest microRequest;
+    private final AssemblyScoreCache fullScoreCache;
+    private final StagedAssemblyScorer fullCascade;
+    private final Path scoreCacheFile;
+    private final AtomicBoolean scoreCacheSaved = new AtomicBoolean(false);
+    private final ReactionScheduler.Adaptation reactionAdaptation;
+    private final int reactionAdaptationIntervalSeconds;
+    private final Path checkpointFile;
+    private final int checkpointIntervalSeconds;
+    private final ScreeningCheckpoint resumedFrom;
+    private final long elapsedBeforeResumeNanos;
+    private final Object checkpointLock = new Object();
 
     public ContinuousScreeningOrchestrator(Config config) throws IOException {
         DownsampledSynthonSpace downsampledView = DownsampledSynthonSpace.fromRawFragmentSets(config.downsampledRaw);
+        SynthonMoleculeCache synthonCache = new SynthonMoleculeCache(config.synthonCacheSize);
         this.sampler = new CandidateSampler(downsampledView,
                 config.queryDescriptor,
                 config.samplerConfig,
@@ -78,7 +98,12 @@ public final class ContinuousScreeningOrchestrator implements AutoCloseable {
                         metrics.incrementSampled();
                         metrics.recordSampledScore(similarity);
                     }
-                });
+                },
+                synthonCache,
+                AssemblySizePrescreen.create(config.queryDescriptor,
+                        config.samplerConfig.getMinSimilarity(),
+                        config.sizePrescreenTolerance,
+                        metrics.prescreenRejectCounter()));
         if (config.reactionWeighting != null) {
             this.scheduler = new ReactionScheduler(computeReactionSizes(downsampledView),
                     config.reactionWeighting);
@@ -87,34 +112,92 @@ public final class ContinuousScreeningOrchestrator implements AutoCloseable {
                     config.reactionMinWeight,
                     config.reactionWeightExponent);
         }
-        this.duplicateFilter = new DuplicateFilter(config.duplicateCacheSize);
-        SkelSpheresNeighborSampler fullNeighborSampler = new SkelSpheresNeighborSampler();
+        this.reactionAdaptation = config.reactionAdaptation;
+        this.reactionAdaptationIntervalSeconds = config.reactionAdaptationIntervalSeconds;
+        this.duplicateFilter = new DuplicateFilter(config.duplicateCacheSize,
+                config.duplicateFalsePositiveRate,
+                DuplicateFilter.DEFAULT_GENERATIONS);
+        this.checkpointFile = config.checkpointFile;
+        this.checkpointIntervalSeconds = config.checkpointIntervalSeconds;
+        if (checkpointFile != null && Files.exists(checkpointFile)) {
+            this.resumedFrom = ScreeningCheckpoint.read(checkpointFile, metrics, duplicateFilter);
+            this.elapsedBeforeResumeNanos = resumedFrom.getElapsedNanos();
+            System.out.println("[Screening] resuming from " + checkpointFile
+                    + ": nextJob=" + resumedFrom.getNextJobId()
+                    + " pending=" + resumedFrom.getPendingJobIds().size()
+                    + " repeatedBelow=" + resumedFrom.getRepeatedJobIdBound()
+                    + " elapsed=" + TimeUnit.NANOSECONDS.toSeconds(elapsedBeforeResumeNanos) + "s");
+            if (reactionAdaptation != null) {
+                // the adapted weights only depend on the sampling and hit statistics restored with the metrics
+                scheduler.adapt(metrics.getReactionSampling(), metrics.getReactionHits(), reactionAdaptation);
+            }
+        } else {
+            this.resumedFrom = null;
+            this.elapsedBeforeResumeNanos = 0L;
+        }
+        NeighborGraph neighborGraph = null;
+        if (config.neighborGraphFile != null) {
+            neighborGraph = NeighborGraph.read(config.neighborGraphFile);
+            System.out.println("[Screening] loaded neighbor graphs of " + neighborGraph.getSetCount()
+                    + " synthon sets from " + config.neighborGraphFile);
+        }
+        SkelSpheresNeighborSampler fullNeighborSampler = new SkelSpheresNeighborSampler(null, neighborGraph);
         SynthonSetAccessor fullAccessor = new SynthonSetAccessor(config.fullRaw);
+        AssemblySizePrescreen fullPrescreen = AssemblySizePrescreen.create(config.queryDescriptor,
+                config.fullOptimizationRequest.getMinScoreThreshold(),
+                config.sizePrescreenTolerance,
+                metrics.prescreenRejectCounter());
+        AssemblyScorer fullScorer;
+        if (config.fullScoringCascade != null) {
+            this.fullCascade = StagedAssemblyScorer.pheSACascade(config.queryDescriptor,
+                    config.fullOptimizationRequest.getMinScoreThreshold(),
+                    metrics.fullOptComparisonCounter(),
+                    synthonCache,
+                    fullPrescreen,
+                    config.fullScoringCascade);
+            fullScorer = fullCascade;
+        } else {
+            this.fullCascade = null;
+            fullScorer = new PheSAAssemblyScorer(config.queryDescriptor,
+                    config.fullOptimizationRequest.getMinScoreThreshold(),
+                    metrics.fullOptComparisonCounter(),
+                    synthonCache,
+                    fullPrescreen);
+        }
+        // persisted scores are only valid for the same query descriptor, score threshold and cascade
+        String queryContext = Integer.toHexString(new DescriptorHandlerShape().encode(config.queryDescriptor).hashCode());
+        String cascadeContext = config.fullScoringCascade != null ? ":" + config.fullScoringCascade.describe() : "";
+        this.fullScoreCache = new AssemblyScoreCache(config.scoreCacheSize,
+                "full:" + config.fullOptimizationRequest.getMinScoreThreshold() + ":" + queryContext + cascadeContext,
+                metrics.scoreCacheHitCounter(),
+                metrics.scoreCacheMissCounter());
+        this.scoreCacheFile = config.scoreCacheFile;
+        if (scoreCacheFile != null) {
+            int loaded = fullScoreCache.load(scoreCacheFile);
+            System.out.println("[Screening] loaded " + loaded + " cached scores from " + scoreCacheFile);
+        }
         this.fullOptimizer = new LocalBeamOptimizer(fullAccessor,
-                new PheSAAssemblyScorer(config.queryDescriptor,
-                        config.fullOptimizationRequest.getMinScoreThreshold(),
-                        metrics.fullOptComparisonCounter()),
-                fullNeighborSampler);
+                fullScorer,
+                fullNeighborSampler,
+                fullScoreCache);
         this.fullRequest = config.fullOptimizationRequest;
         Map<String, String> reactionSourceSpaces = buildReactionSourceSpaceLookup(config.fullRaw);
-        this.writer = new LocalOptimizationResultWriter(config.hitOutput,
-                reactionId -> reactionSourceSpaces.getOrDefault(reactionId, ""));
+        // a resumed run keeps the hits written before the checkpoint
+        this.writer = new AsyncResultWriter(config.hitOutput,
+                reactionId -> reactionSourceSpaces.getOrDefault(reactionId, ""),
+                config.hitWriterOptions.withAppend(resumedFrom != null),
+                metrics.hitWriterWaitCounter());
         this.progressIntervalSeconds = config.progressIntervalSeconds;
-        int threads = Math.max(1, config.workerThreads);
-        int queueCapacity = Math.max(1, config.queueCapacity);
-        this.executor = new ThreadPoolExecutor(
-                threads,
-                threads,
-                0L,
-                TimeUnit.MILLISECONDS,
-                new ArrayBlockingQueue<>(queueCapacity),
-                new ThreadPoolExecutor.CallerRunsPolicy());
         this.progressExecutor = java.util.concurrent.Executors.newSingleThreadScheduledExecutor(r -> {
             Thread t = new Thread(r, "ScreeningProgress");
             t.setDaemon(true);
             return t;
         });
-        this.baseSeed = config.randomSeed;
+        // the job seeds depend on the base seed, a resumed run continues the checkpointed stream
+        this.baseSeed = resumedFrom != null ? resumedFrom.getBaseSeed() : config.randomSeed;
+        if (resumedFrom != null && resumedFrom.getBaseSeed() != config.randomSeed) {
+            System.out.println("[Screening] using random seed " + baseSeed + " of the checkpoint");
+        }
         this.minReportedSimilarity = config.minReportedSimilarity;
         this.microEnabled = config.microEnabled;
         if (microEnabled) {
@@ -124,13 +207,43 @@ public final class ContinuousScreeningOrchestrator implements AutoCloseable {
             this.microOptimizer = new LocalBeamOptimizer(downsampledAccessor,
                     new PheSAAssemblyScorer(config.queryDescriptor,
                             config.microOptimizationRequest.getMinScoreThreshold(),
-                            metrics.microOptComparisonCounter()),
-                    microNeighborSampler);
+                            metrics.microOptComparisonCounter(),
+                            synthonCache,
+                            AssemblySizePrescreen.create(config.queryDescriptor,
+                                    config.microOptimizationRequest.getMinScoreThreshold(),
+                                    config.sizePrescreenTolerance,
+                                    metrics.prescreenRejectCounter())),
+                    microNeighborSampler,
+                    new AssemblyScoreCache(config.scoreCacheSize,
+                            "micro:" + config.microOptimizationRequest.getMinScoreThreshold() + ":" + queryContext,
+                            metrics.scoreCacheHitCounter(),
+                            metrics.scoreCacheMissCounter()));
             this.microRequest = config.microOptimizationRequest;
         } else {
             this.microOptimizer = null;
             this.microRequest = null;
         }
+        int fullThreads = Math.max(1, config.workerThreads);
+        // sampling and micro optimization feed the full optimizers, by default they get a quarter of their threads
+        int feederThreads = Math.max(1, fullThreads / 4);
+        int samplingThreads = config.samplingThreads > 0 ? config.samplingThreads : feederThreads;
+        int microThreads = config.microThreads > 0 ? config.microThreads : feederThreads;
+        int stageQueueCapacity = config.stageQueueCapacity > 0 ? config.stageQueueCapacity : 2 * fullThreads;
+        // the pools start with one thread and grow with the queue depths, without balancing they are fixed
+        boolean balanced = config.stageBalanceIntervalSeconds > 0;
+        this.pipeline = new ScreeningPipeline<PipelineJob>(PipelineJob::new,
+                config.stageBalanceIntervalSeconds,
+                resumedFrom != null ? resumedFrom.getNextJobId() : 0L,
+                resumedFrom != null ? resumedFrom.getCompletedJobs() : 0L,
+                resumedFrom != null ? resumedFrom.getRepeatedJobIdBound() : 0L)
+                .addStage("sample", Math.max(1, config.queueCapacity), balanced ? 1 : samplingThreads,
+                        samplingThreads, this::runSampling);
+        if (microEnabled) {
+            pipeline.addStage("micro", stageQueueCapacity, balanced ? 1 : microThreads,
+                    microThreads, this::runMicroOptimization);
+        }
+        // the full optimizers are the bottleneck and keep their threads
+        pipeline.addStage("full", stageQueueCapacity, fullThreads, fullThreads, this::runFullOptimization);
     }
 
     private Map<String, List<Integer>> computeReactionSizes(DownsampledSynthonSpace view) {
@@ -185,26 +298,22 @@ public final class ContinuousScreeningOrchestrator implements AutoCloseable {
         if (maxRuntime != null && (maxRuntime.isZero() || maxRuntime.isNegative())) {
             throw new IllegalArgumentException("Max runtime must be positive");
         }
-        long remaining = iterations < 0 ? Long.MAX_VALUE : iterations;
+        // iterations and runtime count for the whole run, including the sessions before a resume
+        long remaining = iterations < 0 ? Long.MAX_VALUE : Math.max(0L, iterations - pipeline.getNextJobId());
         long runStartNanos = System.nanoTime();
-        long deadlineNanos = computeDeadlineNanos(runStartNanos, maxRuntime);
+        long deadlineNanos = computeDeadlineNanos(runStartNanos - elapsedBeforeResumeNanos, maxRuntime);
         this.startTimeNanos = runStartNanos;
         try {
             startProgressReporter(iterations, deadlineNanos);
-            while (remaining > 0 && System.nanoTime() < deadlineNanos && !Thread.currentThread().isInterrupted()) {
-                remaining--;
-                long jobId = jobCounter.getAndIncrement();
-                submitJob(jobId);
-            }
-            if (maxRuntime != null && System.nanoTime() >= deadlineNanos) {
-                clearPendingAndAwait();
-            } else {
-                shutdownAndAwait();
-            }
+            startReactionAdaptation();
+            startCheckpoints();
+            pipeline.run(resumedFrom != null ? resumedFrom.getPendingJobIds() : List.of(), remaining, deadlineNanos);
         } finally {
             stopProgressReporter();
-            reportFinalSummary(runStartNanos);
             closeWriter();
+            writeCheckpoint();
+            reportFinalSummary(runStartNanos);
+            saveScoreCache();
         }
     }
 
@@ -224,42 +333,7 @@ public final class ContinuousScreeningOrchestrator implements AutoCloseable {
         return startNanos + runtimeNanos;
     }
 
-    private void submitJob(long jobId) {
-        try {
-            executor.execute(new SampleAndOptimizeJob(jobId));
-        } catch (RejectedExecutionException ignored) {
-            // executor is shutting down; ignore new submissions
-        }
-    }
-
-    private void shutdownAndAwait() {
-        executor.shutdown();
-        awaitExecutorTermination();
-    }
-
-    private void clearPendingAndAwait() {
-        int queued = executor.getQueue().size();
-        executor.getQueue().clear();
-        System.out.println("[Screening] max runtime reached; cleared " + queued + " queued jobs and waiting for active jobs");
-        executor.shutdown();
-        awaitExecutorTermination();
-    }
-
-    private void awaitExecutorTermination() {
-        try {
-            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
-                // keep waiting
-            }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            executor.shutdownNow();
-        }
-    }
-
-    private ScreeningCandidate maybeMicroOptimize(ScreeningCandidate candidate) {
-        if (!microEnabled) {
-            return candidate;
-        }
+    private ScreeningCandidate microOptimize(ScreeningCandidate candidate) {
         SeedAssembly seed = new SeedAssembly(candidate.getReactionId(), candidate.getFragmentIds(), candidate.getSimilarity());
         LocalOptimizationResult result = microOptimizer.optimize(seed, microRequest);
         if (result.getBeamEntries().isEmpty()) {
@@ -279,24 +353,42 @@ public final class ContinuousScreeningOrchestrator implements AutoCloseable {
 
     @Override
     public void close() {
-        executor.shutdownNow();
+        pipeline.shutdownNow();
         stopProgressReporter();
         closeWriter();
+        saveScoreCache();
     }
 
     public ScreeningMetrics getMetrics() {
         return metrics;
     }
 
+    /**
+     * @return the pipeline stages in processing order, for queue and worker metrics
+     */
+    public List<ScreeningStage<?>> getStages() {
+        return List.copyOf(pipeline.getStages());
+    }
+
     private void closeWriter() {
         if (!writerClosed.compareAndSet(false, true)) {
             return;
         }
-        synchronized (writer) {
-            try {
-                writer.close();
-            } catch (IOException ignored) {
-            }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            System.out.println("[Screening] unable to write hits: " + e.getMessage());
+        }
+    }
+
+    private void saveScoreCache() {
+        if (scoreCacheFile == null || !scoreCacheSaved.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            fullScoreCache.save(scoreCacheFile);
+        } catch (IOException e) {
+            System.out.println("[Screening] unable to save score cache to " + scoreCacheFile + ": " + e.getMessage());
         }
     }
 
@@ -318,6 +410,65 @@ public final class ContinuousScreeningOrchestrator implements AutoCloseable {
                 TimeUnit.SECONDS);
     }
 
+    private void startCheckpoints() {
+        if (checkpointFile == null) {
+            return;
+        }
+        progressExecutor.scheduleWithFixedDelay(this::writeCheckpoint,
+                checkpointIntervalSeconds,
+                checkpointIntervalSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * Snapshots the run without stopping the workers. Hits of all jobs recorded as done are
+     * flushed to the hit output and forced to disk before the checkpoint file is replaced. Jobs that
+     * start until the duplicate filter is written are repeated on resume, see ScreeningCheckpoint.
+     */
+    private void writeCheckpoint() {
+        if (checkpointFile == null) {
+            return;
+        }
+        synchronized (checkpointLock) {
+            try {
+                long nextJobId = pipeline.getNextJobId();
+                List<Long> pending = pipeline.getPendingJobIds(nextJobId);
+                long elapsedNanos = elapsedBeforeResumeNanos + (System.nanoTime() - startTimeNanos);
+                if (!writer.awaitFlushed(writer.getSubmittedResults(), TimeUnit.MINUTES.toMillis(1))) {
+                    System.out.println("[Screening] hits not flushed, skipping checkpoint");
+                    return;
+                }
+                writer.force();
+                new ScreeningCheckpoint(baseSeed, nextJobId, pending, elapsedNanos)
+                        .write(checkpointFile, metrics, duplicateFilter, pipeline::getNextJobId);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                System.out.println("[Screening] unable to write checkpoint " + checkpointFile + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Periodically re-weights the reactions from the sampling success and hit rates. Runs on the progress
+     * thread, the workers keep picking from the previous table until the new one is swapped in.
+     */
+    private void startReactionAdaptation() {
+        if (reactionAdaptation == null || reactionAdaptationIntervalSeconds <= 0) {
+            return;
+        }
+        progressExecutor.scheduleWithFixedDelay(() -> {
+                    try {
+                        scheduler.adapt(metrics.getReactionSampling(), metrics.getReactionHits(), reactionAdaptation);
+                    } catch (Exception e) {
+                        System.out.println("[Screening] reaction adaptation failed: " + e.getMessage());
+                    }
+                },
+                reactionAdaptationIntervalSeconds,
+                reactionAdaptationIntervalSeconds,
+                TimeUnit.SECONDS);
+    }
+
     private void stopProgressReporter() {
         progressExecutor.shutdownNow();
     }
@@ -326,7 +477,7 @@ public final class ContinuousScreeningOrchestrator implements AutoCloseable {
         try {
             long elapsedSeconds = Math.max(1L, (System.nanoTime() - startTimeNanos) / 1_000_000_000L);
             long sampled = metrics.getSampled();
-            long completed = completedJobs.get();
+            long completed = pipeline.getCompletedJobs();
             long submitted = metrics.getSubmitted();
             long hits = metrics.getHits();
             long duplicateSeeds = metrics.getDuplicateSeeds();
@@ -358,6 +509,11 @@ public final class ContinuousScreeningOrchestrator implements AutoCloseable {
                     .append(" (cand=").append(candidateComparisons)
                     .append(", micro=").append(microComparisons)
                     .append(", full=").append(fullComparisons).append(")");
+            sb.append(" cacheHit=").append(formatRate(metrics.getScoreCacheHitRate()));
+            sb.append(" prescreened=").append(metrics.getPrescreenRejected());
+            sb.append(" stages=").append(formatStageStats());
+            sb.append(" writerQueue=").append(writer.getQueueDepth())
+                    .append(" writerWait=").append(formatMillis(metrics.getHitWriterWaitNanos()));
             sb.append(" scoreAvg=").append("s=").append(formatScore(sampledScores))
                     .append(",preM=").append(formatScore(preMicroScores))
                     .append(",postM=").append(formatScore(postMicroScores))
@@ -399,6 +555,18 @@ public final class ContinuousScreeningOrchestrator implements AutoCloseable {
                     .append(", micro=").append(microComparisons)
                     .append(", full=").append(fullComparisons).append(")");
             System.out.println(comparisons);
+            System.out.println("[ScreeningSummary] scoreCache hits=" + metrics.getScoreCacheHits()
+                    + " misses=" + metrics.getScoreCacheMisses()
+                    + " hitRate=" + formatRate(metrics.getScoreCacheHitRate()));
+            System.out.println("[ScreeningSummary] prescreen rejected=" + metrics.getPrescreenRejected());
+            System.out.println("[ScreeningSummary] stages " + formatStageStats());
+            if (fullCascade != null) {
+                System.out.println("[ScreeningSummary] fullCascade evaluated/rejected/pruned "
+                        + fullCascade.formatStageStats());
+            }
+            System.out.println("[ScreeningSummary] hitWriter results=" + writer.getWrittenResults()
+                    + " flushes=" + writer.getFlushes()
+                    + " workerWait=" + formatMillis(metrics.getHitWriterWaitNanos()));
 
             System.out.println("[ScreeningSummary] scores sampled " + formatScoreLong(metrics.getSampledScoreStats()));
             System.out.println("[ScreeningSummary] scores preMicro " + formatScoreLong(metrics.getPreMicroScoreStats()));
@@ -412,6 +580,10 @@ public final class ContinuousScreeningOrchestrator implements AutoCloseable {
         }
     }
 
+    private String formatStageStats() {
+        return pipeline.formatStats();
+    }
+
     private String formatScore(ScreeningMetrics.ScoreStatsSnapshot stats) {
         if (stats.getCount() <= 0) {
             return "-";
@@ -419,6 +591,17 @@ public final class ContinuousScreeningOrchestrator implements AutoCloseable {
         return String.format(Locale.ROOT, "%.3f(n=%d)", stats.getMean(), stats.getCount());
     }
 
+    private String formatMillis(long nanos) {
+        return String.format(Locale.ROOT, "%.1fms", nanos / 1_000_000.0);
+    }
+
+    private String formatRate(double rate) {
+        if (!Double.isFinite(rate)) {
+            return "-";
+        }
+        return String.format(Locale.ROOT, "%.1f%%", rate * 100.0);
+    }
+
     private String formatScoreLong(ScreeningMetrics.ScoreStatsSnapshot stats) {
         if (stats.getCount() <= 0) {
             return "-";
@@ -432,64 +615,75 @@ public final class ContinuousScreeningOrchestrator implements AutoCloseable {
                 stats.getCount());
     }
 
-    private final class SampleAndOptimizeJob implements Runnable {
-        private final long jobId;
+    /**
+     * A job on its way through the stages. Each stage hands it on through the queue of the next, so
+     * the fields written by one stage are visible to the next one.
+     */
+    private static final class PipelineJob extends ScreeningPipeline.Job {
+        private ScreeningCandidate candidate;
+        private double preMicroScore;
 
-        private SampleAndOptimizeJob(long jobId) {
-            this.jobId = jobId;
+        private PipelineJob(long jobId, boolean repeated) {
+            super(jobId, repeated);
         }
+    }
 
-        @Override
-        public void run() {
-            try {
-                Random rng = new Random(baseSeed ^ jobId);
-                String reactionId = scheduler.pick(rng);
-                ScreeningCandidate candidate = sampler.sample(reactionId, rng);
-                if (candidate == null) {
-                    return;
-                }
-                if (duplicateFilter.markIfDuplicate(candidate.getAssembledIdcode())) {
-                    metrics.incrementDuplicateSeeds();
-                    return;
-                }
-                double preMicroScore = candidate.getSimilarity();
-                metrics.recordPreMicroScore(preMicroScore);
-                candidate = maybeMicroOptimize(candidate);
-                if (candidate == null) {
-                    return;
-                }
-                if (microEnabled) {
-                    metrics.recordPostMicroScore(candidate.getSimilarity());
-                    metrics.recordMicroGain(candidate.getSimilarity() - preMicroScore);
-                }
-                metrics.incrementSubmitted();
-                double preFullScore = candidate.getSimilarity();
-                metrics.recordPreFullScore(preFullScore);
-                SeedAssembly seed = new SeedAssembly(candidate.getReactionId(),
-                        candidate.getFragmentIds(),
-                        candidate.getSimilarity());
-                LocalOptimizationResult result = fullOptimizer.optimize(seed, fullRequest);
-                if (Double.isFinite(result.getBestObservedScore())) {
-                    metrics.recordPostFullAllScore(result.getBestObservedScore());
-                    metrics.recordFullGain(result.getBestObservedScore() - preFullScore);
-                }
-                LocalOptimizationResult reported = applyReportingThreshold(result);
-                logFullOptimizationSummary(jobId, candidate, preMicroScore, preFullScore, result, reported);
-                if (!reported.getBeamEntries().isEmpty()) {
-                    metrics.recordHit(reported.getReactionId());
-                    metrics.recordPostFullReportedScore(reported.getBeamEntries().get(0).getScore());
-                }
-                synchronized (writer) {
-                    try {
-                        writer.write(reported);
-                    } catch (IOException e) {
-                        throw new RuntimeException("Unable to write optimization result", e);
-                    }
-                }
-            } finally {
-                completedJobs.incrementAndGet();
-            }
+    private void runSampling(PipelineJob job) {
+        Random rng = new Random(baseSeed ^ job.getJobId());
+        String reactionId = scheduler.pick(rng);
+        ScreeningCandidate candidate = sampler.sample(reactionId, rng);
+        if (candidate == null) {
+            pipeline.complete(job);
+            return;
         }
+        if (duplicateFilter.markIfDuplicate(candidate.getAssembledIdcode()) && !job.isRepeated()) {
+            metrics.incrementDuplicateSeeds();
+            pipeline.complete(job);
+            return;
+        }
+        job.candidate = candidate;
+        job.preMicroScore = candidate.getSimilarity();
+        metrics.recordPreMicroScore(job.preMicroScore);
+        pipeline.pass(job);
+    }
+
+    private void runMicroOptimization(PipelineJob job) {
+        ScreeningCandidate candidate = microOptimize(job.candidate);
+        if (candidate == null) {
+            pipeline.complete(job);
+            return;
+        }
+        metrics.recordPostMicroScore(candidate.getSimilarity());
+        metrics.recordMicroGain(candidate.getSimilarity() - job.preMicroScore);
+        job.candidate = candidate;
+        pipeline.pass(job);
+    }
+
+    private void runFullOptimization(PipelineJob job) {
+        ScreeningCandidate candidate = job.candidate;
+        metrics.incrementSubmitted();
+        double preFullScore = candidate.getSimilarity();
+        metrics.recordPreFullScore(preFullScore);
+        SeedAssembly seed = new SeedAssembly(candidate.getReactionId(),
+                candidate.getFragmentIds(),
+                candidate.getSimilarity());
+        LocalOptimizationResult result = fullOptimizer.optimize(seed, fullRequest);
+        if (Double.isFinite(result.getBestObservedScore())) {
+            metrics.recordPostFullAllScore(result.getBestObservedScore());
+            metrics.recordFullGain(result.getBestObservedScore() - preFullScore);
+        }
+        LocalOptimizationResult reported = applyReportingThreshold(result);
+        logFullOptimizationSummary(job.getJobId(), candidate, job.preMicroScore, preFullScore, result, reported);
+        if (!reported.getBeamEntries().isEmpty()) {
+            metrics.recordHit(reported.getReactionId());
+            metrics.recordPostFullReportedScore(reported.getBeamEntries().get(0).getScore());
+        }
+        try {
+            writer.submit(reported);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        pipeline.complete(job);
     }
 
     private LocalOptimizationResult applyReportingThreshold(LocalOptimizationResult result) {
@@ -556,13 +750,29 @@ public final class ContinuousScreeningOrchestrator implements AutoCloseable {
         private LocalOptimizationRequest fullOptimizationRequest;
         private int workerThreads = 4;
         private int queueCapacity = 1000;
+        private int stageQueueCapacity = 0;
+        private int samplingThreads = 0;
+        private int microThreads = 0;
+        private int stageBalanceIntervalSeconds = 1;
         private int progressIntervalSeconds = 60;
         private double reactionWeightExponent = 1.0;
         private double reactionMinWeight = 0.01;
         private ReactionScheduler.Weighting reactionWeighting;
+        private ReactionScheduler.Adaptation reactionAdaptation;
+        private int reactionAdaptationIntervalSeconds = 60;
         private Path hitOutput;
+        private AsyncResultWriter.Options hitWriterOptions = new AsyncResultWriter.Options();
+        private Path checkpointFile;
+        private int checkpointIntervalSeconds = 300;
         private double minReportedSimilarity = 0.0;
         private int duplicateCacheSize = 200_000;
+        private double duplicateFalsePositiveRate = DuplicateFilter.DEFAULT_FALSE_POSITIVE_RATE;
+        private int scoreCacheSize = 1_000_000;
+        private Path scoreCacheFile;
+        private int synthonCacheSize = 200_000;
+        private double sizePrescreenTolerance = -1.0;
+        private StagedAssemblyScorer.CascadeOptions fullScoringCascade;
+        private Path neighborGraphFile;
         private long randomSeed = 13L;
 
         public Config withFullRaw(RawSynthonSpace fullRaw) {
@@ -605,11 +815,48 @@ public final class ContinuousScreeningOrchestrator implements AutoCloseable {
             return this;
         }
 
+        /**
+         * @param capacity queued jobs waiting for sampling
+         */
         public Config withQueueCapacity(int capacity) {
             this.queueCapacity = capacity;
             return this;
         }
 
+        /**
+         * @param capacity queued jobs of the micro and full optimization stages, 0 for twice the full
+         *                 optimizer thread count
+         */
+        public Config withStageQueueCapacity(int capacity) {
+            this.stageQueueCapacity = capacity;
+            return this;
+        }
+
+        /**
+         * @param threads max sampling threads, 0 for a quarter of the full optimizer thread count
+         */
+        public Config withSamplingThreads(int threads) {
+            this.samplingThreads = threads;
+            return this;
+        }
+
+        /**
+         * @param threads max micro optimization threads, 0 for a quarter of the full optimizer thread count
+         */
+        public Config withMicroThreads(int threads) {
+            this.microThreads = threads;
+            return this;
+        }
+
+        /**
+         * Resizes the sampling and micro optimization pools every intervalSeconds from the queue
+         * depths, see ScreeningStage#rebalance. 0 keeps them at their max size.
+         */
+        public Config withStageBalanceIntervalSeconds(int intervalSeconds) {
+            this.stageBalanceIntervalSeconds = intervalSeconds;
+            return this;
+        }
+
         public Config withProgressIntervalSeconds(int seconds) {
             this.progressIntervalSeconds = seconds;
             return this;
@@ -630,11 +877,40 @@ public final class ContinuousScreeningOrchestrator implements AutoCloseable {
             return this;
         }
 
+        /**
+         * Enables adaptive reaction weighting, the weights are updated every intervalSeconds.
+         *
+         * @param adaptation adaptation parameters, null disables adaptive weighting
+         */
+        public Config withReactionAdaptation(ReactionScheduler.Adaptation adaptation, int intervalSeconds) {
+            this.reactionAdaptation = adaptation;
+            this.reactionAdaptationIntervalSeconds = intervalSeconds;
+            return this;
+        }
+
         public Config withHitOutput(Path output) {
             this.hitOutput = output;
             return this;
         }
 
+        /**
+         * Queue, group commit, compression and rotation settings of the hit writer.
+         */
+        public Config withHitWriterOptions(AsyncResultWriter.Options options) {
+            this.hitWriterOptions = options;
+            return this;
+        }
+
+        /**
+         * Snapshots the run every intervalSeconds and at its end. If the file exists, the run is
+         * resumed from it and appends to the hit output.
+         */
+        public Config withCheckpoint(Path file, int intervalSeconds) {
+            this.checkpointFile = file;
+            this.checkpointIntervalSeconds = intervalSeconds;
+            return this;
+        }
+
         public Config withMinReportedSimilarity(double minReportedSimilarity) {
             this.minReportedSimilarity = minReportedSimilarity;
             return this;
@@ -645,6 +921,56 @@ public final class ContinuousScreeningOrchestrator implements AutoCloseable {
             return this;
         }
 
+        public Config withDuplicateFalsePositiveRate(double rate) {
+            this.duplicateFalsePositiveRate = rate;
+            return this;
+        }
+
+        public Config withScoreCacheSize(int size) {
+            this.scoreCacheSize = size;
+            return this;
+        }
+
+        /**
+         * Full optimization scores are loaded from this file if it exists, and saved to it at the end of the run.
+         */
+        public Config withScoreCacheFile(Path file) {
+            this.scoreCacheFile = file;
+            return this;
+        }
+
+        public Config withSynthonCacheSize(int size) {
+            this.synthonCacheSize = size;
+            return this;
+        }
+
+        /**
+         * Enables the size prescreen of all stages, see AssemblySizePrescreen. Negative values disable it.
+         */
+        public Config withSizePrescreenTolerance(double tolerance) {
+            this.sizePrescreenTolerance = tolerance;
+            return this;
+        }
+
+        /**
+         * Scores full optimization candidates with a 2D, single-conformer and multi-conformer PheSA
+         * cascade whose thresholds follow the beam cutoff, see StagedAssemblyScorer. Null scores every
+         * candidate with single-conformer PheSA.
+         */
+        public Config withFullScoringCascade(StagedAssemblyScorer.CascadeOptions options) {
+            this.fullScoringCascade = options;
+            return this;
+        }
+
+        /**
+         * Precomputed neighbor lists of the full space, see NeighborGraph. Null ranks the
+         * neighborhoods on first use.
+         */
+        public Config withNeighborGraph(Path file) {
+            this.neighborGraphFile = file;
+            return this;
+        }
+
         public Config withRandomSeed(long seed) {
             this.randomSeed = seed;
             return this;
@@ -672,6 +998,10 @@ public final class ContinuousScreeningOrchestrator implements AutoCloseable {
             if (hitOutput == null) {
                 throw new IllegalArgumentException("Hit output path missing");
             }
+            if (hitWriterOptions == null) {
+                throw new IllegalArgumentException("Hit writer options missing");
+            }
+            hitWriterOptions.validate();
             if (microEnabled && microOptimizationRequest == null) {
                 throw new IllegalArgumentException("Micro optimization request missing");
             }
@@ -681,6 +1011,30 @@ public final class ContinuousScreeningOrchestrator implements AutoCloseable {
             if (queueCapacity <= 0) {
                 throw new IllegalArgumentException("Queue capacity must be positive");
             }
+            if (stageQueueCapacity < 0) {
+                throw new IllegalArgumentException("Stage queue capacity must be >= 0");
+            }
+            if (samplingThreads < 0 || microThreads < 0) {
+                throw new IllegalArgumentException("Stage threads must be >= 0");
+            }
+            if (stageBalanceIntervalSeconds < 0) {
+                throw new IllegalArgumentException("Stage balance interval must be >= 0");
+            }
+            if (!(duplicateFalsePositiveRate > 0.0 && duplicateFalsePositiveRate < 1.0)) {
+                throw new IllegalArgumentException("Duplicate false positive rate must be in (0,1)");
+            }
+            if (scoreCacheSize <= 0) {
+                throw new IllegalArgumentException("Score cache size must be positive");
+            }
+            if (synthonCacheSize <= 0) {
+                throw new IllegalArgumentException("Synthon cache size must be positive");
+            }
+            if (!Double.isFinite(sizePrescreenTolerance)) {
+                throw new IllegalArgumentException("Size prescreen tolerance must be finite");
+            }
+            if (fullScoringCascade != null) {
+                fullScoringCascade.validate();
+            }
             if (progressIntervalSeconds < 0) {
                 throw new IllegalArgumentException("Progress interval must be >= 0");
             }
@@ -692,6 +1046,12 @@ public final class ContinuousScreeningOrchestrator implements AutoCloseable {
                     throw new IllegalArgumentException("Reaction min weight must be >= 0");
                 }
             }
+            if (checkpointFile != null && checkpointIntervalSeconds <= 0) {
+                throw new IllegalArgumentException("Checkpoint interval must be positive");
+            }
+            if (reactionAdaptation != null && reactionAdaptationIntervalSeconds <= 0) {
+                throw new IllegalArgumentException("Reaction adaptation interval must be positive");
+            }
             if (!Double.isFinite(minReportedSimilarity)) {
                 throw new IllegalArgumentException("Min reported similarity must be finite");
             }
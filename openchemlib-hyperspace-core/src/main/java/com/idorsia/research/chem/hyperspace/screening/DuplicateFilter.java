@@ -1,43 +1,226 @@
 package com.idorsia.research.chem.hyperspace.screening;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Tracks assembled IDCodes to avoid redundant work.
+ * <p>
+ * Fixed-memory rotating Bloom filter over 64-bit idcode hashes. Inserts go into the current
+ * generation. When it holds its capacity, the oldest generation is dropped and a new, empty one
+ * becomes current. At least the last maxEntries idcodes are always remembered. Older idcodes are
+ * forgotten generation by generation. Distinct idcodes are reported as duplicates with about the
+ * configured false-positive rate.
  */
 public final class DuplicateFilter {
 
-    private final ConcurrentMap<String, Boolean> cache = new ConcurrentHashMap<>();
-    private final int maxEntries;
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 1e-4;
+    public static final int DEFAULT_GENERATIONS = 4;
+
+    private final int numGenerations;
+    private final long capacityPerGeneration;
+    private final int numHashes;
+    private final long bitsPerGeneration;
+    private final double falsePositiveRate;
+
+    /**
+     * Newest generation at index 0, replaced as a whole on rotation
+     */
+    private volatile Generation[] generations;
+    private final Object rotationLock = new Object();
 
     public DuplicateFilter(int maxEntries) {
-        this.maxEntries = Math.max(1, maxEntries);
+        this(maxEntries, DEFAULT_FALSE_POSITIVE_RATE, DEFAULT_GENERATIONS);
+    }
+
+    /**
+     * @param maxEntries number of most recent idcodes that are always remembered
+     * @param falsePositiveRate approximate probability that a new idcode is reported as duplicate
+     * @param generations number of generations, at least 2
+     */
+    public DuplicateFilter(long maxEntries, double falsePositiveRate, int generations) {
+        if (!(falsePositiveRate > 0.0 && falsePositiveRate < 1.0)) {
+            throw new IllegalArgumentException("False positive rate must be in (0,1)");
+        }
+        this.numGenerations = Math.max(2, generations);
+        this.falsePositiveRate = falsePositiveRate;
+        // the current generation may be empty, the older ones have to cover maxEntries
+        this.capacityPerGeneration = Math.max(1L, (Math.max(1L, maxEntries) + numGenerations - 2) / (numGenerations - 1));
+        // lookups test all generations, every generation gets its share of the false positive rate
+        double generationRate = falsePositiveRate / numGenerations;
+        double ln2 = Math.log(2.0);
+        long bits = (long) Math.ceil(-capacityPerGeneration * Math.log(generationRate) / (ln2 * ln2));
+        this.bitsPerGeneration = Math.max(64L, ((bits + 63L) / 64L) * 64L);
+        this.numHashes = Math.max(1, (int) Math.round((double) bitsPerGeneration / capacityPerGeneration * ln2));
+        if (bitsPerGeneration / 64L > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Duplicate filter too large: " + maxEntries + " entries");
+        }
+        Generation[] initial = new Generation[numGenerations];
+        for (int i = 0; i < numGenerations; i++) {
+            initial[i] = new Generation((int) (bitsPerGeneration / 64L));
+        }
+        this.generations = initial;
     }
 
     public boolean markIfDuplicate(String idcode) {
         if (idcode == null || idcode.isBlank()) {
             return false;
         }
-        boolean duplicate = cache.putIfAbsent(idcode, Boolean.TRUE) != null;
-        evictIfNeeded();
+        long h1 = hash64(idcode);
+        long h2 = mix64(h1 ^ 0x9E3779B97F4A7C15L) | 1L;
+        Generation[] current = generations;
+        // inserting into the current generation also tells whether it was already there
+        if (current[0].add(h1, h2)) {
+            return true;
+        }
+        boolean duplicate = false;
+        for (int i = 1; i < current.length && !duplicate; i++) {
+            duplicate = current[i].mightContain(h1, h2);
+        }
+        if (current[0].count.incrementAndGet() >= capacityPerGeneration) {
+            rotate(current);
+        }
         return duplicate;
     }
 
-    private void evictIfNeeded() {
-        if (cache.size() <= maxEntries) {
-            return;
+    public double getFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    public int getGenerations() {
+        return numGenerations;
+    }
+
+    public long getMemoryBytes() {
+        return numGenerations * (bitsPerGeneration / 8L);
+    }
+
+    /**
+     * Writes the filter geometry and all generations. Inserts may continue while the snapshot is
+     * written, it then contains some of them.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        Generation[] current = generations;
+        out.writeInt(numGenerations);
+        out.writeLong(capacityPerGeneration);
+        out.writeInt(numHashes);
+        out.writeLong(bitsPerGeneration);
+        for (Generation generation : current) {
+            out.writeLong(generation.count.get());
+            for (int i = 0; i < generation.words.length(); i++) {
+                out.writeLong(generation.words.get(i));
+            }
+        }
+    }
+
+    /**
+     * Replaces the contents with a snapshot written by {@link #writeTo(DataOutput)}. The snapshot is
+     * always consumed completely.
+     *
+     * @return false if the snapshot has a different geometry, the contents are unchanged then
+     */
+    boolean readFrom(DataInput in) throws IOException {
+        int storedGenerations = in.readInt();
+        long storedCapacity = in.readLong();
+        int storedHashes = in.readInt();
+        long storedBits = in.readLong();
+        boolean compatible = storedGenerations == numGenerations
+                && storedCapacity == capacityPerGeneration
+                && storedHashes == numHashes
+                && storedBits == bitsPerGeneration;
+        Generation[] restored = new Generation[storedGenerations];
+        for (int g = 0; g < storedGenerations; g++) {
+            long count = in.readLong();
+            if (compatible) {
+                restored[g] = new Generation((int) (bitsPerGeneration / 64L));
+                restored[g].count.set(count);
+            }
+            for (long i = 0; i < storedBits / 64L; i++) {
+                long word = in.readLong();
+                if (compatible) {
+                    restored[g].words.set((int) i, word);
+                }
+            }
+        }
+        if (compatible) {
+            synchronized (rotationLock) {
+                generations = restored;
+            }
+        }
+        return compatible;
+    }
+
+    private void rotate(Generation[] observed) {
+        synchronized (rotationLock) {
+            if (generations != observed) {
+                return;
+            }
+            Generation[] rotated = new Generation[numGenerations];
+            rotated[0] = new Generation((int) (bitsPerGeneration / 64L));
+            System.arraycopy(observed, 0, rotated, 1, numGenerations - 1);
+            generations = rotated;
+        }
+    }
+
+    private final class Generation {
+        private final AtomicLongArray words;
+        private final AtomicLong count = new AtomicLong();
+
+        private Generation(int numWords) {
+            this.words = new AtomicLongArray(numWords);
         }
-        // simple coarse eviction: clear half the cache
-        int target = maxEntries / 2;
-        int removed = 0;
-        for (String key : cache.keySet()) {
-            if (cache.remove(key) != null) {
-                removed++;
+
+        /**
+         * @return true if all bits were set already, i.e. the idcode was (probably) added before
+         */
+        private boolean add(long h1, long h2) {
+            boolean present = true;
+            long combined = h1;
+            for (int i = 0; i < numHashes; i++) {
+                long bit = Long.remainderUnsigned(combined, bitsPerGeneration);
+                int word = (int) (bit >>> 6);
+                long mask = 1L << (bit & 63);
+                long previous;
+                do {
+                    previous = words.get(word);
+                    if ((previous & mask) != 0L) {
+                        break;
+                    }
+                    present = false;
+                } while (!words.compareAndSet(word, previous, previous | mask));
+                combined += h2;
             }
-            if (removed >= (cache.size() - target)) {
-                break;
+            return present;
+        }
+
+        private boolean mightContain(long h1, long h2) {
+            long combined = h1;
+            for (int i = 0; i < numHashes; i++) {
+                long bit = Long.remainderUnsigned(combined, bitsPerGeneration);
+                if ((words.get((int) (bit >>> 6)) & (1L << (bit & 63))) == 0L) {
+                    return false;
+                }
+                combined += h2;
             }
+            return true;
         }
     }
+
+    static long hash64(String s) {
+        long h = 0xCBF29CE484222325L ^ s.length();
+        for (int i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * 0x100000001B3L;
+        }
+        return mix64(h);
+    }
+
+    private static long mix64(long z) {
+        // splitmix64 finalizer
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
 }
@@ -1,6 +1,7 @@
 package com.idorsia.research.chem.hyperspace.screening;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -9,12 +10,19 @@ import java.util.Random;
 
 /**
  * Weighted scheduler for selecting reactions during continuous screening.
+ *
+ * Reactions are picked in constant time from an alias table. The base weights are computed from the
+ * reaction sizes, optionally they are multiplied by adaptive factors that favour reactions with high
+ * sampling success and hit rates (see adapt(..)). Adapting builds a new table and swaps it in, so pick(..)
+ * never blocks.
  */
 public final class ReactionScheduler {
 
     private final List<Entry> entries;
     private final Map<String, Double> weightsByReaction;
-    private final double totalWeight;
+    private final String[] reactionIds;
+    private volatile AliasTable table;
+    private volatile Map<String, Double> adaptiveWeightsByReaction;
 
     public ReactionScheduler(Map<String, List<Integer>> reactionSizes,
                              double minWeight,
@@ -30,28 +38,123 @@ public final class ReactionScheduler {
         Weighting effectiveWeighting = weighting == null ? Weighting.exponent(0.01, 1.0) : weighting;
         List<Entry> list = new ArrayList<>();
         Map<String, Double> weightMap = new LinkedHashMap<>();
-        double sum = effectiveWeighting.apply(reactionSizes, list, weightMap);
+        effectiveWeighting.apply(reactionSizes, list, weightMap);
         this.entries = Collections.unmodifiableList(list);
         this.weightsByReaction = Collections.unmodifiableMap(weightMap);
-        this.totalWeight = sum;
+        this.reactionIds = new String[list.size()];
+        double[] weights = new double[list.size()];
+        for (int i = 0; i < list.size(); i++) {
+            reactionIds[i] = list.get(i).reactionId;
+            weights[i] = list.get(i).weight;
+        }
+        this.table = AliasTable.build(weights);
+        this.adaptiveWeightsByReaction = weightsByReaction;
     }
 
     public String pick(Random random) {
-        double target = random.nextDouble() * totalWeight;
-        double cumulative = 0d;
-        for (Entry entry : entries) {
-            cumulative += entry.weight;
-            if (target <= cumulative) {
-                return entry.reactionId;
+        return reactionIds[table.sample(random)];
+    }
+
+    /**
+     * Adapts the weights to the sampling success rates only, see adapt(samplingStats, reactionHits, adaptation).
+     */
+    public void adapt(Map<String, ScreeningMetrics.ReactionSamplingStats> samplingStats, Adaptation adaptation) {
+        adapt(samplingStats, Collections.emptyMap(), adaptation);
+    }
+
+    /**
+     * Rebuilds the alias table with the base weights multiplied by an estimate of the hits per sampling
+     * attempt of every reaction, i.e. the product of two rate estimates:
+     * <ul>
+     *     <li>the sampling success rate, successes per attempt</li>
+     *     <li>the hit rate, hits per success</li>
+     * </ul>
+     * Each estimate is the posterior mean of the rate, shrunk towards the global rate with priorAttempts
+     * pseudo trials, plus an upper confidence bonus for rarely tried reactions (scaled by the binomial
+     * standard deviation at the global rate), divided by the global rate. Reactions without data therefore
+     * keep (roughly) their base weight. As long as there are no hits at all, the hit rates carry no
+     * information and the weights follow the success rates only.
+     *
+     * @param samplingStats per-reaction sampling attempts and successes, see ScreeningMetrics
+     * @param reactionHits per-reaction hits, see ScreeningMetrics#getReactionHits
+     */
+    public void adapt(Map<String, ScreeningMetrics.ReactionSamplingStats> samplingStats,
+                      Map<String, ? extends Number> reactionHits,
+                      Adaptation adaptation) {
+        long totalAttempts = 0;
+        long totalSuccesses = 0;
+        for (ScreeningMetrics.ReactionSamplingStats stats : samplingStats.values()) {
+            totalAttempts += stats.getAttempts();
+            totalSuccesses += stats.getSuccesses();
+        }
+        long totalHits = 0;
+        for (Number hits : reactionHits.values()) {
+            totalHits += hits.longValue();
+        }
+        RateEstimate successRate = new RateEstimate(totalSuccesses, totalAttempts, adaptation);
+        RateEstimate hitRate = totalHits > 0 ? new RateEstimate(totalHits, Math.max(totalHits, totalSuccesses), adaptation) : null;
+
+        double[] weights = new double[entries.size()];
+        Map<String, Double> adapted = new LinkedHashMap<>();
+        double sum = 0.0;
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            ScreeningMetrics.ReactionSamplingStats stats = samplingStats.get(entry.reactionId);
+            long attempts = stats == null ? 0L : stats.getAttempts();
+            long successes = stats == null ? 0L : stats.getSuccesses();
+            Number hitCount = reactionHits.get(entry.reactionId);
+            long hits = hitCount == null ? 0L : hitCount.longValue();
+            double multiplier = successRate.factor(successes, attempts);
+            if (hitRate != null) {
+                multiplier = Math.max(adaptation.minMultiplier, multiplier * hitRate.factor(hits, Math.max(hits, successes)));
             }
+            weights[i] = entry.weight * multiplier;
+            sum += weights[i];
+            adapted.put(entry.reactionId, weights[i]);
+        }
+        if (!(sum > 0.0) || Double.isInfinite(sum)) {
+            return;
+        }
+        this.table = AliasTable.build(weights);
+        this.adaptiveWeightsByReaction = Collections.unmodifiableMap(adapted);
+    }
+
+    /**
+     * Rate of one reaction relative to the global rate, see adapt(..).
+     */
+    private static final class RateEstimate {
+        private final double globalRate;
+        private final double logTotal;
+        private final Adaptation adaptation;
+
+        private RateEstimate(long totalEvents, long totalTrials, Adaptation adaptation) {
+            this.globalRate = (totalEvents + 1.0) / (totalTrials + 2.0);
+            this.logTotal = Math.log(1.0 + totalTrials);
+            this.adaptation = adaptation;
+        }
+
+        private double factor(long events, long trials) {
+            double rate = (events + adaptation.priorAttempts * globalRate) / (trials + adaptation.priorAttempts);
+            double bonus = adaptation.exploration
+                    * Math.sqrt(globalRate * (1.0 - globalRate) * logTotal / (trials + adaptation.priorAttempts));
+            return Math.max(adaptation.minMultiplier, (rate + bonus) / globalRate);
         }
-        return entries.get(entries.size() - 1).reactionId;
     }
 
+    /**
+     * @return the base weights computed from the reaction sizes
+     */
     public Map<String, Double> getWeightsByReaction() {
         return weightsByReaction;
     }
 
+    /**
+     * @return the weights currently used by pick(..), equal to the base weights until adapt(..) is called
+     */
+    public Map<String, Double> getCurrentWeightsByReaction() {
+        return adaptiveWeightsByReaction;
+    }
+
     private static final class Entry {
         private final String reactionId;
         private final double weight;
@@ -72,6 +175,120 @@ public final class ReactionScheduler {
         }
     }
 
+    /**
+     * Walker / Vose alias table, O(n) construction and O(1) sampling.
+     */
+    static final class AliasTable {
+        private final double[] probability;
+        private final int[] alias;
+
+        private AliasTable(double[] probability, int[] alias) {
+            this.probability = probability;
+            this.alias = alias;
+        }
+
+        static AliasTable build(double[] weights) {
+            int n = weights.length;
+            double sum = 0.0;
+            for (double w : weights) {
+                sum += w;
+            }
+            double[] probability = new double[n];
+            int[] alias = new int[n];
+            if (!(sum > 0.0)) {
+                // no usable weights, sample uniformly
+                Arrays.fill(probability, 1.0);
+                for (int i = 0; i < n; i++) {
+                    alias[i] = i;
+                }
+                return new AliasTable(probability, alias);
+            }
+            double[] scaled = new double[n];
+            int[] small = new int[n];
+            int[] large = new int[n];
+            int numSmall = 0;
+            int numLarge = 0;
+            for (int i = 0; i < n; i++) {
+                scaled[i] = weights[i] * n / sum;
+                if (scaled[i] < 1.0) {
+                    small[numSmall++] = i;
+                } else {
+                    large[numLarge++] = i;
+                }
+            }
+            while (numSmall > 0 && numLarge > 0) {
+                int s = small[--numSmall];
+                int l = large[--numLarge];
+                probability[s] = scaled[s];
+                alias[s] = l;
+                scaled[l] = (scaled[l] + scaled[s]) - 1.0;
+                if (scaled[l] < 1.0) {
+                    small[numSmall++] = l;
+                } else {
+                    large[numLarge++] = l;
+                }
+            }
+            // remaining entries are 1 up to rounding errors
+            while (numLarge > 0) {
+                int l = large[--numLarge];
+                probability[l] = 1.0;
+                alias[l] = l;
+            }
+            while (numSmall > 0) {
+                int s = small[--numSmall];
+                probability[s] = 1.0;
+                alias[s] = s;
+            }
+            return new AliasTable(probability, alias);
+        }
+
+        int sample(Random random) {
+            int column = random.nextInt(probability.length);
+            return random.nextDouble() < probability[column] ? column : alias[column];
+        }
+    }
+
+    /**
+     * Parameters of adapt(..).
+     */
+    public static final class Adaptation {
+        private final double exploration;
+        private final double priorAttempts;
+        private final double minMultiplier;
+
+        /**
+         * @param exploration weight of the upper confidence bonus, 0 disables exploration
+         * @param priorAttempts pseudo trials at the global success and hit rates, larger values adapt more slowly
+         * @param minMultiplier lower bound of the weight multiplier, keeps every reaction reachable
+         */
+        public Adaptation(double exploration, double priorAttempts, double minMultiplier) {
+            if (exploration < 0.0 || !Double.isFinite(exploration)) {
+                throw new IllegalArgumentException("Exploration must be >= 0 and finite");
+            }
+            if (priorAttempts <= 0.0 || !Double.isFinite(priorAttempts)) {
+                throw new IllegalArgumentException("Prior attempts must be positive and finite");
+            }
+            if (minMultiplier <= 0.0 || !Double.isFinite(minMultiplier)) {
+                throw new IllegalArgumentException("Minimum multiplier must be positive and finite");
+            }
+            this.exploration = exploration;
+            this.priorAttempts = priorAttempts;
+            this.minMultiplier = minMultiplier;
+        }
+
+        public double getExploration() {
+            return exploration;
+        }
+
+        public double getPriorAttempts() {
+            return priorAttempts;
+        }
+
+        public double getMinMultiplier() {
+            return minMultiplier;
+        }
+    }
+
     public static final class Weighting {
         private final Mode mode;
         private final double minWeight;
@@ -0,0 +1,185 @@
+package com.idorsia.research.chem.hyperspace.screening;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.LongSupplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Snapshot of a continuous screening run, used to resume it after the process was stopped.
+ * <p>
+ * Jobs are seeded with baseSeed ^ jobId, so the job counter and the seed define the candidate
+ * stream. Jobs with ids below nextJobId are done, except the pending ones that were queued or
+ * running when the snapshot was taken; these are repeated on resume. The metrics and the
+ * duplicate filter are copied while the workers keep running and may already contain part of the
+ * pending jobs. Hits of the pending jobs may already be written as well, i.e. on resume hits are
+ * written at least once, not exactly once.
+ * <p>
+ * Jobs started after nextJobId was taken can also put their seeds into the filter before it is
+ * written. The job counter is therefore read again after the filter, and jobs below this
+ * repeatedJobIdBound are run as repeats on resume, i.e. without dropping their duplicates.
+ * <p>
+ * The adaptive reaction weights are not stored. They only depend on the per-reaction sampling
+ * statistics of the metrics, and are recomputed from them on resume.
+ */
+final class ScreeningCheckpoint {
+
+    private static final int MAGIC = 0x48534350; // "HSCP"
+    private static final int VERSION = 2;
+
+    private final long baseSeed;
+    private final long nextJobId;
+    private final List<Long> pendingJobIds;
+    private final long elapsedNanos;
+    private final long repeatedJobIdBound;
+
+    ScreeningCheckpoint(long baseSeed, long nextJobId, List<Long> pendingJobIds, long elapsedNanos) {
+        this(baseSeed, nextJobId, pendingJobIds, elapsedNanos, nextJobId);
+    }
+
+    private ScreeningCheckpoint(long baseSeed, long nextJobId, List<Long> pendingJobIds, long elapsedNanos,
+                                long repeatedJobIdBound) {
+        this.baseSeed = baseSeed;
+        this.nextJobId = nextJobId;
+        this.pendingJobIds = Collections.unmodifiableList(new ArrayList<>(pendingJobIds));
+        this.elapsedNanos = elapsedNanos;
+        this.repeatedJobIdBound = Math.max(nextJobId, repeatedJobIdBound);
+    }
+
+    long getBaseSeed() {
+        return baseSeed;
+    }
+
+    long getNextJobId() {
+        return nextJobId;
+    }
+
+    List<Long> getPendingJobIds() {
+        return pendingJobIds;
+    }
+
+    /**
+     * Run time of all previous sessions of the run
+     */
+    long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * New jobs below this id may have their seeds in the restored duplicate filter, at least nextJobId
+     */
+    long getRepeatedJobIdBound() {
+        return repeatedJobIdBound;
+    }
+
+    /**
+     * Number of jobs that are done, i.e. will not be repeated on resume
+     */
+    long getCompletedJobs() {
+        return nextJobId - pendingJobIds.size();
+    }
+
+    /**
+     * Writes the checkpoint with the metrics and duplicate filter to a temporary file and moves it
+     * over the previous checkpoint, so an interrupted write never destroys the last good one. The
+     * temporary file is forced to disk before the move, the directory after it.
+     */
+    void write(Path path, ScreeningMetrics metrics, DuplicateFilter duplicateFilter) throws IOException {
+        write(path, metrics, duplicateFilter, () -> repeatedJobIdBound);
+    }
+
+    /**
+     * Like {@link #write(Path, ScreeningMetrics, DuplicateFilter)} while jobs are running.
+     *
+     * @param nextJobIdAfterFilter the job counter, read once the duplicate filter is written
+     */
+    void write(Path path, ScreeningMetrics metrics, DuplicateFilter duplicateFilter,
+               LongSupplier nextJobIdAfterFilter) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            GZIPOutputStream gzip = new GZIPOutputStream(Channels.newOutputStream(channel), 1 << 16);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(gzip));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(baseSeed);
+            out.writeLong(nextJobId);
+            out.writeLong(elapsedNanos);
+            out.writeInt(pendingJobIds.size());
+            for (long jobId : pendingJobIds) {
+                out.writeLong(jobId);
+            }
+            metrics.writeTo(out);
+            duplicateFilter.writeTo(out);
+            out.writeLong(Math.max(nextJobId, nextJobIdAfterFilter.getAsLong()));
+            out.flush();
+            gzip.finish();
+            channel.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (parent != null) {
+            forceDirectory(parent);
+        }
+    }
+
+    /**
+     * Makes the move durable. Not every platform can open a directory, e.g. Windows, there the
+     * move is left to the file system.
+     */
+    private static void forceDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not supported
+        }
+    }
+
+    /**
+     * Reads a checkpoint and adds its metrics and duplicate filter contents to the given ones. If
+     * the duplicate filter was configured differently, it is left empty.
+     */
+    static ScreeningCheckpoint read(Path path, ScreeningMetrics metrics, DuplicateFilter duplicateFilter) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(Files.newInputStream(path), 1 << 16)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a screening checkpoint: " + path);
+            }
+            int version = in.readInt();
+            // version 1 has no repeatedJobIdBound
+            if (version != 1 && version != VERSION) {
+                throw new IOException("Unsupported screening checkpoint version " + version + ": " + path);
+            }
+            long baseSeed = in.readLong();
+            long nextJobId = in.readLong();
+            long elapsedNanos = in.readLong();
+            int pendingCount = in.readInt();
+            List<Long> pending = new ArrayList<>(pendingCount);
+            for (int i = 0; i < pendingCount; i++) {
+                pending.add(in.readLong());
+            }
+            metrics.readFrom(in);
+            if (!duplicateFilter.readFrom(in)) {
+                System.out.println("[Screening] duplicate filter settings changed, checkpointed duplicates are not restored");
+            }
+            long repeatedJobIdBound = version == 1 ? nextJobId : in.readLong();
+            return new ScreeningCheckpoint(baseSeed, nextJobId, pending, elapsedNanos, repeatedJobIdBound);
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package com.idorsia.research.chem.hyperspace.screening;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.DoubleAccumulator;
@@ -18,6 +22,10 @@ public final class ScreeningMetrics {
     private final LongAdder candidateComparisons = new LongAdder();
     private final LongAdder microOptComparisons = new LongAdder();
     private final LongAdder fullOptComparisons = new LongAdder();
+    private final LongAdder scoreCacheHits = new LongAdder();
+    private final LongAdder scoreCacheMisses = new LongAdder();
+    private final LongAdder prescreenRejected = new LongAdder();
+    private final LongAdder hitWriterWaitNanos = new LongAdder();
     private final Map<String, ReactionSamplingStats> reactionSampling = new ConcurrentHashMap<>();
     private final ScoreStats sampledScoreStats = new ScoreStats();
     private final ScoreStats preMicroScoreStats = new ScoreStats();
@@ -83,6 +91,22 @@ public final class ScreeningMetrics {
         return fullOptComparisons;
     }
 
+    LongAdder scoreCacheHitCounter() {
+        return scoreCacheHits;
+    }
+
+    LongAdder scoreCacheMissCounter() {
+        return scoreCacheMisses;
+    }
+
+    LongAdder prescreenRejectCounter() {
+        return prescreenRejected;
+    }
+
+    LongAdder hitWriterWaitCounter() {
+        return hitWriterWaitNanos;
+    }
+
     public long getSampled() {
         return sampled.get();
     }
@@ -123,6 +147,37 @@ public final class ScreeningMetrics {
         return fullOptComparisons.sum();
     }
 
+    public long getScoreCacheHits() {
+        return scoreCacheHits.sum();
+    }
+
+    public long getScoreCacheMisses() {
+        return scoreCacheMisses.sum();
+    }
+
+    /**
+     * Assemblies rejected by the size prescreen, i.e. without conformer generation and PheSA alignment.
+     */
+    public long getPrescreenRejected() {
+        return prescreenRejected.sum();
+    }
+
+    /**
+     * Total time workers were blocked because the hit writer queue was full.
+     */
+    public long getHitWriterWaitNanos() {
+        return hitWriterWaitNanos.sum();
+    }
+
+    /**
+     * Fraction of optimizer score lookups answered by the shared score cache, NaN before the first lookup.
+     */
+    public double getScoreCacheHitRate() {
+        long hits = getScoreCacheHits();
+        long total = hits + getScoreCacheMisses();
+        return total == 0L ? Double.NaN : hits / (double) total;
+    }
+
     public long getTotalComparisons() {
         return getCandidateComparisons() + getMicroOptComparisons() + getFullOptComparisons();
     }
@@ -191,6 +246,75 @@ public final class ScreeningMetrics {
         return fullGainStats.snapshot();
     }
 
+    /**
+     * Writes all counters and score statistics, e.g. for a checkpoint. Workers may keep recording
+     * while the snapshot is written.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        for (AtomicLong counter : atomicCounters()) {
+            out.writeLong(counter.get());
+        }
+        for (LongAdder counter : adderCounters()) {
+            out.writeLong(counter.sum());
+        }
+        Map<String, AtomicLong> hitsSnapshot = Map.copyOf(reactionHits);
+        out.writeInt(hitsSnapshot.size());
+        for (Map.Entry<String, AtomicLong> entry : hitsSnapshot.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue().get());
+        }
+        Map<String, ReactionSamplingStats> samplingSnapshot = Map.copyOf(reactionSampling);
+        out.writeInt(samplingSnapshot.size());
+        for (Map.Entry<String, ReactionSamplingStats> entry : samplingSnapshot.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue().getAttempts());
+            out.writeLong(entry.getValue().getSuccesses());
+        }
+        for (ScoreStats stats : scoreStats()) {
+            stats.writeTo(out);
+        }
+    }
+
+    /**
+     * Adds the values of a snapshot written by {@link #writeTo(DataOutput)}.
+     */
+    void readFrom(DataInput in) throws IOException {
+        for (AtomicLong counter : atomicCounters()) {
+            counter.addAndGet(in.readLong());
+        }
+        for (LongAdder counter : adderCounters()) {
+            counter.add(in.readLong());
+        }
+        int reactions = in.readInt();
+        for (int i = 0; i < reactions; i++) {
+            String reactionId = in.readUTF();
+            reactionHits.computeIfAbsent(reactionId, key -> new AtomicLong()).addAndGet(in.readLong());
+        }
+        reactions = in.readInt();
+        for (int i = 0; i < reactions; i++) {
+            ReactionSamplingStats stats = reactionSampling.computeIfAbsent(in.readUTF(), key -> new ReactionSamplingStats());
+            stats.attempts.add(in.readLong());
+            stats.successes.add(in.readLong());
+        }
+        for (ScoreStats stats : scoreStats()) {
+            stats.readFrom(in);
+        }
+    }
+
+    private List<AtomicLong> atomicCounters() {
+        return List.of(sampled, duplicateSeeds, microOptimized, submitted, hits);
+    }
+
+    private List<LongAdder> adderCounters() {
+        return List.of(candidateComparisons, microOptComparisons, fullOptComparisons,
+                scoreCacheHits, scoreCacheMisses, prescreenRejected, hitWriterWaitNanos);
+    }
+
+    private List<ScoreStats> scoreStats() {
+        return List.of(sampledScoreStats, preMicroScoreStats, postMicroScoreStats, preFullScoreStats,
+                postFullAllScoreStats, postFullReportedScoreStats, microGainStats, fullGainStats);
+    }
+
     public static final class ReactionSamplingStats {
         private final LongAdder attempts = new LongAdder();
         private final LongAdder successes = new LongAdder();
@@ -222,6 +346,22 @@ public final class ScreeningMetrics {
             max.accumulate(value);
         }
 
+        private void writeTo(DataOutput out) throws IOException {
+            out.writeLong(count.sum());
+            out.writeDouble(sum.sum());
+            out.writeDouble(sumSquares.sum());
+            out.writeDouble(min.get());
+            out.writeDouble(max.get());
+        }
+
+        private void readFrom(DataInput in) throws IOException {
+            count.add(in.readLong());
+            sum.add(in.readDouble());
+            sumSquares.add(in.readDouble());
+            min.accumulate(in.readDouble());
+            max.accumulate(in.readDouble());
+        }
+
         private ScoreStatsSnapshot snapshot() {
             long n = count.sum();
             if (n == 0L) {
@@ -0,0 +1,259 @@
+package com.idorsia.research.chem.hyperspace.screening;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * The job flow of the continuous screening: numbers the jobs, runs them through the stages and
+ * keeps the ids of the unfinished ones for the checkpoint.
+ * <p>
+ * The steps of the stages come from the orchestrator. A step ends its job with {@link #complete}
+ * or passes it to the next stage with {@link #pass}. A job that is not accepted by a stage, because
+ * the deadline discarded the queues, stays pending and is repeated after a resume.
+ */
+final class ScreeningPipeline<J extends ScreeningPipeline.Job> {
+
+    /**
+     * Creates the job for an id, repeated jobs were pending in the checkpoint or below its
+     * repeatedJobIdBound
+     */
+    interface JobFactory<J> {
+        J create(long jobId, boolean repeated);
+    }
+
+    static class Job {
+        private final long jobId;
+        private final boolean repeated;
+        private int stage;
+
+        Job(long jobId, boolean repeated) {
+            this.jobId = jobId;
+            this.repeated = repeated;
+        }
+
+        long getJobId() {
+            return jobId;
+        }
+
+        /**
+         * @return true if the job was pending in the checkpoint or started while it was written, its
+         * seed may already be in the duplicate filter
+         */
+        boolean isRepeated() {
+            return repeated;
+        }
+
+        int nextStage() {
+            return ++stage;
+        }
+    }
+
+    private final JobFactory<J> jobFactory;
+    private final int balanceIntervalSeconds;
+    private final List<ScreeningStage<J>> stages = new ArrayList<>();
+    private final AtomicLong jobCounter;
+    private final AtomicLong completedJobs;
+    private final long repeatedJobIdBound;
+    /**
+     * Jobs that were handed to the pipeline and have not finished yet
+     */
+    private final ConcurrentSkipListSet<Long> pendingJobs = new ConcurrentSkipListSet<>();
+    private final ScheduledExecutorService balancer;
+
+    /**
+     * @param balanceIntervalSeconds rebalance interval of the stage pools, 0 disables it
+     * @param nextJobId first job id, the next job id of the checkpoint on resume
+     * @param completedJobs completed jobs of the checkpoint on resume
+     * @param repeatedJobIdBound new jobs below it are created as repeated, see ScreeningCheckpoint
+     */
+    ScreeningPipeline(JobFactory<J> jobFactory, int balanceIntervalSeconds, long nextJobId, long completedJobs,
+                      long repeatedJobIdBound) {
+        this.jobFactory = jobFactory;
+        this.balanceIntervalSeconds = balanceIntervalSeconds;
+        this.jobCounter = new AtomicLong(nextJobId);
+        this.completedJobs = new AtomicLong(completedJobs);
+        this.repeatedJobIdBound = repeatedJobIdBound;
+        // the balancer has its own thread, checkpoints on the progress thread can block for a while
+        this.balancer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ScreeningStageBalancer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Appends a stage, all stages have to be added before {@link #run}.
+     */
+    ScreeningPipeline<J> addStage(String name, int capacity, int minWorkers, int maxWorkers, Consumer<J> step) {
+        stages.add(new ScreeningStage<>(name, capacity, minWorkers, maxWorkers, job -> {
+            try {
+                step.accept(job);
+            } catch (RuntimeException e) {
+                // a job whose step fails is done like one that was filtered out
+                complete(job);
+                throw e;
+            }
+        }));
+        return this;
+    }
+
+    /**
+     * Submits the resumed jobs and then new jobs until jobs are exhausted or the deadline passes.
+     * Without deadline all stages finish their queues. At the deadline the queued jobs are dropped
+     * and only the active ones finish.
+     *
+     * @param resumed pending job ids of the checkpoint
+     * @param jobs max number of new jobs
+     * @param deadlineNanos System.nanoTime deadline, Long.MAX_VALUE for none
+     */
+    void run(Collection<Long> resumed, long jobs, long deadlineNanos) {
+        try {
+            startBalancing();
+            for (long jobId : resumed) {
+                pendingJobs.add(jobId);
+                submit(jobFactory.create(jobId, true), deadlineNanos);
+            }
+            long remaining = jobs;
+            while (remaining > 0 && System.nanoTime() < deadlineNanos && !Thread.currentThread().isInterrupted()) {
+                remaining--;
+                long jobId = jobCounter.get();
+                // register before the counter moves on, a checkpoint must see every unfinished id below it
+                pendingJobs.add(jobId);
+                jobCounter.incrementAndGet();
+                submit(jobFactory.create(jobId, jobId < repeatedJobIdBound), deadlineNanos);
+            }
+            if (deadlineNanos != Long.MAX_VALUE && System.nanoTime() >= deadlineNanos) {
+                clearQueuedAndAwait();
+            } else {
+                shutdownAndAwait();
+            }
+        } finally {
+            balancer.shutdownNow();
+        }
+    }
+
+    /**
+     * Waits for a free slot in the first queue until the deadline. Jobs that are not accepted stay
+     * pending for the checkpoint.
+     */
+    private void submit(J job, long deadlineNanos) {
+        ScreeningStage<J> first = stages.get(0);
+        try {
+            if (deadlineNanos == Long.MAX_VALUE) {
+                first.submit(job);
+            } else {
+                first.submit(job, Math.max(0L, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Passes the job to the next stage, waiting while its queue is full. If the next stage no
+     * longer accepts jobs, it stays pending for the checkpoint.
+     */
+    void pass(J job) {
+        ScreeningStage<J> next = stages.get(job.nextStage());
+        try {
+            next.submit(job);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void complete(J job) {
+        completedJobs.incrementAndGet();
+        pendingJobs.remove(job.getJobId());
+    }
+
+    /**
+     * Stops the stages from the first to the last, every stage finishes its queue before the next
+     * one stops accepting.
+     */
+    private void shutdownAndAwait() {
+        try {
+            for (ScreeningStage<J> stage : stages) {
+                stage.shutdown();
+                stage.awaitTermination();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stages.forEach(ScreeningStage::shutdownNow);
+        }
+    }
+
+    private void clearQueuedAndAwait() {
+        int queued = 0;
+        for (ScreeningStage<J> stage : stages) {
+            queued += stage.discardQueued();
+        }
+        System.out.println("[Screening] max runtime reached; cleared " + queued + " queued jobs and waiting for active jobs");
+        shutdownAndAwait();
+    }
+
+    /**
+     * Periodically resizes the stage pools from their queue depths, see ScreeningStage#rebalance.
+     */
+    private void startBalancing() {
+        if (balanceIntervalSeconds <= 0) {
+            return;
+        }
+        balancer.scheduleWithFixedDelay(() -> {
+                    try {
+                        rebalance();
+                    } catch (RuntimeException e) {
+                        System.out.println("[Screening] stage balancing failed: " + e.getMessage());
+                    }
+                },
+                balanceIntervalSeconds,
+                balanceIntervalSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    void rebalance() {
+        for (int i = 0; i < stages.size(); i++) {
+            double downstreamFill = i + 1 < stages.size() ? stages.get(i + 1).getQueueFill() : 0.0;
+            stages.get(i).rebalance(downstreamFill);
+        }
+    }
+
+    /**
+     * Drops all queued jobs and interrupts the active ones.
+     */
+    void shutdownNow() {
+        stages.forEach(ScreeningStage::shutdownNow);
+        balancer.shutdownNow();
+    }
+
+    long getNextJobId() {
+        return jobCounter.get();
+    }
+
+    long getCompletedJobs() {
+        return completedJobs.get();
+    }
+
+    /**
+     * @return unfinished job ids below nextJobId, in increasing order
+     */
+    List<Long> getPendingJobIds(long nextJobId) {
+        return new ArrayList<>(pendingJobs.headSet(nextJobId));
+    }
+
+    List<ScreeningStage<J>> getStages() {
+        return List.copyOf(stages);
+    }
+
+    String formatStats() {
+        return stages.stream().map(ScreeningStage::formatStats).collect(Collectors.joining(","));
+    }
+}
@@ -0,0 +1,280 @@
+package com.idorsia.research.chem.hyperspace.screening;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * One step of the screening pipeline: a bounded queue and a worker pool. The handler usually
+ * passes its item on to the next stage. Submitting blocks while the queue is full. A slow stage
+ * therefore throttles the stages before it instead of letting work pile up in memory.
+ * <p>
+ * The pool starts with minWorkers threads. {@link #rebalance} moves its size between minWorkers
+ * and maxWorkers, depending on the own queue and the queue of the next stage.
+ */
+public final class ScreeningStage<T> {
+
+    private static final double GROW_FILL = 0.5;
+    private static final double SHRINK_DOWNSTREAM_FILL = 0.9;
+
+    private final String name;
+    private final Consumer<T> handler;
+    private final int capacity;
+    private final int minWorkers;
+    private final int maxWorkers;
+    private final ThreadPoolExecutor executor;
+    /**
+     * Free queue slots, taken on submit and returned once a worker picks the item up
+     */
+    private final Semaphore freeSlots;
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+    private final LongAdder busyNanos = new LongAdder();
+    private final LongAdder blockedNanos = new LongAdder();
+    private volatile boolean discarding;
+
+    /**
+     * @param capacity max queued items, not counting the ones being processed
+     * @param handler processes one item, exceptions are counted and logged
+     */
+    public ScreeningStage(String name, int capacity, int minWorkers, int maxWorkers, Consumer<T> handler) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Stage capacity must be positive");
+        }
+        if (minWorkers <= 0 || maxWorkers < minWorkers) {
+            throw new IllegalArgumentException("Stage workers must satisfy 0 < min <= max");
+        }
+        this.name = name;
+        this.handler = handler;
+        this.capacity = capacity;
+        this.minWorkers = minWorkers;
+        this.maxWorkers = maxWorkers;
+        this.freeSlots = new Semaphore(capacity);
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(minWorkers,
+                minWorkers,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                r -> new Thread(r, "Screening-" + name + "-" + threadIndex.incrementAndGet()));
+    }
+
+    /**
+     * Queues an item, waiting as long as the queue is full.
+     *
+     * @return false if the stage no longer accepts items
+     */
+    public boolean submit(T item) throws InterruptedException {
+        if (!isAccepting()) {
+            return false;
+        }
+        long start = System.nanoTime();
+        freeSlots.acquire();
+        blockedNanos.add(System.nanoTime() - start);
+        return enqueue(item);
+    }
+
+    /**
+     * Queues an item, waiting at most the timeout for a free slot.
+     *
+     * @return false if the queue stayed full or the stage no longer accepts items
+     */
+    public boolean submit(T item, long timeout, TimeUnit unit) throws InterruptedException {
+        if (!isAccepting()) {
+            return false;
+        }
+        long start = System.nanoTime();
+        boolean acquired = freeSlots.tryAcquire(timeout, unit);
+        blockedNanos.add(System.nanoTime() - start);
+        return acquired && enqueue(item);
+    }
+
+    private boolean isAccepting() {
+        return !discarding && !executor.isShutdown();
+    }
+
+    private boolean enqueue(T item) {
+        if (discarding) {
+            freeSlots.release();
+            return false;
+        }
+        try {
+            executor.execute(new Task(item));
+            return true;
+        } catch (RejectedExecutionException e) {
+            freeSlots.release();
+            return false;
+        }
+    }
+
+    /**
+     * Drops the queued items and rejects all later ones. Items that are already being processed
+     * are finished.
+     *
+     * @return number of dropped items
+     */
+    public int discardQueued() {
+        discarding = true;
+        List<Runnable> dropped = new ArrayList<>();
+        executor.getQueue().drainTo(dropped);
+        freeSlots.release(dropped.size());
+        discarded.add(dropped.size());
+        return dropped.size();
+    }
+
+    /**
+     * Adds a worker while items are waiting and the next stage has room for the results. Removes a
+     * worker while some are idle, or while the next stage is nearly full, since the workers would
+     * only block on it.
+     *
+     * @param downstreamFill queue fill of the next stage in [0,1], 0 for the last stage
+     */
+    public void rebalance(double downstreamFill) {
+        if (executor.isShutdown()) {
+            return;
+        }
+        int workers = getWorkers();
+        boolean idle = executor.getQueue().isEmpty() && activeWorkers.get() < workers;
+        if (getQueueFill() >= GROW_FILL && downstreamFill < GROW_FILL && workers < maxWorkers) {
+            setWorkers(workers + 1);
+        } else if ((idle || downstreamFill >= SHRINK_DOWNSTREAM_FILL) && workers > minWorkers) {
+            setWorkers(workers - 1);
+        }
+    }
+
+    private synchronized void setWorkers(int workers) {
+        if (workers > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(workers);
+            executor.setCorePoolSize(workers);
+        } else {
+            // a lower maximum also stops busy workers once they finish their current item
+            executor.setCorePoolSize(workers);
+            executor.setMaximumPoolSize(workers);
+        }
+    }
+
+    /**
+     * Lets the queued items finish, new items are rejected.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public void shutdownNow() {
+        discarding = true;
+        List<Runnable> dropped = executor.shutdownNow();
+        freeSlots.release(dropped.size());
+        discarded.add(dropped.size());
+    }
+
+    public void awaitTermination() throws InterruptedException {
+        while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            // keep waiting
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public double getQueueFill() {
+        return getQueueDepth() / (double) capacity;
+    }
+
+    /**
+     * @return current pool size
+     */
+    public int getWorkers() {
+        return executor.getCorePoolSize();
+    }
+
+    public int getActiveWorkers() {
+        return activeWorkers.get();
+    }
+
+    public long getProcessed() {
+        return processed.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * @return queued items dropped by {@link #discardQueued} or {@link #shutdownNow}
+     */
+    public long getDiscarded() {
+        return discarded.sum();
+    }
+
+    /**
+     * @return time the workers spent in the handler
+     */
+    public long getBusyNanos() {
+        return busyNanos.sum();
+    }
+
+    /**
+     * @return time submitters waited for a free queue slot
+     */
+    public long getBlockedNanos() {
+        return blockedNanos.sum();
+    }
+
+    /**
+     * @return queue, workers, processed items and submitter wait time
+     */
+    public String formatStats() {
+        return String.format(Locale.ROOT, "%s[q=%d/%d w=%d/%d done=%d blocked=%.1fs]",
+                name,
+                getQueueDepth(),
+                capacity,
+                getActiveWorkers(),
+                getWorkers(),
+                getProcessed(),
+                getBlockedNanos() / 1_000_000_000.0);
+    }
+
+    private final class Task implements Runnable {
+        private final T item;
+
+        private Task(T item) {
+            this.item = item;
+        }
+
+        @Override
+        public void run() {
+            freeSlots.release();
+            activeWorkers.incrementAndGet();
+            long start = System.nanoTime();
+            try {
+                handler.accept(item);
+                processed.increment();
+            } catch (RuntimeException e) {
+                failed.increment();
+                e.printStackTrace();
+            } finally {
+                busyNanos.add(System.nanoTime() - start);
+                activeWorkers.decrementAndGet();
+            }
+        }
+    }
+}
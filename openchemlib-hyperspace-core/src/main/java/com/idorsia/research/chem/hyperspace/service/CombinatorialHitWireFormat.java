@@ -0,0 +1,362 @@
+package com.idorsia.research.chem.hyperspace.service;
+
+import com.actelion.research.chem.hyperspace.SimpleCombinatorialHit;
+import com.actelion.research.chem.hyperspace.SimpleSynthon;
+import com.idorsia.research.chem.hyperspace.SynthonSpace;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Compact binary encoding for streams of combinatorial hits.
+ * <p>
+ * An {@link Encoder} and a {@link Decoder} form a session: every string (rxn id, idcode,
+ * fragment id) and every synthon is sent only once, in the first frame that uses it, and is
+ * then referenced by its integer id. Frames must therefore be decoded in the order in which
+ * they were encoded.
+ * <p>
+ * Every frame carries the id of its query and its sequence number within the query. Frames of
+ * several queries can thus share one channel, a subscriber reads the query id with
+ * {@link #readQueryId} and passes the frame to the decoder of that query. A decoder starts with an
+ * empty dictionary and rejects frames of other queries and gaps in the sequence.
+ * <p>
+ * Frame layout (all integers except the query id are unsigned varints, synthon ids are zigzag
+ * deltas to the previous synthon id of the frame):
+ * <pre>
+ * magic 'H' 'C', version, query id (8 bytes), sequence number
+ * #new strings      , [utf-8 length, bytes]*
+ * #new synthons     , [idcode sid, fragment id sid+1 (0 = null), rxn sid, frag]*
+ * #hits             , [rxn sid, #sets, [frag, #synthons, [synthon id delta]*]*]*
+ * </pre>
+ */
+public final class CombinatorialHitWireFormat {
+
+    public static final int VERSION = 2;
+
+    private static final int MAGIC_0 = 'H';
+    private static final int MAGIC_1 = 'C';
+
+    private CombinatorialHitWireFormat() {
+    }
+
+    /**
+     * @return the query id of the frame
+     */
+    public static long readQueryId(byte[] frame) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+        readHeader(in);
+        return in.readLong();
+    }
+
+    private static void readHeader(DataInputStream in) throws IOException {
+        if (in.readUnsignedByte() != MAGIC_0 || in.readUnsignedByte() != MAGIC_1) {
+            throw new IOException("Not a combinatorial hit frame");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported combinatorial hit frame version: " + version);
+        }
+    }
+
+    /**
+     * Decoded synthon.
+     */
+    public static final class Synthon {
+        public final String idcode;
+        public final String fragmentId;
+        public final String rxnId;
+        public final int frag;
+
+        Synthon(String idcode, String fragmentId, String rxnId, int frag) {
+            this.idcode = idcode;
+            this.fragmentId = fragmentId;
+            this.rxnId = rxnId;
+            this.frag = frag;
+        }
+
+        public SimpleSynthon toSimpleSynthon() {
+            return new SimpleSynthon(idcode, fragmentId, rxnId, "SynthonSet:" + frag);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Synthon)) {
+                return false;
+            }
+            Synthon s = (Synthon) o;
+            return frag == s.frag && idcode.equals(s.idcode) && Objects.equals(fragmentId, s.fragmentId) && rxnId.equals(s.rxnId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(idcode, fragmentId, rxnId, frag);
+        }
+    }
+
+    /**
+     * Decoded combinatorial hit, synthon sets in the order of the encoded hit.
+     */
+    public static final class Hit {
+        public final String rxn;
+        public final List<Integer> frags;
+        public final List<List<Synthon>> synthonSets;
+
+        Hit(String rxn, List<Integer> frags, List<List<Synthon>> synthonSets) {
+            this.rxn = rxn;
+            this.frags = Collections.unmodifiableList(frags);
+            this.synthonSets = Collections.unmodifiableList(synthonSets);
+        }
+
+        public SimpleCombinatorialHit toSimpleCombinatorialHit() {
+            SimpleSynthon[][] synthons = new SimpleSynthon[synthonSets.size()][];
+            for (int i = 0; i < synthonSets.size(); i++) {
+                List<Synthon> set = synthonSets.get(i);
+                synthons[i] = new SimpleSynthon[set.size()];
+                for (int j = 0; j < set.size(); j++) {
+                    synthons[i][j] = set.get(j).toSimpleSynthon();
+                }
+            }
+            return new SimpleCombinatorialHit(rxn, synthons);
+        }
+    }
+
+    /**
+     * Encoder side of a session. Not thread-safe.
+     */
+    public static final class Encoder {
+        private final long queryId;
+        private final Map<String, Integer> strings = new HashMap<>();
+        private final Map<Synthon, Integer> synthons = new HashMap<>();
+        private int sequence = 0;
+
+        public Encoder(long queryId) {
+            this.queryId = queryId;
+        }
+
+        public long getQueryId() {
+            return queryId;
+        }
+
+        /**
+         * Encodes the hits into one frame.
+         */
+        public byte[] encodeFrame(List<SynthonSpace.CombinatorialHit> hits) throws IOException {
+            List<String> newStrings = new ArrayList<>();
+            List<Synthon> newSynthons = new ArrayList<>();
+
+            // first pass: assign ids, collect new dictionary entries
+            List<int[]> encodedHits = new ArrayList<>();
+            for (SynthonSpace.CombinatorialHit hit : hits) {
+                List<Integer> ids = new ArrayList<>();
+                ids.add(stringId(hit.rxn, newStrings));
+                ids.add(hit.hit_fragments.size());
+                for (Map.Entry<SynthonSpace.FragType, List<SynthonSpace.FragId>> set : hit.hit_fragments.entrySet()) {
+                    ids.add(set.getKey().frag);
+                    ids.add(set.getValue().size());
+                    for (SynthonSpace.FragId fid : set.getValue()) {
+                        ids.add(synthonId(fid, newStrings, newSynthons));
+                    }
+                }
+                encodedHits.add(ids.stream().mapToInt(Integer::intValue).toArray());
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(MAGIC_0);
+            out.writeByte(MAGIC_1);
+            out.writeByte(VERSION);
+            out.writeLong(queryId);
+            writeVarInt(out, sequence++);
+
+            writeVarInt(out, newStrings.size());
+            for (String s : newStrings) {
+                byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+                writeVarInt(out, utf8.length);
+                out.write(utf8);
+            }
+
+            writeVarInt(out, newSynthons.size());
+            for (Synthon s : newSynthons) {
+                writeVarInt(out, strings.get(s.idcode));
+                writeVarInt(out, s.fragmentId == null ? 0 : strings.get(s.fragmentId) + 1);
+                writeVarInt(out, strings.get(s.rxnId));
+                writeVarInt(out, s.frag);
+            }
+
+            writeVarInt(out, encodedHits.size());
+            for (int[] ids : encodedHits) {
+                int pos = 0;
+                writeVarInt(out, ids[pos++]);
+                int numSets = ids[pos++];
+                writeVarInt(out, numSets);
+                int previous = 0;
+                for (int si = 0; si < numSets; si++) {
+                    writeVarInt(out, ids[pos++]);
+                    int numSynthons = ids[pos++];
+                    writeVarInt(out, numSynthons);
+                    for (int zi = 0; zi < numSynthons; zi++) {
+                        int id = ids[pos++];
+                        writeVarInt(out, zigzag(id - previous));
+                        previous = id;
+                    }
+                }
+            }
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        private int stringId(String s, List<String> newStrings) {
+            Integer id = strings.get(s);
+            if (id == null) {
+                id = strings.size();
+                strings.put(s, id);
+                newStrings.add(s);
+            }
+            return id;
+        }
+
+        private int synthonId(SynthonSpace.FragId fid, List<String> newStrings, List<Synthon> newSynthons) {
+            Synthon s = new Synthon(fid.idcode, fid.fragment_id, fid.rxn_id, fid.frag);
+            Integer id = synthons.get(s);
+            if (id == null) {
+                stringId(s.idcode, newStrings);
+                if (s.fragmentId != null) {
+                    stringId(s.fragmentId, newStrings);
+                }
+                stringId(s.rxnId, newStrings);
+                id = synthons.size();
+                synthons.put(s, id);
+                newSynthons.add(s);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Decoder side of a session. Not thread-safe.
+     */
+    public static final class Decoder {
+        private final long queryId;
+        private final List<String> strings = new ArrayList<>();
+        private final List<Synthon> synthons = new ArrayList<>();
+        private int nextSequence = 0;
+
+        /**
+         * @param queryId frames of other queries are rejected
+         */
+        public Decoder(long queryId) {
+            this.queryId = queryId;
+        }
+
+        public long getQueryId() {
+            return queryId;
+        }
+
+        public List<Hit> decodeFrame(byte[] frame) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+            readHeader(in);
+            long frameQueryId = in.readLong();
+            if (frameQueryId != queryId) {
+                throw new IOException("Frame of query " + frameQueryId + ", expected query " + queryId);
+            }
+            int sequence = readVarInt(in);
+            if (sequence != nextSequence) {
+                throw new IOException("Frame " + sequence + " of query " + queryId + ", expected frame " + nextSequence);
+            }
+            nextSequence++;
+
+            int numStrings = readVarInt(in);
+            for (int i = 0; i < numStrings; i++) {
+                byte[] utf8 = new byte[readVarInt(in)];
+                in.readFully(utf8);
+                strings.add(new String(utf8, StandardCharsets.UTF_8));
+            }
+
+            int numSynthons = readVarInt(in);
+            for (int i = 0; i < numSynthons; i++) {
+                String idcode = string(readVarInt(in));
+                int fragmentIdRef = readVarInt(in);
+                String fragmentId = fragmentIdRef == 0 ? null : string(fragmentIdRef - 1);
+                String rxnId = string(readVarInt(in));
+                int frag = readVarInt(in);
+                synthons.add(new Synthon(idcode, fragmentId, rxnId, frag));
+            }
+
+            int numHits = readVarInt(in);
+            List<Hit> hits = new ArrayList<>(numHits);
+            for (int hi = 0; hi < numHits; hi++) {
+                String rxn = string(readVarInt(in));
+                int numSets = readVarInt(in);
+                List<Integer> frags = new ArrayList<>(numSets);
+                List<List<Synthon>> sets = new ArrayList<>(numSets);
+                int previous = 0;
+                for (int si = 0; si < numSets; si++) {
+                    frags.add(readVarInt(in));
+                    int n = readVarInt(in);
+                    List<Synthon> set = new ArrayList<>(n);
+                    for (int zi = 0; zi < n; zi++) {
+                        int id = previous + unzigzag(readVarInt(in));
+                        if (id < 0 || id >= synthons.size()) {
+                            throw new IOException("Unknown synthon id " + id + ", frames out of order?");
+                        }
+                        set.add(synthons.get(id));
+                        previous = id;
+                    }
+                    sets.add(set);
+                }
+                hits.add(new Hit(rxn, frags, sets));
+            }
+            return hits;
+        }
+
+        private String string(int id) throws IOException {
+            if (id < 0 || id >= strings.size()) {
+                throw new IOException("Unknown string id " + id + ", frames out of order?");
+            }
+            return strings.get(id);
+        }
+    }
+
+    static void writeVarInt(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static int readVarInt(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Truncated frame");
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
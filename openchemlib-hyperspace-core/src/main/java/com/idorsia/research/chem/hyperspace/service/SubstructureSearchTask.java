@@ -9,6 +9,12 @@ public class SubstructureSearchTask {
     private boolean screenBuildingBlocks = true;
     private String spaceName = "";
 
+    /**
+     * Positive id chosen by the client, identifies the binary result frames of this query, see
+     * CombinatorialHitWireFormat. 0 lets the server assign an id.
+     */
+    private long queryId = 0;
+
     private SubstructureSearchTaskConfiguration configuration = new SubstructureSearchTaskConfiguration();
 
     public SubstructureSearchTask() {}
@@ -44,6 +50,14 @@ public class SubstructureSearchTask {
         this.spaceName = spaceName;
     }
 
+    public long getQueryId() {
+        return queryId;
+    }
+
+    public void setQueryId(long queryId) {
+        this.queryId = queryId;
+    }
+
     public SubstructureSearchTaskConfiguration getConfiguration() {
         return configuration;
     }
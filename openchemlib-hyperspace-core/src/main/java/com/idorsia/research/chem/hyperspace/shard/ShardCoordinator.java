@@ -0,0 +1,304 @@
+package com.idorsia.research.chem.hyperspace.shard;
+
+import com.idorsia.research.chem.hyperspace.SubstructureSearchHelper;
+import com.idorsia.research.chem.hyperspace.SynthonSimilaritySpaceExplorer3;
+import com.idorsia.research.chem.hyperspace.SynthonSpace;
+import com.idorsia.research.chem.hyperspace.TopKCollector;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Fans out searches to a set of {@link ShardWorker}s and merges their hit streams.
+ * <p>
+ * Substructure hits are forwarded to the receiver as soon as they arrive from any
+ * shard, until the global hit budget is used up. Then all shard searches are
+ * cancelled. Similarity hits are merged into a global top k, hits that enter it are
+ * forwarded to the receiver as they arrive.
+ */
+public final class ShardCoordinator {
+
+    private final List<InetSocketAddress> shards;
+    private final int connectTimeoutMillis;
+
+    public ShardCoordinator(List<InetSocketAddress> shards, int connectTimeoutMillis) {
+        if (shards == null || shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    public static ShardCoordinator forLocalPorts(int... ports) {
+        List<InetSocketAddress> shards = new ArrayList<>();
+        for (int port : ports) {
+            shards.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        }
+        return new ShardCoordinator(shards, 10000);
+    }
+
+    public List<InetSocketAddress> getShards() {
+        return shards;
+    }
+
+    public static final class SubstructureSearchSummary {
+        private final long forwardedHits;
+        private final boolean budgetExhausted;
+
+        SubstructureSearchSummary(long forwardedHits, boolean budgetExhausted) {
+            this.forwardedHits = forwardedHits;
+            this.budgetExhausted = budgetExhausted;
+        }
+
+        /**
+         * Number of enumerated hits, i.e. the sum of the synthon combinations of all forwarded combinatorial hits.
+         */
+        public long getForwardedHits() {
+            return forwardedHits;
+        }
+
+        /**
+         * True if the search was stopped because the hit budget was reached, i.e. the hits are incomplete.
+         */
+        public boolean isBudgetExhausted() {
+            return budgetExhausted;
+        }
+    }
+
+    /**
+     * Runs {@link SubstructureSearchHelper#run_substructure_search_streaming_01} on all shards.
+     * <p>
+     * The receiver is never called concurrently. The statistics passed to the receiver are always empty,
+     * the pruning statistics stay on the shards.
+     *
+     * @param maxHits global budget of enumerated hits over all shards, 0 for no limit. Combinatorial hits are
+     *                not split, i.e. the last forwarded combinatorial hit can exceed the budget.
+     */
+    public SubstructureSearchSummary runSubstructureSearch(String queryIdcode, int threadsPerShard,
+                                                           boolean fillIncompleteMappings,
+                                                           boolean omitRxnsWithHitsFromLowerSplitNumber,
+                                                           boolean bridgedBondsExpansion,
+                                                           long maxHits,
+                                                           SynthonSpace.CombinatorialHitReceiver receiver) throws IOException, InterruptedException {
+        ShardProtocol.Request request = new ShardProtocol.Request();
+        request.type = ShardProtocol.REQUEST_SUBSTRUCTURE;
+        request.queryIdcode = queryIdcode;
+        request.threads = threadsPerShard;
+        request.fillIncompleteMappings = fillIncompleteMappings;
+        request.omitRxnsWithHitsFromLowerSplitNumber = omitRxnsWithHitsFromLowerSplitNumber;
+        request.bridgedBondsExpansion = bridgedBondsExpansion;
+
+        Object receiverLock = new Object();
+        long[] forwarded = new long[1];
+        boolean[] exhausted = new boolean[1];
+
+        scatter(request.encode(), request.type, (search, payload) -> {
+            @SuppressWarnings("unchecked")
+            List<SynthonSpace.CombinatorialHit> hits = (List<SynthonSpace.CombinatorialHit>) ShardProtocol.deserialize(payload);
+            synchronized (receiverLock) {
+                if (exhausted[0]) {
+                    return;
+                }
+                List<SynthonSpace.CombinatorialHit> accepted = new ArrayList<>();
+                for (SynthonSpace.CombinatorialHit hit : hits) {
+                    if (maxHits > 0 && forwarded[0] >= maxHits) {
+                        break;
+                    }
+                    accepted.add(hit);
+                    forwarded[0] += SubstructureSearchHelper.countHits(hit);
+                }
+                if (!accepted.isEmpty()) {
+                    receiver.addCombinatorialHits(accepted, new ArrayList<>());
+                }
+                if (maxHits > 0 && forwarded[0] >= maxHits) {
+                    exhausted[0] = true;
+                    search.cancel();
+                }
+            }
+        });
+        synchronized (receiverLock) {
+            return new SubstructureSearchSummary(forwarded[0], exhausted[0]);
+        }
+    }
+
+    /**
+     * Runs {@link SynthonSimilaritySpaceExplorer3#runSearchStreaming} on all shards.
+     *
+     * @return the best maxHits hits of all shards, sorted by decreasing similarity
+     */
+    public List<Pair<SynthonSimilaritySpaceExplorer3.FinalSimilarityResult, Double>> runSimilaritySearch(
+            String queryIdcode, SynthonSimilaritySpaceExplorer3.SimilaritySearchConfig3 config, int maxHits) throws IOException, InterruptedException {
+        return runSimilaritySearch(queryIdcode, config, maxHits, hits -> true);
+    }
+
+    /**
+     * Runs {@link SynthonSimilaritySpaceExplorer3#runSearchStreaming} on all shards. Every shard streams the
+     * hits that enter its own top maxHits, the hits that also enter the global top maxHits are passed to
+     * the receiver right away. The receiver is never called concurrently, if it returns false all shard
+     * searches are cancelled.
+     *
+     * @param maxHits size of the global top k, values <= 0 mean no limit
+     * @return the best maxHits hits of all shards, sorted by decreasing similarity
+     */
+    public List<Pair<SynthonSimilaritySpaceExplorer3.FinalSimilarityResult, Double>> runSimilaritySearch(
+            String queryIdcode, SynthonSimilaritySpaceExplorer3.SimilaritySearchConfig3 config, int maxHits,
+            SynthonSimilaritySpaceExplorer3.SimilarityHitReceiver receiver) throws IOException, InterruptedException {
+        ShardProtocol.Request request = new ShardProtocol.Request();
+        request.type = ShardProtocol.REQUEST_SIMILARITY;
+        request.queryIdcode = queryIdcode;
+        request.threads = config.num_threads;
+        request.maxSplits = config.max_splits;
+        request.maxFragments = config.max_fragments;
+        request.initialTanimoto = config.initial_tanimoto;
+        request.maxHitsPerSplitLevel = config.max_hits_per_split_level;
+        request.maxHits = maxHits;
+
+        TopKCollector<Pair<SynthonSimilaritySpaceExplorer3.FinalSimilarityResult, Double>> topK = new TopKCollector<>(maxHits);
+        Object receiverLock = new Object();
+        boolean[] stopped = new boolean[1];
+        scatter(request.encode(), request.type, (search, payload) -> {
+            @SuppressWarnings("unchecked")
+            List<Pair<SynthonSimilaritySpaceExplorer3.FinalSimilarityResult, Double>> hits =
+                    (List<Pair<SynthonSimilaritySpaceExplorer3.FinalSimilarityResult, Double>>) ShardProtocol.deserialize(payload);
+            synchronized (receiverLock) {
+                if (stopped[0]) {
+                    return;
+                }
+                List<Pair<SynthonSimilaritySpaceExplorer3.FinalSimilarityResult, Double>> improved = new ArrayList<>();
+                for (Pair<SynthonSimilaritySpaceExplorer3.FinalSimilarityResult, Double> hit : hits) {
+                    if (topK.offer(hit, hit.getRight())) {
+                        improved.add(hit);
+                    }
+                }
+                if (!improved.isEmpty() && !receiver.addHits(improved)) {
+                    stopped[0] = true;
+                    search.cancel();
+                }
+            }
+        });
+        return topK.getSortedResults();
+    }
+
+    private interface HitFrameHandler {
+        void handle(ScatterSearch search, byte[] payload) throws IOException;
+    }
+
+    /**
+     * One fanned out search, cancelling closes the connections to all shards.
+     */
+    private static final class ScatterSearch {
+        private final List<Socket> sockets = new ArrayList<>();
+        private final AtomicBoolean cancelled = new AtomicBoolean(false);
+
+        synchronized boolean register(Socket socket) {
+            if (cancelled.get()) {
+                return false;
+            }
+            sockets.add(socket);
+            return true;
+        }
+
+        void cancel() {
+            if (!cancelled.compareAndSet(false, true)) {
+                return;
+            }
+            synchronized (this) {
+                for (Socket socket : sockets) {
+                    try {
+                        socket.close();
+                    } catch (IOException ex) {
+                        // ignore, the connection is gone anyway
+                    }
+                }
+            }
+        }
+
+        boolean isCancelled() {
+            return cancelled.get();
+        }
+    }
+
+    private void scatter(byte[] request, byte requestType, HitFrameHandler handler) throws IOException, InterruptedException {
+        ScatterSearch search = new ScatterSearch();
+        ExecutorService executor = Executors.newFixedThreadPool(shards.size());
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (InetSocketAddress shard : shards) {
+                futures.add(executor.submit(() -> {
+                    runOnShard(shard, request, requestType, handler, search);
+                    return null;
+                }));
+            }
+            IOException failure = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    IOException cause = ex.getCause() instanceof IOException
+                            ? (IOException) ex.getCause() : new IOException(ex.getCause());
+                    if (failure == null) {
+                        failure = cause;
+                    } else {
+                        failure.addSuppressed(cause);
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } catch (InterruptedException ex) {
+            search.cancel();
+            throw ex;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void runOnShard(InetSocketAddress shard, byte[] request, byte requestType,
+                            HitFrameHandler handler, ScatterSearch search) throws IOException {
+        try (Socket socket = new Socket()) {
+            if (!search.register(socket)) {
+                return;
+            }
+            socket.setTcpNoDelay(true);
+            socket.connect(shard, connectTimeoutMillis);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            ShardProtocol.writeFrame(out, requestType, request);
+            while (true) {
+                ShardProtocol.Frame frame = ShardProtocol.readFrame(in);
+                if (frame.type == ShardProtocol.FRAME_HITS) {
+                    handler.handle(search, frame.payload);
+                } else if (frame.type == ShardProtocol.FRAME_END) {
+                    return;
+                } else if (frame.type == ShardProtocol.FRAME_ERROR) {
+                    throw new IOException("Shard " + shard + " failed: " + new String(frame.payload, StandardCharsets.UTF_8));
+                } else {
+                    throw new IOException("Shard " + shard + " sent unknown frame type: " + frame.type);
+                }
+            }
+        } catch (IOException ex) {
+            if (!search.isCancelled()) {
+                // the merged result would be incomplete, stop the other shards
+                search.cancel();
+                throw ex;
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.idorsia.research.chem.hyperspace.shard;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Framing of the coordinator / shard worker protocol.
+ * <p>
+ * Every connection carries exactly one search: the coordinator sends one request
+ * frame, the worker answers with any number of result frames followed by one END
+ * or ERROR frame. A frame is {@code [byte type][int length][length bytes]}.
+ * Closing the connection cancels the search on the worker.
+ */
+final class ShardProtocol {
+
+    static final int MAGIC = 0x48535031; // "HSP1"
+
+    static final byte REQUEST_SUBSTRUCTURE = 1;
+    static final byte REQUEST_SIMILARITY   = 2;
+
+    static final byte FRAME_HITS  = 10;
+    static final byte FRAME_END   = 11;
+    static final byte FRAME_ERROR = 12;
+
+    /**
+     * Upper limit for a single frame, protects against reading garbage from a wrong peer.
+     */
+    static final int MAX_FRAME_BYTES = 1 << 30;
+
+    /**
+     * Classes that may occur in hit frames. Hit frames are Java serialized, the filter makes sure
+     * that a wrong or malicious peer cannot instantiate anything else in the coordinator.
+     */
+    static final ObjectInputFilter RESULT_FILTER = ObjectInputFilter.Config.createFilter(
+            "maxdepth=100;"
+                    + "java.lang.*;java.util.*;"
+                    + "org.apache.commons.lang3.tuple.*;"
+                    + "com.idorsia.research.chem.hyperspace.**;"
+                    + "com.actelion.research.chem.**;"
+                    + "!*");
+
+    static final class Frame {
+        final byte type;
+        final byte[] payload;
+
+        Frame(byte type, byte[] payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Search request, the substructure or the similarity parameters are ignored
+     * depending on the request type.
+     */
+    static final class Request {
+        byte type;
+        String queryIdcode = "";
+        int threads = 1;
+
+        boolean fillIncompleteMappings;
+        boolean omitRxnsWithHitsFromLowerSplitNumber;
+        boolean bridgedBondsExpansion;
+
+        int maxSplits;
+        int maxFragments;
+        double initialTanimoto;
+        int maxHitsPerSplitLevel;
+        int maxHits;
+
+        byte[] encode() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            writeString(out, queryIdcode);
+            out.writeInt(threads);
+            out.writeBoolean(fillIncompleteMappings);
+            out.writeBoolean(omitRxnsWithHitsFromLowerSplitNumber);
+            out.writeBoolean(bridgedBondsExpansion);
+            out.writeInt(maxSplits);
+            out.writeInt(maxFragments);
+            out.writeDouble(initialTanimoto);
+            out.writeInt(maxHitsPerSplitLevel);
+            out.writeInt(maxHits);
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        static Request decode(byte type, byte[] payload) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a shard protocol request");
+            }
+            Request request = new Request();
+            request.type = type;
+            request.queryIdcode = readString(in);
+            request.threads = in.readInt();
+            request.fillIncompleteMappings = in.readBoolean();
+            request.omitRxnsWithHitsFromLowerSplitNumber = in.readBoolean();
+            request.bridgedBondsExpansion = in.readBoolean();
+            request.maxSplits = in.readInt();
+            request.maxFragments = in.readInt();
+            request.initialTanimoto = in.readDouble();
+            request.maxHitsPerSplitLevel = in.readInt();
+            request.maxHits = in.readInt();
+            return request;
+        }
+    }
+
+    private ShardProtocol() {
+    }
+
+    static void writeFrame(DataOutputStream out, byte type, byte[] payload) throws IOException {
+        out.writeByte(type);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.flush();
+    }
+
+    static Frame readFrame(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new Frame(type, payload);
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+            throw new IOException("Invalid string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static byte[] serialize(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @throws java.io.InvalidClassException if the payload contains a class that is not accepted by {@link #RESULT_FILTER}
+     */
+    static Object deserialize(byte[] payload) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload))) {
+            in.setObjectInputFilter(RESULT_FILTER);
+            return in.readObject();
+        } catch (ClassNotFoundException ex) {
+            throw new IOException("Failed to deserialize shard result", ex);
+        }
+    }
+}
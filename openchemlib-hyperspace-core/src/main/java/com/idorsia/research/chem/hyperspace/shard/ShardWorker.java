@@ -0,0 +1,225 @@
+package com.idorsia.research.chem.hyperspace.shard;
+
+import com.actelion.research.chem.IDCodeParser;
+import com.actelion.research.chem.StereoMolecule;
+import com.idorsia.research.chem.hyperspace.CachedDescriptorProvider;
+import com.idorsia.research.chem.hyperspace.HyperspaceIOUtils;
+import com.idorsia.research.chem.hyperspace.SubstructureSearchHelper;
+import com.idorsia.research.chem.hyperspace.SynthonSimilaritySpace3;
+import com.idorsia.research.chem.hyperspace.SynthonSimilaritySpaceExplorer3;
+import com.idorsia.research.chem.hyperspace.SynthonSpace;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Serves searches on one shard space over the {@link ShardProtocol}.
+ * <p>
+ * The worker only binds to the loopback interface. Hits are streamed to the
+ * coordinator while the search is running, if the coordinator closes the
+ * connection the running search is interrupted.
+ */
+public final class ShardWorker implements Closeable {
+
+    private final SynthonSpace space;
+    private final CachedDescriptorProvider cdp;
+    private final ServerSocket serverSocket;
+    private final ExecutorService connectionExecutor;
+
+    private volatile SynthonSimilaritySpace3 similaritySpace;
+    private volatile Thread acceptThread;
+
+    /**
+     * @param port local port, 0 picks a free port, see {@link #getPort()}
+     */
+    public ShardWorker(SynthonSpace space, int port) throws IOException {
+        this.space = space;
+        this.cdp = new CachedDescriptorProvider(space.getDescriptorHandlerShortName());
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        this.connectionExecutor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "shard-worker-connection");
+            t.setDaemon(true);
+            return t;
+        });
+        if (space instanceof SynthonSimilaritySpace3) {
+            this.similaritySpace = (SynthonSimilaritySpace3) space;
+        }
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public synchronized void start() {
+        if (acceptThread != null) {
+            return;
+        }
+        acceptThread = new Thread(this::acceptLoop, "shard-worker-accept-" + getPort());
+        acceptThread.start();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connectionExecutor.submit(() -> handleConnection(socket));
+            } catch (SocketException ex) {
+                // server socket closed
+                return;
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private void handleConnection(Socket socket) {
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            ShardProtocol.Frame frame = ShardProtocol.readFrame(in);
+            ShardProtocol.Request request = ShardProtocol.Request.decode(frame.type, frame.payload);
+            try {
+                if (request.type == ShardProtocol.REQUEST_SUBSTRUCTURE) {
+                    runSubstructureSearch(request, out);
+                } else if (request.type == ShardProtocol.REQUEST_SIMILARITY) {
+                    runSimilaritySearch(request, out);
+                } else {
+                    throw new IOException("Unknown request type: " + request.type);
+                }
+                ShardProtocol.writeFrame(out, ShardProtocol.FRAME_END, new byte[0]);
+            } catch (ConnectionClosedException ex) {
+                // coordinator cancelled the search
+            } catch (Exception ex) {
+                if (!s.isClosed()) {
+                    StringWriter trace = new StringWriter();
+                    ex.printStackTrace(new PrintWriter(trace));
+                    ShardProtocol.writeFrame(out, ShardProtocol.FRAME_ERROR, trace.toString().getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        } catch (IOException ex) {
+            // connection lost, nothing to report
+        } finally {
+            // clear a possible cancellation interrupt before the thread is reused
+            Thread.interrupted();
+        }
+    }
+
+    private void runSubstructureSearch(ShardProtocol.Request request, DataOutputStream out) throws Exception {
+        StereoMolecule query = parseQuery(request.queryIdcode);
+        Thread searchThread = Thread.currentThread();
+        SynthonSpace.CombinatorialHitReceiver receiver = new SynthonSpace.CombinatorialHitReceiver() {
+            private boolean closed = false;
+
+            @Override
+            public synchronized void addCombinatorialHits(List<SynthonSpace.CombinatorialHit> hi, List<SynthonSpace.SplitPatternWithConnectorProximityPruningStatistics> stats) {
+                if (closed || hi.isEmpty()) {
+                    return;
+                }
+                try {
+                    ShardProtocol.writeFrame(out, ShardProtocol.FRAME_HITS, ShardProtocol.serialize(new ArrayList<>(hi)));
+                } catch (IOException ex) {
+                    closed = true;
+                    searchThread.interrupt();
+                }
+            }
+        };
+        if (request.bridgedBondsExpansion) {
+            SubstructureSearchHelper.run_substructure_search_streaming_01_withBridgedBondsExpansion(space, cdp, query,
+                    request.threads, request.fillIncompleteMappings, request.omitRxnsWithHitsFromLowerSplitNumber, receiver);
+        } else {
+            SubstructureSearchHelper.run_substructure_search_streaming_01(space, cdp, query,
+                    request.threads, request.fillIncompleteMappings, request.omitRxnsWithHitsFromLowerSplitNumber, receiver);
+        }
+        if (searchThread.isInterrupted()) {
+            throw new ConnectionClosedException();
+        }
+    }
+
+    private void runSimilaritySearch(ShardProtocol.Request request, DataOutputStream out) throws Exception {
+        StereoMolecule query = parseQuery(request.queryIdcode);
+        SynthonSimilaritySpaceExplorer3.SimilaritySearchConfig3 config = new SynthonSimilaritySpaceExplorer3.SimilaritySearchConfig3(
+                request.threads, request.maxSplits, request.maxFragments, request.initialTanimoto, request.maxHitsPerSplitLevel);
+        SynthonSimilaritySpaceExplorer3 explorer = new SynthonSimilaritySpaceExplorer3(getSimilaritySpace(request.threads), cdp);
+
+        // hits are sent as soon as they enter the top k of this shard, the coordinator merges them into the global top k
+        AtomicBoolean closed = new AtomicBoolean(false);
+        explorer.runSearchStreaming(query, config, request.maxHits, hits -> {
+            try {
+                ShardProtocol.writeFrame(out, ShardProtocol.FRAME_HITS, ShardProtocol.serialize(new ArrayList<>(hits)));
+                return true;
+            } catch (IOException ex) {
+                closed.set(true);
+                return false;
+            }
+        }, x -> {});
+        if (closed.get()) {
+            throw new ConnectionClosedException();
+        }
+    }
+
+    /**
+     * The similarity search structures are only created on the first similarity request,
+     * shards that only serve substructure searches never pay for them.
+     */
+    private SynthonSimilaritySpace3 getSimilaritySpace(int threads) {
+        SynthonSimilaritySpace3 ss = similaritySpace;
+        if (ss == null) {
+            synchronized (this) {
+                ss = similaritySpace;
+                if (ss == null) {
+                    ss = new SynthonSimilaritySpace3(space);
+                    ss.initFastSimilaritySearchers(threads, x -> {});
+                    similaritySpace = ss;
+                }
+            }
+        }
+        return ss;
+    }
+
+    private static StereoMolecule parseQuery(String idcode) {
+        StereoMolecule query = new StereoMolecule();
+        new IDCodeParser().parse(query, idcode);
+        query.ensureHelperArrays(StereoMolecule.cHelperCIP);
+        return query;
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        connectionExecutor.shutdownNow();
+    }
+
+    private static final class ConnectionClosedException extends Exception {
+    }
+
+    /**
+     * Starts a worker process for one shard file: {@code <shard-file> <port>}
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: ShardWorker <shard-file> <port>");
+            return;
+        }
+        SynthonSpace space = HyperspaceIOUtils.loadSynthonSpace(args[0]);
+        ShardWorker worker = new ShardWorker(space, Integer.parseInt(args[1]));
+        worker.start();
+        System.out.println("[INFO] shard worker ready on port " + worker.getPort());
+    }
+}
@@ -0,0 +1,149 @@
+package com.idorsia.research.chem.hyperspace.shard;
+
+import com.idorsia.research.chem.hyperspace.HyperspaceIOUtils;
+import com.idorsia.research.chem.hyperspace.SynthonSpace;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Partitions a {@link SynthonSpace} by reaction into standalone shard spaces.
+ * <p>
+ * Every reaction ends up in exactly one shard, and all search structures of a
+ * reaction are local to that reaction, i.e. searching all shards and merging the
+ * hits gives the same hits as searching the full space.
+ */
+public final class SynthonSpaceSharder {
+
+    private SynthonSpaceSharder() {
+    }
+
+    /**
+     * Assigns the reactions to shards such that the number of synthons per shard is
+     * balanced (largest reactions first, each into the currently smallest shard).
+     * The assignment is deterministic for a given space.
+     */
+    public static List<List<String>> partitionReactions(SynthonSpace space, int numShards) {
+        if (numShards < 1) {
+            throw new IllegalArgumentException("numShards must be positive");
+        }
+        Map<String, Long> synthonsByRxn = new HashMap<>();
+        for (String rxn : space.getRxnIds()) {
+            long count = 0;
+            for (Integer frag : space.getFragTypes(rxn).keySet()) {
+                count += space.getSynthonSet(rxn, frag).size();
+            }
+            synthonsByRxn.put(rxn, count);
+        }
+        List<String> rxns = new ArrayList<>(synthonsByRxn.keySet());
+        rxns.sort(Comparator.<String>comparingLong(synthonsByRxn::get).reversed().thenComparing(Comparator.naturalOrder()));
+
+        List<List<String>> shards = new ArrayList<>();
+        long[] shardSizes = new long[numShards];
+        PriorityQueue<Integer> smallest = new PriorityQueue<>(
+                Comparator.<Integer>comparingLong(i -> shardSizes[i]).thenComparingInt(i -> i));
+        for (int i = 0; i < numShards; i++) {
+            shards.add(new ArrayList<>());
+            smallest.add(i);
+        }
+        for (String rxn : rxns) {
+            int shard = smallest.poll();
+            shards.get(shard).add(rxn);
+            shardSizes[shard] += synthonsByRxn.get(rxn);
+            smallest.add(shard);
+        }
+        return shards;
+    }
+
+    /**
+     * Creates a standalone space containing only the given reactions. The synthon
+     * descriptors are recomputed with the descriptor handler of the source space.
+     */
+    public static SynthonSpace createShard(SynthonSpace space, Collection<String> rxnIds, int threads) throws Exception {
+        SynthonSpace shard = new SynthonSpace();
+        shard.setFP(SynthonSpace.resolveDescriptorHandlerFromName(space.getDescriptorHandlerShortName()), space.getBits());
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (String rxn : rxnIds) {
+                if (space.getFragTypes(rxn) == null) {
+                    throw new IllegalArgumentException("Unknown reaction: " + rxn);
+                }
+                futures.add(executor.submit(() -> {
+                    Map<Integer, List<Object>> molecules = new HashMap<>();
+                    Map<String, String> idcodeToId = new HashMap<>();
+                    for (Integer frag : space.getFragTypes(rxn).keySet()) {
+                        List<Object> set = new ArrayList<>();
+                        for (SynthonSpace.FragId fid : space.getSynthonSet(rxn, frag)) {
+                            set.add(fid.idcode);
+                            if (fid.fragment_id != null) {
+                                idcodeToId.put(fid.idcode, fid.fragment_id);
+                            }
+                        }
+                        molecules.put(frag, set);
+                    }
+                    shard.addReaction(rxn, molecules, idcodeToId, null);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof Exception) {
+                        throw (Exception) cause;
+                    }
+                    throw ex;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        shard.initAfterJavaDeserialization();
+        shard.reinitHelperMaps();
+        shard.reinitBitTree();
+        return shard;
+    }
+
+    /**
+     * Partitions the space and writes one space file per shard, named
+     * {@code <outputPrefix>_shard_<i>.data}. Shards are created one after the
+     * other, i.e. at most one shard is in memory in addition to the source space.
+     *
+     * @return the written shard files
+     */
+    public static List<String> writeShards(SynthonSpace space, int numShards, String outputPrefix, int threads) throws Exception {
+        List<List<String>> partition = partitionReactions(space, numShards);
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < partition.size(); i++) {
+            SynthonSpace shard = createShard(space, partition.get(i), threads);
+            String file = outputPrefix + "_shard_" + i + ".data";
+            HyperspaceIOUtils.saveSynthonSpace(shard, file);
+            files.add(file);
+        }
+        return files;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Usage: SynthonSpaceSharder <space-file> <num-shards> <output-prefix> [threads]");
+            return;
+        }
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        SynthonSpace space = HyperspaceIOUtils.loadSynthonSpace(args[0]);
+        List<String> files = writeShards(space, Integer.parseInt(args[1]), args[2], threads);
+        files.forEach(fi -> System.out.println("[INFO] wrote shard: " + fi));
+    }
+}
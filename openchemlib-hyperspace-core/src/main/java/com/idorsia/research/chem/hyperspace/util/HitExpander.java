@@ -14,10 +14,13 @@ import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 public class HitExpander {
@@ -35,17 +38,27 @@ public class HitExpander {
         public String getIDCodeAssembled() {return this.idcAssembled;}
     }
 
-    public static List<SimpleExpandedHit> expandSimpleHit(SimpleCombinatorialHit hi, int max_expanded) {
-        String synthon_rxn = hi.rxnId;
-        List<SimpleExpandedHit> exp_hits_i = new ArrayList<>();
-        if( hi.synthons.length==2) {
-            exp_hits_i = expandCombiHits2(hi.synthons[0],hi.synthons[1],max_expanded);
-        }
-        else if( hi.synthons.length==3) {
-            exp_hits_i = expandCombiHits3(hi.synthons[0],hi.synthons[1],hi.synthons[2],max_expanded);
-        }
+    /**
+     * Tuple ranges smaller than this are not split further across threads
+     */
+    private static final int MIN_RANGE_SIZE = 16;
+
+    /**
+     * Receives expanded hits while the expansion is running.
+     * <p>
+     * For parallel expansion this is called concurrently from the worker threads.
+     */
+    public interface ExpandedHitReceiver {
+        /**
+         * @param index index of the synthon tuple in the product space, first synthon set varies slowest
+         * @param hit
+         * @return false to stop the expansion
+         */
+        boolean addExpandedHit(long index, SimpleExpandedHit hit);
+    }
 
-        return exp_hits_i;
+    public static List<SimpleExpandedHit> expandSimpleHit(SimpleCombinatorialHit hi, int max_expanded) {
+        return expandSynthonSets(hi.synthons, max_expanded);
     }
 
     /**
@@ -53,170 +66,223 @@ public class HitExpander {
      * @param hi
      * @param max_expanded
      * @param numThreads if -1 it uses Runtime.availableProcessors threads
-     * @return
+     * @return expanded hits, in the same order as for expandSimpleHit
      */
     public static List<SimpleExpandedHit> expandSimpleHit_Parallel(SimpleCombinatorialHit hi, int max_expanded, int numThreads) {
-        String synthon_rxn = hi.rxnId;
-        List<SimpleExpandedHit> exp_hits_i = new ArrayList<>();
-        if( hi.synthons.length==2) {
-            exp_hits_i = expandCombiHits2_Parallel(hi.synthons[0],hi.synthons[1],max_expanded,numThreads);
-        }
-        else if( hi.synthons.length==3) {
-            exp_hits_i = expandCombiHits3_Parallel(hi.synthons[0],hi.synthons[1],hi.synthons[2],max_expanded,numThreads);
-        }
+        return expandSynthonSets_Parallel(hi.synthons, max_expanded, numThreads);
+    }
 
-        return exp_hits_i;
+    /**
+     * Expands the first max_expanded synthon tuples of a hit with any number of synthon sets.
+     *
+     * @param hi
+     * @param max_expanded
+     * @param numThreads if -1 it uses Runtime.availableProcessors threads
+     * @param receiver
+     * @return number of synthon tuples that could not be assembled, see expandCartesian
+     */
+    public static long expandSimpleHitStreaming(SimpleCombinatorialHit hi, long max_expanded, int numThreads, ExpandedHitReceiver receiver) {
+        return expandCartesian(hi.synthons, max_expanded, numThreads, receiver);
     }
 
+    /**
+     * Assembles the synthon tuples of the cartesian product of the synthon sets, in index order
+     * (first synthon set varies slowest). The first max_expanded tuples are split into balanced
+     * contiguous index ranges, one per thread. Synthons are parsed lazily, only when they are
+     * part of an assembled tuple.
+     * <p>
+     * A tuple that cannot be parsed or assembled is skipped and counted, the expansion goes on with
+     * the next one. If the receiver throws, all ranges stop and the exception is rethrown.
+     *
+     * @return number of skipped tuples, if this is not 0 the expansion is incomplete
+     */
+    public static long expandCartesian(SimpleSynthon[][] synthon_sets, long max_expanded, int threads, ExpandedHitReceiver receiver) {
+        if(synthon_sets.length < 2) {
+            // nothing to assemble
+            return 0;
+        }
+        long limit = Math.min( numCombinations(synthon_sets) , Math.max(0,max_expanded) );
+        if(limit == 0) {
+            return 0;
+        }
+        SynthonMolCache cache = new SynthonMolCache(synthon_sets);
+        AtomicBoolean stop = new AtomicBoolean(false);
+        LongAdder failed = new LongAdder();
+
+        int numThreads = (threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
+        numThreads = (int) Math.max( 1 , Math.min( numThreads , limit / MIN_RANGE_SIZE ) );
+        if(numThreads == 1) {
+            expandRange(synthon_sets, cache, 0, limit, stop, failed, receiver);
+            return failed.sum();
+        }
 
-    public static List<SimpleExpandedHit> expandCombiHits2(SimpleSynthon[] ma, SimpleSynthon[] mb, int max_expanded) {
-        List<SimpleExpandedHit> expanded = new ArrayList<>();
-        //IDCodeParser icp = new IDCodeParser();
-        List<StereoMolecule> mol_a = Arrays.stream(ma).map(si -> HyperspaceUtils.parseIDCode(si.idcode)).collect(Collectors.toList());
-        List<StereoMolecule> mol_b = Arrays.stream(mb).map(si -> HyperspaceUtils.parseIDCode(si.idcode)).collect(Collectors.toList());
-        for(int zi=0;zi<ma.length;zi++) {
-            SimpleSynthon mai = ma[zi];
-            for(int zj=0;zj<mb.length;zj++) {
-                if(expanded.size()>=max_expanded) {
-                    break;
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<?>> futures = new ArrayList<>();
+        long range = limit / numThreads;
+        long remainder = limit % numThreads;
+        for(int zi=0;zi<numThreads;zi++) {
+            long from = zi * range + Math.min(zi, remainder);
+            long to   = from + range + ( (zi < remainder) ? 1 : 0 );
+            futures.add(executor.submit( () -> expandRange(synthon_sets, cache, from, to, stop, failed, receiver) ));
+        }
+        Throwable receiverFailure = null;
+        try {
+            for(Future<?> fi : futures) {
+                try {
+                    fi.get();
+                } catch (ExecutionException e) {
+                    // the other ranges stop as well, the caller gets the first failure
+                    stop.set(true);
+                    if(receiverFailure == null) { receiverFailure = e.getCause(); }
                 }
-
-                SimpleSynthon mbi = mb[zj];
-                List<StereoMolecule> assembly = new ArrayList<>();
-                assembly.add(mol_a.get(zi)); assembly.add(mol_b.get(zj));
-                StereoMolecule assembled = SynthonReactor.react(assembly);
-                SimpleSynthon[] synthons_i = new SimpleSynthon[]{mai , mbi };
-                expanded.add( new SimpleExpandedHit(assembled.getIDCode(),assembled.getIDCoordinates(), synthons_i));
             }
+        } catch (InterruptedException e) {
+            stop.set(true);
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdown();
         }
-        return expanded;
+        if(receiverFailure instanceof RuntimeException) { throw (RuntimeException) receiverFailure; }
+        if(receiverFailure instanceof Error) { throw (Error) receiverFailure; }
+        if(receiverFailure != null) { throw new RuntimeException(receiverFailure); }
+        return failed.sum();
     }
 
-
-    public static List<SimpleExpandedHit> expandCombiHits3(SimpleSynthon[] ma, SimpleSynthon[] mb, SimpleSynthon[] mc, int max_expanded) {
-        List<SimpleExpandedHit> expanded = new ArrayList<>();
-        //IDCodeParser icp = new IDCodeParser();
-        List<StereoMolecule> mol_a = Arrays.stream(ma).map(si -> HyperspaceUtils.parseIDCode(si.idcode)).collect(Collectors.toList());
-        List<StereoMolecule> mol_b = Arrays.stream(mb).map(si -> HyperspaceUtils.parseIDCode(si.idcode)).collect(Collectors.toList());
-        List<StereoMolecule> mol_c = Arrays.stream(mc).map(si -> HyperspaceUtils.parseIDCode(si.idcode)).collect(Collectors.toList());
-        for(int zi=0;zi<ma.length;zi++) {
-            SimpleSynthon mai = ma[zi];
-            for(int zj=0;zj<mb.length;zj++) {
-                SimpleSynthon mbi = mb[zj];
-                for(int zk=0;zk<mc.length;zk++) {
-                    if(expanded.size()>=max_expanded) {
-                        break;
-                    }
-
-                    SimpleSynthon mci = mc[zk];
-                    List<StereoMolecule> assembly = new ArrayList<>();
-                    assembly.add(mol_a.get(zi)); assembly.add(mol_b.get(zj)); assembly.add(mol_c.get(zk));
-                    StereoMolecule assembled = SynthonReactor.react(assembly);
-                    SimpleSynthon[] synthons_i = new SimpleSynthon[]{mai , mbi , mci };
-                    expanded.add( new SimpleExpandedHit(assembled.getIDCode(),assembled.getIDCoordinates(), synthons_i));
-                }
+    /**
+     * @return number of synthon tuples, Long.MAX_VALUE if it does not fit into a long
+     */
+    public static long numCombinations(SimpleSynthon[][] synthon_sets) {
+        long total = 1;
+        for(SimpleSynthon[] si : synthon_sets) {
+            if(si.length == 0) {
+                return 0;
+            }
+            if(total > Long.MAX_VALUE / si.length) {
+                total = Long.MAX_VALUE;
+            }
+            else {
+                total *= si.length;
             }
         }
-        return expanded;
+        return total;
     }
 
+    private static void expandRange(SimpleSynthon[][] synthon_sets, SynthonMolCache cache, long from, long to,
+                                    AtomicBoolean stop, LongAdder failed, ExpandedHitReceiver receiver) {
+        int n = synthon_sets.length;
+        // decode the start index, last synthon set varies fastest
+        int[] idx = new int[n];
+        long rest = from;
+        for(int zi=n-1;zi>=0;zi--) {
+            idx[zi] = (int) (rest % synthon_sets[zi].length);
+            rest /= synthon_sets[zi].length;
+        }
 
-    public static List<SimpleExpandedHit> expandCombiHits2_Parallel(SimpleSynthon[] ma, SimpleSynthon[] mb, int max_expanded, int threads) {
-        // Initialize the ExecutorService with a fixed thread pool. Adjust the pool size as needed.
-        int numThreads = (threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
-        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
-
-        List<Future<SimpleExpandedHit>> futureList = new ArrayList<>();
-        List<StereoMolecule> mol_a = Arrays.stream(ma).parallel().map(si -> HyperspaceUtils.parseIDCode(si.idcode)).collect(Collectors.toList());
-        List<StereoMolecule> mol_b = Arrays.stream(mb).parallel().map(si -> HyperspaceUtils.parseIDCode(si.idcode)).collect(Collectors.toList());
-
-        for (int zi = 0; zi < ma.length; zi++) {
-            for (int zj = 0; zj < mb.length; zj++) {
-                final int finalZi = zi;
-                final int finalZj = zj;
-                // Submit callable tasks to the executor
-                Callable<SimpleExpandedHit> task = () -> {
-                    List<StereoMolecule> assembly = Arrays.asList(mol_a.get(finalZi), mol_b.get(finalZj));
-                    StereoMolecule assembled = SynthonReactor.react(assembly);
-                    SimpleSynthon[] synthons_i = new SimpleSynthon[]{ma[finalZi], mb[finalZj]};
-                    return new SimpleExpandedHit(assembled.getIDCode(), assembled.getIDCoordinates(), synthons_i);
-                };
-                // Early exit check before task submission to avoid unnecessary task submissions.
-                if (futureList.size() >= max_expanded) {
+        for(long ti=from;ti<to;ti++) {
+            if(stop.get() || Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            SimpleExpandedHit hit = assemble(synthon_sets, cache, idx);
+            if(hit == null) {
+                failed.increment();
+            }
+            else if(!receiver.addExpandedHit(ti, hit)) {
+                stop.set(true);
+                return;
+            }
+            // next tuple
+            for(int zi=n-1;zi>=0;zi--) {
+                if(++idx[zi] < synthon_sets[zi].length) {
                     break;
                 }
-                futureList.add(executor.submit(task));
+                idx[zi] = 0;
             }
         }
+    }
 
-        List<SimpleExpandedHit> expanded = new ArrayList<>();
-        // Collect and process results
-        for (Future<SimpleExpandedHit> future : futureList) {
-            try {
-                SimpleExpandedHit hit = future.get(); // This call blocks until the task is complete.
-                expanded.add(hit);
-                if (expanded.size() >= max_expanded) {
-                    break;
-                }
-            } catch (Exception e) {
-                // Handle exceptions appropriately
-                e.printStackTrace();
+    /**
+     * @return the assembled tuple, null if a synthon cannot be parsed or the tuple cannot be assembled
+     */
+    private static SimpleExpandedHit assemble(SimpleSynthon[][] synthon_sets, SynthonMolCache cache, int[] idx) {
+        int n = synthon_sets.length;
+        SimpleSynthon[] synthons_i = new SimpleSynthon[n];
+        try {
+            List<StereoMolecule> assembly = new ArrayList<>(n);
+            for(int zi=0;zi<n;zi++) {
+                assembly.add(cache.get(zi, idx[zi]));
+                synthons_i[zi] = synthon_sets[zi][idx[zi]];
             }
+            StereoMolecule assembled = SynthonReactor.react(assembly);
+            return new SimpleExpandedHit(assembled.getIDCode(),assembled.getIDCoordinates(), synthons_i);
+        }
+        catch (RuntimeException e) {
+            return null;
         }
-        executor.shutdown(); // Shutdown the executor service
-        return expanded;
     }
 
-    public static List<SimpleExpandedHit> expandCombiHits3_Parallel(SimpleSynthon[] ma, SimpleSynthon[] mb, SimpleSynthon[] mc, int max_expanded, int threads) {
-        // Initialize the ExecutorService with a fixed thread pool. Adjust the pool size as needed.
-        int numThreads = (threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
-        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
-
-        List<Future<SimpleExpandedHit>> futureList = new ArrayList<>();
-        List<StereoMolecule> mol_a = Arrays.stream(ma).parallel().map(si -> HyperspaceUtils.parseIDCode(si.idcode)).collect(Collectors.toList());
-        List<StereoMolecule> mol_b = Arrays.stream(mb).parallel().map(si -> HyperspaceUtils.parseIDCode(si.idcode)).collect(Collectors.toList());
-        List<StereoMolecule> mol_c = Arrays.stream(mc).parallel().map(si -> HyperspaceUtils.parseIDCode(si.idcode)).collect(Collectors.toList());
-
-        for (int zi = 0; zi < ma.length; zi++) {
-            for (int zj = 0; zj < mb.length; zj++) {
-                for (int zk = 0; zj < mb.length; zk++) {
-                    final int finalZi = zi;
-                    final int finalZj = zj;
-                    final int finalZk = zk;
-                    // Submit callable tasks to the executor
-                    Callable<SimpleExpandedHit> task = () -> {
-                        List<StereoMolecule> assembly = Arrays.asList(mol_a.get(finalZi), mol_b.get(finalZj), mol_c.get(finalZk));
-                        StereoMolecule assembled = SynthonReactor.react(assembly);
-                        SimpleSynthon[] synthons_i = new SimpleSynthon[]{ma[finalZi], mb[finalZj], mc[finalZk]};
-                        return new SimpleExpandedHit(assembled.getIDCode(), assembled.getIDCoordinates(), synthons_i);
-                    };
-                    // Early exit check before task submission to avoid unnecessary task submissions.
-                    if (futureList.size() >= max_expanded) {
-                        break;
-                    }
-                    futureList.add(executor.submit(task));
-                }
+    /**
+     * Parses every synthon once, on first use. Thread-safe.
+     */
+    private static final class SynthonMolCache {
+        private final SimpleSynthon[][] synthon_sets;
+        private final List<AtomicReferenceArray<StereoMolecule>> mols = new ArrayList<>();
+
+        SynthonMolCache(SimpleSynthon[][] synthon_sets) {
+            this.synthon_sets = synthon_sets;
+            for(SimpleSynthon[] si : synthon_sets) {
+                mols.add(new AtomicReferenceArray<>(si.length));
             }
         }
 
-        List<SimpleExpandedHit> expanded = new ArrayList<>();
-        // Collect and process results
-        for (Future<SimpleExpandedHit> future : futureList) {
-            try {
-                SimpleExpandedHit hit = future.get(); // This call blocks until the task is complete.
-                expanded.add(hit);
-                if (expanded.size() >= max_expanded) {
-                    break;
-                }
-            } catch (Exception e) {
-                // Handle exceptions appropriately
-                e.printStackTrace();
+        StereoMolecule get(int set, int i) {
+            StereoMolecule mi = mols.get(set).get(i);
+            if(mi == null) {
+                // concurrent first uses may parse twice, all threads use the same instance
+                mols.get(set).compareAndSet(i, null, HyperspaceUtils.parseIDCode(synthon_sets[set][i].idcode));
+                mi = mols.get(set).get(i);
             }
+            return mi;
         }
-        executor.shutdown(); // Shutdown the executor service
+    }
+
+    private static List<SimpleExpandedHit> expandSynthonSets(SimpleSynthon[][] synthon_sets, int max_expanded) {
+        List<SimpleExpandedHit> expanded = new ArrayList<>();
+        reportSkipped( expandCartesian(synthon_sets, max_expanded, 1, (index, hit) -> expanded.add(hit)) );
         return expanded;
     }
 
+    private static List<SimpleExpandedHit> expandSynthonSets_Parallel(SimpleSynthon[][] synthon_sets, int max_expanded, int threads) {
+        long limit = Math.min( numCombinations(synthon_sets) , Math.max(0,max_expanded) );
+        SimpleExpandedHit[] expanded = new SimpleExpandedHit[(int) limit];
+        reportSkipped( expandCartesian(synthon_sets, max_expanded, threads, (index, hit) -> {
+            expanded[(int) index] = hit;
+            return true;
+        }) );
+        return Arrays.stream(expanded).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
+    private static void reportSkipped(long skipped) {
+        if(skipped > 0) {
+            System.out.println("[WARNING] HitExpander: "+skipped+" synthon tuples could not be assembled, the expansion is incomplete");
+        }
+    }
+
+    public static List<SimpleExpandedHit> expandCombiHits2(SimpleSynthon[] ma, SimpleSynthon[] mb, int max_expanded) {
+        return expandSynthonSets(new SimpleSynthon[][]{ma,mb}, max_expanded);
+    }
+
+    public static List<SimpleExpandedHit> expandCombiHits3(SimpleSynthon[] ma, SimpleSynthon[] mb, SimpleSynthon[] mc, int max_expanded) {
+        return expandSynthonSets(new SimpleSynthon[][]{ma,mb,mc}, max_expanded);
+    }
+
+    public static List<SimpleExpandedHit> expandCombiHits2_Parallel(SimpleSynthon[] ma, SimpleSynthon[] mb, int max_expanded, int threads) {
+        return expandSynthonSets_Parallel(new SimpleSynthon[][]{ma,mb}, max_expanded, threads);
+    }
+
+    public static List<SimpleExpandedHit> expandCombiHits3_Parallel(SimpleSynthon[] ma, SimpleSynthon[] mb, SimpleSynthon[] mc, int max_expanded, int threads) {
+        return expandSynthonSets_Parallel(new SimpleSynthon[][]{ma,mb,mc}, max_expanded, threads);
+    }
+
 
     public static void exportExpandedHitsWithQueriesToDWAR(String file, List<Pair<String,SimpleExpandedHit>> hitsWithQueries) {
         exportExpandedHitsWithQueriesToDWAR(file,hitsWithQueries, new ArrayList<>());
@@ -0,0 +1,87 @@
+package com.idorsia.research.chem.hyperspace;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BitSetTreeTest {
+
+    private static final int BITS = 256;
+    private static final int BIN_SIZE = 8;
+
+    @Test
+    void insertGivesSameSupersetsAsRebuild() {
+        Random random = new Random(42);
+        Set<BitSet> initial = new HashSet<>();
+        Set<BitSet> added = new HashSet<>();
+        for (int i = 0; i < 300; i++) {
+            (i < 120 ? initial : added).add(randomBitSet(random, 0.3));
+        }
+        added.removeAll(initial);
+
+        BitSetTree incremental = BitSetTree.createTree(new HashSet<>(initial), BITS, BIN_SIZE);
+        for (BitSet b : added) {
+            assertTrue(incremental.insert(b, BITS, BIN_SIZE));
+        }
+        assertFalse(incremental.insert(added.iterator().next(), BITS, BIN_SIZE));
+
+        Set<BitSet> all = new HashSet<>(initial);
+        all.addAll(added);
+        BitSetTree rebuilt = BitSetTree.createTree(all, BITS, BIN_SIZE);
+        assertEquals(rebuilt.root.countAll(), incremental.root.countAll());
+
+        for (int q = 0; q < 200; q++) {
+            BitSet query = randomBitSet(random, 0.01 * (q % 8));
+            assertEquals(supersets(rebuilt, query), supersets(incremental, query));
+        }
+    }
+
+    @Test
+    void insertIntoEmptyTreeSplitsLeafs() {
+        Random random = new Random(7);
+        BitSetTree tree = BitSetTree.createTree(new HashSet<>(), BITS, BIN_SIZE);
+        Set<BitSet> inserted = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            BitSet b = randomBitSet(random, 0.3);
+            assertEquals(inserted.add(b), tree.insert(b, BITS, BIN_SIZE));
+        }
+        assertFalse(tree.root.isLeaf());
+        assertEquals(inserted, supersets(tree, new BitSet()));
+    }
+
+    @Test
+    void insertIntoFileBackedTreeIsUnsupported(@TempDir Path dir) {
+        Random random = new Random(3);
+        Set<BitSet> bitsets = new HashSet<>();
+        for (int i = 0; i < 20; i++) {
+            bitsets.add(randomBitSet(random, 0.3));
+        }
+        BitSetTree tree = BitSetTree.createTree(bitsets, BITS, BIN_SIZE, dir.toString(), null, null);
+        assertThrows(UnsupportedOperationException.class, () -> tree.insert(randomBitSet(random, 0.3), BITS, BIN_SIZE));
+    }
+
+    private static Set<BitSet> supersets(BitSetTree tree, BitSet query) {
+        List<BitSet> collected = new ArrayList<>();
+        tree.root.collectSuperSets(query, collected);
+        return new HashSet<>(collected);
+    }
+
+    private static BitSet randomBitSet(Random random, double density) {
+        BitSet b = new BitSet(BITS);
+        for (int i = 0; i < BITS; i++) {
+            if (random.nextDouble() < density) {
+                b.set(i);
+            }
+        }
+        return b;
+    }
+}
@@ -0,0 +1,122 @@
+package com.idorsia.research.chem.hyperspace;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CanonicalFingerprintsTest {
+
+    private static final Set<String> REACTIONS = Set.of("benzoimidazole_b-8", "urea-3", "urea-5", "carbamate-7");
+    private static final String[] QUERIES = {"NC(N)=O", "O=C(N)OC", "c1ccccc1Cl", "c1ncc[nH]1", "c1ccc2[nH]cnc2c1"};
+
+    @Test
+    void canonicalizedAndPlainSpaceReturnSameHits() throws Exception {
+        SynthonSpace reference = ToySpaces.build(REACTIONS, Set.of());
+        SynthonSpace space = ToySpaces.build(REACTIONS, Set.of());
+        // unshared copies of all synthon fps in the trees, as in spaces that were built before the pooling
+        space.bsts_by_connectors.replaceAll((connectors, tree) -> copyOf(tree, space.getBits()));
+        Map<String, Set<String>> plainHits = hitsByQuery(space);
+
+        CanonicalBitSetPool.Report report = space.canonicalizeFingerprints();
+        assertTrue(report.getRedirectedReferences() > 0);
+        assertTrue(report.getFreedInstances() > 0);
+        assertEquals(plainHits, hitsByQuery(space));
+        assertEquals(hitsByQuery(reference), plainHits);
+
+        // a second pass finds nothing left to redirect
+        assertEquals(0, space.canonicalizeFingerprints().getRedirectedReferences());
+        assertEquals(plainHits, hitsByQuery(space));
+    }
+
+    @Test
+    void canonicalizationDoesNotModifyTheGivenFragIds() throws Exception {
+        SynthonSpace space = ToySpaces.build(REACTIONS, Set.of());
+        // FragIds with canonical fingerprints but unshared connectors
+        Map<SynthonSpace.FragId, BitSet> copies = new IdentityHashMap<>();
+        space.frags_by_id.replaceAll((id, frag) -> {
+            SynthonSpace.FragId copy = new SynthonSpace.FragId(frag.rxn_id, frag.frag, frag.idcode, frag.fragment_id,
+                    (BitSet) frag.getConnectors().clone(), frag.fp, frag.fp_non_unique_connectors);
+            copies.put(copy, copy.getConnectors());
+            return copy;
+        });
+
+        space.canonicalizeFingerprints();
+        Map<BitSet, BitSet> sharedConnectors = new HashMap<>();
+        for (Map.Entry<SynthonSpace.FragId, BitSet> entry : copies.entrySet()) {
+            assertSame(entry.getValue(), entry.getKey().getConnectors());
+            SynthonSpace.FragId canonical = space.frags_by_id.get(entry.getKey().toString());
+            assertNotSame(entry.getKey(), canonical);
+            assertEquals(entry.getKey(), canonical);
+            // equal connectors are one instance again
+            BitSet connectors = canonical.getConnectors();
+            assertSame(sharedConnectors.computeIfAbsent(connectors, c -> c), connectors);
+        }
+    }
+
+    @Test
+    void reloadedSpaceReturnsSameHits() throws Exception {
+        SynthonSpace built = ToySpaces.build(REACTIONS, Set.of());
+        SynthonSpace reloaded = reload(built);
+        assertNotNull(reloaded.getFingerprintPoolingReport());
+        assertEquals(hitsByQuery(built), hitsByQuery(reloaded));
+    }
+
+    @Test
+    void synthonsShareTheFingerprintInstanceOfTheirIndexKey() throws Exception {
+        SynthonSpace space = reload(ToySpaces.build(REACTIONS, Set.of()));
+        for (BitSet connectors : space.getFragmentsByConnectorsKeys()) {
+            for (Map.Entry<BitSet, Set<SynthonSpace.FragId>> entry : space.getAllFragments_byConnectors(connectors).entrySet()) {
+                for (SynthonSpace.FragId frag : entry.getValue()) {
+                    assertSame(entry.getKey(), frag.fp);
+                    assertSame(frag, space.frags_by_id.get(frag.toString()));
+                }
+            }
+        }
+    }
+
+    private static SynthonSpace reload(SynthonSpace space) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(space);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            SynthonSpace reloaded = (SynthonSpace) in.readObject();
+            reloaded.initAfterJavaDeserialization();
+            return reloaded;
+        }
+    }
+
+    private static Map<String, Set<String>> hitsByQuery(SynthonSpace space) throws Exception {
+        CachedDescriptorProvider cdp = new CachedDescriptorProvider(space.getDescriptorHandlerShortName());
+        Map<String, Set<String>> hits = new TreeMap<>();
+        for (String smiles : QUERIES) {
+            hits.put(smiles, ToySpaces.describeHits(
+                    SubstructureSearchHelper.run_substructure_search_01(space, cdp, ToySpaces.parse(smiles), 2, false, false)));
+        }
+        return hits;
+    }
+
+    private static BitSetTree copyOf(BitSetTree tree, int bits) {
+        List<BitSet> all = new ArrayList<>();
+        tree.root.collectSuperSets(new BitSet(), all);
+        Set<BitSet> copies = new HashSet<>();
+        for (BitSet b : all) {
+            copies.add((BitSet) b.clone());
+        }
+        return BitSetTree.createTree(copies, bits, 16);
+    }
+}
@@ -0,0 +1,89 @@
+package com.idorsia.research.chem.hyperspace;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LabeledBitSetTreeTest {
+
+    @Test
+    void findLabelsMatchesPerLabelBruteForce() {
+        Random random = new Random(1234);
+        int bits = 130;
+        Map<String, List<BitSet>> fpsByLabel = new LinkedHashMap<>();
+        List<BitSet> previous = null;
+        for (int label = 0; label < 25; label++) {
+            List<BitSet> fps = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                fps.add(randomBitSet(random, bits, 0.3));
+            }
+            if (previous != null && label % 3 == 0) {
+                // shared fingerprints across labels
+                fps.addAll(previous.subList(0, 10));
+            }
+            fpsByLabel.put("rxn_" + label, fps);
+            previous = fps;
+        }
+
+        LabeledBitSetTree<String> tree = LabeledBitSetTree.createTree(fpsByLabel, bits, 8);
+        assertEquals(25, tree.getLabels().size());
+
+        for (int q = 0; q < 300; q++) {
+            BitSet query = randomBitSet(random, bits, 0.02 * (q % 6));
+            BitSet candidates = new BitSet();
+            for (int label = 0; label < 25; label++) {
+                if (random.nextBoolean()) {
+                    candidates.set(label);
+                }
+            }
+            BitSet expected = new BitSet();
+            for (int label = candidates.nextSetBit(0); label >= 0; label = candidates.nextSetBit(label + 1)) {
+                for (BitSet fp : fpsByLabel.get(tree.getLabels().get(label))) {
+                    BitSet missing = (BitSet) query.clone();
+                    missing.andNot(fp);
+                    if (missing.isEmpty()) {
+                        expected.set(label);
+                        break;
+                    }
+                }
+            }
+            assertEquals(expected, tree.findLabelsWithSuperset(query, candidates));
+        }
+    }
+
+    @Test
+    void unknownLabelAndOutOfRangeQueryFindNothing() {
+        Map<String, List<BitSet>> fpsByLabel = new LinkedHashMap<>();
+        BitSet fp = new BitSet();
+        fp.set(3);
+        fp.set(5);
+        fpsByLabel.put("a", List.of(fp));
+
+        LabeledBitSetTree<String> tree = LabeledBitSetTree.createTree(fpsByLabel, 64, 4);
+        BitSet query = new BitSet();
+        query.set(3);
+        assertTrue(tree.testSubset(query, "a"));
+        assertFalse(tree.testSubset(query, "b"));
+
+        BitSet outOfRange = new BitSet();
+        outOfRange.set(200);
+        assertTrue(tree.findLabelsWithSuperset(outOfRange).isEmpty());
+    }
+
+    private static BitSet randomBitSet(Random random, int bits, double density) {
+        BitSet bs = new BitSet(bits);
+        for (int i = 0; i < bits; i++) {
+            if (random.nextDouble() < density) {
+                bs.set(i);
+            }
+        }
+        return bs;
+    }
+}
@@ -0,0 +1,87 @@
+package com.idorsia.research.chem.hyperspace;
+
+import com.actelion.research.chem.StereoMolecule;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Searches that share their processed splits must find the same hits as independent searches.
+ */
+class ProcessedSplitsTest {
+
+    private static final Set<String> REACTIONS = Set.of("benzoimidazole_b-8", "urea-3", "urea-5", "carbamate-7", "snar_b-25");
+
+    // the repeated queries have identical splits, the second search skips them
+    private static final String[] QUERIES = {"NC(N)=O", "O=C(N)OC", "NC(N)=O", "c1ccc2[nH]cnc2c1", "O=C(N)OC"};
+
+    @Test
+    void sharedSplitsGiveTheSameHitsAsIndependentSearches() throws Exception {
+        SynthonSpace space = ToySpaces.build(REACTIONS, Collections.emptySet());
+        CachedDescriptorProvider cdp = new CachedDescriptorProvider(space.getDescriptorHandlerShortName());
+
+        for (int splits = 1; splits <= 2; splits++) {
+            Set<String> independent = new TreeSet<>();
+            for (String smiles : QUERIES) {
+                independent.addAll(search(space, cdp, ToySpaces.parse(smiles), splits, null));
+            }
+            assertFalse(independent.isEmpty());
+
+            Map<String, Set<String>> processed = new ConcurrentHashMap<>();
+            Set<String> shared = new TreeSet<>();
+            for (String smiles : QUERIES) {
+                shared.addAll(search(space, cdp, ToySpaces.parse(smiles), splits, processed));
+            }
+            assertFalse(processed.isEmpty());
+            assertEquals(independent, shared, "splits=" + splits);
+        }
+    }
+
+    @Test
+    void concurrentSearchesWithSharedSplitsFindAllHits() throws Exception {
+        SynthonSpace space = ToySpaces.build(REACTIONS, Collections.emptySet());
+        CachedDescriptorProvider cdp = new CachedDescriptorProvider(space.getDescriptorHandlerShortName());
+
+        Set<String> independent = new TreeSet<>();
+        for (String smiles : QUERIES) {
+            independent.addAll(search(space, cdp, ToySpaces.parse(smiles), 2, null));
+        }
+
+        Map<String, Set<String>> processed = new ConcurrentHashMap<>();
+        ExecutorService pool = Executors.newFixedThreadPool(QUERIES.length);
+        try {
+            List<Future<Set<String>>> futures = new ArrayList<>();
+            for (String smiles : QUERIES) {
+                StereoMolecule query = ToySpaces.parse(smiles);
+                futures.add(pool.submit(() -> search(space, cdp, query, 2, processed)));
+            }
+            Set<String> shared = new TreeSet<>();
+            for (Future<Set<String>> future : futures) {
+                shared.addAll(future.get());
+            }
+            assertEquals(independent, shared);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static Set<String> search(SynthonSpace space, CachedDescriptorProvider cdp, StereoMolecule query,
+                                      int splits, Map<String, Set<String>> processed) {
+        List<SynthonSpace.CombinatorialHit> hits = Collections.synchronizedList(new ArrayList<>());
+        SynthonSpace.findExpandedHits_withConnProximityMatching_streaming(space, cdp, query, splits, splits + 1,
+                new HashSet<>(), 1000, 2, processed, (hi, stats) -> hits.addAll(hi));
+        return ToySpaces.describeHits(hits);
+    }
+}
@@ -0,0 +1,108 @@
+package com.idorsia.research.chem.hyperspace;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SubstructureSearchPlannerTest {
+
+    private static final int BITS = 64;
+
+    @Test
+    void rareBitsCostLessThanFrequentBits() {
+        SubstructureSearchPlanner.SpaceStatistics stats = statistics();
+        double frequent = SubstructureSearchPlanner.estimateCandidates(stats, bits(0, 8), 4, Integer.MAX_VALUE);
+        double rare = SubstructureSearchPlanner.estimateCandidates(stats, bits(32, 40), 4, Integer.MAX_VALUE);
+        assertTrue(rare < frequent, rare + " < " + frequent);
+    }
+
+    @Test
+    void largerFragmentsCostLess() {
+        SubstructureSearchPlanner.SpaceStatistics stats = statistics();
+        int[] query = bits(0, 8);
+        double previous = Double.POSITIVE_INFINITY;
+        for (double fragmentBits : new double[]{1, 2, 4, 8}) {
+            double cost = SubstructureSearchPlanner.estimateCandidates(stats, query, fragmentBits, Integer.MAX_VALUE);
+            assertTrue(cost < previous, "fragment bits " + fragmentBits);
+            previous = cost;
+        }
+    }
+
+    @Test
+    void rxnsWithMoreSynthonSetsThanFragmentsAreSkipped() {
+        SubstructureSearchPlanner.SpaceStatistics stats = statistics();
+        int[] query = bits(0, 8);
+        double two = SubstructureSearchPlanner.estimateCandidates(stats, query, 4, 2);
+        double three = SubstructureSearchPlanner.estimateCandidates(stats, query, 4, 3);
+        assertTrue(two < three);
+        // no rxn has a single synthon set
+        assertEquals(0.0, SubstructureSearchPlanner.estimateCandidates(stats, query, 4, 1));
+    }
+
+    @Test
+    void levelCostsGrowWithTheNumberOfSplitPatterns() {
+        SubstructureSearchPlanner.SpaceStatistics stats = statistics();
+        BitSet fp = new BitSet();
+        fp.set(0, 8);
+        SubstructureSearchPlanner.QueryEstimate small = SubstructureSearchPlanner.estimate(stats, fp, 6);
+        SubstructureSearchPlanner.QueryEstimate large = SubstructureSearchPlanner.estimate(stats, fp, 12);
+
+        assertEquals(1.0, small.patterns[0]);
+        assertEquals(small.costs[0], large.costs[0]);
+        for (int ns = 1; ns <= SubstructureSearchPlanner.MAX_SPLITS; ns++) {
+            assertEquals(SubstructureSearchPlanner.binomial(6, ns), small.patterns[ns]);
+            assertTrue(small.costs[ns] < large.costs[ns], "level " + ns);
+        }
+        assertEquals(220.0, SubstructureSearchPlanner.binomial(12, 3));
+    }
+
+    @Test
+    void estimatesAreCachedByQuery() {
+        SubstructureSearchPlanner.SpaceStatistics stats = statistics();
+        AtomicInteger computed = new AtomicInteger();
+        BitSet fp = new BitSet();
+        fp.set(0, 8);
+        SubstructureSearchPlanner.QueryEstimate first = stats.getEstimate("query", () -> {
+            computed.incrementAndGet();
+            return SubstructureSearchPlanner.estimate(stats, fp, 6);
+        });
+        SubstructureSearchPlanner.QueryEstimate second = stats.getEstimate("query", () -> {
+            computed.incrementAndGet();
+            return SubstructureSearchPlanner.estimate(stats, fp, 6);
+        });
+        assertSame(first, second);
+        assertEquals(1, computed.get());
+
+        for (int i = 0; i < SubstructureSearchPlanner.SpaceStatistics.MAX_CACHED_ESTIMATES + 1; i++) {
+            stats.getEstimate("q" + i, () -> first);
+        }
+        assertTrue(stats.getCachedEstimates() <= SubstructureSearchPlanner.SpaceStatistics.MAX_CACHED_ESTIMATES);
+    }
+
+    /**
+     * Two rxns with 100 synthons each, bits 0..31 are set in 90% of the synthons, bits 32..63 in 1%.
+     */
+    private static SubstructureSearchPlanner.SpaceStatistics statistics() {
+        float[] freq = new float[BITS];
+        for (int i = 0; i < BITS; i++) {
+            freq[i] = (i < 32) ? 0.9f : 0.01f;
+        }
+        Map<String, SubstructureSearchPlanner.RxnStatistics> rxns = new HashMap<>();
+        rxns.put("two_sets", new SubstructureSearchPlanner.RxnStatistics(2, 100, freq));
+        rxns.put("three_sets", new SubstructureSearchPlanner.RxnStatistics(3, 100, freq));
+        return new SubstructureSearchPlanner.SpaceStatistics(BITS, rxns);
+    }
+
+    private static int[] bits(int from, int to) {
+        int[] bits = new int[to - from];
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = from + i;
+        }
+        return bits;
+    }
+}
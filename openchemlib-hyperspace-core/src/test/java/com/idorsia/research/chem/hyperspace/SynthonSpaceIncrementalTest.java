@@ -0,0 +1,55 @@
+package com.idorsia.research.chem.hyperspace;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SynthonSpaceIncrementalTest {
+
+    private static final Set<String> INITIAL = Set.of("benzoimidazole_b-8", "urea-3");
+    private static final Set<String> ADDED = Set.of("urea-5", "carbamate-7", "snar_b-25");
+
+    @Test
+    void incrementalAddGivesSameTreesAndHitsAsFullBuild() throws Exception {
+        Set<String> all = new HashSet<>(INITIAL);
+        all.addAll(ADDED);
+        SynthonSpace full = ToySpaces.build(all, Set.of());
+        SynthonSpace incremental = ToySpaces.build(INITIAL, ADDED);
+
+        assertEquals(full.bsts_by_connectors.keySet(), incremental.bsts_by_connectors.keySet());
+        for (BitSet connectors : full.bsts_by_connectors.keySet()) {
+            BitSetTree expected = full.bsts_by_connectors.get(connectors);
+            BitSetTree actual = incremental.bsts_by_connectors.get(connectors);
+            assertEquals(expected.root.countAll(), actual.root.countAll());
+            assertEquals(allBitSets(expected), allBitSets(actual));
+        }
+
+        CachedDescriptorProvider cdp = new CachedDescriptorProvider(full.getDescriptorHandlerShortName());
+        for (String smiles : new String[]{"NC(N)=O", "O=C(N)OC", "c1ccccc1Cl", "c1ncc[nH]1", "c1ccc2[nH]cnc2c1"}) {
+            assertEquals(
+                    ToySpaces.describeHits(SubstructureSearchHelper.run_substructure_search_01(full, cdp, ToySpaces.parse(smiles), 2, false, false)),
+                    ToySpaces.describeHits(SubstructureSearchHelper.run_substructure_search_01(incremental, cdp, ToySpaces.parse(smiles), 2, false, false)),
+                    smiles);
+        }
+    }
+
+    @Test
+    void addingAnExistingReactionFails() throws Exception {
+        SynthonSpace space = ToySpaces.build(INITIAL, Set.of());
+        assertThrows(IllegalArgumentException.class,
+                () -> space.addReactionIncremental("urea-3", new HashMap<>(), new HashMap<>(), null));
+    }
+
+    private static Set<BitSet> allBitSets(BitSetTree tree) {
+        List<BitSet> collected = new ArrayList<>();
+        tree.root.collectSuperSets(new BitSet(), collected);
+        return new HashSet<>(collected);
+    }
+}
@@ -0,0 +1,111 @@
+package com.idorsia.research.chem.hyperspace;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TopKCollectorTest {
+
+    @Test
+    void keepsTheHighestScoresInDecreasingOrder() {
+        TopKCollector<String> collector = new TopKCollector<>(3);
+        assertEquals(Double.NEGATIVE_INFINITY, collector.getThreshold());
+        assertTrue(collector.offer("a", 0.2));
+        assertTrue(collector.offer("b", 0.9));
+        assertTrue(collector.offer("c", 0.5));
+        assertEquals(0.2, collector.getThreshold());
+
+        assertFalse(collector.offer("d", 0.1));
+        assertTrue(collector.offer("e", 0.7));
+        assertEquals(0.5, collector.getThreshold());
+        assertEquals(3, collector.size());
+        assertEquals(List.of("b", "e", "c"), collector.getSortedResults());
+    }
+
+    @Test
+    void tiesKeepTheEarlierOffers() {
+        TopKCollector<String> collector = new TopKCollector<>(2);
+        assertTrue(collector.offer("a", 0.5));
+        assertTrue(collector.offer("b", 0.5));
+        // a score equal to the threshold does not improve the result
+        assertFalse(collector.offer("c", 0.5));
+        assertEquals(List.of("a", "b"), collector.getSortedResults());
+
+        // among equal scores the latest offered one is evicted first
+        assertTrue(collector.offer("d", 0.8));
+        assertEquals(List.of("d", "a"), collector.getSortedResults());
+    }
+
+    @Test
+    void nonPositiveKKeepsEverything() {
+        TopKCollector<Integer> collector = new TopKCollector<>(0);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(collector.offer(i, i % 10));
+        }
+        assertEquals(100, collector.size());
+        assertEquals(Double.NEGATIVE_INFINITY, collector.getThreshold());
+        List<Integer> sorted = collector.getSortedResults();
+        // equal scores stay in offer order
+        assertEquals(List.of(9, 19, 29), sorted.subList(0, 3));
+        assertEquals(List.of(80, 90), sorted.subList(98, 100));
+    }
+
+    @Test
+    void concurrentOffersGiveTheSequentialTopK() throws Exception {
+        int k = 50;
+        int threads = 8;
+        int perThread = 5000;
+        Random random = new Random(7);
+        double[] scores = new double[threads * perThread];
+        for (int i = 0; i < scores.length; i++) {
+            // distinct scores, so the top k does not depend on the offer order
+            scores[i] = i + random.nextDouble() * 0.5;
+        }
+        shuffle(scores, random);
+
+        TopKCollector<Integer> collector = new TopKCollector<>(k);
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int offset = t * perThread;
+            futures.add(pool.submit(() -> {
+                start.await();
+                for (int i = offset; i < offset + perThread; i++) {
+                    collector.offer(i, scores[i]);
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> f : futures) {
+            f.get();
+        }
+        pool.shutdown();
+
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < scores.length; i++) {
+            expected.add(i);
+        }
+        expected.sort((x, y) -> -Double.compare(scores[x], scores[y]));
+        assertEquals(expected.subList(0, k), collector.getSortedResults());
+        assertEquals(scores[expected.get(k - 1)], collector.getThreshold());
+    }
+
+    private static void shuffle(double[] values, Random random) {
+        for (int i = values.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            double v = values[i];
+            values[i] = values[j];
+            values[j] = v;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.idorsia.research.chem.hyperspace;
+
+import com.actelion.research.chem.SmilesParser;
+import com.actelion.research.chem.StereoMolecule;
+import com.idorsia.research.chem.hyperspace.descriptor.DescriptorHandlerLongFFP1024_plus;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Builds small synthon spaces from the toy space resource and summarizes search hits, for tests
+ * that compare two ways of building or searching a space.
+ */
+final class ToySpaces {
+
+    static final String TOY_SPACE = "testdata/idorsia_toy_space_a.txt";
+
+    private ToySpaces() {
+    }
+
+    /**
+     * Reads the synthons of the given reactions, by rxn id and synthon set index.
+     */
+    static Map<String, Map<Integer, List<Object>>> readReactions(Set<String> reactions,
+                                                                 Map<String, Map<String, String>> idcodeToIds) throws IOException {
+        InputStream in = ToySpaces.class.getClassLoader().getResourceAsStream(TOY_SPACE);
+        if (in == null) {
+            throw new IOException("Test data file missing: " + TOY_SPACE);
+        }
+        Map<String, Map<Integer, List<Object>>> moleculesByReaction = new TreeMap<>();
+        SmilesParser parser = new SmilesParser();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            reader.readLine(); // header
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.trim().split("\t");
+                if (parts.length < 4 || !reactions.contains(parts[3])) {
+                    continue;
+                }
+                StereoMolecule mol = new StereoMolecule();
+                try {
+                    parser.parse(mol, parts[0]);
+                } catch (Exception e) {
+                    throw new IOException("Unable to parse " + parts[0], e);
+                }
+                String idcode = mol.getIDCode();
+                moleculesByReaction.computeIfAbsent(parts[3], key -> new TreeMap<>())
+                        .computeIfAbsent(Integer.parseInt(parts[2]), key -> new ArrayList<>())
+                        .add(idcode);
+                idcodeToIds.computeIfAbsent(parts[3], key -> new TreeMap<>()).put(idcode, parts[1]);
+            }
+        }
+        return moleculesByReaction;
+    }
+
+    /**
+     * Builds the space from the initial reactions with a full index build, then adds the
+     * incremental reactions with addReactionIncremental.
+     */
+    static SynthonSpace build(Set<String> initial, Set<String> incremental) throws IOException {
+        Map<String, Map<String, String>> idcodeToIds = new TreeMap<>();
+        Set<String> all = new TreeSet<>(initial);
+        all.addAll(incremental);
+        Map<String, Map<Integer, List<Object>>> molecules = readReactions(all, idcodeToIds);
+
+        SynthonSpace space = new SynthonSpace();
+        space.setFP(new DescriptorHandlerLongFFP1024_plus("ffp"), 1024);
+        for (String rxnId : initial) {
+            space.addReaction(rxnId, molecules.get(rxnId), idcodeToIds.get(rxnId), null);
+        }
+        space.initAfterJavaDeserialization();
+        space.reinitBitTree();
+        for (String rxnId : incremental) {
+            space.addReactionIncremental(rxnId, molecules.get(rxnId), idcodeToIds.get(rxnId), null);
+        }
+        return space;
+    }
+
+    static StereoMolecule parse(String smiles) throws Exception {
+        StereoMolecule mol = new StereoMolecule();
+        new SmilesParser().parse(mol, smiles);
+        mol.ensureHelperArrays(StereoMolecule.cHelperCIP);
+        return mol;
+    }
+
+    /**
+     * @return one line per hit: rxn, then the sorted synthon ids per synthon set
+     */
+    static Set<String> describeHits(List<SynthonSpace.CombinatorialHit> hits) {
+        Set<String> described = new TreeSet<>();
+        for (SynthonSpace.CombinatorialHit hit : hits) {
+            Map<Integer, Set<String>> synthons = new TreeMap<>();
+            for (Map.Entry<SynthonSpace.FragType, List<SynthonSpace.FragId>> entry : hit.hit_fragments.entrySet()) {
+                Set<String> ids = synthons.computeIfAbsent(entry.getKey().frag, key -> new TreeSet<>());
+                for (SynthonSpace.FragId frag : entry.getValue()) {
+                    ids.add(frag.fragment_id);
+                }
+            }
+            described.add(hit.rxn + " " + synthons);
+        }
+        return described;
+    }
+}
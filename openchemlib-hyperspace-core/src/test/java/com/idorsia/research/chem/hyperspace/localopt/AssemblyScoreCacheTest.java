@@ -0,0 +1,159 @@
+package com.idorsia.research.chem.hyperspace.localopt;
+
+import com.idorsia.research.chem.hyperspace.SynthonSpace;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AssemblyScoreCacheTest {
+
+    @Test
+    void scoresEachAssemblyOnceAndCachesFailures() {
+        AssemblyScoreCache cache = new AssemblyScoreCache(100, "q");
+        List<SynthonSpace.FragId> good = List.of(fragId("A-1"), fragId("B-1"));
+        List<SynthonSpace.FragId> bad = List.of(fragId("A-1"), fragId("B-2"));
+        AtomicInteger calls = new AtomicInteger();
+
+        LocalOptimizationResult.BeamEntry first = cache.getOrScore("rxn", good, 1, () -> {
+            calls.incrementAndGet();
+            return entry(good, 0.8);
+        });
+        LocalOptimizationResult.BeamEntry second = cache.getOrScore("rxn", good, 3, () -> {
+            calls.incrementAndGet();
+            return entry(good, 0.1);
+        });
+        assertEquals(0.8, first.getScore(), 1e-9);
+        assertEquals(0.8, second.getScore(), 1e-9);
+        assertEquals(3, second.getOriginatingRound());
+
+        assertNull(cache.getOrScore("rxn", bad, 1, () -> { calls.incrementAndGet(); return null; }));
+        assertNull(cache.getOrScore("rxn", bad, 1, () -> { calls.incrementAndGet(); return entry(bad, 0.9); }));
+
+        assertEquals(2, calls.get());
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    void doesNotCachePrunedAssemblies() {
+        AssemblyScoreCache cache = new AssemblyScoreCache(100, "q");
+        List<SynthonSpace.FragId> frags = List.of(fragId("A-1"), fragId("B-1"));
+        assertNull(cache.getOrScore("rxn", frags, 1, () -> AssemblyScorer.PRUNED));
+        assertEquals(0, cache.size());
+        LocalOptimizationResult.BeamEntry rescored = cache.getOrScore("rxn", frags, 2, () -> entry(frags, 0.6));
+        assertEquals(0.6, rescored.getScore(), 1e-9);
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void concurrentRequestsWaitForTheRunningScore() throws Exception {
+        AssemblyScoreCache cache = new AssemblyScoreCache(100, "q");
+        List<SynthonSpace.FragId> frags = List.of(fragId("A-1"), fragId("B-1"));
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            Future<LocalOptimizationResult.BeamEntry> owner = pool.submit(() -> cache.getOrScore("rxn", frags, 1, () -> {
+                calls.incrementAndGet();
+                started.countDown();
+                awaitQuietly(release);
+                return entry(frags, 0.7);
+            }));
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            Future<LocalOptimizationResult.BeamEntry> waiter = pool.submit(() -> cache.getOrScore("rxn", frags, 2, () -> {
+                calls.incrementAndGet();
+                return entry(frags, 0.2);
+            }));
+            release.countDown();
+            assertEquals(0.7, owner.get(10, TimeUnit.SECONDS).getScore(), 1e-9);
+            assertEquals(0.7, waiter.get(10, TimeUnit.SECONDS).getScore(), 1e-9);
+            assertEquals(1, calls.get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void savedCacheIsOnlyLoadedForTheSameContext(@TempDir Path dir) throws IOException {
+        List<SynthonSpace.FragId> good = List.of(fragId("A-1"), fragId("B-1"));
+        List<SynthonSpace.FragId> bad = List.of(fragId("A-1"), fragId("B-2"));
+        AssemblyScoreCache cache = new AssemblyScoreCache(100, "q1");
+        cache.getOrScore("rxn", good, 1, () -> entry(good, 0.75));
+        cache.getOrScore("rxn", bad, 1, () -> null);
+        Path file = dir.resolve("scores.tsv");
+        cache.save(file);
+
+        AssemblyScoreCache other = new AssemblyScoreCache(100, "q2");
+        assertEquals(0, other.load(file));
+
+        AssemblyScoreCache reloaded = new AssemblyScoreCache(100, "q1");
+        assertEquals(2, reloaded.load(file));
+        LocalOptimizationResult.BeamEntry hit = reloaded.getOrScore("rxn", good, 1, () -> fail("should be cached"));
+        assertEquals(0.75, hit.getScore(), 1e-6);
+        assertEquals("idcode", hit.getIdcode());
+        assertNull(reloaded.getOrScore("rxn", bad, 1, () -> fail("should be cached")));
+    }
+
+    @Test
+    void sizeStaysBounded() {
+        AssemblyScoreCache cache = new AssemblyScoreCache(10, "q");
+        for (int i = 0; i < 100; i++) {
+            List<SynthonSpace.FragId> frags = List.of(fragId("A-" + i));
+            cache.getOrScore("rxn", frags, 1, () -> entry(frags, 0.5));
+            assertTrue(cache.size() <= 10);
+        }
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedScore() {
+        AssemblyScoreCache cache = new AssemblyScoreCache(3, "q");
+        List<SynthonSpace.FragId> a = List.of(fragId("A-1"));
+        List<SynthonSpace.FragId> b = List.of(fragId("A-2"));
+        List<SynthonSpace.FragId> c = List.of(fragId("A-3"));
+        List<SynthonSpace.FragId> d = List.of(fragId("A-4"));
+        cache.getOrScore("rxn", a, 1, () -> entry(a, 0.1));
+        cache.getOrScore("rxn", b, 1, () -> entry(b, 0.2));
+        cache.getOrScore("rxn", c, 1, () -> entry(c, 0.3));
+        // a is used again, b is now the least recently used one
+        cache.getOrScore("rxn", a, 1, () -> fail("should be cached"));
+        cache.getOrScore("rxn", d, 1, () -> entry(d, 0.4));
+        assertEquals(3, cache.size());
+
+        AtomicInteger calls = new AtomicInteger();
+        cache.getOrScore("rxn", a, 1, () -> fail("should be cached"));
+        cache.getOrScore("rxn", c, 1, () -> fail("should be cached"));
+        cache.getOrScore("rxn", d, 1, () -> fail("should be cached"));
+        cache.getOrScore("rxn", b, 1, () -> { calls.incrementAndGet(); return entry(b, 0.2); });
+        assertEquals(1, calls.get());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static LocalOptimizationResult.BeamEntry entry(List<SynthonSpace.FragId> frags, double score) {
+        return new LocalOptimizationResult.BeamEntry(frags, score, 20, 3, "idcode", 0);
+    }
+
+    private static SynthonSpace.FragId fragId(String fragmentId) {
+        return new SynthonSpace.FragId("rxn", 0, "idcode" + fragmentId, fragmentId, new BitSet(), new BitSet(), new BitSet());
+    }
+}
@@ -0,0 +1,59 @@
+package com.idorsia.research.chem.hyperspace.localopt;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AssemblySizePrescreenTest {
+
+    @Test
+    void rejectsAssembliesFarFromTheQuerySize() {
+        LongAdder rejected = new LongAdder();
+        AssemblySizePrescreen prescreen = AssemblySizePrescreen.create(20, 0.7, 0.1, rejected);
+        assertTrue(prescreen.passes(20));
+        assertTrue(prescreen.passes(15));
+        assertTrue(prescreen.passes(30));
+        assertFalse(prescreen.passes(10));
+        assertFalse(prescreen.passes(40));
+        assertEquals(2, rejected.sum());
+    }
+
+    @Test
+    void keepsAssembliesExactlyAtTheTolerance() {
+        // 0.8 - 0.1 and 0.8 - 0.2 round to slightly more than 0.7 and 0.6
+        double[][] settings = {{0.8, 0.1}, {0.8, 0.2}, {0.7, 0.1}, {0.9, 0.3}, {0.6, 0.15}};
+        for (double[] setting : settings) {
+            double bound = setting[0] - setting[1];
+            LongAdder rejected = new LongAdder();
+            AssemblySizePrescreen prescreen = AssemblySizePrescreen.create(60, setting[0], setting[1], rejected);
+            for (int atoms = 1; atoms <= 60; atoms++) {
+                double ratio = atoms / 60.0;
+                boolean expected = Math.abs(ratio - bound) < 1e-12 || ratio > bound;
+                String message = atoms + " atoms, " + setting[0] + " - " + setting[1];
+                assertEquals(expected, prescreen.passes(atoms), message);
+                // the same ratio for an assembly larger than the query
+                AssemblySizePrescreen smallQuery = AssemblySizePrescreen.create(atoms, setting[0], setting[1], null);
+                assertEquals(expected, smallQuery.passes(60), message);
+            }
+        }
+    }
+
+    @Test
+    void negativeToleranceDisablesThePrescreen() {
+        LongAdder rejected = new LongAdder();
+        AssemblySizePrescreen prescreen = AssemblySizePrescreen.create(20, 0.9, -1.0, rejected);
+        assertSame(AssemblySizePrescreen.disabled(), prescreen);
+        assertTrue(prescreen.passes(1));
+        assertTrue(AssemblySizePrescreen.disabled().passes(0));
+        assertEquals(0, rejected.sum());
+    }
+
+    @Test
+    void sizeRatioIsSymmetric() {
+        assertEquals(0.5, AssemblySizePrescreen.sizeRatio(10, 20));
+        assertEquals(0.5, AssemblySizePrescreen.sizeRatio(20, 10));
+        assertEquals(0.0, AssemblySizePrescreen.sizeRatio(0, 10));
+    }
+}
@@ -0,0 +1,207 @@
+package com.idorsia.research.chem.hyperspace.localopt;
+
+import com.idorsia.research.chem.hyperspace.SynthonSpace;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AsyncResultWriterTest {
+
+    @Test
+    void writesAllResultsFromConcurrentProducers(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("hits.tsv");
+        AsyncResultWriter.Options options = new AsyncResultWriter.Options()
+                .withQueueCapacity(8)
+                .withBatchSize(16);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try (AsyncResultWriter writer = new AsyncResultWriter(file, null, options)) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                int producer = t;
+                futures.add(pool.submit(() -> {
+                    for (int i = 0; i < 250; i++) {
+                        writer.submit(result("p" + producer + "-" + i));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        List<String> lines = readLines(file, false);
+        assertTrue(lines.get(0).startsWith("rxnId"));
+        assertEquals(1001, lines.size());
+        Set<String> fragments = new HashSet<>();
+        for (String line : lines.subList(1, lines.size())) {
+            fragments.add(line.split("\t")[1]);
+        }
+        assertEquals(1000, fragments.size());
+    }
+
+    @Test
+    void flushesPendingResultsAfterTheDelay(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("hits.tsv");
+        AsyncResultWriter.Options options = new AsyncResultWriter.Options()
+                .withBatchSize(1000)
+                .withMaxFlushDelayMillis(50);
+        try (AsyncResultWriter writer = new AsyncResultWriter(file, null, options)) {
+            writer.submit(result("a"));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (writer.getFlushes() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, writer.getFlushes());
+            assertEquals(2, readLines(file, false).size());
+        }
+    }
+
+    @Test
+    void rotatesCompressedFiles(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("hits.tsv.gz");
+        AsyncResultWriter.Options options = new AsyncResultWriter.Options().withRotateAfterResults(4);
+        try (AsyncResultWriter writer = new AsyncResultWriter(file, null, options)) {
+            for (int i = 0; i < 10; i++) {
+                writer.submit(result("f" + i));
+            }
+        }
+        assertEquals(5, readLines(file, true).size());
+        assertEquals(5, readLines(dir.resolve("hits.part0001.tsv.gz"), true).size());
+        List<String> last = readLines(dir.resolve("hits.part0002.tsv.gz"), true);
+        assertEquals(3, last.size());
+        assertTrue(last.get(0).startsWith("rxnId"));
+    }
+
+    @Test
+    void appendsWithoutRepeatingTheHeader(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("hits.tsv.gz");
+        try (AsyncResultWriter writer = new AsyncResultWriter(file, null, new AsyncResultWriter.Options())) {
+            writer.submit(result("a"));
+        }
+        try (AsyncResultWriter writer = new AsyncResultWriter(file, null, new AsyncResultWriter.Options().withAppend(true))) {
+            writer.submit(result("b"));
+            assertTrue(writer.awaitFlushed(writer.getSubmittedResults(), 10_000));
+        }
+        List<String> lines = readLines(file, true);
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(2).contains("\tb\t"));
+    }
+
+    @Test
+    void flushedCompressedResultsAreReadableBeforeClose(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("hits.tsv.gz");
+        try (AsyncResultWriter writer = new AsyncResultWriter(file, null, new AsyncResultWriter.Options())) {
+            for (int i = 0; i < 3; i++) {
+                writer.submit(result("f" + i));
+            }
+            assertTrue(writer.awaitFlushed(3, 10_000));
+            writer.force();
+            // the gzip trailer is still missing, all flushed lines must be there anyway
+            List<String> lines = readLines(file, true);
+            assertEquals(4, lines.size());
+            assertTrue(lines.get(3).contains("\tf2\t"));
+        }
+        assertEquals(4, readLines(file, true).size());
+    }
+
+    @Test
+    void submitsRacingCloseAreWrittenOrRejected(@TempDir Path dir) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            for (int round = 0; round < 20; round++) {
+                Path file = dir.resolve("hits" + round + ".tsv");
+                AsyncResultWriter writer = new AsyncResultWriter(file, null, new AsyncResultWriter.Options().withQueueCapacity(4));
+                AtomicInteger accepted = new AtomicInteger();
+                List<Future<?>> futures = new ArrayList<>();
+                for (int t = 0; t < 4; t++) {
+                    int producer = t;
+                    futures.add(pool.submit(() -> {
+                        try {
+                            for (int i = 0; i < 1000; i++) {
+                                writer.submit(result("p" + producer + "-" + i));
+                                accepted.incrementAndGet();
+                            }
+                        } catch (IllegalStateException e) {
+                            // closed
+                        }
+                        return null;
+                    }));
+                }
+                Thread.sleep(round % 3);
+                writer.close();
+                for (Future<?> future : futures) {
+                    future.get(30, TimeUnit.SECONDS);
+                }
+                // the header is only written with the first result
+                List<String> lines = readLines(file, false);
+                assertEquals(accepted.get(), lines.isEmpty() ? 0 : lines.size() - 1, "round " + round);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void rejectsResultsAfterClose(@TempDir Path dir) throws Exception {
+        AsyncResultWriter writer = new AsyncResultWriter(dir.resolve("hits.tsv"), null, new AsyncResultWriter.Options());
+        writer.close();
+        assertThrows(IllegalStateException.class, () -> writer.submit(result("a")));
+    }
+
+    private static List<String> readLines(Path file, boolean gzip) throws IOException {
+        InputStream in = Files.newInputStream(file);
+        if (gzip) {
+            in = new GZIPInputStream(in);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream stream = in) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = stream.read(buffer)) >= 0) {
+                bytes.write(buffer, 0, n);
+            }
+        } catch (EOFException e) {
+            // a gzip file that is still open ends after the last flushed block
+        }
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new StringReader(bytes.toString(StandardCharsets.UTF_8)))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    private static LocalOptimizationResult result(String fragmentId) {
+        List<SynthonSpace.FragId> frags = List.of(
+                new SynthonSpace.FragId("rxn", 0, "idcode" + fragmentId, fragmentId, new BitSet(), new BitSet(), new BitSet()));
+        LocalOptimizationResult.BeamEntry entry = new LocalOptimizationResult.BeamEntry(frags, 0.5, 20, 3, "idcode", 0);
+        return new LocalOptimizationResult("rxn", List.of(entry), List.of(fragmentId));
+    }
+}
@@ -0,0 +1,164 @@
+package com.idorsia.research.chem.hyperspace.localopt;
+
+import com.idorsia.research.chem.hyperspace.SynthonSpace;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LocalBeamOptimizerTest {
+
+    private static final String RXN = "rxn";
+    private static final int POSITIONS = 3;
+    private static final int SET_SIZE = 40;
+
+    @Test
+    void parallelExpansionGivesTheSequentialBeams() {
+        SynthonSetAccessor accessor = new FixedSets(synthonSets());
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            for (long randomSeed = 1; randomSeed <= 5; randomSeed++) {
+                LocalOptimizationRequest request = LocalOptimizationRequest.builder()
+                        .beamSize(6)
+                        .sampledNeighbors(8)
+                        .perPositionCap(2)
+                        .maxRounds(4)
+                        .patience(4)
+                        .randomSeed(randomSeed)
+                        .build();
+                SeedAssembly seed = new SeedAssembly(RXN, List.of("s0-0", "s1-0", "s2-0"), 0.0);
+
+                LocalOptimizationResult sequential = new LocalBeamOptimizer(accessor, new HashScorer(), new RandomSampler())
+                        .optimize(seed, request);
+                assertFalse(sequential.getBeamEntries().isEmpty());
+                for (int threads = 1; threads <= 4; threads++) {
+                    LocalOptimizationResult parallel = new LocalBeamOptimizer(accessor, new HashScorer(), new RandomSampler(),
+                            null, pool, threads).optimize(seed, request);
+                    String message = "seed " + randomSeed + ", threads " + threads;
+                    assertEquals(describe(sequential), describe(parallel), message);
+                    assertEquals(sequential.getStats().getScoredCandidates(), parallel.getStats().getScoredCandidates(), message);
+                    assertEquals(sequential.getStats().getRoundsCompleted(), parallel.getStats().getRoundsCompleted(), message);
+                    assertEquals(sequential.getBestObservedScore(), parallel.getBestObservedScore(), message);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static List<String> describe(LocalOptimizationResult result) {
+        List<String> entries = new ArrayList<>();
+        for (LocalOptimizationResult.BeamEntry entry : result.getBeamEntries()) {
+            StringBuilder sb = new StringBuilder();
+            for (SynthonSpace.FragId frag : entry.getFragments()) {
+                sb.append(frag.fragment_id).append(' ');
+            }
+            entries.add(sb.append(entry.getScore()).toString());
+        }
+        return entries;
+    }
+
+    private static Map<Integer, List<SynthonSpace.FragId>> synthonSets() {
+        Map<Integer, List<SynthonSpace.FragId>> sets = new HashMap<>();
+        for (int pos = 0; pos < POSITIONS; pos++) {
+            List<SynthonSpace.FragId> set = new ArrayList<>();
+            for (int i = 0; i < SET_SIZE; i++) {
+                String id = "s" + pos + "-" + i;
+                set.add(new SynthonSpace.FragId(RXN, pos, "idcode-" + id, id, new BitSet(), new BitSet(), new BitSet()));
+            }
+            sets.put(pos, Collections.unmodifiableList(set));
+        }
+        return sets;
+    }
+
+    private static final class FixedSets extends SynthonSetAccessor {
+        private final Map<Integer, List<SynthonSpace.FragId>> sets;
+
+        private FixedSets(Map<Integer, List<SynthonSpace.FragId>> sets) {
+            super((SynthonSpace) null);
+            this.sets = sets;
+        }
+
+        @Override
+        public Map<Integer, List<SynthonSpace.FragId>> getSynthonSets(String reactionId) {
+            return RXN.equals(reactionId) ? sets : Collections.emptyMap();
+        }
+
+        @Override
+        public SynthonSpace.FragId findFragment(String reactionId, String fragmentId) {
+            for (List<SynthonSpace.FragId> set : getSynthonSets(reactionId).values()) {
+                for (SynthonSpace.FragId frag : set) {
+                    if (frag.fragment_id.equals(fragmentId)) {
+                        return frag;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Uses the shared rng only, like the real samplers, so the sampling order defines the neighbors.
+     */
+    private static final class RandomSampler implements NeighborSampler {
+        @Override
+        public List<SynthonSpace.FragId> sampleNeighbors(String reactionId,
+                                                         int fragIdx,
+                                                         SynthonSpace.FragId center,
+                                                         Map<Integer, List<SynthonSpace.FragId>> synthonSets,
+                                                         LocalOptimizationRequest request,
+                                                         Random rng) {
+            List<SynthonSpace.FragId> set = synthonSets.get(fragIdx);
+            List<SynthonSpace.FragId> sampled = new ArrayList<>();
+            for (int i = 0; i < request.getSampledNeighbors(); i++) {
+                sampled.add(set.get(rng.nextInt(set.size())));
+            }
+            return sampled;
+        }
+    }
+
+    /**
+     * Score from the fragment ids, with random delays so that the scoring threads finish in varying
+     * order. Prunes below the beam cutoff and fails some assemblies, like the cascade scorers.
+     */
+    private static final class HashScorer implements AssemblyScorer {
+        @Override
+        public LocalOptimizationResult.BeamEntry score(String reactionId,
+                                                       List<SynthonSpace.FragId> fragments,
+                                                       int originatingRound,
+                                                       LocalOptimizationLogger logger) {
+            return score(reactionId, fragments, originatingRound, logger, Double.NEGATIVE_INFINITY);
+        }
+
+        @Override
+        public LocalOptimizationResult.BeamEntry score(String reactionId,
+                                                       List<SynthonSpace.FragId> fragments,
+                                                       int originatingRound,
+                                                       LocalOptimizationLogger logger,
+                                                       double beamCutoff) {
+            LockSupport.parkNanos(ThreadLocalRandom.current().nextInt(200_000));
+            String key = AssemblyScoreCache.buildKey(reactionId, fragments);
+            int hash = key.hashCode() * 0x9E3779B1;
+            if ((hash & 0xF) == 0) {
+                return null;
+            }
+            // coarse scores, so ties between candidates are common
+            double score = ((hash >>> 8) % 50) / 50.0;
+            if (score < beamCutoff) {
+                return PRUNED;
+            }
+            return new LocalOptimizationResult.BeamEntry(fragments, score, 20, 2, "idcode-" + key, originatingRound);
+        }
+    }
+}
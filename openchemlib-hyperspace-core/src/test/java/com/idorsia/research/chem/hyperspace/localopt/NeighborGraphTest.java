@@ -0,0 +1,130 @@
+package com.idorsia.research.chem.hyperspace.localopt;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NeighborGraphTest {
+
+    private static final NeighborGraphBuilder.Similarity TANIMOTO = (a, b) -> {
+        int both = 0;
+        int either = 0;
+        for (int i = 0; i < a.length; i++) {
+            both += Integer.bitCount(a[i] & b[i]);
+            either += Integer.bitCount(a[i] | b[i]);
+        }
+        return either == 0 ? 0.0 : both / (double) either;
+    };
+
+    @Test
+    void exactGraphRanksBySimilarity() {
+        List<String> ids = List.of("a", "b", "c", "d");
+        List<int[]> descriptors = new ArrayList<>();
+        descriptors.add(new int[]{0b1111});
+        descriptors.add(new int[]{0b0111});
+        descriptors.add(new int[]{0b0011});
+        descriptors.add(null);
+        NeighborGraph.SetGraph graph = new NeighborGraphBuilder(3, TANIMOTO).build(ids, descriptors);
+
+        assertEquals(4, graph.size());
+        assertEquals(1, graph.neighbor(0, 0));
+        assertEquals(2, graph.neighbor(0, 1));
+        // only two other fragments have descriptors
+        assertEquals(-1, graph.neighbor(0, 2));
+        assertEquals(0, graph.neighbor(1, 0));
+        assertEquals(-1, graph.neighbor(3, 0));
+        assertEquals(2, graph.indexOf("c"));
+        assertEquals(-1, graph.indexOf("x"));
+    }
+
+    @Test
+    void nnDescentFindsMostTrueNeighbors() {
+        int n = 1500;
+        int k = 10;
+        Random rng = new Random(7);
+        List<String> ids = new ArrayList<>();
+        List<int[]> descriptors = new ArrayList<>();
+        // clustered bit vectors, similar to synthons sharing scaffolds
+        int[][] centers = new int[30][];
+        for (int c = 0; c < centers.length; c++) {
+            centers[c] = randomBits(rng, 16, 0.3);
+        }
+        for (int i = 0; i < n; i++) {
+            int[] d = centers[rng.nextInt(centers.length)].clone();
+            for (int flip = 0; flip < 40; flip++) {
+                int bit = rng.nextInt(16 * 32);
+                d[bit >>> 5] ^= 1 << (bit & 31);
+            }
+            ids.add("f" + i);
+            descriptors.add(d);
+        }
+        NeighborGraph.SetGraph exact = new NeighborGraphBuilder(k, TANIMOTO).withExactThreshold(n).build(ids, descriptors);
+        NeighborGraph.SetGraph approx = new NeighborGraphBuilder(k, TANIMOTO).withExactThreshold(0).build(ids, descriptors);
+
+        // compare by similarity, ties make the exact neighbor ids ambiguous
+        double exactSum = 0.0;
+        double approxSum = 0.0;
+        for (int i = 0; i < n; i++) {
+            for (int r = 0; r < k; r++) {
+                exactSum += TANIMOTO.similarity(descriptors.get(i), descriptors.get(exact.neighbor(i, r)));
+                approxSum += TANIMOTO.similarity(descriptors.get(i), descriptors.get(approx.neighbor(i, r)));
+            }
+        }
+        assertTrue(approxSum >= 0.95 * exactSum, "approx " + approxSum + " exact " + exactSum);
+
+        NeighborGraph.SetGraph again = new NeighborGraphBuilder(k, TANIMOTO).withExactThreshold(0).build(ids, descriptors);
+        for (int i = 0; i < n; i++) {
+            Set<Integer> seen = new HashSet<>();
+            for (int r = 0; r < k; r++) {
+                assertEquals(approx.neighbor(i, r), again.neighbor(i, r));
+                assertNotEquals(i, approx.neighbor(i, r));
+                assertTrue(seen.add(approx.neighbor(i, r)));
+            }
+        }
+    }
+
+    @Test
+    void roundTripsThroughTheSidecarFile(@TempDir Path dir) throws IOException {
+        NeighborGraph graph = new NeighborGraph();
+        graph.put("rxn:1", 0, new NeighborGraph.SetGraph(List.of("a", "b"), 2, new int[]{1, -1, 0, -1}));
+        graph.put("rxn2", 1, new NeighborGraph.SetGraph(List.of("c"), 2, new int[]{-1, -1}));
+        Path file = dir.resolve("space.neighbors.gz");
+        graph.write(file);
+        assertFalse(Files.exists(dir.resolve("space.neighbors.gz.tmp")));
+
+        NeighborGraph read = NeighborGraph.read(file);
+        assertEquals(2, read.getSetCount());
+        NeighborGraph.SetGraph set = read.get("rxn:1", 0);
+        assertEquals("b", set.getFragmentId(set.neighbor(set.indexOf("a"), 0)));
+        assertEquals(-1, set.neighbor(1, 1));
+        assertEquals(1, read.get("rxn2", 1).size());
+        assertNull(read.get("rxn2", 0));
+    }
+
+    @Test
+    void rejectsOtherFiles(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("scores.tsv");
+        Files.writeString(file, "#context\tq\n");
+        assertThrows(IOException.class, () -> NeighborGraph.read(file));
+    }
+
+    private static int[] randomBits(Random rng, int words, double density) {
+        int[] bits = new int[words];
+        for (int i = 0; i < words * 32; i++) {
+            if (rng.nextDouble() < density) {
+                bits[i >>> 5] |= 1 << (i & 31);
+            }
+        }
+        return bits;
+    }
+}
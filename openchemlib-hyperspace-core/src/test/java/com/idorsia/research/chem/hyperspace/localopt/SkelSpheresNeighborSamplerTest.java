@@ -0,0 +1,97 @@
+package com.idorsia.research.chem.hyperspace.localopt;
+
+import com.actelion.research.chem.SmilesParser;
+import com.actelion.research.chem.StereoMolecule;
+import com.actelion.research.chem.descriptor.DescriptorHandlerBinarySkelSpheres;
+import com.idorsia.research.chem.hyperspace.SynthonSpace;
+import com.idorsia.research.chem.hyperspace.downsampling.SynthonDescriptorCache;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SkelSpheresNeighborSamplerTest {
+
+    private static final String RXN = "rxn";
+    private static final int K = 5;
+
+    // duplicates give ties, "broken" gets no descriptor
+    private static final String[] SMILES = {"CCO", "CCCO", "CCN", "CCCN", "CCO", "c1ccccc1O", "c1ccccc1N",
+            "c1ccccc1CO", "OCCO", "NCCN", "CC(C)O", "CC(C)N", "broken"};
+
+    @Test
+    void rankingWithoutGraphMatchesTheExactGraph() throws Exception {
+        List<SynthonSpace.FragId> pool = pool();
+        SynthonDescriptorCache<int[]> descriptors = new SynthonDescriptorCache<>(SkelSpheresNeighborSamplerTest::descriptor);
+        List<String> ids = new ArrayList<>();
+        List<int[]> desc = new ArrayList<>();
+        for (SynthonSpace.FragId frag : pool) {
+            ids.add(frag.fragment_id);
+            desc.add(descriptors.getOrCompute(frag));
+        }
+        assertNull(desc.get(desc.size() - 1));
+        DescriptorHandlerBinarySkelSpheres handler = new DescriptorHandlerBinarySkelSpheres();
+        NeighborGraph graph = new NeighborGraph();
+        graph.put(RXN, 0, new NeighborGraphBuilder(K, handler::getSimilarity).build(ids, desc));
+
+        SkelSpheresNeighborSampler withGraph = new SkelSpheresNeighborSampler(descriptors, graph);
+        SkelSpheresNeighborSampler withoutGraph = new SkelSpheresNeighborSampler(descriptors);
+        Map<Integer, List<SynthonSpace.FragId>> sets = Map.of(0, pool);
+        for (int topL = 1; topL <= K + 1; topL++) {
+            // sampling all neighbors with the same rng gives the same shuffle of equal lists
+            LocalOptimizationRequest request = LocalOptimizationRequest.builder()
+                    .neighborPoolSize(topL)
+                    .sampledNeighbors(topL)
+                    .build();
+            for (SynthonSpace.FragId center : pool) {
+                List<SynthonSpace.FragId> expected = withGraph.sampleNeighbors(RXN, 0, center, sets, request, new Random(topL));
+                List<SynthonSpace.FragId> actual = withoutGraph.sampleNeighbors(RXN, 0, center, sets, request, new Random(topL));
+                assertEquals(fragmentIds(expected), fragmentIds(actual), center.fragment_id + ", topL " + topL);
+            }
+        }
+
+        // a center without descriptor only has itself as neighbor
+        SynthonSpace.FragId broken = pool.get(pool.size() - 1);
+        LocalOptimizationRequest request = LocalOptimizationRequest.builder().neighborPoolSize(K + 1).sampledNeighbors(K + 1).build();
+        assertEquals(List.of("broken"), fragmentIds(withoutGraph.sampleNeighbors(RXN, 0, broken, sets, request, new Random(1))));
+    }
+
+    private static List<SynthonSpace.FragId> pool() throws Exception {
+        List<SynthonSpace.FragId> pool = new ArrayList<>();
+        for (int i = 0; i < SMILES.length; i++) {
+            String idcode = "broken".equals(SMILES[i]) ? "broken" : idcode(SMILES[i]);
+            String id = "broken".equals(SMILES[i]) ? "broken" : "f" + i;
+            pool.add(new SynthonSpace.FragId(RXN, 0, idcode, id, new BitSet(), new BitSet(), new BitSet()));
+        }
+        return pool;
+    }
+
+    private static int[] descriptor(SynthonSpace.FragId frag) {
+        if ("broken".equals(frag.fragment_id)) {
+            return null;
+        }
+        StereoMolecule mol = new StereoMolecule();
+        SynchronizedIDCodeParser.parse(mol, frag.idcode);
+        mol.ensureHelperArrays(StereoMolecule.cHelperCIP);
+        return new DescriptorHandlerBinarySkelSpheres().createDescriptor(mol);
+    }
+
+    private static String idcode(String smiles) throws Exception {
+        StereoMolecule mol = new StereoMolecule();
+        new SmilesParser().parse(mol, smiles);
+        return mol.getIDCode();
+    }
+
+    private static List<String> fragmentIds(List<SynthonSpace.FragId> frags) {
+        List<String> ids = new ArrayList<>();
+        for (SynthonSpace.FragId frag : frags) {
+            ids.add(frag.fragment_id);
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,149 @@
+package com.idorsia.research.chem.hyperspace.localopt;
+
+import com.idorsia.research.chem.hyperspace.SynthonSpace;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StagedAssemblyScorerTest {
+
+    private static final LocalOptimizationLogger LOGGER =
+            new LocalOptimizationLogger(LocalOptimizationLogLevel.NONE, List.of());
+
+    @Test
+    void lastStageGivesTheScore() {
+        AtomicInteger expensiveCalls = new AtomicInteger();
+        StagedAssemblyScorer scorer = new StagedAssemblyScorer(List.of(
+                new StagedAssemblyScorer.Stage("cheap", fixed(0.3), 0.5),
+                new StagedAssemblyScorer.Stage("full", counting(0.8, expensiveCalls), -1.0)));
+
+        LocalOptimizationResult.BeamEntry entry = scorer.score("rxn", fragments(), 1, LOGGER);
+        assertEquals(0.8, entry.getScore(), 1e-9);
+        assertEquals(1, expensiveCalls.get());
+        assertEquals(1, scorer.getStages().get(0).getEvaluated());
+        assertEquals(1, scorer.getStages().get(1).getEvaluated());
+    }
+
+    @Test
+    void prunesCandidatesBelowTheBeamCutoff() {
+        AtomicInteger expensiveCalls = new AtomicInteger();
+        StagedAssemblyScorer scorer = new StagedAssemblyScorer(List.of(
+                new StagedAssemblyScorer.Stage("cheap", fixed(0.3), 0.2),
+                new StagedAssemblyScorer.Stage("full", counting(0.8, expensiveCalls), -1.0)));
+
+        assertSame(AssemblyScorer.PRUNED, scorer.score("rxn", fragments(), 1, LOGGER, 0.7));
+        assertEquals(0, expensiveCalls.get());
+        assertEquals(1, scorer.getStages().get(0).getPruned());
+
+        // a lower cutoff lets the same candidate through
+        assertEquals(0.8, scorer.score("rxn", fragments(), 1, LOGGER, 0.5).getScore(), 1e-9);
+        assertEquals(1, expensiveCalls.get());
+    }
+
+    @Test
+    void stageRejectionsAreFinal() {
+        AtomicInteger expensiveCalls = new AtomicInteger();
+        StagedAssemblyScorer scorer = new StagedAssemblyScorer(List.of(
+                new StagedAssemblyScorer.Stage("filter", (rxn, frags, round, logger) -> null, -1.0),
+                new StagedAssemblyScorer.Stage("full", counting(0.8, expensiveCalls), -1.0)));
+
+        assertNull(scorer.score("rxn", fragments(), 1, LOGGER, Double.NEGATIVE_INFINITY));
+        assertEquals(0, expensiveCalls.get());
+        assertEquals(1, scorer.getStages().get(0).getRejected());
+    }
+
+    @Test
+    void negativeMarginIgnoresTheCutoff() {
+        StagedAssemblyScorer scorer = new StagedAssemblyScorer(List.of(
+                new StagedAssemblyScorer.Stage("cheap", fixed(0.1), -1.0),
+                new StagedAssemblyScorer.Stage("full", fixed(0.4), -1.0)));
+
+        // the last stage never prunes, the optimizer compares its score with the beam
+        assertEquals(0.4, scorer.score("rxn", fragments(), 1, LOGGER, 0.9).getScore(), 1e-9);
+    }
+
+    @Test
+    void stagesShareOneAssembly() {
+        AtomicInteger assembled = new AtomicInteger();
+        List<AssembledMolecule> seen = new ArrayList<>();
+        StagedAssemblyScorer scorer = new StagedAssemblyScorer(List.of(
+                new StagedAssemblyScorer.Stage("2d", assembling(0.3, assembled, seen), 0.5),
+                new StagedAssemblyScorer.Stage("phesa1", assembling(0.6, assembled, seen), 0.1),
+                new StagedAssemblyScorer.Stage("phesa16", assembling(0.7, assembled, seen), -1.0)));
+
+        assertEquals(0.7, scorer.score("rxn", fragments(), 1, LOGGER, 0.65).getScore(), 1e-9);
+        assertEquals(1, assembled.get());
+        assertEquals(3, seen.size());
+        assertSame(seen.get(0), seen.get(2));
+
+        // every candidate gets its own assembly
+        scorer.score("rxn", fragments(), 1, LOGGER, 0.65);
+        assertEquals(2, assembled.get());
+        assertNotSame(seen.get(0), seen.get(3));
+    }
+
+    @Test
+    void failedAssemblyIsRejectedByTheFirstStage() {
+        AtomicInteger expensiveCalls = new AtomicInteger();
+        AssembledMoleculeScorer failing = new AssembledMoleculeScorer() {
+            @Override
+            public AssembledMolecule assemble(List<SynthonSpace.FragId> fragments) {
+                return null;
+            }
+
+            @Override
+            public LocalOptimizationResult.BeamEntry scoreAssembled(List<SynthonSpace.FragId> fragments,
+                                                                    AssembledMolecule assembly,
+                                                                    int originatingRound,
+                                                                    LocalOptimizationLogger logger) {
+                throw new AssertionError("nothing to score");
+            }
+        };
+        StagedAssemblyScorer scorer = new StagedAssemblyScorer(List.of(
+                new StagedAssemblyScorer.Stage("2d", failing, 0.5),
+                new StagedAssemblyScorer.Stage("full", counting(0.8, expensiveCalls), -1.0)));
+
+        assertNull(scorer.score("rxn", fragments(), 1, LOGGER, Double.NEGATIVE_INFINITY));
+        assertEquals(1, scorer.getStages().get(0).getRejected());
+        assertEquals(0, expensiveCalls.get());
+    }
+
+    private static AssembledMoleculeScorer assembling(double score, AtomicInteger assembled, List<AssembledMolecule> seen) {
+        return new AssembledMoleculeScorer() {
+            @Override
+            public AssembledMolecule assemble(List<SynthonSpace.FragId> fragments) {
+                assembled.incrementAndGet();
+                return new AssembledMolecule(null);
+            }
+
+            @Override
+            public LocalOptimizationResult.BeamEntry scoreAssembled(List<SynthonSpace.FragId> fragments,
+                                                                    AssembledMolecule assembly,
+                                                                    int originatingRound,
+                                                                    LocalOptimizationLogger logger) {
+                seen.add(assembly);
+                return new LocalOptimizationResult.BeamEntry(fragments, score, 20, 3, "idcode", originatingRound);
+            }
+        };
+    }
+
+    private static AssemblyScorer fixed(double score) {
+        return (rxn, frags, round, logger) -> new LocalOptimizationResult.BeamEntry(frags, score, 20, 3, "idcode", round);
+    }
+
+    private static AssemblyScorer counting(double score, AtomicInteger calls) {
+        return (rxn, frags, round, logger) -> {
+            calls.incrementAndGet();
+            return new LocalOptimizationResult.BeamEntry(frags, score, 20, 3, "idcode", round);
+        };
+    }
+
+    private static List<SynthonSpace.FragId> fragments() {
+        return List.of(new SynthonSpace.FragId("rxn", 0, "idcodeA", "A-1", new BitSet(), new BitSet(), new BitSet()));
+    }
+}
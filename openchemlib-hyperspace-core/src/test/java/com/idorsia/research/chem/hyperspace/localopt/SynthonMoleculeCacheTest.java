@@ -0,0 +1,44 @@
+package com.idorsia.research.chem.hyperspace.localopt;
+
+import com.actelion.research.chem.SmilesParser;
+import com.actelion.research.chem.StereoMolecule;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SynthonMoleculeCacheTest {
+
+    @Test
+    void returnsIndependentCopies() throws Exception {
+        SynthonMoleculeCache cache = new SynthonMoleculeCache(10);
+        String idcode = idcode("c1ccccc1CN");
+        StereoMolecule first = cache.get(idcode);
+        first.deleteAtom(0);
+        StereoMolecule second = cache.get(idcode);
+        assertNotSame(first, second);
+        assertEquals(idcode, second.getIDCode());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedSynthon() throws Exception {
+        SynthonMoleculeCache cache = new SynthonMoleculeCache(2);
+        String a = idcode("CCO");
+        String b = idcode("CCN");
+        String c = idcode("CCC");
+        cache.get(a);
+        cache.get(b);
+        cache.get(a);
+        cache.get(c);
+        assertEquals(2, cache.size());
+        // evicted synthons are parsed again
+        assertEquals(b, cache.get(b).getIDCode());
+        assertEquals(2, cache.size());
+    }
+
+    private static String idcode(String smiles) throws Exception {
+        StereoMolecule mol = new StereoMolecule();
+        new SmilesParser().parse(mol, smiles);
+        return mol.getIDCode();
+    }
+}
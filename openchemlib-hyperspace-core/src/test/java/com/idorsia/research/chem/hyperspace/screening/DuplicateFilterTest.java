@@ -0,0 +1,55 @@
+package com.idorsia.research.chem.hyperspace.screening;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DuplicateFilterTest {
+
+    @Test
+    void reportsRepeatedIdcodes() {
+        DuplicateFilter filter = new DuplicateFilter(1000);
+        assertFalse(filter.markIfDuplicate("idcodeA"));
+        assertFalse(filter.markIfDuplicate("idcodeB"));
+        assertTrue(filter.markIfDuplicate("idcodeA"));
+        assertTrue(filter.markIfDuplicate("idcodeB"));
+        assertFalse(filter.markIfDuplicate(""));
+        assertFalse(filter.markIfDuplicate(null));
+    }
+
+    @Test
+    void remembersTheMostRecentEntriesAndKeepsTheFalsePositiveRate() {
+        int maxEntries = 10_000;
+        DuplicateFilter filter = new DuplicateFilter(maxEntries, 1e-3, 4);
+        int falsePositives = 0;
+        int total = 100_000;
+        for (int i = 0; i < total; i++) {
+            if (filter.markIfDuplicate("mol-" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives / (double) total < 3e-3, "false positives: " + falsePositives);
+        for (int i = total - maxEntries; i < total; i++) {
+            assertTrue(filter.markIfDuplicate("mol-" + i), "forgot mol-" + i);
+        }
+        // the oldest entries were rotated out long ago
+        int remembered = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (filter.markIfDuplicate("mol-" + i)) {
+                remembered++;
+            }
+        }
+        assertTrue(remembered < 10, "remembered: " + remembered);
+    }
+
+    @Test
+    void memoryDoesNotGrowWithInserts() {
+        DuplicateFilter filter = new DuplicateFilter(5_000, 1e-4, 3);
+        long bytes = filter.getMemoryBytes();
+        for (int i = 0; i < 50_000; i++) {
+            filter.markIfDuplicate("x" + i);
+        }
+        assertEquals(bytes, filter.getMemoryBytes());
+        assertEquals(3, filter.getGenerations());
+    }
+}
@@ -0,0 +1,124 @@
+package com.idorsia.research.chem.hyperspace.screening;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReactionSchedulerTest {
+
+    @Test
+    void aliasTableFollowsWeights() {
+        double[] weights = {1.0, 0.0, 3.0, 6.0};
+        ReactionScheduler.AliasTable table = ReactionScheduler.AliasTable.build(weights);
+        int[] counts = new int[weights.length];
+        Random random = new Random(7);
+        int samples = 200_000;
+        for (int i = 0; i < samples; i++) {
+            counts[table.sample(random)]++;
+        }
+        assertEquals(0, counts[1]);
+        assertEquals(0.1, counts[0] / (double) samples, 0.01);
+        assertEquals(0.3, counts[2] / (double) samples, 0.01);
+        assertEquals(0.6, counts[3] / (double) samples, 0.01);
+    }
+
+    @Test
+    void pickUsesSizeWeights() {
+        Map<String, List<Integer>> sizes = new LinkedHashMap<>();
+        sizes.put("small", List.of(10, 10));
+        sizes.put("large", List.of(100, 100));
+        ReactionScheduler scheduler = new ReactionScheduler(sizes, 0.0, 1.0);
+        Map<String, Integer> counts = pickCounts(scheduler, 100_000);
+        assertEquals(0.01 / 1.01, counts.getOrDefault("small", 0) / 100_000.0, 0.005);
+    }
+
+    @Test
+    void adaptFavoursReactionsWithHigherSuccessRate() {
+        Map<String, List<Integer>> sizes = new LinkedHashMap<>();
+        sizes.put("good", List.of(50, 50));
+        sizes.put("bad", List.of(50, 50));
+        sizes.put("unknown", List.of(50, 50));
+        ReactionScheduler scheduler = new ReactionScheduler(sizes, 0.0, 1.0);
+
+        ScreeningMetrics metrics = new ScreeningMetrics();
+        for (int i = 0; i < 10_000; i++) {
+            metrics.recordSamplingAttempt("good");
+            metrics.recordSamplingAttempt("bad");
+            if (i % 10 == 0) {
+                metrics.recordSamplingSuccess("good");
+            }
+            if (i % 1000 == 0) {
+                metrics.recordSamplingSuccess("bad");
+            }
+        }
+        scheduler.adapt(metrics.getReactionSampling(), new ReactionScheduler.Adaptation(0.2, 50.0, 0.05));
+
+        Map<String, Double> weights = scheduler.getCurrentWeightsByReaction();
+        assertTrue(weights.get("good") > weights.get("unknown"));
+        assertTrue(weights.get("unknown") > weights.get("bad"));
+        assertEquals(1.0, scheduler.getWeightsByReaction().get("good"), 1e-9);
+
+        // more exploration favours the reaction without data
+        double unknownBefore = weights.get("unknown") / weights.get("good");
+        scheduler.adapt(metrics.getReactionSampling(), new ReactionScheduler.Adaptation(2.0, 50.0, 0.05));
+        Map<String, Double> explored = scheduler.getCurrentWeightsByReaction();
+        assertTrue(explored.get("unknown") / explored.get("good") > unknownBefore);
+        scheduler.adapt(metrics.getReactionSampling(), new ReactionScheduler.Adaptation(0.2, 50.0, 0.05));
+
+        Map<String, Integer> counts = pickCounts(scheduler, 50_000);
+        assertTrue(counts.getOrDefault("good", 0) > counts.getOrDefault("bad", 0) * 5);
+    }
+
+    @Test
+    void adaptFavoursReactionsWithHigherHitRate() {
+        Map<String, List<Integer>> sizes = new LinkedHashMap<>();
+        sizes.put("hits", List.of(50, 50));
+        sizes.put("noHits", List.of(50, 50));
+        sizes.put("unknown", List.of(50, 50));
+        ReactionScheduler scheduler = new ReactionScheduler(sizes, 0.0, 1.0);
+        ReactionScheduler.Adaptation adaptation = new ReactionScheduler.Adaptation(0.2, 50.0, 0.05);
+
+        // same success rates
+        ScreeningMetrics metrics = new ScreeningMetrics();
+        for (int i = 0; i < 10_000; i++) {
+            metrics.recordSamplingAttempt("hits");
+            metrics.recordSamplingAttempt("noHits");
+            if (i % 10 == 0) {
+                metrics.recordSamplingSuccess("hits");
+                metrics.recordSamplingSuccess("noHits");
+            }
+        }
+        // without any hit the weights only follow the success rates
+        scheduler.adapt(metrics.getReactionSampling(), metrics.getReactionHits(), adaptation);
+        Map<String, Double> successOnly = scheduler.getCurrentWeightsByReaction();
+        assertEquals(successOnly.get("hits"), successOnly.get("noHits"), 1e-12);
+
+        for (int i = 0; i < 200; i++) {
+            metrics.recordHit("hits");
+        }
+        scheduler.adapt(metrics.getReactionSampling(), metrics.getReactionHits(), adaptation);
+        Map<String, Double> weights = scheduler.getCurrentWeightsByReaction();
+        assertTrue(weights.get("hits") > weights.get("unknown"));
+        assertTrue(weights.get("unknown") > weights.get("noHits"));
+        assertTrue(weights.get("hits") > successOnly.get("hits"));
+
+        // the two-argument variant ignores the hits
+        scheduler.adapt(metrics.getReactionSampling(), adaptation);
+        assertEquals(successOnly, scheduler.getCurrentWeightsByReaction());
+    }
+
+    private static Map<String, Integer> pickCounts(ReactionScheduler scheduler, int samples) {
+        Map<String, Integer> counts = new HashMap<>();
+        Random random = new Random(11);
+        for (int i = 0; i < samples; i++) {
+            counts.merge(scheduler.pick(random), 1, Integer::sum);
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,178 @@
+package com.idorsia.research.chem.hyperspace.screening;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScreeningCheckpointTest {
+
+    @Test
+    void restoresJobStateMetricsAndDuplicates(@TempDir Path dir) throws IOException {
+        ScreeningMetrics metrics = new ScreeningMetrics();
+        metrics.incrementSampled();
+        metrics.incrementSampled();
+        metrics.recordHit("rxnA");
+        metrics.recordSamplingAttempt("rxnA");
+        metrics.recordSamplingSuccess("rxnA");
+        metrics.recordSampledScore(0.5);
+        metrics.recordSampledScore(0.7);
+        metrics.scoreCacheHitCounter().add(3);
+        DuplicateFilter filter = new DuplicateFilter(1000);
+        for (int i = 0; i < 100; i++) {
+            filter.markIfDuplicate("idcode" + i);
+        }
+
+        Path file = dir.resolve("run.checkpoint");
+        new ScreeningCheckpoint(42L, 120L, List.of(117L, 119L), 5_000_000_000L).write(file, metrics, filter);
+        assertFalse(Files.exists(dir.resolve("run.checkpoint.tmp")));
+
+        ScreeningMetrics restoredMetrics = new ScreeningMetrics();
+        DuplicateFilter restoredFilter = new DuplicateFilter(1000);
+        ScreeningCheckpoint checkpoint = ScreeningCheckpoint.read(file, restoredMetrics, restoredFilter);
+
+        assertEquals(42L, checkpoint.getBaseSeed());
+        assertEquals(120L, checkpoint.getNextJobId());
+        assertEquals(List.of(117L, 119L), checkpoint.getPendingJobIds());
+        assertEquals(118L, checkpoint.getCompletedJobs());
+        assertEquals(5_000_000_000L, checkpoint.getElapsedNanos());
+        assertEquals(120L, checkpoint.getRepeatedJobIdBound());
+
+        assertEquals(2, restoredMetrics.getSampled());
+        assertEquals(1, restoredMetrics.getHits());
+        assertEquals(1, restoredMetrics.getReactionHits().get("rxnA").get());
+        assertEquals(1, restoredMetrics.getReactionSampling().get("rxnA").getAttempts());
+        assertEquals(1, restoredMetrics.getReactionSampling().get("rxnA").getSuccesses());
+        assertEquals(3, restoredMetrics.getScoreCacheHits());
+        ScreeningMetrics.ScoreStatsSnapshot scores = restoredMetrics.getSampledScoreStats();
+        assertEquals(2, scores.getCount());
+        assertEquals(0.6, scores.getMean(), 1e-9);
+        assertEquals(0.5, scores.getMin(), 1e-9);
+        assertEquals(0.7, scores.getMax(), 1e-9);
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(restoredFilter.markIfDuplicate("idcode" + i));
+        }
+        assertFalse(restoredFilter.markIfDuplicate("fresh"));
+    }
+
+    @Test
+    void skipsDuplicatesOfDifferentlyConfiguredFilter(@TempDir Path dir) throws IOException {
+        DuplicateFilter filter = new DuplicateFilter(1000);
+        filter.markIfDuplicate("idcode");
+        ScreeningMetrics metrics = new ScreeningMetrics();
+        metrics.incrementSubmitted();
+        Path file = dir.resolve("run.checkpoint");
+        new ScreeningCheckpoint(1L, 10L, List.of(), 0L).write(file, metrics, filter);
+
+        DuplicateFilter larger = new DuplicateFilter(50_000);
+        ScreeningMetrics restoredMetrics = new ScreeningMetrics();
+        ScreeningCheckpoint checkpoint = ScreeningCheckpoint.read(file, restoredMetrics, larger);
+        assertEquals(10L, checkpoint.getCompletedJobs());
+        assertEquals(1, restoredMetrics.getSubmitted());
+        assertFalse(larger.markIfDuplicate("idcode"));
+    }
+
+    @Test
+    void resumesFromCheckpointTakenWhileJobsAreRunning(@TempDir Path dir) throws Exception {
+        long jobs = 200L;
+        Path file = dir.resolve("run.checkpoint");
+        DuplicateFilter filter = new DuplicateFilter(10_000, 1e-9, DuplicateFilter.DEFAULT_GENERATIONS);
+        SeedSteps first = new SeedSteps(filter);
+        ScreeningPipeline<ScreeningPipeline.Job> pipeline = first.pipeline(0L, 0L, 0L);
+        Thread run = new Thread(() -> pipeline.run(List.of(), jobs, Long.MAX_VALUE));
+        run.start();
+
+        // like the orchestrator: take the job state, then jobs keep sampling while the hits are
+        // flushed, until the duplicate filter is written
+        first.sampleUntil(10L);
+        long nextJobId = pipeline.getNextJobId();
+        List<Long> pending = pipeline.getPendingJobIds(nextJobId);
+        first.sampleUntil(nextJobId + 3L);
+        new ScreeningCheckpoint(7L, nextJobId, pending, 0L)
+                .write(file, new ScreeningMetrics(), filter, pipeline::getNextJobId);
+        first.permits.release(Integer.MAX_VALUE / 2);
+        run.join(TimeUnit.SECONDS.toMillis(30));
+        assertFalse(run.isAlive());
+
+        DuplicateFilter restoredFilter = new DuplicateFilter(10_000, 1e-9, DuplicateFilter.DEFAULT_GENERATIONS);
+        ScreeningCheckpoint checkpoint = ScreeningCheckpoint.read(file, new ScreeningMetrics(), restoredFilter);
+        assertTrue(checkpoint.getRepeatedJobIdBound() > nextJobId + 3L);
+        SeedSteps second = new SeedSteps(restoredFilter);
+        second.permits.release(Integer.MAX_VALUE / 2);
+        ScreeningPipeline<ScreeningPipeline.Job> resumed = second.pipeline(checkpoint.getNextJobId(),
+                checkpoint.getCompletedJobs(), checkpoint.getRepeatedJobIdBound());
+        resumed.run(checkpoint.getPendingJobIds(), jobs - checkpoint.getNextJobId(), Long.MAX_VALUE);
+
+        // the seeds of all jobs differ, none of the jobs that were not done may be dropped
+        assertEquals(Set.of(), second.dropped);
+        for (long jobId = 0; jobId < jobs; jobId++) {
+            boolean done = jobId < nextJobId && !pending.contains(jobId);
+            assertEquals(!done, second.screened.contains(jobId), "job " + jobId);
+        }
+        assertEquals(jobs, resumed.getCompletedJobs());
+    }
+
+    @Test
+    void rejectsOtherFiles(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("hits.tsv");
+        Files.writeString(file, "rxnId\tfragIds\n");
+        assertThrows(IOException.class, () -> ScreeningCheckpoint.read(file, new ScreeningMetrics(), new DuplicateFilter(10)));
+    }
+
+    /**
+     * Sampling that marks a seed per job id in the duplicate filter, one job per permit.
+     */
+    private static final class SeedSteps {
+        private final DuplicateFilter filter;
+        private final Semaphore permits = new Semaphore(0);
+        private final Set<Long> screened = ConcurrentHashMap.newKeySet();
+        private final Set<Long> dropped = ConcurrentHashMap.newKeySet();
+        private ScreeningPipeline<ScreeningPipeline.Job> pipeline;
+
+        private SeedSteps(DuplicateFilter filter) {
+            this.filter = filter;
+        }
+
+        private ScreeningPipeline<ScreeningPipeline.Job> pipeline(long nextJobId, long completedJobs, long repeatedJobIdBound) {
+            pipeline = new ScreeningPipeline<>(ScreeningPipeline.Job::new, 0, nextJobId, completedJobs, repeatedJobIdBound)
+                    .addStage("sample", 4, 1, 1, this::sample);
+            return pipeline;
+        }
+
+        private void sample(ScreeningPipeline.Job job) {
+            permits.acquireUninterruptibly();
+            if (filter.markIfDuplicate("seed" + job.getJobId()) && !job.isRepeated()) {
+                dropped.add(job.getJobId());
+            } else {
+                screened.add(job.getJobId());
+            }
+            pipeline.complete(job);
+        }
+
+        /**
+         * Lets single jobs sample until the given job id is sampled
+         */
+        private void sampleUntil(long jobId) throws InterruptedException {
+            while (!screened.contains(jobId) && !dropped.contains(jobId)) {
+                if (!permits.hasQueuedThreads()) {
+                    Thread.sleep(1);
+                    continue;
+                }
+                permits.release();
+                while (permits.availablePermits() > 0) {
+                    Thread.sleep(1);
+                }
+            }
+        }
+    }
+}
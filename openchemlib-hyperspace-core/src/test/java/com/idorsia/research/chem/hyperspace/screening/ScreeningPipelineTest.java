@@ -0,0 +1,125 @@
+package com.idorsia.research.chem.hyperspace.screening;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the pipeline with stub steps in place of sampling and the optimizers.
+ */
+class ScreeningPipelineTest {
+
+    @Test
+    void allJobsDrainWithoutDeadline() {
+        StubSteps steps = new StubSteps(0L);
+        ScreeningPipeline<ScreeningPipeline.Job> pipeline = steps.pipeline(1, 100L, 10L);
+        pipeline.run(List.of(3L, 42L), 300, Long.MAX_VALUE);
+
+        assertEquals(400L, pipeline.getNextJobId());
+        assertEquals(List.of(), pipeline.getPendingJobIds(Long.MAX_VALUE));
+        // every job ended exactly once, in a step or by its failure
+        assertEquals(302, steps.ended.size());
+        assertEquals(10L + 302L, pipeline.getCompletedJobs());
+        assertTrue(steps.ended.containsKey(3L) && steps.ended.containsKey(42L));
+        assertTrue(steps.repeated.containsAll(Set.of(3L, 42L)));
+        assertEquals(2, steps.repeated.size());
+        for (ScreeningStage<ScreeningPipeline.Job> stage : pipeline.getStages()) {
+            assertEquals(0, stage.getQueueDepth());
+            assertEquals(0L, stage.getDiscarded());
+        }
+        assertTrue(pipeline.getStages().get(2).getFailed() > 0);
+    }
+
+    @Test
+    void deadlineKeepsTheDiscardedJobsPending() {
+        // the full stage is slow, the jobs pile up in the queues until the deadline
+        StubSteps steps = new StubSteps(TimeUnit.MILLISECONDS.toNanos(5));
+        ScreeningPipeline<ScreeningPipeline.Job> pipeline = steps.pipeline(0, 0L, 0L);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300);
+        pipeline.run(List.of(), Long.MAX_VALUE, deadline);
+
+        long discarded = 0;
+        for (ScreeningStage<ScreeningPipeline.Job> stage : pipeline.getStages()) {
+            assertEquals(0, stage.getQueueDepth());
+            discarded += stage.getDiscarded();
+        }
+        assertTrue(discarded > 0);
+
+        // the pending jobs are exactly the ones that did not end, so a resume repeats all of them
+        long nextJobId = pipeline.getNextJobId();
+        List<Long> pending = pipeline.getPendingJobIds(nextJobId);
+        assertFalse(pending.isEmpty());
+        assertEquals(pending, pipeline.getPendingJobIds(Long.MAX_VALUE));
+        assertEquals(nextJobId, pipeline.getCompletedJobs() + pending.size());
+        Set<Long> ended = new HashSet<>(steps.ended.keySet());
+        for (long jobId : pending) {
+            assertFalse(ended.contains(jobId), "job " + jobId);
+        }
+        for (long jobId = 0; jobId < nextJobId; jobId++) {
+            assertTrue(ended.contains(jobId) || pending.contains(jobId), "job " + jobId);
+        }
+    }
+
+    /**
+     * Sampling drops every fifth job, micro optimization every seventh and the full stage fails on
+     * every eleventh, like an optimizer exception.
+     */
+    private static final class StubSteps {
+        private final long fullNanos;
+        private final ConcurrentHashMap<Long, String> ended = new ConcurrentHashMap<>();
+        private final Set<Long> repeated = ConcurrentHashMap.newKeySet();
+        private ScreeningPipeline<ScreeningPipeline.Job> pipeline;
+
+        private StubSteps(long fullNanos) {
+            this.fullNanos = fullNanos;
+        }
+
+        private ScreeningPipeline<ScreeningPipeline.Job> pipeline(int balanceIntervalSeconds, long nextJobId, long completedJobs) {
+            pipeline = new ScreeningPipeline<>(ScreeningPipeline.Job::new, balanceIntervalSeconds, nextJobId, completedJobs, nextJobId)
+                    .addStage("sample", 16, 1, 2, this::sample)
+                    .addStage("micro", 4, 1, 2, this::micro)
+                    .addStage("full", 4, 2, 2, this::full);
+            return pipeline;
+        }
+
+        private void sample(ScreeningPipeline.Job job) {
+            if (job.isRepeated()) {
+                repeated.add(job.getJobId());
+            }
+            if (job.getJobId() % 5 == 0) {
+                end(job, "sample");
+                return;
+            }
+            pipeline.pass(job);
+        }
+
+        private void micro(ScreeningPipeline.Job job) {
+            if (job.getJobId() % 7 == 0) {
+                end(job, "micro");
+                return;
+            }
+            pipeline.pass(job);
+        }
+
+        private void full(ScreeningPipeline.Job job) {
+            LockSupport.parkNanos(fullNanos);
+            if (job.getJobId() % 11 == 0) {
+                assertNull(ended.putIfAbsent(job.getJobId(), "failed"));
+                throw new IllegalStateException("expected by the test");
+            }
+            end(job, "full");
+        }
+
+        private void end(ScreeningPipeline.Job job, String step) {
+            assertNull(ended.putIfAbsent(job.getJobId(), step), "job " + job.getJobId());
+            pipeline.complete(job);
+        }
+    }
+}
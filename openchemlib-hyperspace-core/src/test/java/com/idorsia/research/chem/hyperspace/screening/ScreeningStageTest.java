@@ -0,0 +1,119 @@
+package com.idorsia.research.chem.hyperspace.screening;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScreeningStageTest {
+
+    @Test
+    void blocksSubmittersWhileTheQueueIsFull() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> done = new CopyOnWriteArrayList<>();
+        ScreeningStage<Integer> stage = new ScreeningStage<>("test", 2, 1, 1, item -> {
+            started.countDown();
+            await(release);
+            done.add(item);
+        });
+        assertTrue(stage.submit(0));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        // the worker holds item 0, the queue takes two more
+        assertTrue(stage.submit(1, 1, TimeUnit.SECONDS));
+        assertTrue(stage.submit(2, 1, TimeUnit.SECONDS));
+        assertFalse(stage.submit(3, 50, TimeUnit.MILLISECONDS));
+        assertEquals(2, stage.getQueueDepth());
+        assertTrue(stage.getBlockedNanos() >= TimeUnit.MILLISECONDS.toNanos(50));
+
+        release.countDown();
+        stage.shutdown();
+        stage.awaitTermination();
+        assertEquals(List.of(0, 1, 2), done);
+        assertEquals(3, stage.getProcessed());
+        assertFalse(stage.submit(4));
+    }
+
+    @Test
+    void discardsQueuedItemsAndFinishesActiveOnes() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> done = new CopyOnWriteArrayList<>();
+        ScreeningStage<Integer> stage = new ScreeningStage<>("test", 10, 1, 1, item -> {
+            started.countDown();
+            await(release);
+            done.add(item);
+        });
+        for (int i = 0; i < 5; i++) {
+            assertTrue(stage.submit(i));
+        }
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertEquals(4, stage.discardQueued());
+        assertFalse(stage.submit(5));
+        release.countDown();
+        stage.shutdown();
+        stage.awaitTermination();
+        assertEquals(List.of(0), done);
+        assertEquals(4, stage.getDiscarded());
+    }
+
+    @Test
+    void countsFailuresAndKeepsWorking() throws Exception {
+        ScreeningStage<Integer> stage = new ScreeningStage<>("test", 10, 1, 1, item -> {
+            if (item == 0) {
+                throw new IllegalStateException("expected by the test");
+            }
+        });
+        stage.submit(0);
+        stage.submit(1);
+        stage.shutdown();
+        stage.awaitTermination();
+        assertEquals(1, stage.getFailed());
+        assertEquals(1, stage.getProcessed());
+    }
+
+    @Test
+    void rebalanceFollowsQueueDepths() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ScreeningStage<Integer> stage = new ScreeningStage<>("test", 4, 1, 3, item -> await(release));
+        assertEquals(1, stage.getWorkers());
+
+        // nothing waits, the pool stays at its min size
+        stage.rebalance(0.0);
+        assertEquals(1, stage.getWorkers());
+
+        // waiting items and room downstream add workers up to the max
+        for (int i = 0; i < 5; i++) {
+            assertTrue(stage.submit(i, 1, TimeUnit.SECONDS));
+        }
+        stage.rebalance(0.0);
+        assertEquals(2, stage.getWorkers());
+        stage.rebalance(0.0);
+        stage.rebalance(0.0);
+        assertEquals(3, stage.getWorkers());
+
+        // a nearly full next stage takes them away, even though items are waiting
+        assertTrue(stage.submit(5, 1, TimeUnit.SECONDS));
+        stage.rebalance(0.95);
+        stage.rebalance(0.95);
+        stage.rebalance(0.95);
+        assertEquals(1, stage.getWorkers());
+
+        release.countDown();
+        stage.shutdown();
+        stage.awaitTermination();
+        assertEquals(6, stage.getProcessed());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
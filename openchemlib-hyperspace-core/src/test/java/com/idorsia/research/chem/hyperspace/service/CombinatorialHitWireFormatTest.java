@@ -0,0 +1,128 @@
+package com.idorsia.research.chem.hyperspace.service;
+
+import com.idorsia.research.chem.hyperspace.SynthonSpace;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CombinatorialHitWireFormatTest {
+
+    @Test
+    void framesRoundTripAndReuseDictionary() throws IOException {
+        SynthonSpace.FragId a = fragId("rxn_a", 0, "idcodeA", "A-1");
+        SynthonSpace.FragId b = fragId("rxn_a", 1, "idcodeB", null);
+        SynthonSpace.FragId c = fragId("rxn_a", 1, "idcodeC", "C-1");
+
+        CombinatorialHitWireFormat.Encoder encoder = new CombinatorialHitWireFormat.Encoder(7);
+        CombinatorialHitWireFormat.Decoder decoder = new CombinatorialHitWireFormat.Decoder(7);
+
+        byte[] frame1 = encoder.encodeFrame(Collections.singletonList(hit("rxn_a", List.of(a), List.of(b, c))));
+        byte[] frame2 = encoder.encodeFrame(Collections.singletonList(hit("rxn_a", List.of(a), List.of(c))));
+
+        // second frame only references known synthons
+        assertTrue(frame2.length < frame1.length / 2);
+
+        List<CombinatorialHitWireFormat.Hit> hits1 = decoder.decodeFrame(frame1);
+        List<CombinatorialHitWireFormat.Hit> hits2 = decoder.decodeFrame(frame2);
+        assertEquals(1, hits1.size());
+        assertEquals(1, hits2.size());
+
+        CombinatorialHitWireFormat.Hit h1 = hits1.get(0);
+        assertEquals("rxn_a", h1.rxn);
+        assertEquals(List.of(0, 1), h1.frags);
+        assertEquals("idcodeA", h1.synthonSets.get(0).get(0).idcode);
+        assertEquals("A-1", h1.synthonSets.get(0).get(0).fragmentId);
+        assertNull(h1.synthonSets.get(1).get(0).fragmentId);
+        assertEquals("idcodeC", h1.synthonSets.get(1).get(1).idcode);
+        assertEquals("idcodeC", hits2.get(0).synthonSets.get(1).get(0).idcode);
+    }
+
+    @Test
+    void framesOutOfOrderAreRejected() throws IOException {
+        SynthonSpace.FragId a = fragId("rxn_a", 0, "idcodeA", "A-1");
+        CombinatorialHitWireFormat.Encoder encoder = new CombinatorialHitWireFormat.Encoder(7);
+        encoder.encodeFrame(Collections.singletonList(hit("rxn_a", List.of(a))));
+        byte[] frame2 = encoder.encodeFrame(Collections.singletonList(hit("rxn_a", List.of(a))));
+
+        IOException e = assertThrows(IOException.class, () -> new CombinatorialHitWireFormat.Decoder(7).decodeFrame(frame2));
+        assertTrue(e.getMessage().contains("expected frame 0"));
+    }
+
+    @Test
+    void interleavedQueriesDecodeWithTheirOwnDictionary() throws IOException {
+        SynthonSpace.FragId a = fragId("rxn_a", 0, "idcodeA", "A-1");
+        SynthonSpace.FragId b = fragId("rxn_a", 1, "idcodeB", "B-1");
+        SynthonSpace.FragId x = fragId("rxn_x", 0, "idcodeX", "X-1");
+        SynthonSpace.FragId y = fragId("rxn_x", 1, "idcodeY", null);
+
+        CombinatorialHitWireFormat.Encoder encoder1 = new CombinatorialHitWireFormat.Encoder(1);
+        CombinatorialHitWireFormat.Encoder encoder2 = new CombinatorialHitWireFormat.Encoder(2);
+        // both queries start with id 0 for their first synthon, a shared dictionary would mix them up
+        List<byte[]> channel = new ArrayList<>();
+        channel.add(encoder1.encodeFrame(Collections.singletonList(hit("rxn_a", List.of(a), List.of(b)))));
+        channel.add(encoder2.encodeFrame(Collections.singletonList(hit("rxn_x", List.of(x), List.of(y)))));
+        channel.add(encoder2.encodeFrame(Collections.singletonList(hit("rxn_x", List.of(x), List.of(y)))));
+        channel.add(encoder1.encodeFrame(Collections.singletonList(hit("rxn_a", List.of(a), List.of(b)))));
+
+        Map<Long, CombinatorialHitWireFormat.Decoder> decoders = new LinkedHashMap<>();
+        Map<Long, List<CombinatorialHitWireFormat.Hit>> received = new LinkedHashMap<>();
+        for (byte[] frame : channel) {
+            long queryId = CombinatorialHitWireFormat.readQueryId(frame);
+            List<CombinatorialHitWireFormat.Hit> hits = decoders.computeIfAbsent(queryId, CombinatorialHitWireFormat.Decoder::new).decodeFrame(frame);
+            received.computeIfAbsent(queryId, k -> new ArrayList<>()).addAll(hits);
+        }
+
+        assertEquals(2, received.get(1L).size());
+        assertEquals(2, received.get(2L).size());
+        for (CombinatorialHitWireFormat.Hit h : received.get(1L)) {
+            assertEquals("rxn_a", h.rxn);
+            assertEquals("idcodeA", h.synthonSets.get(0).get(0).idcode);
+            assertEquals("B-1", h.synthonSets.get(1).get(0).fragmentId);
+        }
+        for (CombinatorialHitWireFormat.Hit h : received.get(2L)) {
+            assertEquals("rxn_x", h.rxn);
+            assertEquals("idcodeX", h.synthonSets.get(0).get(0).idcode);
+            assertNull(h.synthonSets.get(1).get(0).fragmentId);
+        }
+
+        // a decoder does not accept frames of another query
+        IOException e = assertThrows(IOException.class, () -> new CombinatorialHitWireFormat.Decoder(1).decodeFrame(channel.get(1)));
+        assertTrue(e.getMessage().contains("expected query 1"));
+    }
+
+    @Test
+    void varIntAndZigZagRoundTrip() throws IOException {
+        int[] values = {0, 1, 127, 128, 300, 1 << 20, Integer.MAX_VALUE};
+        for (int v : values) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            CombinatorialHitWireFormat.writeVarInt(out, v);
+            assertEquals(v, CombinatorialHitWireFormat.readVarInt(new ByteArrayInputStream(out.toByteArray())));
+        }
+        for (int v : new int[]{0, -1, 1, -1000, 1000, Integer.MIN_VALUE + 1}) {
+            assertEquals(v, CombinatorialHitWireFormat.unzigzag(CombinatorialHitWireFormat.zigzag(v)));
+        }
+    }
+
+    private static SynthonSpace.FragId fragId(String rxn, int frag, String idcode, String fragmentId) {
+        return new SynthonSpace.FragId(rxn, frag, idcode, fragmentId, new BitSet(), new BitSet(), new BitSet());
+    }
+
+    @SafeVarargs
+    private static SynthonSpace.CombinatorialHit hit(String rxn, List<SynthonSpace.FragId>... sets) {
+        Map<SynthonSpace.FragType, List<SynthonSpace.FragId>> fragments = new LinkedHashMap<>();
+        for (int i = 0; i < sets.length; i++) {
+            fragments.put(new SynthonSpace.FragType(rxn, i), new ArrayList<>(sets[i]));
+        }
+        return new SynthonSpace.CombinatorialHit(rxn, fragments, null, null);
+    }
+}
@@ -0,0 +1,171 @@
+package com.idorsia.research.chem.hyperspace.shard;
+
+import com.idorsia.research.chem.hyperspace.SynthonSimilaritySpaceExplorer3;
+import com.idorsia.research.chem.hyperspace.SynthonSpace;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardCoordinatorTest {
+
+    @Test
+    void similarityHitsAreMergedIntoTheGlobalTopK() throws Exception {
+        try (FakeShard a = new FakeShard(List.of(similarityHits(0.9, 0.5), similarityHits(0.7)));
+             FakeShard b = new FakeShard(List.of(similarityHits(0.8), similarityHits(0.6, 0.95)))) {
+            ShardCoordinator coordinator = ShardCoordinator.forLocalPorts(a.getPort(), b.getPort());
+            List<Double> forwarded = Collections.synchronizedList(new ArrayList<>());
+
+            List<Pair<SynthonSimilaritySpaceExplorer3.FinalSimilarityResult, Double>> merged = coordinator.runSimilaritySearch(
+                    "query", new SynthonSimilaritySpaceExplorer3.SimilaritySearchConfig3(1, 2, 3, 0.5, 100), 3,
+                    hits -> {
+                        assertFalse(hits.isEmpty());
+                        hits.forEach(hit -> forwarded.add(hit.getRight()));
+                        return true;
+                    });
+
+            assertEquals(List.of(0.95, 0.9, 0.8), scores(merged));
+            assertTrue(forwarded.containsAll(scores(merged)));
+            assertEquals(ShardProtocol.REQUEST_SIMILARITY, a.lastRequest.type);
+            assertEquals(3, a.lastRequest.maxHits);
+        }
+    }
+
+    @Test
+    void similaritySearchWithoutLimitKeepsAllHits() throws Exception {
+        try (FakeShard a = new FakeShard(List.of(similarityHits(0.9, 0.5)));
+             FakeShard b = new FakeShard(List.of(similarityHits(0.8), similarityHits(0.7)))) {
+            ShardCoordinator coordinator = ShardCoordinator.forLocalPorts(a.getPort(), b.getPort());
+            List<Pair<SynthonSimilaritySpaceExplorer3.FinalSimilarityResult, Double>> merged = coordinator.runSimilaritySearch(
+                    "query", new SynthonSimilaritySpaceExplorer3.SimilaritySearchConfig3(1, 2, 3, 0.5, 100), 0);
+            assertEquals(List.of(0.9, 0.8, 0.7, 0.5), scores(merged));
+        }
+    }
+
+    @Test
+    void substructureHitsStopAtTheBudget() throws Exception {
+        // every combinatorial hit enumerates 2 x 3 = 6 hits
+        try (FakeShard a = new FakeShard(List.of(combinatorialHits("a", 2), combinatorialHits("a", 2)));
+             FakeShard b = new FakeShard(List.of(combinatorialHits("b", 2)))) {
+            ShardCoordinator coordinator = ShardCoordinator.forLocalPorts(a.getPort(), b.getPort());
+            List<SynthonSpace.CombinatorialHit> received = Collections.synchronizedList(new ArrayList<>());
+
+            ShardCoordinator.SubstructureSearchSummary summary = coordinator.runSubstructureSearch("query", 1,
+                    false, false, false, 20, (hits, stats) -> received.addAll(hits));
+
+            assertTrue(summary.isBudgetExhausted());
+            assertEquals(4, received.size());
+            assertEquals(24, summary.getForwardedHits());
+        }
+    }
+
+    @Test
+    void substructureHitsOfAllShardsAreForwarded() throws Exception {
+        try (FakeShard a = new FakeShard(List.of(combinatorialHits("a", 2), combinatorialHits("a", 1)));
+             FakeShard b = new FakeShard(List.of(combinatorialHits("b", 2)))) {
+            ShardCoordinator coordinator = ShardCoordinator.forLocalPorts(a.getPort(), b.getPort());
+            List<String> received = Collections.synchronizedList(new ArrayList<>());
+
+            ShardCoordinator.SubstructureSearchSummary summary = coordinator.runSubstructureSearch("query", 1,
+                    false, false, false, 0, (hits, stats) -> hits.forEach(hit -> received.add(hit.rxn)));
+
+            assertFalse(summary.isBudgetExhausted());
+            assertEquals(30, summary.getForwardedHits());
+            assertEquals(3, received.stream().filter("a"::equals).count());
+            assertEquals(2, received.stream().filter("b"::equals).count());
+        }
+    }
+
+    private static List<Double> scores(List<Pair<SynthonSimilaritySpaceExplorer3.FinalSimilarityResult, Double>> hits) {
+        List<Double> scores = new ArrayList<>();
+        hits.forEach(hit -> scores.add(hit.getRight()));
+        return scores;
+    }
+
+    private static byte[] similarityHits(double... similarities) throws IOException {
+        List<Pair<SynthonSimilaritySpaceExplorer3.FinalSimilarityResult, Double>> hits = new ArrayList<>();
+        for (double similarity : similarities) {
+            hits.add(Pair.of(new SynthonSimilaritySpaceExplorer3.FinalSimilarityResult(null, similarity, null), similarity));
+        }
+        return ShardProtocol.serialize(hits);
+    }
+
+    private static byte[] combinatorialHits(String rxn, int count) throws IOException {
+        List<SynthonSpace.CombinatorialHit> hits = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Map<SynthonSpace.FragType, List<SynthonSpace.FragId>> fragments = new HashMap<>();
+            fragments.put(new SynthonSpace.FragType(rxn, 0), synthons(rxn, 0, 2));
+            fragments.put(new SynthonSpace.FragType(rxn, 1), synthons(rxn, 1, 3));
+            hits.add(new SynthonSpace.CombinatorialHit(rxn, fragments, null, new HashMap<>()));
+        }
+        return ShardProtocol.serialize(hits);
+    }
+
+    private static List<SynthonSpace.FragId> synthons(String rxn, int frag, int count) {
+        List<SynthonSpace.FragId> synthons = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            synthons.add(new SynthonSpace.FragId(rxn, frag, "idcode" + i, rxn + "-" + frag + "-" + i, new BitSet(), new BitSet(), new BitSet()));
+        }
+        return synthons;
+    }
+
+    /**
+     * Answers every search with the given hit frames followed by END.
+     */
+    private static final class FakeShard implements Closeable {
+        private final ServerSocket serverSocket;
+        private final List<byte[]> frames;
+        private final Thread acceptThread;
+        private volatile ShardProtocol.Request lastRequest;
+
+        FakeShard(List<byte[]> frames) throws IOException {
+            this.frames = frames;
+            this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            this.acceptThread = new Thread(this::serve, "fake-shard");
+            this.acceptThread.setDaemon(true);
+            this.acceptThread.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        private void serve() {
+            while (!serverSocket.isClosed()) {
+                try (Socket socket = serverSocket.accept()) {
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    ShardProtocol.Frame request = ShardProtocol.readFrame(in);
+                    lastRequest = ShardProtocol.Request.decode(request.type, request.payload);
+                    for (byte[] frame : frames) {
+                        ShardProtocol.writeFrame(out, ShardProtocol.FRAME_HITS, frame);
+                    }
+                    ShardProtocol.writeFrame(out, ShardProtocol.FRAME_END, new byte[0]);
+                } catch (IOException ex) {
+                    // closed by the coordinator or by the test
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.idorsia.research.chem.hyperspace.shard;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardProtocolTest {
+
+    @Test
+    void requestRoundTrip() throws Exception {
+        ShardProtocol.Request request = new ShardProtocol.Request();
+        request.type = ShardProtocol.REQUEST_SIMILARITY;
+        request.queryIdcode = "fdyA@@@ILkmTä";
+        request.threads = 4;
+        request.fillIncompleteMappings = true;
+        request.bridgedBondsExpansion = true;
+        request.maxSplits = 3;
+        request.maxFragments = 2;
+        request.initialTanimoto = 0.65;
+        request.maxHitsPerSplitLevel = 500;
+        request.maxHits = 100;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ShardProtocol.writeFrame(new DataOutputStream(bytes), request.type, request.encode());
+        ShardProtocol.Frame frame = ShardProtocol.readFrame(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        ShardProtocol.Request decoded = ShardProtocol.Request.decode(frame.type, frame.payload);
+
+        assertEquals(ShardProtocol.REQUEST_SIMILARITY, decoded.type);
+        assertEquals(request.queryIdcode, decoded.queryIdcode);
+        assertEquals(4, decoded.threads);
+        assertTrue(decoded.fillIncompleteMappings);
+        assertFalse(decoded.omitRxnsWithHitsFromLowerSplitNumber);
+        assertTrue(decoded.bridgedBondsExpansion);
+        assertEquals(3, decoded.maxSplits);
+        assertEquals(2, decoded.maxFragments);
+        assertEquals(0.65, decoded.initialTanimoto);
+        assertEquals(500, decoded.maxHitsPerSplitLevel);
+        assertEquals(100, decoded.maxHits);
+    }
+
+    @Test
+    void rejectsRequestsWithoutMagic() {
+        assertThrows(IOException.class, () -> ShardProtocol.Request.decode(ShardProtocol.REQUEST_SUBSTRUCTURE, new byte[]{0, 0, 0, 1}));
+    }
+
+    @Test
+    void hitPayloadRoundTrip() throws Exception {
+        BitSet bits = new BitSet();
+        bits.set(3);
+        bits.set(700);
+        Map<String, BitSet> map = new HashMap<>();
+        map.put("rxn", bits);
+        List<Object> hits = new ArrayList<>();
+        hits.add(Pair.of(map, 0.75));
+        hits.add(Pair.of("other", 0.5));
+
+        assertEquals(hits, ShardProtocol.deserialize(ShardProtocol.serialize(hits)));
+    }
+
+    @Test
+    void rejectsClassesOutsideTheAllowList() throws Exception {
+        List<Object> hits = new ArrayList<>();
+        hits.add(URI.create("http://localhost/"));
+        byte[] payload = ShardProtocol.serialize(hits);
+        assertThrows(InvalidClassException.class, () -> ShardProtocol.deserialize(payload));
+    }
+}
@@ -0,0 +1,66 @@
+package com.idorsia.research.chem.hyperspace.util;
+
+import com.actelion.research.chem.SmilesParser;
+import com.actelion.research.chem.StereoMolecule;
+import com.actelion.research.chem.hyperspace.SimpleSynthon;
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HitExpanderTest {
+
+    private static final int SET_SIZE = 10;
+    // synthon without idcode, it cannot be parsed
+    private static final int BROKEN = 3;
+
+    @Test
+    void brokenSynthonOnlySkipsItsOwnTuples() throws Exception {
+        SimpleSynthon[][] sets = synthonSets();
+        for (int threads = 1; threads <= 4; threads++) {
+            Set<Long> expanded = ConcurrentHashMap.newKeySet();
+            long skipped = HitExpander.expandCartesian(sets, Long.MAX_VALUE, threads, (index, hit) -> {
+                assertNotNull(hit.getIDCodeAssembled());
+                return expanded.add(index);
+            });
+            // all tuples with the broken synthon of the first set, and only these
+            assertEquals(SET_SIZE, skipped, "threads " + threads);
+            assertEquals(SET_SIZE * SET_SIZE - SET_SIZE, expanded.size(), "threads " + threads);
+            for (long index = 0; index < SET_SIZE * SET_SIZE; index++) {
+                assertEquals(index / SET_SIZE != BROKEN, expanded.contains(index), "tuple " + index);
+            }
+        }
+    }
+
+    @Test
+    void receiverFailureIsRethrown() throws Exception {
+        SimpleSynthon[][] sets = synthonSets();
+        for (int threads = 1; threads <= 4; threads++) {
+            int numThreads = threads;
+            assertThrows(IllegalStateException.class, () -> HitExpander.expandCartesian(sets, Long.MAX_VALUE, numThreads, (index, hit) -> {
+                if (index == 75) {
+                    throw new IllegalStateException("expected by the test");
+                }
+                return true;
+            }));
+        }
+    }
+
+    private static SimpleSynthon[][] synthonSets() throws Exception {
+        SimpleSynthon[][] sets = new SimpleSynthon[2][SET_SIZE];
+        for (int i = 0; i < SET_SIZE; i++) {
+            String idcode = (i == BROKEN) ? null : idcode("[U]C" + "C".repeat(i));
+            sets[0][i] = new SimpleSynthon(idcode, "a" + i, "rxn", "SynthonSet:0");
+            sets[1][i] = new SimpleSynthon(idcode("[U]N" + "C".repeat(i)), "b" + i, "rxn", "SynthonSet:1");
+        }
+        return sets;
+    }
+
+    private static String idcode(String smiles) throws Exception {
+        StereoMolecule mol = new StereoMolecule();
+        new SmilesParser().parse(mol, smiles);
+        return mol.getIDCode();
+    }
+}
@@ -61,6 +61,8 @@ public class ConfigurationService {
                     SynthonSpace space_a = null;
                     space_a = (SynthonSpace) in.readObject();
                     space_a.initAfterJavaDeserialization();
+                    // statistics for the query planner
+                    space_a.getSearchStatistics();
                     //space = space_a;
 
                     System.out.println("Loaded space: " + space_a.getSpaceInfoString());
@@ -28,6 +28,16 @@ public class Hyperspace3Controller {
         //return result;
     }
 
+    /**
+     * Same as /runSubstructureSearch, but hits are sent as compact binary frames
+     * (see CombinatorialHitWireFormat) to /sss/results_combinatorial_binary. The frames carry the
+     * query id of the task, subscribers decode every query with its own decoder.
+     */
+    @MessageMapping("/runSubstructureSearch_Binary")
+    public void processComputationTask_Binary(SubstructureSearchTask task) {
+        computationService.executeComputation(task,false,true);
+    }
+
     @MessageMapping("/runSubstructureSearch_ExpandedResults")
     public void processComputationTask_Expanded(SubstructureSearchTask task) {
         // Perform computation...
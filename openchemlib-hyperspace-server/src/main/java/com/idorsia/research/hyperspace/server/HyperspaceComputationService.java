@@ -8,52 +8,130 @@ import com.actelion.research.chem.hyperspace.SimpleCombinatorialHit;
 import com.actelion.research.chem.hyperspace.SimpleSynthon;
 import com.idorsia.research.chem.hyperspace.CachedDescriptorProvider;
 import com.idorsia.research.chem.hyperspace.SubstructureSearchHelper;
+import com.idorsia.research.chem.hyperspace.SubstructureSearchPlanner;
 import com.idorsia.research.chem.hyperspace.SynthonSpace;
+import com.idorsia.research.chem.hyperspace.service.CombinatorialHitWireFormat;
 import com.idorsia.research.chem.hyperspace.service.SubstructureSearchTask;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
-import org.springframework.scheduling.annotation.Async;
-import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
-@EnableAsync
 @Service
 public class HyperspaceComputationService {
 
-    private int numThreadsPerQuery = 8;
+    /**
+     * Shared descriptor caches are cleared when they exceed this number of entries
+     */
+    private static final int MAX_CACHED_DESCRIPTORS = 1000000;
 
     private final SimpMessagingTemplate messagingTemplate;
     private final ConfigurationService configurationService;
+    private final QueryScheduler queryScheduler;
+
+    /**
+     * Prunes expensive split levels and rejects pathological queries before they are searched
+     */
+    private final SubstructureSearchPlanner planner;
+
+    /**
+     * One warm descriptor cache per space, shared by all queries on the space
+     */
+    private final Map<SynthonSpace, CachedDescriptorProvider> descriptorProviders = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    /**
+     * Ids for binary result streams of tasks without query id, counting up from Long.MIN_VALUE so that
+     * they do not collide with the positive ids chosen by clients
+     */
+    private final AtomicLong nextQueryId = new AtomicLong(Long.MIN_VALUE);
 
     @Autowired
-    public HyperspaceComputationService(SimpMessagingTemplate messagingTemplate, ConfigurationService configurationService) {
+    public HyperspaceComputationService(SimpMessagingTemplate messagingTemplate, ConfigurationService configurationService, QueryScheduler queryScheduler,
+                                        @Value("${hyperspace.query.maxLevelCost:0}") double maxLevelCost,
+                                        @Value("${hyperspace.query.maxQueryCost:0}") double maxQueryCost) {
         this.messagingTemplate = messagingTemplate;
         this.configurationService = configurationService;
+        this.queryScheduler = queryScheduler;
+        this.planner = new SubstructureSearchPlanner(maxLevelCost, maxQueryCost);
     }
 
-    @Async("computationExecutor")
+    /**
+     * Submits the search to the query scheduler. If the wait queue is full the query is rejected,
+     * and a status message is sent to /sss/query_status.
+     */
     public void executeComputation(SubstructureSearchTask task, boolean returnAssembled) {
-        // Your computation logic here
-        doComputation(task, returnAssembled);
+        executeComputation(task, returnAssembled, false);
+    }
+
+    /**
+     * @param binaryResults if true, combinatorial hits are sent as CombinatorialHitWireFormat frames
+     *                      to /sss/results_combinatorial_binary, one frame per received batch of hits.
+     *                      All queries share the destination, the frames carry the query id of the task,
+     *                      or an id assigned by the server that is announced on /sss/query_status.
+     */
+    public void executeComputation(SubstructureSearchTask task, boolean returnAssembled, boolean binaryResults) {
+        int requestedThreads = (task.getConfiguration() != null) ? task.getConfiguration().getNumThreads() : -1;
+        try {
+            queryScheduler.submit((threads, context) -> doComputation(task, returnAssembled, binaryResults, threads, context), requestedThreads);
+        } catch (RejectedExecutionException e) {
+            messagingTemplate.convertAndSend("/sss/query_status", "rejected: server busy, queue depth " + queryScheduler.getQueueDepth());
+        }
     }
 
-    private void doComputation(SubstructureSearchTask task, boolean returnAssembled) {
-        // TODO: implement this correctly..
-        SynthonSpace space = configurationService.getLoadedSpaces().entrySet().iterator().next().getValue();
+    private void doComputation(SubstructureSearchTask task, boolean returnAssembled, boolean binaryResults, int threads, QueryScheduler.QueryContext context) throws Exception {
+        SynthonSpace space = resolveSpace(task.getSpaceName());
+        if (space == null) {
+            messagingTemplate.convertAndSend("/sss/query_status", "failed: space not available: " + task.getSpaceName());
+            return;
+        }
 
-        CachedDescriptorProvider cdp = new CachedDescriptorProvider("FragFp");
+        CachedDescriptorProvider cdp = getDescriptorProvider(space);
         StereoMolecule qi = new StereoMolecule();
         IDCodeParser icp = new IDCodeParser();
         icp.parse(qi,task.getQueryIDCode());
         qi.ensureHelperArrays(Molecule.cHelperCIP);
 
+        SubstructureSearchPlanner.QueryPlan plan = planner.plan(space, cdp, qi, true);
+        if (plan.isRejected()) {
+            messagingTemplate.convertAndSend("/sss/query_status", "rejected: " + plan.getRejectReason());
+            return;
+        }
+
+        // one dictionary session per query, every synthon is sent only once
+        long queryId = (task.getQueryId() != 0) ? task.getQueryId() : nextQueryId.incrementAndGet();
+        CombinatorialHitWireFormat.Encoder encoder = new CombinatorialHitWireFormat.Encoder(queryId);
+        if (binaryResults && task.getQueryId() == 0) {
+            messagingTemplate.convertAndSend("/sss/query_status", "started: query " + queryId);
+        }
+
         SynthonSpace.CombinatorialHitReceiver receiver = new SynthonSpace.CombinatorialHitReceiver() {
             @Override
             public void addCombinatorialHits(List<SynthonSpace.CombinatorialHit> hits, List<SynthonSpace.SplitPatternWithConnectorProximityPruningStatistics> stats) {
-                if(!returnAssembled) {
+                if (context.isTimedOut()) {
+                    return;
+                }
+                if(!returnAssembled && binaryResults) {
+                    if(hits.isEmpty()) {
+                        return;
+                    }
+                    // frames must be sent in encoding order
+                    synchronized (encoder) {
+                        try {
+                            messagingTemplate.convertAndSend("/sss/results_combinatorial_binary", encoder.encodeFrame(hits));
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+                else if(!returnAssembled) {
                     // using the messagingTemplate
                     for(SynthonSpace.CombinatorialHit hi : hits) {
                         SimpleCombinatorialHit shit = convertToSimpleCombinatorialHit(hi);
@@ -66,15 +144,40 @@ public class HyperspaceComputationService {
                 }
             }
         };
-        try {
-            SubstructureSearchHelper.run_substructure_search_streaming_01_withBridgedBondsExpansion(space,
-                    cdp, qi,
-                    numThreadsPerQuery,
-                    true, true,
-                    receiver);
-        } catch (Exception e) {
-            e.printStackTrace();
+        SubstructureSearchHelper.run_substructure_search_streaming_01_withBridgedBondsExpansion(space,
+                cdp, qi,
+                threads,
+                true, true,
+                Integer.MAX_VALUE, planner,
+                receiver);
+        if (context.isTimedOut()) {
+            messagingTemplate.convertAndSend("/sss/query_status", "timeout: results are incomplete");
+        }
+    }
+
+    /**
+     * @param spaceName space name or service name, if empty the first loaded space is used
+     * @return the loaded space, or null if it is not (yet) loaded
+     */
+    private SynthonSpace resolveSpace(String spaceName) {
+        Map<ServiceConfig.ServiceProvider, SynthonSpace> loaded = configurationService.getLoadedSpaces();
+        for (Map.Entry<ServiceConfig.ServiceProvider, SynthonSpace> ei : loaded.entrySet()) {
+            if (spaceName == null || spaceName.isEmpty()
+                    || spaceName.equals(ei.getKey().getServiceName())
+                    || (ei.getKey().getConfig() != null && spaceName.equals(ei.getKey().getConfig().getSpaceName()))) {
+                return ei.getValue();
+            }
+        }
+        return null;
+    }
+
+    private CachedDescriptorProvider getDescriptorProvider(SynthonSpace space) {
+        CachedDescriptorProvider cdp = descriptorProviders.computeIfAbsent(space,
+                si -> new CachedDescriptorProvider(si.getDescriptorHandlerShortName()));
+        if (cdp.cache_FPs.size() > MAX_CACHED_DESCRIPTORS) {
+            cdp.cache_FPs.clear();
         }
+        return cdp;
     }
 
     public static SimpleCombinatorialHit convertToSimpleCombinatorialHit(SynthonSpace.CombinatorialHit hit) {
@@ -87,8 +190,7 @@ public class HyperspaceComputationService {
                 SynthonSpace.FragId fid = set_i.getValue().get(zi);
                 synthons_i[zi] = new SimpleSynthon(fid.idcode,fid.fragment_id,fid.rxn_id,synthon_set);
             }
-            scnt++;
-            synthons[scnt] = synthons_i;
+            synthons[scnt++] = synthons_i;
         }
         SimpleCombinatorialHit shit = new SimpleCombinatorialHit(hit.rxn,synthons);
         return shit;
@@ -0,0 +1,34 @@
+package com.idorsia.research.hyperspace.server;
+
+
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+@RestController
+public class QueryMetricsController {
+
+    private final QueryScheduler queryScheduler;
+
+    public QueryMetricsController(QueryScheduler queryScheduler) {
+        this.queryScheduler = queryScheduler;
+    }
+
+    @GetMapping("/queryMetrics")
+    public Map<String, Number> getQueryMetrics() {
+        Map<String, Number> metrics = new LinkedHashMap<>();
+        metrics.put("queueDepth", queryScheduler.getQueueDepth());
+        metrics.put("activeQueries", queryScheduler.getActiveQueries());
+        metrics.put("submittedQueries", queryScheduler.getSubmittedQueries());
+        metrics.put("rejectedQueries", queryScheduler.getRejectedQueries());
+        metrics.put("completedQueries", queryScheduler.getCompletedQueries());
+        metrics.put("timedOutQueries", queryScheduler.getTimedOutQueries());
+        metrics.put("maxConcurrentQueries", queryScheduler.getMaxConcurrentQueries());
+        metrics.put("maxQueuedQueries", queryScheduler.getMaxQueuedQueries());
+        metrics.put("threadsPerQuery", queryScheduler.getThreadsPerQuery());
+        return metrics;
+    }
+
+}
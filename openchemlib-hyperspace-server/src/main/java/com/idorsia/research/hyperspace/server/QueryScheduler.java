@@ -0,0 +1,172 @@
+package com.idorsia.research.hyperspace.server;
+
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for search queries.
+ *
+ * At most maxConcurrentQueries queries run at the same time, up to maxQueuedQueries wait in a
+ * bounded queue and further queries are rejected immediately. Every query gets at most
+ * threadsPerQuery search threads, and is interrupted when it runs longer than the time budget.
+ * The substructure search passes the interrupt on to its worker tasks by cancelling them, the
+ * workers check their interrupt flag and stop.
+ */
+@Component
+public class QueryScheduler {
+
+    private final int maxConcurrentQueries;
+    private final int maxQueuedQueries;
+    private final int threadsPerQuery;
+    private final long queryTimeoutSeconds;
+
+    private final ThreadPoolExecutor queryExecutor;
+    private final ScheduledExecutorService watchdog;
+
+    private final AtomicInteger activeQueries = new AtomicInteger(0);
+    private final AtomicLong submittedQueries = new AtomicLong(0);
+    private final AtomicLong rejectedQueries = new AtomicLong(0);
+    private final AtomicLong completedQueries = new AtomicLong(0);
+    private final AtomicLong timedOutQueries = new AtomicLong(0);
+
+    public QueryScheduler(@Value("${hyperspace.query.maxConcurrent:2}") int maxConcurrentQueries,
+                          @Value("${hyperspace.query.maxQueued:16}") int maxQueuedQueries,
+                          @Value("${hyperspace.query.threadsPerQuery:4}") int threadsPerQuery,
+                          @Value("${hyperspace.query.timeoutSeconds:300}") long queryTimeoutSeconds) {
+        this.maxConcurrentQueries = Math.max(1, maxConcurrentQueries);
+        this.maxQueuedQueries = Math.max(1, maxQueuedQueries);
+        this.threadsPerQuery = Math.max(1, threadsPerQuery);
+        this.queryTimeoutSeconds = queryTimeoutSeconds;
+
+        AtomicInteger threadCount = new AtomicInteger(0);
+        this.queryExecutor = new ThreadPoolExecutor(this.maxConcurrentQueries, this.maxConcurrentQueries,
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(this.maxQueuedQueries),
+                r -> {
+                    Thread t = new Thread(r, "Query-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Query-Watchdog");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * A query, receives its thread budget and whether the time budget was exceeded.
+     */
+    public interface Query {
+        void run(int threads, QueryContext context) throws Exception;
+    }
+
+    public static class QueryContext {
+        private volatile boolean timedOut = false;
+
+        /**
+         * True if the query exceeded its time budget, results that arrive after this should be dropped.
+         */
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+    }
+
+    /**
+     * Submits a query.
+     *
+     * @param requestedThreads requested number of search threads, values <= 0 request the per-query maximum
+     * @throws RejectedExecutionException if the wait queue is full
+     */
+    public Future<?> submit(Query query, int requestedThreads) {
+        int threads = (requestedThreads > 0) ? Math.min(requestedThreads, threadsPerQuery) : threadsPerQuery;
+        QueryContext context = new QueryContext();
+        Future<?> future;
+        try {
+            future = queryExecutor.submit(() -> {
+                activeQueries.incrementAndGet();
+                try {
+                    query.run(threads, context);
+                } catch (InterruptedException e) {
+                    // cancelled or timed out
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    activeQueries.decrementAndGet();
+                    completedQueries.incrementAndGet();
+                    // clear a possible timeout interrupt before the thread is reused
+                    Thread.interrupted();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejectedQueries.incrementAndGet();
+            throw e;
+        }
+        submittedQueries.incrementAndGet();
+        if (queryTimeoutSeconds > 0) {
+            // the time budget includes the time in the wait queue
+            watchdog.schedule(() -> {
+                if (!future.isDone()) {
+                    context.timedOut = true;
+                    timedOutQueries.incrementAndGet();
+                    future.cancel(true);
+                }
+            }, queryTimeoutSeconds, TimeUnit.SECONDS);
+        }
+        return future;
+    }
+
+    public int getQueueDepth() {
+        return queryExecutor.getQueue().size();
+    }
+
+    public int getActiveQueries() {
+        return activeQueries.get();
+    }
+
+    public long getSubmittedQueries() {
+        return submittedQueries.get();
+    }
+
+    public long getRejectedQueries() {
+        return rejectedQueries.get();
+    }
+
+    public long getCompletedQueries() {
+        return completedQueries.get();
+    }
+
+    public long getTimedOutQueries() {
+        return timedOutQueries.get();
+    }
+
+    public int getMaxConcurrentQueries() {
+        return maxConcurrentQueries;
+    }
+
+    public int getMaxQueuedQueries() {
+        return maxQueuedQueries;
+    }
+
+    public int getThreadsPerQuery() {
+        return threadsPerQuery;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        watchdog.shutdownNow();
+        queryExecutor.shutdownNow();
+    }
+}